@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2025 Ivan Kniazkov
+ */
+package com.kniazkov.webserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parses POST requests with bodies of several sizes: a URL-encoded form whose fields
+ * are then decoded, and a multipart form with a text field and an uploaded file.
+ * Uploads stay in memory (the threshold is above the largest body), so the benchmark
+ * measures reading and decoding rather than the disk.
+ * <code>
+ *     mvn -Pbenchmark package
+ *     java -jar target/benchmarks.jar FormDecodingBenchmark -prof gc
+ * </code>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FormDecodingBenchmark {
+    /**
+     * Boundary of the multipart form.
+     */
+    private static final String BOUNDARY = "----WebKitFormBoundary7MA4YWxkTrZu0gW";
+
+    /**
+     * Approximate size of the request body, in bytes.
+     */
+    @Param({"1024", "65536", "1048576"})
+    public int size;
+
+    /**
+     * Options.
+     */
+    private final Options options = new Options();
+
+    /**
+     * Connection receiving the URL-encoded form.
+     */
+    private StreamReader urlEncoded;
+
+    /**
+     * Connection receiving the multipart form.
+     */
+    private StreamReader multipart;
+
+    /**
+     * Name of the last field of the URL-encoded form.
+     */
+    private String lastField;
+
+    /**
+     * Creates the connections.
+     */
+    @Setup
+    public void setup() {
+        options.uploadMemoryThreshold = 2L * 1024 * 1024;
+
+        final StringBuilder form = new StringBuilder();
+        int index = 0;
+        while (form.length() < size) {
+            if (index > 0) {
+                form.append('&');
+            }
+            lastField = "field" + index;
+            form.append(lastField).append("=value+number+").append(index)
+                .append("%2C%20with%20%22escapes%22");
+            index++;
+        }
+        final byte[] formBody = form.toString().getBytes(StandardCharsets.ISO_8859_1);
+        urlEncoded = new StreamReader(new ReplayStream(concat(
+            ("POST /submit HTTP/1.1\r\n"
+                + "Host: example.com\r\n"
+                + "Content-Type: application/x-www-form-urlencoded\r\n"
+                + "Content-Length: " + formBody.length + "\r\n"
+                + "\r\n").getBytes(StandardCharsets.ISO_8859_1),
+            formBody)));
+
+        final byte[] file = new byte[size];
+        for (int position = 0; position < size; position++) {
+            file[position] = (byte) (position * 31 + (position >>> 8));
+        }
+        final byte[] multipartBody = concat(
+            ("--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"title\"\r\n"
+                + "\r\n"
+                + "Holiday photos\r\n"
+                + "--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"photo\"; filename=\"beach.jpg\"\r\n"
+                + "Content-Type: image/jpeg\r\n"
+                + "\r\n").getBytes(StandardCharsets.ISO_8859_1),
+            file,
+            ("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        multipart = new StreamReader(new ReplayStream(concat(
+            ("POST /upload HTTP/1.1\r\n"
+                + "Host: example.com\r\n"
+                + "Content-Type: multipart/form-data; boundary=" + BOUNDARY + "\r\n"
+                + "Content-Length: " + multipartBody.length + "\r\n"
+                + "\r\n").getBytes(StandardCharsets.ISO_8859_1),
+            multipartBody)));
+    }
+
+    /**
+     * Parses the URL-encoded form and decodes its fields.
+     * @return The value of the last field
+     * @throws IOException Never
+     */
+    @Benchmark
+    public String urlEncoded() throws IOException {
+        final Request request = RequestParser.parse(urlEncoded, options);
+        return request.formData.get(lastField);
+    }
+
+    /**
+     * Parses the multipart form.
+     * @return Parsed request
+     * @throws IOException Never
+     */
+    @Benchmark
+    public Request multipart() throws IOException {
+        final Request request = RequestParser.parse(multipart, options);
+        request.deleteTemporaryFiles();
+        return request;
+    }
+
+    /**
+     * Concatenates arrays.
+     * @param parts The arrays
+     * @return The result
+     */
+    private static byte[] concat(final byte[]... parts) {
+        final ByteArrayOutputStream result = new ByteArrayOutputStream();
+        for (final byte[] part : parts) {
+            result.write(part, 0, part.length);
+        }
+        return result.toByteArray();
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2025 Ivan Kniazkov
+ */
+package com.kniazkov.webserver;
+
+/**
+ * Histogram of latencies recorded by one thread of the {@link LoadGenerator}.
+ * Values are grouped by powers of two, and each power of two is split into
+ * {@link #SUB_BUCKET_COUNT} equal buckets, so a value is known within 1% however large
+ * it is, and percentiles far in the tail (99.99%) stay exact enough to compare runs.
+ * Histograms of all threads are merged after the run.
+ */
+final class LatencyHistogram {
+    /**
+     * Number of bits of a value that are kept exactly.
+     */
+    private static final int SUB_BUCKET_BITS = 7;
+
+    /**
+     * Number of buckets per power of two.
+     */
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * Total number of buckets, enough for any non-negative {@code long}.
+     */
+    private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+    /**
+     * Number of values in each bucket.
+     */
+    private final long[] counts;
+
+    /**
+     * Number of recorded values.
+     */
+    private long count;
+
+    /**
+     * Sum of the recorded values.
+     */
+    private double sum;
+
+    /**
+     * The largest recorded value.
+     */
+    private long max;
+
+    /**
+     * Constructor of an empty histogram.
+     */
+    LatencyHistogram() {
+        this.counts = new long[BUCKET_COUNT];
+        this.count = 0;
+        this.sum = 0;
+        this.max = 0;
+    }
+
+    /**
+     * Records a value.
+     * @param value The value, for example a latency in nanoseconds
+     */
+    void record(final long value) {
+        final long positive = Math.max(value, 0);
+        counts[getIndex(positive)]++;
+        count++;
+        sum += positive;
+        max = Math.max(max, positive);
+    }
+
+    /**
+     * Adds the values recorded by another histogram.
+     * @param other The other histogram
+     */
+    void add(final LatencyHistogram other) {
+        for (int index = 0; index < BUCKET_COUNT; index++) {
+            counts[index] += other.counts[index];
+        }
+        count += other.count;
+        sum += other.sum;
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * Returns the number of recorded values.
+     * @return The number
+     */
+    long getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the mean of the recorded values.
+     * @return The mean or 0 if nothing is recorded
+     */
+    double getMean() {
+        return count > 0 ? sum / count : 0;
+    }
+
+    /**
+     * Returns the largest recorded value.
+     * @return The value
+     */
+    long getMax() {
+        return max;
+    }
+
+    /**
+     * Returns a percentile of the recorded values: the largest value of the bucket
+     * in which it falls, so the result is never below the true percentile.
+     * @param percentile The percentile, from 0 to 100, for example 99.9
+     * @return The value or 0 if nothing is recorded
+     */
+    long getPercentile(final double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int index = 0; index < BUCKET_COUNT; index++) {
+            seen += counts[index];
+            if (seen >= rank) {
+                return Math.min(getUpperBound(index), max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Returns the index of the bucket containing a value.
+     * @param value The value, not negative
+     * @return Index of the bucket
+     */
+    private static int getIndex(final long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKET_COUNT + (int) (value >>> shift) - SUB_BUCKET_COUNT;
+    }
+
+    /**
+     * Returns the largest value contained in a bucket.
+     * @param index Index of the bucket
+     * @return The value
+     */
+    private static long getUpperBound(final int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        final int shift = index / SUB_BUCKET_COUNT - 1;
+        final long sub = index % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT;
+        return ((sub + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2025 Ivan Kniazkov
+ */
+package com.kniazkov.webserver;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+
+/**
+ * The previous implementation of {@link RequestParser#parse}, which reads the request line
+ * and the headers line by line as strings and splits them. It is kept only as a baseline
+ * for {@link RequestParserBenchmark} and supports GET requests and URL-encoded forms.
+ */
+final class LegacyRequestParser {
+    /**
+     * Private constructor.
+     */
+    private LegacyRequestParser() {
+    }
+
+    /**
+     * Parses an HTTP request received from the client.
+     * @param reader The stream reader used to read client data line by line
+     * @return A {@link Request} object containing the parsed request data or {@code null}
+     *  if the client has sent nothing
+     * @throws IOException If an error occurs while reading from the stream
+     */
+    static Request parse(final StreamReader reader) throws IOException {
+        final Request request = new Request();
+        long contentLength = 0;
+
+        reader.setLimit(-1);
+
+        String line = reader.readLine(Long.MAX_VALUE);
+        if (line.isEmpty()) {
+            return null;
+        }
+        String[] parts = line.split(" ");
+        if (parts.length >= 3) {
+            String methodStr = parts[0].trim();
+            request.address = parts[1].trim();
+            request.httpVersion = parts[2].trim();
+
+            if ("GET".equalsIgnoreCase(methodStr)) {
+                request.method = Method.GET;
+            } else if ("POST".equalsIgnoreCase(methodStr)) {
+                request.method = Method.POST;
+            }
+        }
+        line = reader.readLine(Long.MAX_VALUE);
+        while (line.length() > 0) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                String name = line.substring(0, colon).trim();
+                String value = line.substring(colon + 1).trim();
+                request.headers.put(name, value);
+
+                if ("Content-Length".equalsIgnoreCase(name)) {
+                    try {
+                        contentLength = Long.parseLong(value);
+                    } catch (NumberFormatException ignored) {
+                        contentLength = -1;
+                    }
+                    if (contentLength < 0) {
+                        throw new BadRequestException("Invalid content length: " + value);
+                    }
+                } else if ("Connection".equalsIgnoreCase(name) && "close".equalsIgnoreCase(value)) {
+                    request.closeConnection = true;
+                } else if ("Cookie".equalsIgnoreCase(name)) {
+                    String[] pairs = value.split(";");
+                    for (String pair : pairs) {
+                        String[] kv = pair.trim().split("=", 2);
+                        if (kv.length == 2) {
+                            String cookieName = URLDecoder.decode(kv[0].trim(), "UTF-8");
+                            String cookieValue = URLDecoder.decode(kv[1].trim(), "UTF-8");
+                            request.cookies.put(cookieName, cookieValue);
+                        }
+                    }
+                }
+            }
+            line = reader.readLine(Long.MAX_VALUE);
+        }
+
+        int qIndex = request.address.indexOf('?');
+        String query = "";
+        if (qIndex >= 0) {
+            request.path = request.address.substring(0, qIndex);
+            query = request.address.substring(qIndex + 1);
+        } else {
+            request.path = request.address;
+        }
+
+        if (request.method == Method.POST) {
+            reader.setLimit(contentLength);
+        }
+
+        String data = "";
+        if (request.method == Method.GET)
+            data = query;
+        else if (request.method == Method.POST)
+            data = reader.readLine(Long.MAX_VALUE);
+        if (data.length() > 0) {
+            for (final String item : data.split("&")) {
+                if (item != null && !item.equals("")) {
+                    final String[] pair = item.split("=");
+                    if (pair.length == 1 || pair.length == 2) {
+                        final String key = URLDecoder.decode(pair[0], "UTF-8");
+                        String value = "";
+                        if (pair.length == 2) {
+                            value = URLDecoder.decode(pair[1], "UTF-8");
+                        }
+                        request.formData.put(key, value);
+                    }
+                }
+            }
+        }
+
+        if (request.method == Method.POST) {
+            reader.skipToLimit();
+        }
+        return request;
+    }
+}
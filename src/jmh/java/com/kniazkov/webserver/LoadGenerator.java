@@ -0,0 +1,850 @@
+/*
+ * Copyright (c) 2025 Ivan Kniazkov
+ */
+package com.kniazkov.webserver;
+
+import com.kniazkov.json.JsonObject;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+import javax.imageio.ImageIO;
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+/**
+ * Load generator that starts a server on the loopback interface, drives it with a fixed
+ * number of client connections and reports the throughput and the latency percentiles
+ * as JSON, so that configurations can be compared run to run on one machine.
+ * <p>
+ * Each connection runs in its own thread and sends a request (or a batch of pipelined
+ * requests) after it has received the responses to the previous one. If a rate is set,
+ * the requests are also scheduled at fixed intervals, and the latency of a request is
+ * counted from the moment it should have been sent rather than from the moment it was
+ * sent. So when the server stalls, the requests that the stall delayed are recorded with
+ * the latency they would have seen, and the percentiles are not flattered by the client
+ * slowing down together with the server (coordinated omission). Without a rate,
+ * the connections send as fast as they can, and the latency is counted from the actual
+ * send time, which measures the maximum throughput but understates the tail.
+ * <p>
+ * Usage:
+ * <code>
+ *     mvn -Pbenchmark package
+ *     java -cp target/benchmarks.jar com.kniazkov.webserver.LoadGenerator \
+ *         --connections=64 --rate=20000 --duration=30 --workload=hello --report=run.json
+ * </code>
+ * Arguments (all optional):
+ * <ul>
+ *     <li>{@code --connections=N} - number of client connections, 16 by default;</li>
+ *     <li>{@code --duration=S} - measured time in seconds, 10 by default;</li>
+ *     <li>{@code --warmup=S} - time in seconds before measuring starts, 3 by default;</li>
+ *     <li>{@code --rate=R} - total requests per second, 0 (as fast as possible) by default;</li>
+ *     <li>{@code --keepAlive=true|false} - reuse connections, {@code true} by default;
+ *         otherwise each request is sent on a new connection;</li>
+ *     <li>{@code --pipeline=N} - number of requests sent at once on a keep-alive
+ *         connection, 1 by default;</li>
+ *     <li>{@code --workload=hello|counter|image|static} - the handler of the
+ *         {@code HelloWorld} example, the JSON counter of the {@code Counter} example,
+ *         the picture of the {@code Graphics} example, or a static file;</li>
+ *     <li>{@code --tls=true|false} - use HTTPS with a generated self-signed certificate;</li>
+ *     <li>{@code --nonBlocking=true|false} - use the non-blocking engine;</li>
+ *     <li>{@code --threads=N} - number of worker threads of the server;</li>
+ *     <li>{@code --report=FILE} - file to which the report is written instead
+ *         of the standard output.</li>
+ * </ul>
+ */
+public final class LoadGenerator {
+    /**
+     * Password of the generated keystore.
+     */
+    private static final String KEYSTORE_PASSWORD = "changeit";
+
+    /**
+     * Percentiles included in the report.
+     */
+    private static final double[] PERCENTILES = { 50, 90, 99, 99.9, 99.99 };
+
+    /**
+     * Configuration of the run.
+     */
+    private final Config config;
+
+    /**
+     * Temporary folder containing the static files and the keystore.
+     */
+    private Path folder;
+
+    /**
+     * Constructor.
+     * @param config Configuration of the run
+     */
+    private LoadGenerator(final Config config) {
+        this.config = config;
+    }
+
+    /**
+     * Starting point of the tool.
+     * @param args Arguments, see the description of the class
+     * @throws Exception If the run fails
+     */
+    public static void main(final String[] args) throws Exception {
+        final Config config;
+        try {
+            config = Config.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("See the documentation of " + LoadGenerator.class.getName()
+                + " for the list of arguments");
+            System.exit(2);
+            return;
+        }
+        final String report = new LoadGenerator(config).run().toText("  ");
+        if (config.report != null) {
+            Files.write(Paths.get(config.report), report.getBytes(StandardCharsets.UTF_8));
+        } else {
+            System.out.println(report);
+        }
+    }
+
+    /**
+     * Starts the server, drives it and stops it.
+     * @return The report
+     * @throws Exception If the server cannot be started or the client threads are interrupted
+     */
+    private JsonObject run() throws Exception {
+        folder = Files.createTempDirectory("load");
+        try {
+            final Options options = createOptions();
+            final Server server = Server.start(options, createHandler());
+            try {
+                waitUntilListening(options.port);
+                return measure(options.port, server);
+            } finally {
+                server.stop();
+            }
+        } finally {
+            try (Stream<Path> paths = Files.walk(folder)) {
+                paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    /**
+     * Creates the options of the server.
+     * @return The options
+     * @throws IOException If the static files or the keystore cannot be created
+     * @throws InterruptedException If the thread is interrupted while the keystore
+     *  is generated
+     */
+    private Options createOptions() throws IOException, InterruptedException {
+        final Options options = new Options();
+        try (ServerSocket socket = new ServerSocket(0)) {
+            options.port = socket.getLocalPort();
+        }
+        options.timeout = 5000;
+        options.nonBlocking = config.nonBlocking;
+        options.wwwRoot = folder.toString();
+        options.maxConnections = Math.max(options.maxConnections, config.connections * 2);
+        if (config.threads > 0) {
+            options.threadCount = config.threads;
+        }
+        final StringBuilder page = new StringBuilder("<html><body>\n");
+        for (int index = 0; page.length() < 16384; index++) {
+            page.append("<p>Paragraph ").append(index).append(" of the static page.</p>\n");
+        }
+        page.append("</body></html>\n");
+        Files.write(folder.resolve("index.html"), page.toString().getBytes(StandardCharsets.UTF_8));
+        if (config.tls) {
+            options.certificate = generateKeystore().toString();
+            options.keystorePassword = KEYSTORE_PASSWORD;
+        }
+        return options;
+    }
+
+    /**
+     * Creates the handler of the workload.
+     * @return The handler
+     * @throws IOException If the picture cannot be encoded
+     */
+    private Handler createHandler() throws IOException {
+        switch (config.workload) {
+            case "hello":
+                return request -> new ResponseText("hello world");
+            case "counter": {
+                final AtomicLong count = new AtomicLong();
+                return request -> {
+                    final JsonObject json = new JsonObject();
+                    json.addNumber("count", count.getAndIncrement());
+                    return new ResponseJson(json);
+                };
+            }
+            case "image": {
+                final byte[] bytes = drawImage();
+                return request -> new Response() {
+                    @Override
+                    public String getContentType() {
+                        return "image/png";
+                    }
+
+                    @Override
+                    public byte[] getData() {
+                        return bytes;
+                    }
+                };
+            }
+            default:
+                return request -> null;
+        }
+    }
+
+    /**
+     * Draws the picture of the {@code Graphics} example.
+     * @return The picture, encoded as PNG
+     * @throws IOException If the picture cannot be encoded
+     */
+    private static byte[] drawImage() throws IOException {
+        System.setProperty("java.awt.headless", "true");
+        final BufferedImage image = new BufferedImage(500, 500, BufferedImage.TYPE_3BYTE_BGR);
+        final Graphics2D graphics = (Graphics2D) image.getGraphics();
+        graphics.setColor(Color.RED);
+        graphics.drawOval(50, 50, 400, 400);
+        graphics.drawOval(120, 100, 100, 100);
+        graphics.drawOval(280, 100, 100, 100);
+        graphics.drawArc(100, 100, 300, 300, 180, 180);
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", stream);
+        return stream.toByteArray();
+    }
+
+    /**
+     * Generates a keystore with a self-signed certificate by the {@code keytool} of the JDK.
+     * @return Path to the keystore
+     * @throws IOException If the keystore cannot be generated
+     * @throws InterruptedException If the thread is interrupted
+     */
+    private Path generateKeystore() throws IOException, InterruptedException {
+        final Path keystore = folder.resolve("keystore.jks");
+        final String keytool = Paths.get(System.getProperty("java.home"), "bin", "keytool")
+            .toString();
+        final Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "load",
+            "-keyalg", "RSA", "-keysize", "2048", "-validity", "2", "-dname", "CN=localhost",
+            "-storetype", "JKS", "-keystore", keystore.toString(),
+            "-storepass", KEYSTORE_PASSWORD, "-keypass", KEYSTORE_PASSWORD)
+            .redirectErrorStream(true)
+            .redirectOutput(ProcessBuilder.Redirect.to(new File(folder.toFile(), "keytool.log")))
+            .start();
+        if (process.waitFor() != 0) {
+            throw new IOException("keytool failed, see " + folder.resolve("keytool.log"));
+        }
+        return keystore;
+    }
+
+    /**
+     * Waits until the server accepts connections.
+     * @param port Port of the server
+     * @throws IOException If the server does not accept connections within 10 seconds
+     * @throws InterruptedException If the thread is interrupted
+     */
+    private static void waitUntilListening(final int port) throws IOException, InterruptedException {
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (true) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress("127.0.0.1", port), 1000);
+                return;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    /**
+     * Runs the client connections and builds the report.
+     * @param port Port of the server
+     * @param server The server
+     * @return The report
+     * @throws GeneralSecurityException If the TLS client cannot be created
+     * @throws InterruptedException If the thread is interrupted
+     */
+    private JsonObject measure(final int port, final Server server)
+            throws GeneralSecurityException, InterruptedException {
+        final SocketFactory factory = config.tls ? createTrustingContext().getSocketFactory()
+            : SocketFactory.getDefault();
+        final byte[] request = createRequest(port);
+        final long interval = config.rate > 0
+            ? Math.round(1e9 * config.connections / config.rate) : 0;
+        final long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        final long measureStart = start + TimeUnit.SECONDS.toNanos(config.warmup);
+        final long end = measureStart + TimeUnit.SECONDS.toNanos(config.duration);
+        final List<Client> clients = new ArrayList<>();
+        final List<Thread> threads = new ArrayList<>();
+        for (int index = 0; index < config.connections; index++) {
+            final Client client = new Client(factory, port, request,
+                start + interval * index / config.connections, interval, measureStart, end);
+            final Thread thread = new Thread(client, "load-client-" + index);
+            clients.add(client);
+            threads.add(thread);
+            thread.start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        final LatencyHistogram latency = new LatencyHistogram();
+        long statusErrors = 0;
+        long ioErrors = 0;
+        long unsent = 0;
+        long received = 0;
+        for (final Client client : clients) {
+            latency.add(client.latency);
+            statusErrors += client.statusErrors;
+            ioErrors += client.ioErrors;
+            unsent += client.unsent;
+            received += client.received;
+        }
+
+        final JsonObject report = new JsonObject();
+        final JsonObject configuration = report.createObject("configuration");
+        configuration.addNumber("connections", config.connections);
+        configuration.addNumber("durationSeconds", config.duration);
+        configuration.addNumber("warmupSeconds", config.warmup);
+        configuration.addNumber("rate", config.rate);
+        configuration.addBoolean("keepAlive", config.keepAlive);
+        configuration.addNumber("pipeline", config.pipeline);
+        configuration.addString("workload", config.workload);
+        configuration.addBoolean("tls", config.tls);
+        configuration.addBoolean("nonBlocking", config.nonBlocking);
+        configuration.addNumber("threads", config.threads);
+        configuration.addString("java", System.getProperty("java.version"));
+        configuration.addNumber("processors", Runtime.getRuntime().availableProcessors());
+        report.addBoolean("coordinatedOmissionCorrected", config.rate > 0);
+        report.addNumber("requests", latency.getCount());
+        report.addNumber("throughput", latency.getCount() / (double) config.duration);
+        report.addNumber("receivedBytes", received);
+        final JsonObject errors = report.createObject("errors");
+        errors.addNumber("status", statusErrors);
+        errors.addNumber("io", ioErrors);
+        errors.addNumber("unsent", unsent);
+        final JsonObject milliseconds = report.createObject("latencyMilliseconds");
+        for (final double percentile : PERCENTILES) {
+            milliseconds.addNumber("p" + (percentile == Math.rint(percentile)
+                ? String.valueOf((long) percentile) : String.valueOf(percentile)),
+                latency.getPercentile(percentile) / 1e6);
+        }
+        milliseconds.addNumber("max", latency.getMax() / 1e6);
+        milliseconds.addNumber("mean", latency.getMean() / 1e6);
+        final LoadStatistics load = server.getLoadStatistics();
+        final JsonObject serverStatistics = report.createObject("server");
+        serverStatistics.addNumber("rejectedConnections", load.rejectedConnections);
+        serverStatistics.addNumber("rejectedRequests", load.rejectedRequests);
+        if (config.tls) {
+            final Metrics metrics = server.getMetrics();
+            serverStatistics.addNumber("fullHandshakes", metrics.getFullHandshakes());
+            serverStatistics.addNumber("resumedHandshakes", metrics.getResumedHandshakes());
+            serverStatistics.addNumber("failedHandshakes", metrics.getFailedHandshakes());
+        }
+        return report;
+    }
+
+    /**
+     * Creates the request sent by the clients; pipelined requests are repeated.
+     * @param port Port of the server
+     * @return The request or the batch of requests
+     */
+    private byte[] createRequest(final int port) {
+        final String path = config.workload.equals("static") ? "/index.html" : "/";
+        final String single = "GET " + path + " HTTP/1.1\r\n"
+            + "Host: 127.0.0.1:" + port + "\r\n"
+            + "User-Agent: load-generator\r\n"
+            + (config.keepAlive ? "" : "Connection: close\r\n")
+            + "\r\n";
+        final StringBuilder batch = new StringBuilder();
+        for (int index = 0; index < config.pipeline; index++) {
+            batch.append(single);
+        }
+        return batch.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Creates a TLS context that trusts any certificate, since the server uses
+     * a self-signed one.
+     * @return The context
+     * @throws GeneralSecurityException If TLS is not available
+     */
+    private static SSLContext createTrustingContext() throws GeneralSecurityException {
+        final SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, new TrustManager[] {
+            new X509TrustManager() {
+                @Override
+                public void checkClientTrusted(final X509Certificate[] chain,
+                        final String type) {
+                }
+
+                @Override
+                public void checkServerTrusted(final X509Certificate[] chain,
+                        final String type) {
+                }
+
+                @Override
+                public X509Certificate[] getAcceptedIssuers() {
+                    return new X509Certificate[0];
+                }
+            }
+        }, null);
+        return context;
+    }
+
+    /**
+     * Configuration of a run, parsed from the arguments.
+     */
+    private static final class Config {
+        /**
+         * Number of client connections.
+         */
+        int connections = 16;
+
+        /**
+         * Measured time, in seconds.
+         */
+        int duration = 10;
+
+        /**
+         * Time before measuring starts, in seconds.
+         */
+        int warmup = 3;
+
+        /**
+         * Total requests per second or 0 to send as fast as possible.
+         */
+        double rate = 0;
+
+        /**
+         * Flag indicating that connections are reused.
+         */
+        boolean keepAlive = true;
+
+        /**
+         * Number of requests sent at once.
+         */
+        int pipeline = 1;
+
+        /**
+         * Name of the workload.
+         */
+        String workload = "hello";
+
+        /**
+         * Flag indicating that HTTPS is used.
+         */
+        boolean tls = false;
+
+        /**
+         * Flag indicating that the non-blocking engine is used.
+         */
+        boolean nonBlocking = false;
+
+        /**
+         * Number of worker threads of the server or 0 for the default.
+         */
+        int threads = 0;
+
+        /**
+         * File to which the report is written or {@code null} for the standard output.
+         */
+        String report = null;
+
+        /**
+         * Parses the arguments.
+         * @param args The arguments
+         * @return The configuration
+         * @throws IllegalArgumentException If an argument is not valid
+         */
+        static Config parse(final String[] args) {
+            final Config config = new Config();
+            for (final String arg : args) {
+                final int equals = arg.indexOf('=');
+                if (!arg.startsWith("--") || equals < 0) {
+                    throw new IllegalArgumentException("Invalid argument: " + arg);
+                }
+                final String name = arg.substring(2, equals);
+                final String value = arg.substring(equals + 1);
+                try {
+                    switch (name) {
+                        case "connections":
+                            config.connections = Integer.parseInt(value);
+                            break;
+                        case "duration":
+                            config.duration = Integer.parseInt(value);
+                            break;
+                        case "warmup":
+                            config.warmup = Integer.parseInt(value);
+                            break;
+                        case "rate":
+                            config.rate = Double.parseDouble(value);
+                            break;
+                        case "keepAlive":
+                            config.keepAlive = Boolean.parseBoolean(value);
+                            break;
+                        case "pipeline":
+                            config.pipeline = Integer.parseInt(value);
+                            break;
+                        case "workload":
+                            config.workload = value;
+                            break;
+                        case "tls":
+                            config.tls = Boolean.parseBoolean(value);
+                            break;
+                        case "nonBlocking":
+                            config.nonBlocking = Boolean.parseBoolean(value);
+                            break;
+                        case "threads":
+                            config.threads = Integer.parseInt(value);
+                            break;
+                        case "report":
+                            config.report = value;
+                            break;
+                        default:
+                            throw new IllegalArgumentException("Unknown argument: " + arg);
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid number: " + arg);
+                }
+            }
+            if (config.connections <= 0 || config.duration <= 0 || config.warmup < 0
+                    || config.rate < 0 || config.pipeline <= 0) {
+                throw new IllegalArgumentException("Connections, duration and pipeline depth "
+                    + "must be positive; warmup and rate must not be negative");
+            }
+            if (config.pipeline > 1 && !config.keepAlive) {
+                throw new IllegalArgumentException("Pipelining requires keep-alive connections");
+            }
+            if (!config.workload.matches("hello|counter|image|static")) {
+                throw new IllegalArgumentException("Unknown workload: " + config.workload);
+            }
+            return config;
+        }
+    }
+
+    /**
+     * Client connection, which sends requests and records the latency of the responses.
+     */
+    private final class Client implements Runnable {
+        /**
+         * Factory of sockets.
+         */
+        private final SocketFactory factory;
+
+        /**
+         * Port of the server.
+         */
+        private final int port;
+
+        /**
+         * The request or the batch of pipelined requests.
+         */
+        private final byte[] request;
+
+        /**
+         * Time when the first request should be sent, by {@link System#nanoTime()}.
+         */
+        private final long first;
+
+        /**
+         * Interval between the batches, in nanoseconds, or 0 if there is no schedule.
+         */
+        private final long interval;
+
+        /**
+         * Time when measuring starts.
+         */
+        private final long measureStart;
+
+        /**
+         * Time when the run ends.
+         */
+        private final long end;
+
+        /**
+         * Latencies of the responses received after the warmup, in nanoseconds.
+         */
+        final LatencyHistogram latency;
+
+        /**
+         * Number of responses with codes other than {@code 2xx} and {@code 3xx}.
+         */
+        long statusErrors;
+
+        /**
+         * Number of failed connections and requests.
+         */
+        long ioErrors;
+
+        /**
+         * Number of scheduled requests that were not sent before the end of the run
+         * because the server was too slow.
+         */
+        long unsent;
+
+        /**
+         * Number of received bytes of response bodies.
+         */
+        long received;
+
+        /**
+         * Array into which response bodies are read.
+         */
+        private final byte[] scratch;
+
+        /**
+         * Socket of the connection or {@code null}.
+         */
+        private Socket socket;
+
+        /**
+         * Input stream of the connection.
+         */
+        private InputStream input;
+
+        /**
+         * Output stream of the connection.
+         */
+        private OutputStream output;
+
+        /**
+         * Flag indicating that the server has closed the connection after the response.
+         */
+        private boolean closed;
+
+        /**
+         * Constructor.
+         * @param factory Factory of sockets
+         * @param port Port of the server
+         * @param request The request or the batch of pipelined requests
+         * @param first Time when the first request should be sent
+         * @param interval Interval between the batches or 0
+         * @param measureStart Time when measuring starts
+         * @param end Time when the run ends
+         */
+        Client(final SocketFactory factory, final int port, final byte[] request, final long first,
+                final long interval, final long measureStart, final long end) {
+            this.factory = factory;
+            this.port = port;
+            this.request = request;
+            this.first = first;
+            this.interval = interval;
+            this.measureStart = measureStart;
+            this.end = end;
+            this.latency = new LatencyHistogram();
+            this.scratch = new byte[65536];
+        }
+
+        @Override
+        public void run() {
+            long next = first;
+            try {
+                while (true) {
+                    final long now = System.nanoTime();
+                    final long intended = interval > 0 ? next : Math.max(now, first);
+                    if (intended >= end || now >= end) {
+                        break;
+                    }
+                    if (intended > now) {
+                        LockSupport.parkNanos(intended - now);
+                        continue;
+                    }
+                    exchange(intended);
+                    next += interval * config.pipeline;
+                }
+                if (interval > 0) {
+                    while (next < end) {
+                        if (next >= measureStart) {
+                            unsent += config.pipeline;
+                        }
+                        next += interval * config.pipeline;
+                    }
+                }
+            } finally {
+                disconnect();
+            }
+        }
+
+        /**
+         * Sends a request or a batch of requests and reads the responses.
+         * @param intended Time when the requests should have been sent
+         */
+        private void exchange(final long intended) {
+            final boolean measured = intended >= measureStart;
+            try {
+                if (socket == null) {
+                    connect();
+                }
+                output.write(request);
+                output.flush();
+                for (int index = 0; index < config.pipeline; index++) {
+                    final int status = readResponse();
+                    if (measured) {
+                        latency.record(System.nanoTime() - intended);
+                        if (status >= 400) {
+                            statusErrors++;
+                        }
+                    }
+                }
+                if (!config.keepAlive || closed) {
+                    disconnect();
+                }
+            } catch (IOException e) {
+                if (measured) {
+                    ioErrors++;
+                }
+                disconnect();
+            }
+        }
+
+        /**
+         * Opens the connection.
+         * @throws IOException If the connection cannot be opened
+         */
+        private void connect() throws IOException {
+            socket = factory.createSocket();
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress("127.0.0.1", port), 5000);
+            socket.setSoTimeout(30000);
+            if (socket instanceof SSLSocket) {
+                ((SSLSocket) socket).startHandshake();
+            }
+            input = new BufferedInputStream(socket.getInputStream(), 65536);
+            output = socket.getOutputStream();
+            closed = false;
+        }
+
+        /**
+         * Closes the connection.
+         */
+        private void disconnect() {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                    // the connection is abandoned anyway
+                }
+                socket = null;
+            }
+        }
+
+        /**
+         * Reads a response.
+         * @return Response code
+         * @throws IOException If the response cannot be read
+         */
+        private int readResponse() throws IOException {
+            final String statusLine = readLine();
+            if (statusLine.length() < 12 || !statusLine.startsWith("HTTP/1.")) {
+                throw new IOException("Invalid status line: " + statusLine);
+            }
+            final int status = Integer.parseInt(statusLine.substring(9, 12));
+            long length = -1;
+            boolean chunked = false;
+            String line = readLine();
+            while (!line.isEmpty()) {
+                final int colon = line.indexOf(':');
+                if (colon > 0) {
+                    final String name = line.substring(0, colon).trim();
+                    final String value = line.substring(colon + 1).trim();
+                    if (name.equalsIgnoreCase("Content-Length")) {
+                        length = Long.parseLong(value);
+                    } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+                        chunked = value.equalsIgnoreCase("chunked");
+                    } else if (name.equalsIgnoreCase("Connection")) {
+                        closed = value.equalsIgnoreCase("close");
+                    }
+                }
+                line = readLine();
+            }
+            if (chunked) {
+                long size = Long.parseLong(readLine().trim(), 16);
+                while (size > 0) {
+                    skip(size + 2);
+                    size = Long.parseLong(readLine().trim(), 16);
+                }
+                line = readLine();
+                while (!line.isEmpty()) {
+                    line = readLine();
+                }
+            } else if (length >= 0) {
+                skip(length);
+            } else if (status != 304 && status != 204) {
+                int read = input.read(scratch);
+                while (read >= 0) {
+                    received += read;
+                    read = input.read(scratch);
+                }
+                closed = true;
+            }
+            return status;
+        }
+
+        /**
+         * Skips the bytes of a response body.
+         * @param count Number of bytes
+         * @throws IOException If the connection is closed before all the bytes are received
+         */
+        private void skip(long count) throws IOException {
+            received += count;
+            while (count > 0) {
+                final int read = input.read(scratch, 0, (int) Math.min(count, scratch.length));
+                if (read < 0) {
+                    throw new EOFException("Connection closed in the middle of a response");
+                }
+                count -= read;
+            }
+        }
+
+        /**
+         * Reads a line of the response head.
+         * @return The line without the line terminator
+         * @throws IOException If the connection is closed
+         */
+        private String readLine() throws IOException {
+            final StringBuilder line = new StringBuilder();
+            while (true) {
+                final int value = input.read();
+                if (value < 0) {
+                    throw new EOFException("Connection closed by the server");
+                }
+                if (value == '\n') {
+                    break;
+                }
+                if (value != '\r') {
+                    line.append((char) value);
+                }
+            }
+            return line.toString();
+        }
+    }
+}
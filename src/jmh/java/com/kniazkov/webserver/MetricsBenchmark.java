@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2025 Ivan Kniazkov
+ */
+package com.kniazkov.webserver;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the cost of collecting {@link Metrics}: a keep-alive request is parsed
+ * and answered by a handler with metrics turned off and on, and a histogram shared
+ * by several threads records durations, as the histograms of a busy server do.
+ * <code>
+ *     mvn -Pbenchmark package
+ *     java -jar target/benchmarks.jar MetricsBenchmark -prof gc
+ * </code>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetricsBenchmark {
+    /**
+     * The request.
+     */
+    private static final byte[] REQUEST = (
+        "GET /api/items?page=2 HTTP/1.1\r\n"
+            + "Host: shop.example.com\r\n"
+            + "Connection: keep-alive\r\n"
+            + "User-Agent: Mozilla/5.0 (X11; Linux x86_64)\r\n"
+            + "Accept: application/json\r\n"
+            + "Cookie: session=3f2a9c41d8e7b6a5\r\n"
+            + "\r\n"
+    ).getBytes(StandardCharsets.ISO_8859_1);
+
+    /**
+     * Whether the metrics are collected.
+     */
+    @Param({"false", "true"})
+    public boolean metrics;
+
+    /**
+     * Options.
+     */
+    private Options options;
+
+    /**
+     * Reader of the connection.
+     */
+    private StreamReader reader;
+
+    /**
+     * Output that discards the responses.
+     */
+    private ClientOutput output;
+
+    /**
+     * Processor of the requests.
+     */
+    private RequestProcessor processor;
+
+    /**
+     * Metrics passed to the parser.
+     */
+    private Metrics collected;
+
+    /**
+     * Creates the processor.
+     */
+    @Setup
+    public void setup() {
+        options = new Options();
+        options.timeout = 5000;
+        options.metrics = metrics;
+        collected = new Metrics(metrics, null);
+        final byte[] body = "{\"items\":[1,2,3]}".getBytes(StandardCharsets.UTF_8);
+        final Handler handler = request -> new Response() {
+            @Override
+            public String getContentType() {
+                return "application/json";
+            }
+
+            @Override
+            public byte[] getData() {
+                return body;
+            }
+        };
+        processor = new RequestProcessor(options, AsyncHandler.from(handler),
+            new FileCache(0, 0), collected);
+        reader = new StreamReader(new ReplayStream(REQUEST));
+        output = new NullOutput();
+    }
+
+    /**
+     * Parses the request and writes the response.
+     * @return Whether the connection would be closed
+     * @throws IOException Never
+     */
+    @Benchmark
+    public boolean request() throws IOException {
+        final Request request = RequestParser.parse(reader, options, collected);
+        return processor.process(request, output);
+    }
+
+    /**
+     * Records durations in a histogram shared by four threads.
+     * @param shared The histogram
+     */
+    @Benchmark
+    @Threads(4)
+    public void recordContended(final SharedHistogram shared) {
+        shared.histogram.record(shared.next());
+    }
+
+    /**
+     * Histogram shared by all threads of a benchmark.
+     */
+    @State(Scope.Benchmark)
+    public static class SharedHistogram {
+        /**
+         * The histogram.
+         */
+        final Histogram histogram = new Histogram();
+
+        /**
+         * Source of the recorded durations, spread over several buckets.
+         */
+        private final ThreadLocal<long[]> seed = ThreadLocal.withInitial(() -> new long[] { 1 });
+
+        /**
+         * Returns the next duration to record.
+         * @return Duration, in nanoseconds
+         */
+        long next() {
+            final long[] value = seed.get();
+            value[0] = value[0] * 6364136223846793005L + 1442695040888963407L;
+            return (value[0] >>> 40) & 0xFFFFF;
+        }
+    }
+}
@@ -0,0 +1,20 @@
+/*
+ * Copyright (c) 2025 Ivan Kniazkov
+ */
+package com.kniazkov.webserver;
+
+/**
+ * Output that counts the written bytes and discards them, so that benchmarks measure
+ * producing a response rather than sending it.
+ */
+final class NullOutput extends ClientOutput {
+    @Override
+    public void write(final int value) {
+        countWritten(1);
+    }
+
+    @Override
+    public void write(final byte[] data, final int offset, final int length) {
+        countWritten(length);
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2025 Ivan Kniazkov
+ */
+package com.kniazkov.webserver;
+
+import java.io.InputStream;
+
+/**
+ * Stream that endlessly repeats the same data, as a keep-alive connection on which
+ * a client sends the same request over and over.
+ */
+final class ReplayStream extends InputStream {
+    /**
+     * The data.
+     */
+    private final byte[] data;
+
+    /**
+     * Position in the data.
+     */
+    private int position;
+
+    /**
+     * Constructor.
+     * @param data The data
+     */
+    ReplayStream(final byte[] data) {
+        this.data = data;
+        this.position = 0;
+    }
+
+    @Override
+    public int read() {
+        final int result = data[position] & 0xff;
+        position = (position + 1) % data.length;
+        return result;
+    }
+
+    @Override
+    public int read(final byte[] buffer, final int offset, final int length) {
+        final int count = Math.min(length, data.length - position);
+        System.arraycopy(data, position, buffer, offset, count);
+        position = (position + count) % data.length;
+        return count;
+    }
+}
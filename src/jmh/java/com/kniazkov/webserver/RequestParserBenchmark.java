@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2025 Ivan Kniazkov
+ */
+package com.kniazkov.webserver;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the byte-level request parser with the previous one, which worked with strings,
+ * on a request typical for a browser: a query, a cookie and a dozen headers.
+ * The same request is received over and over on one connection, as with keep-alive,
+ * so the buffer of the connection is not counted.
+ * To see the allocation rate, run it with the GC profiler:
+ * <code>
+ *     mvn -Pbenchmark package
+ *     java -jar target/benchmarks.jar RequestParserBenchmark -prof gc
+ * </code>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RequestParserBenchmark {
+    /**
+     * The request.
+     */
+    private static final byte[] REQUEST = (
+        "GET /catalog/items?category=books&sort=price%20asc&page=2 HTTP/1.1\r\n"
+            + "Host: shop.example.com\r\n"
+            + "Connection: keep-alive\r\n"
+            + "Cache-Control: max-age=0\r\n"
+            + "Upgrade-Insecure-Requests: 1\r\n"
+            + "User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 "
+            + "(KHTML, like Gecko) Chrome/124.0.0.0 Safari/537.36\r\n"
+            + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,"
+            + "image/avif,image/webp,*/*;q=0.8\r\n"
+            + "Sec-Fetch-Site: same-origin\r\n"
+            + "Sec-Fetch-Mode: navigate\r\n"
+            + "Sec-Fetch-Dest: document\r\n"
+            + "Referer: https://shop.example.com/catalog\r\n"
+            + "Accept-Encoding: gzip, deflate, br\r\n"
+            + "Accept-Language: en-US,en;q=0.9\r\n"
+            + "Cookie: session=3f2a9c41d8e7b6a5; theme=dark; cart=17%2C42\r\n"
+            + "\r\n"
+    ).getBytes(StandardCharsets.ISO_8859_1);
+
+    /**
+     * Options.
+     */
+    private final Options options = new Options();
+
+    /**
+     * Reader of the connection for the current parser.
+     */
+    private final StreamReader currentReader = new StreamReader(new ReplayStream(REQUEST));
+
+    /**
+     * Reader of the connection for the previous parser.
+     */
+    private final StreamReader legacyReader = new StreamReader(new ReplayStream(REQUEST));
+
+    /**
+     * Parses the request with the current parser.
+     * @return Parsed request
+     * @throws IOException Never
+     */
+    @Benchmark
+    public Request current() throws IOException {
+        final Request request = RequestParser.parse(currentReader, options);
+        request.headers.get(HeaderNames.ACCEPT_ENCODING);
+        return request;
+    }
+
+    /**
+     * Parses the request with the current parser and reads the form data and the cookies,
+     * which the current parser decodes only on demand.
+     * @return Parsed request
+     * @throws IOException Never
+     */
+    @Benchmark
+    public Request currentWithForm() throws IOException {
+        final Request request = RequestParser.parse(currentReader, options);
+        request.headers.get(HeaderNames.ACCEPT_ENCODING);
+        request.formData.get("page");
+        request.cookies.get("session");
+        return request;
+    }
+
+    /**
+     * Parses the request with the previous parser.
+     * @return Parsed request
+     * @throws IOException Never
+     */
+    @Benchmark
+    public Request legacy() throws IOException {
+        final Request request = LegacyRequestParser.parse(legacyReader);
+        request.headers.get(HeaderNames.ACCEPT_ENCODING);
+        return request;
+    }
+}
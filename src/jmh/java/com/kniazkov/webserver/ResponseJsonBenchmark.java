@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2025 Ivan Kniazkov
+ */
+package com.kniazkov.webserver;
+
+import com.kniazkov.json.JsonArray;
+import com.kniazkov.json.JsonObject;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encodes a {@link ResponseJson} with a list of items, as an API returning a page
+ * of a catalog does, and writes it as the response to a request.
+ * <code>
+ *     mvn -Pbenchmark package
+ *     java -jar target/benchmarks.jar ResponseJsonBenchmark -prof gc
+ * </code>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResponseJsonBenchmark {
+    /**
+     * Number of items in the response.
+     */
+    @Param({"10", "1000"})
+    public int items;
+
+    /**
+     * Root element of the response.
+     */
+    private JsonObject root;
+
+    /**
+     * Processor of the requests.
+     */
+    private RequestProcessor processor;
+
+    /**
+     * Output that discards the responses.
+     */
+    private ClientOutput output;
+
+    /**
+     * The request.
+     */
+    private Request request;
+
+    /**
+     * Builds the response and the processor.
+     * @throws IOException Never
+     */
+    @Setup
+    public void setup() throws IOException {
+        root = new JsonObject();
+        root.addNumber("page", 1);
+        root.addNumber("total", items);
+        final JsonArray list = root.createArray("items");
+        for (int index = 0; index < items; index++) {
+            final JsonObject item = list.createObject();
+            item.addNumber("id", 10000 + index);
+            item.addString("name", "Item \"" + index + "\" of the catalog");
+            item.addNumber("price", 19.99 + index);
+            item.addBoolean("available", index % 3 != 0);
+            final JsonArray tags = item.createArray("tags");
+            tags.addString("new");
+            tags.addString("sale");
+        }
+        final Options options = new Options();
+        options.timeout = 5000;
+        options.metrics = false;
+        processor = new RequestProcessor(options,
+            AsyncHandler.from(request -> new ResponseJson(root)),
+            new FileCache(0, 0), new Metrics(false, null));
+        output = new NullOutput();
+        request = RequestParser.parse(new StreamReader(new ByteArrayInputStream(
+            ("GET /api/items?page=1 HTTP/1.1\r\n"
+                + "Host: example.com\r\n"
+                + "Accept: application/json\r\n"
+                + "\r\n").getBytes(StandardCharsets.ISO_8859_1))), options);
+    }
+
+    /**
+     * Encodes the response.
+     * @return Encoded response
+     */
+    @Benchmark
+    public byte[] encode() {
+        return new ResponseJson(root).getData();
+    }
+
+    /**
+     * Handles the request and writes the response, with the headers.
+     * @return Number of bytes written so far
+     * @throws IOException Never
+     */
+    @Benchmark
+    public long write() throws IOException {
+        processor.process(request, output);
+        return output.getWrittenBytes();
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2025 Ivan Kniazkov
+ */
+package com.kniazkov.webserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Writes responses to an output that discards them: the status line and headers
+ * of a handler response with cookies, a small static file served from the cache
+ * (compressed, as browsers accept gzip) and a large static file read from disk.
+ * The output copies files through the heap, as for HTTPS connections; with a plain socket
+ * the kernel would send large files ({@code sendfile}).
+ * <code>
+ *     mvn -Pbenchmark package
+ *     java -jar target/benchmarks.jar ResponseWriterBenchmark -prof gc
+ * </code>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResponseWriterBenchmark {
+    /**
+     * Size of the large file, in bytes.
+     */
+    private static final int LARGE_FILE_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * Folder containing the static files.
+     */
+    private Path root;
+
+    /**
+     * Processor of the requests.
+     */
+    private RequestProcessor processor;
+
+    /**
+     * Output that discards the responses.
+     */
+    private ClientOutput output;
+
+    /**
+     * Body of the handler response.
+     */
+    private byte[] body;
+
+    /**
+     * Cookies of the handler response.
+     */
+    private Map<String, String> cookies;
+
+    /**
+     * Request for the small file.
+     */
+    private Request smallFile;
+
+    /**
+     * Request for the large file.
+     */
+    private Request largeFile;
+
+    /**
+     * Creates the static files and the processor.
+     * @throws IOException If the files cannot be created
+     */
+    @Setup
+    public void setup() throws IOException {
+        root = Files.createTempDirectory("benchmark");
+        final StringBuilder css = new StringBuilder();
+        for (int index = 0; css.length() < 20000; index++) {
+            css.append(".item-").append(index).append(" { margin: 0 ").append(index % 16)
+                .append("px; color: #333; font-family: sans-serif; }\n");
+        }
+        Files.write(root.resolve("style.css"), css.toString().getBytes(StandardCharsets.UTF_8));
+        final byte[] video = new byte[LARGE_FILE_SIZE];
+        for (int index = 0; index < video.length; index++) {
+            video[index] = (byte) (index * 31 + (index >>> 8));
+        }
+        Files.write(root.resolve("video.bin"), video);
+
+        final Options options = new Options();
+        options.wwwRoot = root.toString();
+        options.timeout = 5000;
+        options.metrics = false;
+        processor = new RequestProcessor(options, AsyncHandler.from(request -> null),
+            new FileCache(options.fileCacheSize, options.maxCachedFileSize),
+            new Metrics(false, null));
+        output = new NullOutput();
+        body = "<html><body><h1>Hello</h1></body></html>".getBytes(StandardCharsets.UTF_8);
+        cookies = new CompactMap<>();
+        cookies.put("session", "3f2a9c41d8e7b6a5");
+        cookies.put("theme", "dark");
+        smallFile = parse(options, "GET /style.css HTTP/1.1\r\n"
+            + "Host: example.com\r\n"
+            + "Accept-Encoding: gzip, deflate, br\r\n"
+            + "\r\n");
+        largeFile = parse(options, "GET /video.bin HTTP/1.1\r\n"
+            + "Host: example.com\r\n"
+            + "\r\n");
+    }
+
+    /**
+     * Deletes the static files.
+     * @throws IOException If the files cannot be deleted
+     */
+    @TearDown
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    /**
+     * Writes the status line, the headers (including cookies) and the body of a response.
+     * @return Number of bytes written so far
+     * @throws IOException Never
+     */
+    @Benchmark
+    public long headers() throws IOException {
+        processor.writeResponse(output, "200 OK", "text/html", body, cookies);
+        return output.getWrittenBytes();
+    }
+
+    /**
+     * Serves the small file from the cache.
+     * @return Number of bytes written so far
+     * @throws IOException If the file cannot be read
+     */
+    @Benchmark
+    public long smallStaticFile() throws IOException {
+        processor.process(smallFile, output);
+        return output.getWrittenBytes();
+    }
+
+    /**
+     * Serves the large file, which is too big for the cache.
+     * @return Number of bytes written so far
+     * @throws IOException If the file cannot be read
+     */
+    @Benchmark
+    public long largeStaticFile() throws IOException {
+        processor.process(largeFile, output);
+        return output.getWrittenBytes();
+    }
+
+    /**
+     * Parses a request.
+     * @param options Options
+     * @param text The request
+     * @return Parsed request
+     * @throws IOException Never
+     */
+    private static Request parse(final Options options, final String text) throws IOException {
+        return RequestParser.parse(new StreamReader(
+            new ByteArrayInputStream(text.getBytes(StandardCharsets.ISO_8859_1))), options);
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2025 Ivan Kniazkov
+ */
+package com.kniazkov.webserver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares {@link Router} with a handler that checks the routes one by one,
+ * as a chain of {@code if (request.path...)} does, for an application with hundreds
+ * of routes: static ones, ones with parameters and a few wildcards.
+ * Each invocation routes a mix of requests hitting the first, the middle and the last
+ * registered routes, and one that matches no route.
+ * <code>
+ *     mvn -Pbenchmark package
+ *     java -jar target/benchmarks.jar RouterBenchmark -prof gc
+ * </code>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RouterBenchmark {
+    /**
+     * Number of resources; each one has four routes.
+     */
+    @Param({"100"})
+    public int resources;
+
+    /**
+     * The router.
+     */
+    private Router router;
+
+    /**
+     * Handler checking the routes one by one.
+     */
+    private LinearRouter linear;
+
+    /**
+     * Requests routed by each invocation.
+     */
+    private Request[] requests;
+
+    /**
+     * Registers the routes and prepares the requests.
+     */
+    @Setup
+    public void setup() {
+        final Handler handler = request -> ResponseNothing.INSTANCE;
+        router = new Router();
+        linear = new LinearRouter();
+        for (int index = 0; index < resources; index++) {
+            final String base = "/api/v1/resource" + index;
+            router.get(base, handler)
+                .get(base + "/{id}", handler)
+                .post(base + "/{id}", handler)
+                .get(base + "/{id}/items/{item}", handler);
+            linear.add(Method.GET, base, handler);
+            linear.add(Method.GET, base + "/{id}", handler);
+            linear.add(Method.POST, base + "/{id}", handler);
+            linear.add(Method.GET, base + "/{id}/items/{item}", handler);
+        }
+        router.get("/static/*", handler);
+        linear.add(Method.GET, "/static/*", handler);
+        final int middle = resources / 2;
+        final int last = resources - 1;
+        requests = new Request[] {
+            request(Method.GET, "/api/v1/resource0"),
+            request(Method.GET, "/api/v1/resource" + middle + "/42"),
+            request(Method.POST, "/api/v1/resource" + middle + "/42"),
+            request(Method.GET, "/api/v1/resource" + last + "/42/items/7"),
+            request(Method.GET, "/static/css/site.css"),
+            request(Method.GET, "/favicon.ico")
+        };
+    }
+
+    /**
+     * Routes the requests with the router.
+     * @return Number of matched requests
+     */
+    @Benchmark
+    public int router() {
+        int matched = 0;
+        for (final Request request : requests) {
+            if (router.handle(request) != null) {
+                matched++;
+            }
+        }
+        return matched;
+    }
+
+    /**
+     * Routes the requests by checking the routes one by one.
+     * @return Number of matched requests
+     */
+    @Benchmark
+    public int linear() {
+        int matched = 0;
+        for (final Request request : requests) {
+            if (linear.handle(request) != null) {
+                matched++;
+            }
+        }
+        return matched;
+    }
+
+    /**
+     * Creates a request.
+     * @param method Request method
+     * @param path Request path
+     * @return The request
+     */
+    private static Request request(final Method method, final String path) {
+        final Request request = new Request();
+        request.method = method;
+        request.path = path;
+        request.address = path;
+        return request;
+    }
+
+    /**
+     * Handler that compares the path with every registered pattern in turn.
+     */
+    private static final class LinearRouter implements Handler {
+        /**
+         * Methods of the routes.
+         */
+        private final List<Method> methods = new ArrayList<>();
+
+        /**
+         * Segments of the patterns.
+         */
+        private final List<String[]> patterns = new ArrayList<>();
+
+        /**
+         * Handlers of the routes.
+         */
+        private final List<Handler> handlers = new ArrayList<>();
+
+        /**
+         * Registers a handler.
+         * @param method Request method
+         * @param pattern Path pattern
+         * @param handler Handler
+         */
+        void add(final Method method, final String pattern, final Handler handler) {
+            methods.add(method);
+            patterns.add(pattern.split("/"));
+            handlers.add(handler);
+        }
+
+        @Override
+        public Response handle(final Request request) {
+            final String[] segments = request.path.split("/");
+            for (int index = 0; index < patterns.size(); index++) {
+                if (methods.get(index) == request.method && matches(patterns.get(index), segments)) {
+                    return handlers.get(index).handle(request);
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Compares the segments of a path with the segments of a pattern.
+         * @param pattern Segments of the pattern
+         * @param segments Segments of the path
+         * @return Comparison result
+         */
+        private static boolean matches(final String[] pattern, final String[] segments) {
+            for (int index = 0; index < pattern.length; index++) {
+                final String expected = pattern[index];
+                if (expected.equals("*")) {
+                    return true;
+                }
+                if (index >= segments.length) {
+                    return false;
+                }
+                if (!expected.startsWith("{") && !expected.equals(segments[index])) {
+                    return false;
+                }
+            }
+            return pattern.length == segments.length;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2025 Ivan Kniazkov
+ */
+package com.kniazkov.webserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the fixed pool of platform threads with virtual threads for handlers
+ * that are blocked most of the time (as if waiting for a database or another service).
+ * Many client threads send requests simultaneously, each request on a new connection.
+ * The virtual thread mode requires the benchmarks to be built and run with JDK 21+:
+ * <code>
+ *     mvn -Pbenchmark package
+ *     java -jar target/benchmarks.jar WorkerPoolBenchmark
+ * </code>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@Threads(128)
+public class WorkerPoolBenchmark {
+    /**
+     * Request sent by clients.
+     */
+    private static final byte[] REQUEST =
+        "GET /data HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Run workers in virtual threads.
+     */
+    @Param({"false", "true"})
+    public boolean virtualThreads;
+
+    /**
+     * How long the handler is blocked, in milliseconds.
+     */
+    @Param({"20"})
+    public int handlerDelay;
+
+    /**
+     * Number of platform threads in the fixed pool.
+     */
+    @Param({"16"})
+    public int threadCount;
+
+    /**
+     * The server.
+     */
+    private Server server;
+
+    /**
+     * Port on which the server is running.
+     */
+    private int port;
+
+    /**
+     * Starts the server.
+     * @throws Exception If the server cannot be started
+     */
+    @Setup(Level.Trial)
+    public void start() throws Exception {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        final Options options = new Options();
+        options.port = port;
+        options.threadCount = threadCount;
+        options.virtualThreads = virtualThreads;
+        final int delay = handlerDelay;
+        server = Server.start(options, request -> {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException ignored) {
+                Thread.currentThread().interrupt();
+            }
+            return new ResponseText("done");
+        });
+        waitForPort(port);
+    }
+
+    /**
+     * Stops the server.
+     */
+    @TearDown(Level.Trial)
+    public void stop() {
+        server.stop();
+    }
+
+    /**
+     * Sends one request and reads the whole response.
+     * @return Number of bytes received
+     * @throws IOException If the request fails
+     */
+    @Benchmark
+    public int blockingHandler() throws IOException {
+        return sendRequest(port);
+    }
+
+    /**
+     * Sends a request on a new connection and reads the response until the server
+     * closes the connection.
+     * @param port Port on which the server is running
+     * @return Number of bytes received
+     * @throws IOException If the request fails
+     */
+    static int sendRequest(final int port) throws IOException {
+        try (Socket socket = new Socket("localhost", port)) {
+            final OutputStream output = socket.getOutputStream();
+            output.write(REQUEST);
+            output.flush();
+            final InputStream input = socket.getInputStream();
+            final byte[] buff = new byte[1024];
+            int total = 0;
+            int count = input.read(buff);
+            while (count > 0) {
+                total += count;
+                count = input.read(buff);
+            }
+            return total;
+        }
+    }
+
+    /**
+     * Waits until the server starts listening the port.
+     * @param port Port number
+     * @throws InterruptedException If the thread is interrupted while waiting
+     */
+    static void waitForPort(final int port) throws InterruptedException {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            try {
+                new Socket("localhost", port).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        throw new IllegalStateException("The server has not started on port " + port);
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright (c) 2025 Ivan Kniazkov
+ */
+package com.kniazkov.webserver;
+
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Asynchronous variant of {@link Handler}, for handlers that wait for slow services
+ * (databases, other servers) and can do it without blocking a thread.
+ *
+ * The handler returns a stage that completes with the response later. While the stage is
+ * pending, the worker thread that has invoked the handler serves other connections;
+ * when the stage completes, the response is sent to the client, as if it were returned
+ * by {@link Handler#handle(Request)}. If the stage completes exceptionally, the client gets
+ * {@code 500 Internal Server Error}; if it does not complete within
+ * {@link Options#asyncTimeout}, the client gets {@code 504 Gateway Timeout}.
+ * Responses of pipelined requests are still sent in the order of the requests.
+ *
+ * Use {@link Server#startAsync(Options, AsyncHandler)} to start a server with such a handler.
+ */
+public interface AsyncHandler {
+    /**
+     * Starts handling a request received from a client.
+     * @param request Request
+     * @return Stage that completes with the response, or with {@code null} if the request
+     *  cannot be handled (see {@link Handler#handle(Request)} for what the server does then)
+     */
+    CompletionStage<Response> handle(Request request);
+
+    /**
+     * Adapts a synchronous handler. The server recognizes adapted handlers
+     * and calls them directly, without creating stages.
+     * @param handler Synchronous handler
+     * @return Asynchronous handler returning stages that are already complete
+     */
+    static AsyncHandler from(final Handler handler) {
+        return new HandlerAdapter(handler);
+    }
+}
@@ -0,0 +1,25 @@
+/*
+ * Copyright (c) 2025 Ivan Kniazkov
+ */
+package com.kniazkov.webserver;
+
+import java.io.IOException;
+
+/**
+ * Exception thrown when the data received from a client cannot be parsed as an HTTP request.
+ * The server answers such requests with {@code 400 Bad Request}.
+ */
+final class BadRequestException extends IOException {
+    /**
+     * Version of the serialized form.
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Constructor.
+     * @param message Description of the problem
+     */
+    BadRequestException(final String message) {
+        super(message);
+    }
+}
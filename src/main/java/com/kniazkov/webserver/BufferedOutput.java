@@ -0,0 +1,357 @@
+/*
+ * Copyright (c) 2025 Ivan Kniazkov
+ */
+package com.kniazkov.webserver;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Output that collects the data in memory, to be sent later by a non-blocking engine.
+ * Byte buffers and files are not copied, the output only keeps references to them.
+ * If the output has a sink, the data of a stream can be passed to the engine while
+ * the response is still being produced; then the amount of the data that is not
+ * sent yet is limited, and the thread producing the response waits for the client.
+ */
+final class BufferedOutput extends ClientOutput {
+    /**
+     * Logger.
+     */
+    private static final Logger logger = Logger.getLogger(BufferedOutput.class.getName());
+
+    /**
+     * Initial size of the array that collects bytes written by the usual stream methods.
+     */
+    private static final int INITIAL_SIZE = 1024;
+
+    /**
+     * Maximum number of batches passed to the sink and not sent yet, beyond which
+     * the producing thread waits. One batch is sent while the next one is being produced.
+     */
+    private static final int MAX_PENDING_BATCHES = 1;
+
+    /**
+     * Piece of the collected data.
+     */
+    abstract static class Chunk {
+        /**
+         * Sends as much data of the chunk as the channel accepts without blocking.
+         * @param channel The channel
+         * @return {@code true} if the chunk is sent completely
+         * @throws IOException If the data cannot be sent
+         */
+        abstract boolean send(WritableByteChannel channel) throws IOException;
+
+        /**
+         * Returns the data of the chunk if it is a plain byte buffer, so that the engine
+         * can send several such chunks with one gathering write.
+         * @return The buffer (whose position is advanced as the data is sent)
+         *  or {@code null}
+         */
+        ByteBuffer getBuffer() {
+            return null;
+        }
+
+        /**
+         * Releases resources of the chunk if the connection is closed before the chunk is sent.
+         */
+        void discard() {
+        }
+    }
+
+    /**
+     * Chunk that contains a byte buffer.
+     */
+    private static final class BufferChunk extends Chunk {
+        /**
+         * The buffer.
+         */
+        private final ByteBuffer buffer;
+
+        /**
+         * Constructor.
+         * @param buffer The buffer
+         */
+        private BufferChunk(final ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        boolean send(final WritableByteChannel channel) throws IOException {
+            channel.write(buffer);
+            return !buffer.hasRemaining();
+        }
+
+        @Override
+        ByteBuffer getBuffer() {
+            return buffer;
+        }
+    }
+
+    /**
+     * Chunk that contains a region of a file.
+     */
+    private static final class FileChunk extends Chunk {
+        /**
+         * The file channel.
+         */
+        private final FileChannel file;
+
+        /**
+         * Position of the first byte that is not sent yet.
+         */
+        private long position;
+
+        /**
+         * Number of bytes that are not sent yet.
+         */
+        private long count;
+
+        /**
+         * Constructor.
+         * @param file The file channel
+         * @param position Position of the first byte of the region
+         * @param count Number of bytes in the region
+         */
+        private FileChunk(final FileChannel file, final long position, final long count) {
+            this.file = file;
+            this.position = position;
+            this.count = count;
+        }
+
+        @Override
+        boolean send(final WritableByteChannel channel) throws IOException {
+            final long sent = file.transferTo(position, count, channel);
+            if (sent <= 0 && position >= file.size()) {
+                throw new EOFException("The file is shorter than expected");
+            }
+            position += sent;
+            count -= sent;
+            return count == 0;
+        }
+    }
+
+    /**
+     * Chunk that releases a resource once all the previous chunks are sent.
+     */
+    private static final class ReleaseChunk extends Chunk {
+        /**
+         * The resource.
+         */
+        private final Closeable resource;
+
+        /**
+         * Constructor.
+         * @param resource The resource
+         */
+        private ReleaseChunk(final Closeable resource) {
+            this.resource = resource;
+        }
+
+        @Override
+        boolean send(final WritableByteChannel channel) {
+            discard();
+            return true;
+        }
+
+        @Override
+        void discard() {
+            try {
+                resource.close();
+            } catch (IOException e) {
+                logger.log(Level.FINE, "Failed to release a resource", e);
+            }
+        }
+    }
+
+    /**
+     * Chunk that marks the end of a batch passed to the sink and notifies the output
+     * when the batch has been sent.
+     */
+    private final class BatchEndChunk extends Chunk {
+        @Override
+        boolean send(final WritableByteChannel channel) {
+            batchDone(false);
+            return true;
+        }
+
+        @Override
+        void discard() {
+            batchDone(true);
+        }
+    }
+
+    /**
+     * Chunks containing the collected data.
+     */
+    private final Queue<Chunk> chunks;
+
+    /**
+     * Consumer that passes batches of chunks to the engine while the response is being
+     * produced, or {@code null} if the whole response is collected before sending.
+     */
+    private final Consumer<Queue<Chunk>> sink;
+
+    /**
+     * Number of batches passed to the sink and not sent yet.
+     */
+    private int pendingBatches;
+
+    /**
+     * Flag indicating that the connection was closed before a batch has been sent.
+     */
+    private boolean broken;
+
+    /**
+     * Array that collects bytes written by the usual stream methods.
+     */
+    private byte[] array;
+
+    /**
+     * Number of bytes in the array.
+     */
+    private int count;
+
+    /**
+     * Constructor.
+     */
+    BufferedOutput() {
+        this(null);
+    }
+
+    /**
+     * Constructor.
+     * @param sink Consumer that passes batches of chunks to the engine while the response
+     *  is being produced, or {@code null} if the whole response is collected before sending
+     */
+    BufferedOutput(final Consumer<Queue<Chunk>> sink) {
+        this.chunks = new ArrayDeque<>();
+        this.sink = sink;
+        this.array = null;
+        this.count = 0;
+        this.pendingBatches = 0;
+        this.broken = false;
+    }
+
+    @Override
+    public void write(final int value) {
+        countWritten(1);
+        ensureCapacity(count + 1);
+        array[count++] = (byte) value;
+    }
+
+    @Override
+    public void write(final byte[] data, final int offset, final int length) {
+        countWritten(length);
+        ensureCapacity(count + length);
+        System.arraycopy(data, offset, array, count, length);
+        count += length;
+    }
+
+    @Override
+    void write(final ByteBuffer buffer) {
+        countWritten(buffer.remaining());
+        moveArrayToChunks();
+        chunks.add(new BufferChunk(buffer.duplicate()));
+    }
+
+    @Override
+    void transfer(final FileChannel file, final long position, final long count) {
+        countWritten(count);
+        moveArrayToChunks();
+        chunks.add(new FileChunk(file, position, count));
+    }
+
+    @Override
+    void release(final Closeable resource) {
+        moveArrayToChunks();
+        chunks.add(new ReleaseChunk(resource));
+    }
+
+    @Override
+    void drain() throws IOException {
+        if (sink == null) {
+            return;
+        }
+        moveArrayToChunks();
+        if (chunks.isEmpty()) {
+            return;
+        }
+        final Queue<Chunk> batch = new ArrayDeque<>(chunks);
+        chunks.clear();
+        batch.add(new BatchEndChunk());
+        synchronized (this) {
+            pendingBatches++;
+        }
+        sink.accept(batch);
+        synchronized (this) {
+            while (pendingBatches > MAX_PENDING_BATCHES && !broken) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the client");
+                }
+            }
+            if (broken) {
+                throw new IOException("The client has disconnected");
+            }
+        }
+    }
+
+    /**
+     * Called by the engine when a batch passed to the sink has been sent or discarded.
+     * @param discarded Flag indicating that the batch has been discarded since
+     *  the connection is closed
+     */
+    private synchronized void batchDone(final boolean discarded) {
+        pendingBatches--;
+        if (discarded) {
+            broken = true;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Returns all the collected data.
+     * @return Queue of chunks
+     */
+    Queue<Chunk> getChunks() {
+        moveArrayToChunks();
+        return chunks;
+    }
+
+    /**
+     * Makes sure that the array can contain the specified number of bytes.
+     * @param capacity Required capacity
+     */
+    private void ensureCapacity(final int capacity) {
+        if (array == null) {
+            array = new byte[Math.max(INITIAL_SIZE, capacity)];
+        } else if (array.length < capacity) {
+            array = Arrays.copyOf(array, Math.max(array.length * 2, capacity));
+        }
+    }
+
+    /**
+     * Moves the bytes collected in the array to the queue of chunks.
+     */
+    private void moveArrayToChunks() {
+        if (count > 0) {
+            chunks.add(new BufferChunk(ByteBuffer.wrap(array, 0, count)));
+            array = null;
+            count = 0;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2025 Ivan Kniazkov
+ */
+package com.kniazkov.webserver;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Range of bytes requested by a client with the {@code Range} header.
+ */
+final class ByteRange {
+    /**
+     * Maximum number of ranges in one request. Requests asking for more ranges are served
+     * as usual, with the whole file, since a large number of small (possibly overlapping)
+     * ranges costs much more to send than the file itself.
+     */
+    private static final int MAX_RANGES = 16;
+
+    /**
+     * Position of the first byte of the range.
+     */
+    final long first;
+
+    /**
+     * Position of the last byte of the range (inclusive).
+     */
+    final long last;
+
+    /**
+     * Constructor.
+     * @param first Position of the first byte of the range
+     * @param last Position of the last byte of the range (inclusive)
+     */
+    private ByteRange(final long first, final long last) {
+        this.first = first;
+        this.last = last;
+    }
+
+    /**
+     * Returns the number of bytes in the range.
+     * @return Length of the range
+     */
+    long getLength() {
+        return last - first + 1;
+    }
+
+    /**
+     * Returns the value of the {@code Content-Range} header describing the range.
+     * @param size Size of the whole file
+     * @return Header value, for example, {@code bytes 0-499/1234}
+     */
+    String getContentRange(final long size) {
+        return "bytes " + first + '-' + last + '/' + size;
+    }
+
+    /**
+     * Returns a part of the buffer corresponding to the range.
+     * @param content Buffer containing the whole file; its position is not changed
+     * @return Buffer sharing the content with the original one
+     */
+    ByteBuffer slice(final ByteBuffer content) {
+        final ByteBuffer result = content.duplicate();
+        final int start = content.position() + (int) first;
+        ((Buffer) result).limit(start + (int) getLength());
+        ((Buffer) result).position(start);
+        return result;
+    }
+
+    /**
+     * Parses the value of the {@code Range} header, for example, {@code bytes=0-499,-100}.
+     * Ranges that start beyond the end of the file are skipped, ranges that end beyond it
+     * are truncated.
+     * @param header Value of the header
+     * @param size Size of the file
+     * @return List of ranges, an empty list if none of the ranges can be satisfied,
+     *  or {@code null} if the header is invalid or must be ignored
+     */
+    static List<ByteRange> parse(final String header, final long size) {
+        final String prefix = "bytes=";
+        if (!header.regionMatches(true, 0, prefix, 0, prefix.length())) {
+            return null;
+        }
+        final String[] items = header.substring(prefix.length()).split(",");
+        if (items.length > MAX_RANGES) {
+            return null;
+        }
+        final List<ByteRange> ranges = new ArrayList<>(items.length);
+        for (final String item : items) {
+            final String spec = item.trim();
+            final int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            final long first;
+            final long last;
+            try {
+                if (dash == 0) {
+                    final long suffix = Long.parseLong(spec.substring(1));
+                    if (suffix < 0) {
+                        return null;
+                    }
+                    if (suffix == 0 || size == 0) {
+                        continue;
+                    }
+                    first = Math.max(0, size - suffix);
+                    last = size - 1;
+                } else {
+                    first = Long.parseLong(spec.substring(0, dash));
+                    final long end = dash == spec.length() - 1
+                        ? Long.MAX_VALUE : Long.parseLong(spec.substring(dash + 1));
+                    if (first < 0 || end < first) {
+                        return null;
+                    }
+                    if (first >= size) {
+                        continue;
+                    }
+                    last = Math.min(end, size - 1);
+                }
+            } catch (NumberFormatException ignored) {
+                return null;
+            }
+            ranges.add(new ByteRange(first, last));
+        }
+        return ranges.isEmpty() ? Collections.emptyList() : ranges;
+    }
+}
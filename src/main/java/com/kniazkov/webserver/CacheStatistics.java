@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2025 Ivan Kniazkov
+ */
+package com.kniazkov.webserver;
+
+/**
+ * Statistics of a cache (of static files or of {@link ResponseCache handler responses})
+ * at some point in time.
+ */
+public final class CacheStatistics {
+    /**
+     * Number of requests served from the cache.
+     */
+    public final long hits;
+
+    /**
+     * Number of requests for which the data had to be loaded, i.e. the file had to be read
+     * from disk or the handler had to be called.
+     */
+    public final long misses;
+
+    /**
+     * Number of entries removed from the cache to free memory.
+     */
+    public final long evictions;
+
+    /**
+     * Number of entries (files or responses) currently in the cache.
+     */
+    public final int entryCount;
+
+    /**
+     * Total size of the data currently in the cache (for example, files and their compressed
+     * variants), in bytes.
+     */
+    public final long size;
+
+    /**
+     * Maximum total size of the cached data, in bytes.
+     */
+    public final long capacity;
+
+    /**
+     * Constructor.
+     * @param hits Number of requests served from the cache
+     * @param misses Number of requests for which the data had to be loaded
+     * @param evictions Number of entries removed from the cache to free memory
+     * @param entryCount Number of entries currently in the cache
+     * @param size Total size of the data currently in the cache
+     * @param capacity Maximum total size of the cached data
+     */
+    CacheStatistics(final long hits, final long misses, final long evictions,
+            final int entryCount, final long size, final long capacity) {
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.entryCount = entryCount;
+        this.size = size;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Stringification (for debugging purposes).
+     * @return Statistics as string representation
+     */
+    @Override
+    public String toString() {
+        return "hits: " + hits + ", misses: " + misses + ", evictions: " + evictions
+            + ", entries: " + entryCount + ", size: " + size + " of " + capacity;
+    }
+}
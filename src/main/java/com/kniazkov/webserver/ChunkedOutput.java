@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2025 Ivan Kniazkov
+ */
+package com.kniazkov.webserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Stream that passes the data of a streamed response to the client output in chunks
+ * of limited size, encoding each of them with the chunked transfer coding
+ * ({@code Transfer-Encoding: chunked}) if required.
+ * Every complete chunk is drained, so the writing thread waits if the client does not keep up.
+ */
+final class ChunkedOutput extends OutputStream {
+    /**
+     * Maximum number of data bytes in a chunk.
+     */
+    private static final int CHUNK_SIZE = 16384;
+
+    /**
+     * Space reserved before the data for the chunk size (in hex) and CRLF.
+     */
+    private static final int PREFIX_SIZE = 10;
+
+    /**
+     * Hexadecimal digits.
+     */
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * The last chunk (which has no data) and the end of the message.
+     */
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * The client output.
+     */
+    private final ClientOutput stream;
+
+    /**
+     * Flag indicating that the data is encoded with the chunked transfer coding;
+     * otherwise, it is passed as is.
+     */
+    private final boolean chunked;
+
+    /**
+     * Buffer containing the prefix, the data of the current chunk and space for the suffix.
+     */
+    private final byte[] buffer;
+
+    /**
+     * Number of data bytes in the buffer.
+     */
+    private int count;
+
+    /**
+     * Flag indicating that the stream is closed.
+     */
+    private boolean closed;
+
+    /**
+     * Constructor.
+     * @param stream The client output
+     * @param chunked Flag indicating that the data must be encoded with the chunked
+     *  transfer coding
+     */
+    ChunkedOutput(final ClientOutput stream, final boolean chunked) {
+        this.stream = stream;
+        this.chunked = chunked;
+        this.buffer = new byte[PREFIX_SIZE + CHUNK_SIZE + 2];
+        this.count = 0;
+        this.closed = false;
+    }
+
+    @Override
+    public void write(final int value) throws IOException {
+        if (closed) {
+            throw new IOException("The stream is closed");
+        }
+        if (count == CHUNK_SIZE) {
+            sendChunk();
+        }
+        buffer[PREFIX_SIZE + count++] = (byte) value;
+    }
+
+    @Override
+    public void write(final byte[] data, int offset, int length) throws IOException {
+        if (closed) {
+            throw new IOException("The stream is closed");
+        }
+        while (length > 0) {
+            if (count == CHUNK_SIZE) {
+                sendChunk();
+            }
+            final int size = Math.min(length, CHUNK_SIZE - count);
+            System.arraycopy(data, offset, buffer, PREFIX_SIZE + count, size);
+            count += size;
+            offset += size;
+            length -= size;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (count > 0) {
+            sendChunk();
+        } else {
+            stream.drain();
+        }
+    }
+
+    /**
+     * Sends the rest of the data and, if the data is chunked, the last chunk.
+     * The client output is not closed.
+     * @throws IOException If there's something wrong with the client output
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        if (count > 0) {
+            sendChunk();
+        }
+        closed = true;
+        if (chunked) {
+            stream.write(LAST_CHUNK);
+        }
+    }
+
+    /**
+     * Sends the data collected in the buffer as one chunk and drains the client output.
+     * @throws IOException If there's something wrong with the client output
+     */
+    private void sendChunk() throws IOException {
+        if (chunked) {
+            int start = PREFIX_SIZE;
+            buffer[--start] = '\n';
+            buffer[--start] = '\r';
+            int value = count;
+            do {
+                buffer[--start] = HEX[value & 0xf];
+                value >>>= 4;
+            } while (value != 0);
+            final int end = PREFIX_SIZE + count;
+            buffer[end] = '\r';
+            buffer[end + 1] = '\n';
+            stream.write(buffer, start, end + 2 - start);
+        } else {
+            stream.write(buffer, PREFIX_SIZE, count);
+        }
+        count = 0;
+        stream.drain();
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2025 Ivan Kniazkov
+ */
+package com.kniazkov.webserver;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Stream to which responses are written, i.e. the data sent to a client.
+ * In addition to the usual stream methods, it can send byte buffers (including direct ones)
+ * and regions of files, which allows the implementations to avoid copying the data
+ * through the heap.
+ */
+abstract class ClientOutput extends OutputStream {
+    /**
+     * Size of the intermediate array used to copy data that cannot be sent directly.
+     */
+    private static final int CHUNK_SIZE = 16384;
+
+    /**
+     * Intermediate array of each thread used to copy data.
+     */
+    private static final ThreadLocal<byte[]> chunk = ThreadLocal.withInitial(() -> new byte[CHUNK_SIZE]);
+
+    /**
+     * Number of bytes written to the output so far.
+     */
+    private long written;
+
+    /**
+     * Returns the number of bytes written to the output so far, whether they are sent
+     * or not yet.
+     * @return The number of bytes
+     */
+    long getWrittenBytes() {
+        return written;
+    }
+
+    /**
+     * Counts written bytes. Implementations call it once for each piece of data they accept.
+     * @param count Number of bytes
+     */
+    final void countWritten(final long count) {
+        written += count;
+    }
+
+    /**
+     * Writes the remaining bytes of the buffer.
+     * The position of the buffer is not changed, so one buffer can be sent to several clients
+     * at the same time.
+     * @param buffer The buffer
+     * @throws IOException If there's something wrong with the output stream
+     */
+    void write(final ByteBuffer buffer) throws IOException {
+        final ByteBuffer source = buffer.duplicate();
+        final byte[] array = chunk.get();
+        while (source.hasRemaining()) {
+            final int count = Math.min(source.remaining(), array.length);
+            source.get(array, 0, count);
+            write(array, 0, count);
+        }
+    }
+
+    /**
+     * Sends a region of a file.
+     * This implementation copies the file through a per-thread intermediate array;
+     * outputs that have a socket channel transfer the data directly.
+     * @param file The file channel; its position is not changed
+     * @param position Position of the first byte of the region
+     * @param count Number of bytes in the region
+     * @throws IOException If the file cannot be read or there's something wrong
+     *  with the output stream
+     */
+    void transfer(final FileChannel file, long position, long count) throws IOException {
+        final byte[] array = chunk.get();
+        final ByteBuffer buffer = ByteBuffer.wrap(array);
+        while (count > 0) {
+            ((Buffer) buffer).clear();
+            ((Buffer) buffer).limit((int) Math.min(array.length, count));
+            final int read = file.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("The file is shorter than expected");
+            }
+            write(array, 0, read);
+            position += read;
+            count -= read;
+        }
+    }
+
+    /**
+     * Releases a resource (for example, a file) once all the data written before
+     * has been sent.
+     * This implementation sends the data synchronously, so it closes the resource immediately.
+     * @param resource The resource
+     * @throws IOException If the resource cannot be closed
+     */
+    void release(final Closeable resource) throws IOException {
+        resource.close();
+    }
+
+    /**
+     * Starts sending the data written so far and waits until the amount of data that is
+     * not sent yet is small enough to continue writing. This is how a response produced
+     * gradually (a stream) is delivered without collecting it in memory.
+     * This implementation sends the data synchronously, so it just flushes the stream.
+     * @throws IOException If there's something wrong with the output stream or the client
+     *  has disconnected
+     */
+    void drain() throws IOException {
+        flush();
+    }
+
+    /**
+     * Marks the end of a response. An output may keep the data and send it together with
+     * the responses that follow, when the engine knows that more requests are already
+     * received (pipelining); the engine then sends everything at once.
+     * This implementation flushes the stream.
+     * @throws IOException If there's something wrong with the output stream
+     */
+    void endResponse() throws IOException {
+        flush();
+    }
+}
@@ -0,0 +1,335 @@
+/*
+ * Copyright (c) 2025 Ivan Kniazkov
+ */
+package com.kniazkov.webserver;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Map with string keys intended for the few entries a request usually has
+ * (form fields, cookies, uploaded files). The entries are kept in two arrays in the order
+ * they were added, and a key is searched for by a linear scan. Only when the map grows
+ * larger than {@link #INDEX_THRESHOLD} entries, a hash index is built to find the keys.
+ * Subclasses may fill the map on first access, see {@link #load()}.
+ * @param <V> Type of values
+ */
+class CompactMap<V> extends AbstractMap<String, V> {
+    /**
+     * Number of entries above which the hash index is used.
+     */
+    private static final int INDEX_THRESHOLD = 8;
+
+    /**
+     * Initial capacity of the arrays.
+     */
+    private static final int INITIAL_CAPACITY = 4;
+
+    /**
+     * Keys.
+     */
+    private String[] keys;
+
+    /**
+     * Values.
+     */
+    private Object[] values;
+
+    /**
+     * Number of entries.
+     */
+    private int count;
+
+    /**
+     * Number of structural modifications, to detect them while iterating.
+     */
+    private int modifications;
+
+    /**
+     * Positions of the keys in the arrays, used only for large maps.
+     */
+    private HashMap<String, Integer> index;
+
+    /**
+     * Set of entries, created on demand.
+     */
+    private Set<Map.Entry<String, V>> entries;
+
+    /**
+     * Constructor.
+     */
+    CompactMap() {
+        this.keys = null;
+        this.values = null;
+        this.count = 0;
+        this.modifications = 0;
+        this.index = null;
+        this.entries = null;
+    }
+
+    /**
+     * Fills the map before its first use. Called at the beginning of every operation;
+     * does nothing by default.
+     */
+    void load() {
+    }
+
+    @Override
+    public int size() {
+        load();
+        return count;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+        load();
+        return find(key) >= 0;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(final Object key) {
+        load();
+        final int position = find(key);
+        return position >= 0 ? (V) values[position] : null;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V put(final String key, final V value) {
+        if (key == null) {
+            throw new NullPointerException();
+        }
+        load();
+        final int position = find(key);
+        if (position >= 0) {
+            final V previous = (V) values[position];
+            values[position] = value;
+            return previous;
+        }
+        if (keys == null) {
+            keys = new String[INITIAL_CAPACITY];
+            values = new Object[INITIAL_CAPACITY];
+        } else if (count == keys.length) {
+            keys = Arrays.copyOf(keys, count * 2);
+            values = Arrays.copyOf(values, count * 2);
+        }
+        keys[count] = key;
+        values[count] = value;
+        if (index != null) {
+            index.put(key, count);
+        }
+        count++;
+        modifications++;
+        return null;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V remove(final Object key) {
+        load();
+        final int position = find(key);
+        if (position < 0) {
+            return null;
+        }
+        final V previous = (V) values[position];
+        removeAt(position);
+        return previous;
+    }
+
+    @Override
+    public void clear() {
+        load();
+        if (count > 0) {
+            Arrays.fill(keys, 0, count, null);
+            Arrays.fill(values, 0, count, null);
+            count = 0;
+            index = null;
+            modifications++;
+        }
+    }
+
+    @Override
+    public Set<Map.Entry<String, V>> entrySet() {
+        if (entries == null) {
+            entries = new AbstractSet<Map.Entry<String, V>>() {
+                @Override
+                public Iterator<Map.Entry<String, V>> iterator() {
+                    load();
+                    return new EntryIterator();
+                }
+
+                @Override
+                public int size() {
+                    return CompactMap.this.size();
+                }
+
+                @Override
+                public void clear() {
+                    CompactMap.this.clear();
+                }
+            };
+        }
+        return entries;
+    }
+
+    /**
+     * Returns the position of a key in the arrays.
+     * @param key The key
+     * @return Position of the key or -1 if there is no such key
+     */
+    private int find(final Object key) {
+        if (!(key instanceof String)) {
+            return -1;
+        }
+        if (count > INDEX_THRESHOLD) {
+            if (index == null) {
+                index = new HashMap<>(count * 2);
+                for (int position = 0; position < count; position++) {
+                    index.put(keys[position], position);
+                }
+            }
+            final Integer position = index.get(key);
+            return position != null ? position : -1;
+        }
+        for (int position = 0; position < count; position++) {
+            if (keys[position].equals(key)) {
+                return position;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Removes an entry, keeping the order of the remaining ones.
+     * @param position Position of the entry in the arrays
+     */
+    private void removeAt(final int position) {
+        final int moved = count - position - 1;
+        System.arraycopy(keys, position + 1, keys, position, moved);
+        System.arraycopy(values, position + 1, values, position, moved);
+        count--;
+        keys[count] = null;
+        values[count] = null;
+        index = null;
+        modifications++;
+    }
+
+    /**
+     * Iterator over the entries, in the order they were added.
+     */
+    private final class EntryIterator implements Iterator<Map.Entry<String, V>> {
+        /**
+         * Position of the next entry.
+         */
+        private int next = 0;
+
+        /**
+         * Position of the entry returned last, or -1.
+         */
+        private int last = -1;
+
+        /**
+         * Number of modifications of the map the iterator expects.
+         */
+        private int expected = modifications;
+
+        @Override
+        public boolean hasNext() {
+            return next < count;
+        }
+
+        @Override
+        public Map.Entry<String, V> next() {
+            if (expected != modifications) {
+                throw new ConcurrentModificationException();
+            }
+            if (next >= count) {
+                throw new NoSuchElementException();
+            }
+            last = next++;
+            return new Entry(keys[last]);
+        }
+
+        @Override
+        public void remove() {
+            if (last < 0) {
+                throw new IllegalStateException();
+            }
+            if (expected != modifications) {
+                throw new ConcurrentModificationException();
+            }
+            removeAt(last);
+            next = last;
+            last = -1;
+            expected = modifications;
+        }
+    }
+
+    /**
+     * Entry of the map; reads and writes the value through the map.
+     */
+    private final class Entry implements Map.Entry<String, V> {
+        /**
+         * The key.
+         */
+        private final String key;
+
+        /**
+         * Constructor.
+         * @param key The key
+         */
+        Entry(final String key) {
+            this.key = key;
+        }
+
+        @Override
+        public String getKey() {
+            return key;
+        }
+
+        @Override
+        public V getValue() {
+            return get(key);
+        }
+
+        @Override
+        public V setValue(final V value) {
+            return put(key, value);
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof Map.Entry)) {
+                return false;
+            }
+            final Map.Entry<?, ?> other = (Map.Entry<?, ?>) obj;
+            final V value = getValue();
+            return key.equals(other.getKey())
+                && (value == null ? other.getValue() == null : value.equals(other.getValue()));
+        }
+
+        @Override
+        public int hashCode() {
+            final V value = getValue();
+            return key.hashCode() ^ (value == null ? 0 : value.hashCode());
+        }
+
+        @Override
+        public String toString() {
+            return key + '=' + getValue();
+        }
+    }
+}
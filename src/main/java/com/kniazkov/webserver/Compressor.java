@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2025 Ivan Kniazkov
+ */
+package com.kniazkov.webserver;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compression of response data ({@code Content-Encoding: gzip} and {@code deflate}).
+ * Deflaters are expensive to create (each one allocates native memory), so they are
+ * taken from pools and returned there after use instead of being created for each response.
+ */
+final class Compressor {
+    /**
+     * Name of the gzip encoding.
+     */
+    static final String GZIP = "gzip";
+
+    /**
+     * Name of the deflate (zlib) encoding.
+     */
+    static final String DEFLATE = "deflate";
+
+    /**
+     * Maximum number of idle deflaters kept in each pool.
+     */
+    private static final int POOL_SIZE = 64;
+
+    /**
+     * Header of a gzip member: magic number, the deflate method, no flags, no modification time,
+     * no extra flags, unknown operating system.
+     */
+    private static final byte[] GZIP_HEADER = {
+        0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff
+    };
+
+    /**
+     * Size of the gzip trailer (CRC32 and the length of the uncompressed data).
+     */
+    private static final int GZIP_TRAILER_SIZE = 8;
+
+    /**
+     * Idle deflaters producing raw deflate data (for gzip).
+     */
+    private static final BlockingQueue<Deflater> gzipPool = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    /**
+     * Idle deflaters producing zlib data (for deflate).
+     */
+    private static final BlockingQueue<Deflater> deflatePool = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    /**
+     * Private constructor.
+     */
+    private Compressor() {
+    }
+
+    /**
+     * Chooses the encoding of the response based on the {@code Accept-Encoding} request header.
+     * gzip is preferred over deflate.
+     * @param acceptEncoding Value of the {@code Accept-Encoding} header (may be empty)
+     * @return {@link #GZIP}, {@link #DEFLATE} or {@code null} if the client does not accept
+     *  compressed data
+     */
+    static String negotiate(final String acceptEncoding) {
+        if (acceptEncoding == null || acceptEncoding.isEmpty()) {
+            return null;
+        }
+        float gzip = -1;
+        float deflate = -1;
+        float any = -1;
+        for (final String item : acceptEncoding.split(",")) {
+            final int semicolon = item.indexOf(';');
+            final String name = (semicolon < 0 ? item : item.substring(0, semicolon)).trim();
+            float quality = 1;
+            if (semicolon >= 0) {
+                final String parameter = item.substring(semicolon + 1).trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        quality = Float.parseFloat(parameter.substring(2));
+                    } catch (NumberFormatException ignored) {
+                        quality = 0;
+                    }
+                }
+            }
+            if (GZIP.equalsIgnoreCase(name) || "x-gzip".equalsIgnoreCase(name)) {
+                gzip = quality;
+            } else if (DEFLATE.equalsIgnoreCase(name)) {
+                deflate = quality;
+            } else if ("*".equals(name)) {
+                any = quality;
+            }
+        }
+        if (gzip < 0) {
+            gzip = any;
+        }
+        if (deflate < 0) {
+            deflate = any;
+        }
+        if (gzip > 0 && gzip >= deflate) {
+            return GZIP;
+        }
+        return deflate > 0 ? DEFLATE : null;
+    }
+
+    /**
+     * Checks whether data of the specified type is worth compressing
+     * (text formats are, images and archives are already compressed).
+     * @param contentType Content type, for example, {@code image/jpeg} or {@code text/html}
+     * @return Checking result
+     */
+    static boolean isCompressible(final String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        return contentType.startsWith("text/")
+            || contentType.startsWith("application/json")
+            || contentType.startsWith("application/javascript")
+            || contentType.startsWith("application/xml")
+            || contentType.startsWith("application/xhtml")
+            || contentType.startsWith("application/svg")
+            || contentType.startsWith("image/svg");
+    }
+
+    /**
+     * Compresses data.
+     * @param data Array containing the data
+     * @param offset Offset of the data in the array
+     * @param length Length of the data
+     * @param encoding {@link #GZIP} or {@link #DEFLATE}
+     * @return Compressed data
+     */
+    static byte[] compress(final byte[] data, final int offset, final int length,
+            final String encoding) {
+        final boolean gzip = GZIP.equals(encoding);
+        final BlockingQueue<Deflater> pool = gzip ? gzipPool : deflatePool;
+        Deflater deflater = pool.poll();
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, gzip);
+        }
+        try {
+            byte[] result = new byte[Math.max(64, length / 3)
+                + GZIP_HEADER.length + GZIP_TRAILER_SIZE];
+            int size = 0;
+            if (gzip) {
+                System.arraycopy(GZIP_HEADER, 0, result, 0, GZIP_HEADER.length);
+                size = GZIP_HEADER.length;
+            }
+            deflater.setInput(data, offset, length);
+            deflater.finish();
+            while (!deflater.finished()) {
+                if (size == result.length) {
+                    result = Arrays.copyOf(result, result.length * 2);
+                }
+                size += deflater.deflate(result, size, result.length - size);
+            }
+            if (gzip) {
+                if (size + GZIP_TRAILER_SIZE > result.length) {
+                    result = Arrays.copyOf(result, size + GZIP_TRAILER_SIZE);
+                }
+                final CRC32 crc = new CRC32();
+                crc.update(data, offset, length);
+                writeIntLE(result, size, (int) crc.getValue());
+                writeIntLE(result, size + 4, length);
+                size += GZIP_TRAILER_SIZE;
+            }
+            return result.length == size ? result : Arrays.copyOf(result, size);
+        } finally {
+            deflater.reset();
+            if (!pool.offer(deflater)) {
+                deflater.end();
+            }
+        }
+    }
+
+    /**
+     * Compresses data contained in a buffer into a direct buffer.
+     * @param data Buffer containing the data; its position is not changed
+     * @param encoding {@link #GZIP} or {@link #DEFLATE}
+     * @return Read-only direct buffer containing compressed data
+     */
+    static ByteBuffer compress(final ByteBuffer data, final String encoding) {
+        final byte[] array = new byte[data.remaining()];
+        data.duplicate().get(array);
+        final byte[] compressed = compress(array, 0, array.length, encoding);
+        final ByteBuffer result = ByteBuffer.allocateDirect(compressed.length);
+        result.put(compressed);
+        ((Buffer) result).flip();
+        return result.asReadOnlyBuffer();
+    }
+
+    /**
+     * Writes a 32-bit integer in little-endian byte order.
+     * @param array Destination array
+     * @param offset Offset in the array
+     * @param value The value
+     */
+    private static void writeIntLE(final byte[] array, final int offset, final int value) {
+        array[offset] = (byte) value;
+        array[offset + 1] = (byte) (value >>> 8);
+        array[offset + 2] = (byte) (value >>> 16);
+        array[offset + 3] = (byte) (value >>> 24);
+    }
+}
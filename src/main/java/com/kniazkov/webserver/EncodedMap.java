@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2025 Ivan Kniazkov
+ */
+package com.kniazkov.webserver;
+
+import java.util.function.Supplier;
+
+/**
+ * Map of names and values decoded from URL-encoded web form data (for example,
+ * {@code a=1&b=2}) or from the {@code Cookie} header (for example, {@code a=1; b=2}).
+ * The raw text is not decoded when the request is parsed, but on first access to the map,
+ * so requests whose handlers do not look at the form data or the cookies do not pay for it.
+ */
+final class EncodedMap extends CompactMap<String> {
+    /**
+     * Source of the raw text; {@code null} once the text is decoded.
+     */
+    private Supplier<String> source;
+
+    /**
+     * Flag indicating that the text is the value of the {@code Cookie} header.
+     */
+    private final boolean cookies;
+
+    /**
+     * Constructor.
+     * @param source Source of the raw text, may return {@code null} if there is no text
+     * @param cookies Flag indicating that the text is the value of the {@code Cookie} header
+     */
+    private EncodedMap(final Supplier<String> source, final boolean cookies) {
+        this.source = source;
+        this.cookies = cookies;
+    }
+
+    /**
+     * Creates a map of web form fields.
+     * @param source Source of a query string or a URL-encoded request body
+     * @return The map
+     */
+    static EncodedMap form(final Supplier<String> source) {
+        return new EncodedMap(source, false);
+    }
+
+    /**
+     * Creates a map of cookies.
+     * @param source Source of the value of the {@code Cookie} header
+     * @return The map
+     */
+    static EncodedMap cookies(final Supplier<String> source) {
+        return new EncodedMap(source, true);
+    }
+
+    @Override
+    void load() {
+        if (source != null) {
+            final String text = source.get();
+            source = null;
+            if (text != null) {
+                if (cookies) {
+                    decodeCookies(text);
+                } else {
+                    decodeForm(text);
+                }
+            }
+        }
+    }
+
+    /**
+     * Decodes web form data, for example, {@code a=1&b=2}.
+     * @param text The data
+     */
+    private void decodeForm(final String text) {
+        final int length = text.length();
+        int start = 0;
+        while (start < length) {
+            int end = text.indexOf('&', start);
+            if (end < 0) {
+                end = length;
+            }
+            if (end > start) {
+                final int equals = text.indexOf('=', start);
+                if (equals < 0 || equals >= end) {
+                    put(PercentDecoder.decode(text, start, end, true), "");
+                } else {
+                    put(PercentDecoder.decode(text, start, equals, true),
+                        PercentDecoder.decode(text, equals + 1, end, true));
+                }
+            }
+            start = end + 1;
+        }
+    }
+
+    /**
+     * Decodes the value of the {@code Cookie} header, for example, {@code a=1; b=2}.
+     * @param text The value
+     */
+    private void decodeCookies(final String text) {
+        final int length = text.length();
+        int start = 0;
+        while (start < length) {
+            int end = text.indexOf(';', start);
+            if (end < 0) {
+                end = length;
+            }
+            final int equals = text.indexOf('=', start);
+            if (equals >= 0 && equals < end) {
+                put(decodeTrimmed(text, start, equals), decodeTrimmed(text, equals + 1, end));
+            }
+            start = end + 1;
+        }
+    }
+
+    /**
+     * Decodes a part of a string, removing leading and trailing whitespace first.
+     * @param text The string
+     * @param start Index of the first character of the part
+     * @param end Index of the character following the part
+     * @return Decoded part
+     */
+    private static String decodeTrimmed(final String text, int start, int end) {
+        while (start < end && text.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && text.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        return PercentDecoder.decode(text, start, end, true);
+    }
+}
@@ -0,0 +1,16 @@
+/*
+ * Copyright (c) 2025 Ivan Kniazkov
+ */
+package com.kniazkov.webserver;
+
+/**
+ * Server engine, i.e. the part of the server that accepts connections from clients
+ * and passes the received requests to the handler.
+ * The engine is started in a separate thread and works until it is stopped.
+ */
+interface Engine extends Runnable {
+    /**
+     * Stops the engine.
+     */
+    void stop();
+}
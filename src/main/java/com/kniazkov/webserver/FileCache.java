@@ -0,0 +1,290 @@
+/*
+ * Copyright (c) 2025 Ivan Kniazkov
+ */
+package com.kniazkov.webserver;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of static files.
+ * The content of the files is kept in direct (off-heap) buffers, so serving a cached file
+ * neither reads the disk nor allocates memory in the heap.
+ * The total size of the cached files is bounded, the least recently used files are evicted first.
+ * Each lookup checks the size and the modification time of the file, so a changed file
+ * is reloaded on the next request.
+ * The validators of the file (entity tag and modification time) are computed once per version
+ * of the file and are available without reading the file content.
+ * Compressed variants of cached files are created on demand and are cached as well.
+ */
+final class FileCache {
+    /**
+     * A file known to the cache.
+     */
+    static final class Entry {
+        /**
+         * Path to the file.
+         */
+        final Path path;
+
+        /**
+         * Size of the file, in bytes.
+         */
+        final long size;
+
+        /**
+         * Time of the last modification of the file, in milliseconds.
+         */
+        final long lastModified;
+
+        /**
+         * Entity tag of this version of the file.
+         */
+        final String etag;
+
+        /**
+         * Time of the last modification of the file, formatted for HTTP headers.
+         */
+        final String lastModifiedText;
+
+        /**
+         * Read-only buffer containing the file content, or {@code null} if the file
+         * is not cached (because it is too large).
+         */
+        final ByteBuffer content;
+
+        /**
+         * Compressed variants of the content, by encoding.
+         */
+        private final Map<String, ByteBuffer> variants;
+
+        /**
+         * Memory occupied by the content and its variants, in bytes.
+         * Guarded by the lock of the cache.
+         */
+        private long memory;
+
+        /**
+         * Constructor.
+         * @param path Path to the file
+         * @param size Size of the file
+         * @param lastModified Time of the last modification of the file
+         * @param content Buffer containing the file content or {@code null}
+         */
+        private Entry(final Path path, final long size, final long lastModified,
+                final ByteBuffer content) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.etag = '"' + Long.toHexString(size) + '-' + Long.toHexString(lastModified) + '"';
+            this.lastModifiedText = HttpDate.format(lastModified);
+            this.content = content;
+            this.variants = new ConcurrentHashMap<>();
+            this.memory = content != null ? content.remaining() : 0;
+        }
+    }
+
+    /**
+     * Maximum total size of cached files, in bytes.
+     */
+    private final long capacity;
+
+    /**
+     * Maximum size of a file that can be cached, in bytes.
+     */
+    private final long maxFileSize;
+
+    /**
+     * Cached files, from the least recently used to the most recently used one.
+     */
+    private final LinkedHashMap<Path, Entry> entries;
+
+    /**
+     * Total size of cached files, in bytes.
+     */
+    private long size;
+
+    /**
+     * Number of requests served from the cache.
+     */
+    private final AtomicLong hits;
+
+    /**
+     * Number of requests that required reading the file.
+     */
+    private final AtomicLong misses;
+
+    /**
+     * Number of files removed from the cache to free memory.
+     */
+    private final AtomicLong evictions;
+
+    /**
+     * Constructor.
+     * @param capacity Maximum total size of cached files, in bytes (0 disables the cache)
+     * @param maxFileSize Maximum size of a file that can be cached, in bytes
+     */
+    FileCache(final long capacity, final long maxFileSize) {
+        this.capacity = capacity;
+        this.maxFileSize = Math.min(maxFileSize, Integer.MAX_VALUE);
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+        this.size = 0;
+        this.hits = new AtomicLong();
+        this.misses = new AtomicLong();
+        this.evictions = new AtomicLong();
+    }
+
+    /**
+     * Returns the file without reading its content.
+     * @param path Path to the file
+     * @return The cache entry (with the content if the file is cached), or {@code null}
+     *  if there is no such file
+     * @throws IOException If the attributes of the file cannot be read
+     */
+    Entry get(final Path path) throws IOException {
+        final BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException ignored) {
+            remove(path);
+            return null;
+        }
+        if (!attributes.isRegularFile()) {
+            return null;
+        }
+        final long fileSize = attributes.size();
+        final long lastModified = attributes.lastModifiedTime().toMillis();
+        synchronized (this) {
+            final Entry entry = entries.get(path);
+            if (entry != null && entry.size == fileSize && entry.lastModified == lastModified) {
+                hits.incrementAndGet();
+                return entry;
+            }
+        }
+        return new Entry(path, fileSize, lastModified, null);
+    }
+
+    /**
+     * Loads the content of the file into the cache if it is not there yet.
+     * @param file Entry returned by {@link #get(Path)}
+     * @return The cache entry with the content, or the same entry without the content
+     *  if the file can't be cached; in this case the caller has to read the file itself
+     * @throws IOException If the file cannot be read
+     */
+    Entry load(final Entry file) throws IOException {
+        if (file.content != null) {
+            return file;
+        }
+        misses.incrementAndGet();
+        if (file.size > maxFileSize || file.size > capacity) {
+            remove(file.path);
+            return file;
+        }
+        final ByteBuffer content = read(file.path, (int) file.size);
+        final Entry entry = new Entry(file.path, content.remaining(), file.lastModified, content);
+        final Path path = file.path;
+        synchronized (this) {
+            final Entry previous = entries.put(path, entry);
+            if (previous != null) {
+                size -= previous.memory;
+            }
+            size += entry.memory;
+            evict();
+        }
+        return entry;
+    }
+
+    /**
+     * Returns the compressed content of a cached file, compressing it if necessary.
+     * @param entry Cache entry whose content is not {@code null}
+     * @param encoding {@link Compressor#GZIP} or {@link Compressor#DEFLATE}
+     * @return Read-only buffer containing compressed content, or the original content
+     *  if the compression does not make it smaller
+     */
+    ByteBuffer getCompressed(final Entry entry, final String encoding) {
+        final ByteBuffer cached = entry.variants.get(encoding);
+        if (cached != null) {
+            return cached;
+        }
+        ByteBuffer variant = Compressor.compress(entry.content, encoding);
+        if (variant.remaining() >= entry.content.remaining()) {
+            variant = entry.content;
+        }
+        synchronized (this) {
+            final ByteBuffer previous = entry.variants.putIfAbsent(encoding, variant);
+            if (previous != null) {
+                return previous;
+            }
+            if (variant != entry.content && entries.get(entry.path) == entry) {
+                entry.memory += variant.remaining();
+                size += variant.remaining();
+                evict();
+            }
+        }
+        return variant;
+    }
+
+    /**
+     * Returns the current statistics of the cache.
+     * @return Statistics
+     */
+    synchronized CacheStatistics getStatistics() {
+        return new CacheStatistics(hits.get(), misses.get(), evictions.get(), entries.size(),
+            size, capacity);
+    }
+
+    /**
+     * Removes the file from the cache.
+     * @param path Path to the file
+     */
+    private synchronized void remove(final Path path) {
+        final Entry entry = entries.remove(path);
+        if (entry != null) {
+            size -= entry.memory;
+        }
+    }
+
+    /**
+     * Removes the least recently used files until the total size fits the capacity.
+     * Must be called while holding the lock of the cache.
+     */
+    private void evict() {
+        final Iterator<Map.Entry<Path, Entry>> iterator = entries.entrySet().iterator();
+        while (size > capacity && iterator.hasNext()) {
+            final Entry eldest = iterator.next().getValue();
+            iterator.remove();
+            size -= eldest.memory;
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Reads the file into a direct buffer.
+     * @param path Path to the file
+     * @param fileSize Expected size of the file
+     * @return Read-only buffer containing the file content
+     * @throws IOException If the file cannot be read
+     */
+    private static ByteBuffer read(final Path path, final int fileSize) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(fileSize);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // keep reading until the buffer is full or the file ends
+            }
+        }
+        ((Buffer) buffer).flip();
+        return buffer.asReadOnlyBuffer();
+    }
+}
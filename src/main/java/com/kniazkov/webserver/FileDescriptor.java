@@ -3,8 +3,16 @@
  */
 package com.kniazkov.webserver;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
 /**
  * Structure describing a single file transferred using the POST method.
+ * Small files are kept in memory ({@link #data}), large ones are stored in temporary files
+ * ({@link #path}); the threshold is set by {@link Options#uploadMemoryThreshold}.
  */
 public final class FileDescriptor {
     /**
@@ -18,10 +26,34 @@ public final class FileDescriptor {
     public String contentType;
 
     /**
-     * The file content.
+     * The file content, or {@code null} if the file is stored in a temporary file.
      */
     public byte[] data;
 
+    /**
+     * Path to the temporary file containing the file content, or {@code null} if the content
+     * is kept in memory. The temporary file is deleted after the request has been processed;
+     * to keep it, the handler can move it elsewhere.
+     */
+    public Path path;
+
+    /**
+     * Size of the file content, in bytes.
+     */
+    public long size;
+
+    /**
+     * Opens a stream for reading the file content, no matter where it is stored.
+     * @return Input stream
+     * @throws IOException If the temporary file cannot be opened
+     */
+    public InputStream getInputStream() throws IOException {
+        if (data != null) {
+            return new ByteArrayInputStream(data);
+        }
+        return Files.newInputStream(path);
+    }
+
     /**
      * Stringification (for debugging purposes).
      * @return File name as string representation
@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) 2025 Ivan Kniazkov
+ */
+package com.kniazkov.webserver;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Synchronous handler adapted to the {@link AsyncHandler} interface.
+ */
+final class HandlerAdapter implements AsyncHandler {
+    /**
+     * The synchronous handler.
+     */
+    final Handler handler;
+
+    /**
+     * Constructor.
+     * @param handler The synchronous handler
+     */
+    HandlerAdapter(final Handler handler) {
+        this.handler = handler;
+    }
+
+    @Override
+    public CompletionStage<Response> handle(final Request request) {
+        final CompletableFuture<Response> result = new CompletableFuture<>();
+        try {
+            result.complete(handler.handle(request));
+        } catch (Throwable t) {
+            result.completeExceptionally(t);
+        }
+        return result;
+    }
+}
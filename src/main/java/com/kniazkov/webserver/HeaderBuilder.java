@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2025 Ivan Kniazkov
+ */
+package com.kniazkov.webserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Builder of the header block of a response, collected directly as bytes.
+ * Constant parts of the headers are appended as pre-encoded arrays; the builder is reused
+ * by a thread for all the responses it writes, so building headers allocates nothing.
+ */
+final class HeaderBuilder {
+    /**
+     * Line end.
+     */
+    private static final byte[] CRLF = { '\r', '\n' };
+
+    /**
+     * Initial capacity of the array.
+     */
+    private static final int INITIAL_CAPACITY = 512;
+
+    /**
+     * Array containing the collected bytes.
+     */
+    private byte[] array;
+
+    /**
+     * Number of collected bytes.
+     */
+    private int size;
+
+    /**
+     * Constructor.
+     */
+    HeaderBuilder() {
+        this.array = new byte[INITIAL_CAPACITY];
+        this.size = 0;
+    }
+
+    /**
+     * Removes the collected bytes, so the builder can be used for the next response.
+     * @return This builder
+     */
+    HeaderBuilder reset() {
+        size = 0;
+        return this;
+    }
+
+    /**
+     * Appends pre-encoded bytes.
+     * @param data The bytes
+     * @return This builder
+     */
+    HeaderBuilder append(final byte[] data) {
+        ensureCapacity(size + data.length);
+        System.arraycopy(data, 0, array, size, data.length);
+        size += data.length;
+        return this;
+    }
+
+    /**
+     * Appends a string. ASCII characters are copied as is,
+     * strings containing other characters are encoded as UTF-8.
+     * @param text The string
+     * @return This builder
+     */
+    HeaderBuilder append(final String text) {
+        final int length = text.length();
+        ensureCapacity(size + length);
+        for (int index = 0; index < length; index++) {
+            final char ch = text.charAt(index);
+            if (ch >= 0x80) {
+                return append(text.substring(index).getBytes(StandardCharsets.UTF_8));
+            }
+            array[size++] = (byte) ch;
+        }
+        return this;
+    }
+
+    /**
+     * Appends a non-negative number in decimal notation.
+     * @param value The number
+     * @return This builder
+     */
+    HeaderBuilder append(long value) {
+        ensureCapacity(size + 20);
+        if (value == 0) {
+            array[size++] = '0';
+            return this;
+        }
+        int end = size;
+        while (value > 0) {
+            array[end++] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        for (int left = size, right = end - 1; left < right; left++, right--) {
+            final byte tmp = array[left];
+            array[left] = array[right];
+            array[right] = tmp;
+        }
+        size = end;
+        return this;
+    }
+
+    /**
+     * Appends a header line.
+     * @param prefix Pre-encoded header name followed by a colon and a space
+     * @param value Header value
+     * @return This builder
+     */
+    HeaderBuilder appendHeader(final byte[] prefix, final String value) {
+        return append(prefix).append(value).append(CRLF);
+    }
+
+    /**
+     * Appends a header line with a numeric value.
+     * @param prefix Pre-encoded header name followed by a colon and a space
+     * @param value Header value
+     * @return This builder
+     */
+    HeaderBuilder appendHeader(final byte[] prefix, final long value) {
+        return append(prefix).append(value).append(CRLF);
+    }
+
+    /**
+     * Appends the empty line that terminates the header block.
+     * @return This builder
+     */
+    HeaderBuilder end() {
+        return append(CRLF);
+    }
+
+    /**
+     * Returns a copy of the collected bytes.
+     * @return Array containing the bytes
+     */
+    byte[] toByteArray() {
+        return Arrays.copyOf(array, size);
+    }
+
+    /**
+     * Writes the collected bytes to a stream.
+     * @param stream The stream
+     * @throws IOException If there's something wrong with the stream
+     */
+    void writeTo(final OutputStream stream) throws IOException {
+        stream.write(array, 0, size);
+    }
+
+    /**
+     * Encodes a constant header line.
+     * @param line The line without the line end, for example, {@code Connection: close}
+     * @return Encoded line including the line end
+     */
+    static byte[] encodeLine(final String line) {
+        return (line + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Encodes a header name as a prefix of a header line.
+     * @param name Header name
+     * @return Encoded name followed by a colon and a space
+     */
+    static byte[] encodePrefix(final String name) {
+        return (name + ": ").getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Makes sure that the array can contain the specified number of bytes.
+     * @param capacity Required capacity
+     */
+    private void ensureCapacity(final int capacity) {
+        if (array.length < capacity) {
+            array = Arrays.copyOf(array, Math.max(array.length * 2, capacity));
+        }
+    }
+}
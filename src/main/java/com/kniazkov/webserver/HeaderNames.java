@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2025 Ivan Kniazkov
+ */
+package com.kniazkov.webserver;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Names of well-known HTTP headers.
+ * When the parser meets one of these headers, it uses the constant string instead of creating
+ * a new one, so the name costs no allocation and can be compared by reference.
+ */
+final class HeaderNames {
+    static final String ACCEPT = "Accept";
+    static final String ACCEPT_CHARSET = "Accept-Charset";
+    static final String ACCEPT_ENCODING = "Accept-Encoding";
+    static final String ACCEPT_LANGUAGE = "Accept-Language";
+    static final String AUTHORIZATION = "Authorization";
+    static final String CACHE_CONTROL = "Cache-Control";
+    static final String CONNECTION = "Connection";
+    static final String CONTENT_LENGTH = "Content-Length";
+    static final String CONTENT_TYPE = "Content-Type";
+    static final String COOKIE = "Cookie";
+    static final String DNT = "DNT";
+    static final String EXPECT = "Expect";
+    static final String HOST = "Host";
+    static final String HTTP2_SETTINGS = "HTTP2-Settings";
+    static final String IF_MODIFIED_SINCE = "If-Modified-Since";
+    static final String IF_NONE_MATCH = "If-None-Match";
+    static final String IF_RANGE = "If-Range";
+    static final String KEEP_ALIVE = "Keep-Alive";
+    static final String ORIGIN = "Origin";
+    static final String PRAGMA = "Pragma";
+    static final String PRIORITY = "Priority";
+    static final String RANGE = "Range";
+    static final String REFERER = "Referer";
+    static final String SEC_FETCH_DEST = "Sec-Fetch-Dest";
+    static final String SEC_FETCH_MODE = "Sec-Fetch-Mode";
+    static final String SEC_FETCH_SITE = "Sec-Fetch-Site";
+    static final String SEC_FETCH_USER = "Sec-Fetch-User";
+    static final String SEC_WEBSOCKET_EXTENSIONS = "Sec-WebSocket-Extensions";
+    static final String SEC_WEBSOCKET_KEY = "Sec-WebSocket-Key";
+    static final String SEC_WEBSOCKET_PROTOCOL = "Sec-WebSocket-Protocol";
+    static final String SEC_WEBSOCKET_VERSION = "Sec-WebSocket-Version";
+    static final String TE = "TE";
+    static final String TRANSFER_ENCODING = "Transfer-Encoding";
+    static final String UPGRADE = "Upgrade";
+    static final String UPGRADE_INSECURE_REQUESTS = "Upgrade-Insecure-Requests";
+    static final String USER_AGENT = "User-Agent";
+    static final String X_FORWARDED_FOR = "X-Forwarded-For";
+    static final String X_FORWARDED_PROTO = "X-Forwarded-Proto";
+    static final String X_REQUESTED_WITH = "X-Requested-With";
+
+    /**
+     * Well-known names grouped by length.
+     */
+    private static final String[][] table = createTable(
+        ACCEPT, ACCEPT_CHARSET, ACCEPT_ENCODING, ACCEPT_LANGUAGE, AUTHORIZATION, CACHE_CONTROL,
+        CONNECTION, CONTENT_LENGTH, CONTENT_TYPE, COOKIE, DNT, EXPECT, HOST, HTTP2_SETTINGS,
+        IF_MODIFIED_SINCE, IF_NONE_MATCH, IF_RANGE, KEEP_ALIVE, ORIGIN, PRAGMA, PRIORITY, RANGE,
+        REFERER, SEC_FETCH_DEST, SEC_FETCH_MODE, SEC_FETCH_SITE, SEC_FETCH_USER,
+        SEC_WEBSOCKET_EXTENSIONS, SEC_WEBSOCKET_KEY, SEC_WEBSOCKET_PROTOCOL,
+        SEC_WEBSOCKET_VERSION, TE, TRANSFER_ENCODING, UPGRADE, UPGRADE_INSECURE_REQUESTS,
+        USER_AGENT, X_FORWARDED_FOR, X_FORWARDED_PROTO, X_REQUESTED_WITH
+    );
+
+    /**
+     * Private constructor.
+     */
+    private HeaderNames() {
+    }
+
+    /**
+     * Returns the name of a header contained in an array of bytes.
+     * @param data Array containing the name
+     * @param start Index of the first byte of the name
+     * @param end Index of the byte following the name
+     * @return Constant string if the name is well known (in any letter case),
+     *  otherwise a new string
+     */
+    static String intern(final byte[] data, final int start, final int end) {
+        final int length = end - start;
+        if (length < table.length) {
+            for (final String name : table[length]) {
+                if (matchesIgnoreCase(name, data, start)) {
+                    return name;
+                }
+            }
+        }
+        return new String(data, start, length, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Checks whether bytes are equal to an ASCII string, ignoring case.
+     * @param name The string
+     * @param data Array containing the bytes (at least as many as there are characters
+     *  in the string)
+     * @param start Index of the first byte
+     * @return Checking result
+     */
+    static boolean matchesIgnoreCase(final String name, final byte[] data, final int start) {
+        for (int index = 0; index < name.length(); index++) {
+            final int expected = name.charAt(index);
+            final int actual = data[start + index];
+            if (actual != expected) {
+                final int lower = actual | 0x20;
+                if (lower != (expected | 0x20) || lower < 'a' || lower > 'z') {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Creates the table of names grouped by length.
+     * @param names The names
+     * @return The table
+     */
+    private static String[][] createTable(final String... names) {
+        int maxLength = 0;
+        for (final String name : names) {
+            maxLength = Math.max(maxLength, name.length());
+        }
+        final String[][] result = new String[maxLength + 1][];
+        for (int length = 0; length <= maxLength; length++) {
+            int count = 0;
+            for (final String name : names) {
+                if (name.length() == length) {
+                    count++;
+                }
+            }
+            result[length] = new String[count];
+            count = 0;
+            for (final String name : names) {
+                if (name.length() == length) {
+                    result[length][count++] = name;
+                }
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2025 Ivan Kniazkov
+ */
+package com.kniazkov.webserver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Read-only, case-insensitive map of request headers.
+ * The values are not copied out of the received data when the request is parsed:
+ * the map keeps their positions and creates the strings on first access.
+ * If a header occurs several times, its values are joined with commas.
+ */
+final class Headers extends AbstractMap<String, String> {
+    /**
+     * Initial capacity of the arrays.
+     */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * The received data containing the header values.
+     */
+    private final byte[] data;
+
+    /**
+     * Header names.
+     */
+    private String[] names;
+
+    /**
+     * Positions of the values in the data: the start and the end of each value.
+     */
+    private int[] bounds;
+
+    /**
+     * Values that have already been created.
+     */
+    private String[] values;
+
+    /**
+     * Number of headers.
+     */
+    private int count;
+
+    /**
+     * Entries of the map, created on demand.
+     */
+    private Set<Map.Entry<String, String>> entries;
+
+    /**
+     * Constructor.
+     * @param data The received data containing the header values
+     */
+    Headers(final byte[] data) {
+        this.data = data;
+        this.names = new String[INITIAL_CAPACITY];
+        this.bounds = new int[INITIAL_CAPACITY * 2];
+        this.values = new String[INITIAL_CAPACITY];
+        this.count = 0;
+        this.entries = null;
+    }
+
+    /**
+     * Adds a header.
+     * @param name Header name
+     * @param start Index of the first byte of the value in the data
+     * @param end Index of the byte following the value
+     * @return Index of the header
+     */
+    int add(final String name, final int start, final int end) {
+        if (count == names.length) {
+            names = Arrays.copyOf(names, count * 2);
+            bounds = Arrays.copyOf(bounds, count * 4);
+            values = Arrays.copyOf(values, count * 2);
+        }
+        names[count] = name;
+        bounds[count * 2] = start;
+        bounds[count * 2 + 1] = end;
+        entries = null;
+        return count++;
+    }
+
+    /**
+     * Returns the value of a header by its index.
+     * @param index Index of the header
+     * @return The value
+     */
+    String getValue(final int index) {
+        String value = values[index];
+        if (value == null) {
+            final int start = bounds[index * 2];
+            value = new String(data, start, bounds[index * 2 + 1] - start,
+                StandardCharsets.ISO_8859_1);
+            values[index] = value;
+        }
+        return value;
+    }
+
+    /**
+     * Checks whether the value of a header is equal to an ASCII string, ignoring case,
+     * without creating the value.
+     * @param index Index of the header
+     * @param text The string
+     * @return Checking result
+     */
+    boolean valueEqualsIgnoreCase(final int index, final String text) {
+        final int start = bounds[index * 2];
+        return bounds[index * 2 + 1] - start == text.length()
+            && HeaderNames.matchesIgnoreCase(text, data, start);
+    }
+
+    /**
+     * Returns the value of a header, joining the values if the header occurs several times.
+     * @param name Header name
+     * @param separator Separator placed between the values
+     * @return The value or {@code null} if there is no such header
+     */
+    String join(final String name, final String separator) {
+        String result = null;
+        for (int index = 0; index < count; index++) {
+            if (names[index] == name || names[index].equalsIgnoreCase(name)) {
+                final String value = getValue(index);
+                result = result == null ? value : result + separator + value;
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public String get(final Object key) {
+        return key instanceof String ? join((String) key, ", ") : null;
+    }
+
+    @Override
+    public String getOrDefault(final Object key, final String defaultValue) {
+        final String value = get(key);
+        return value != null ? value : defaultValue;
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+        if (!(key instanceof String)) {
+            return false;
+        }
+        final String name = (String) key;
+        for (int index = 0; index < count; index++) {
+            if (names[index] == name || names[index].equalsIgnoreCase(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Set<Map.Entry<String, String>> entrySet() {
+        if (entries == null) {
+            final List<Map.Entry<String, String>> list = new ArrayList<>(count);
+            for (int index = 0; index < count; index++) {
+                boolean duplicate = false;
+                for (int previous = 0; previous < index; previous++) {
+                    if (names[previous].equalsIgnoreCase(names[index])) {
+                        duplicate = true;
+                        break;
+                    }
+                }
+                if (!duplicate) {
+                    list.add(new AbstractMap.SimpleImmutableEntry<>(names[index],
+                        get(names[index])));
+                }
+            }
+            entries = new AbstractSet<Map.Entry<String, String>>() {
+                @Override
+                public Iterator<Map.Entry<String, String>> iterator() {
+                    return list.iterator();
+                }
+
+                @Override
+                public int size() {
+                    return list.size();
+                }
+            };
+        }
+        return entries;
+    }
+}
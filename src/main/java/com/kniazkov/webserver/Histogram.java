@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2025 Ivan Kniazkov
+ */
+package com.kniazkov.webserver;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of durations that many threads may record at once without locking.
+ * Durations are counted in buckets whose upper bounds are powers of two microseconds
+ * (1 µs, 2 µs, 4 µs and so on up to about 67 seconds, plus a bucket for longer durations),
+ * so recording a value is a bit count and an increment of a {@link LongAdder},
+ * and the memory used does not depend on the number of values.
+ * The price is precision: a percentile is known within a factor of two.
+ */
+public final class Histogram {
+    /**
+     * Number of buckets, including the last one, which has no upper bound.
+     */
+    public static final int BUCKET_COUNT = 28;
+
+    /**
+     * Number of recorded durations in each bucket.
+     */
+    private final LongAdder[] buckets;
+
+    /**
+     * Sum of the recorded durations, in nanoseconds.
+     */
+    private final LongAdder sum;
+
+    /**
+     * Constructor of an empty histogram.
+     */
+    public Histogram() {
+        this.buckets = new LongAdder[BUCKET_COUNT];
+        for (int index = 0; index < BUCKET_COUNT; index++) {
+            buckets[index] = new LongAdder();
+        }
+        this.sum = new LongAdder();
+    }
+
+    /**
+     * Records a duration.
+     * @param nanoseconds The duration, in nanoseconds
+     */
+    public void record(final long nanoseconds) {
+        final long value = Math.max(nanoseconds, 0);
+        buckets[getBucketIndex(value)].increment();
+        sum.add(value);
+    }
+
+    /**
+     * Returns the index of the bucket containing a duration.
+     * @param nanoseconds The duration, in nanoseconds
+     * @return Index of the bucket
+     */
+    static int getBucketIndex(final long nanoseconds) {
+        final long micros = (nanoseconds + 999) / 1000;
+        if (micros <= 1) {
+            return 0;
+        }
+        return Math.min(64 - Long.numberOfLeadingZeros(micros - 1), BUCKET_COUNT - 1);
+    }
+
+    /**
+     * Returns the upper bound of a bucket, i.e. the longest duration it contains.
+     * @param index Index of the bucket
+     * @return The bound, in nanoseconds, or {@link Long#MAX_VALUE} for the last bucket
+     */
+    public static long getUpperBound(final int index) {
+        if (index >= BUCKET_COUNT - 1) {
+            return Long.MAX_VALUE;
+        }
+        return 1000L << index;
+    }
+
+    /**
+     * Returns the number of durations in each bucket. The counters are read one by one
+     * while other threads may be recording, so the result is not an atomic snapshot.
+     * @return Array of {@link #BUCKET_COUNT} counters
+     */
+    public long[] getBucketCounts() {
+        final long[] counts = new long[BUCKET_COUNT];
+        for (int index = 0; index < BUCKET_COUNT; index++) {
+            counts[index] = buckets[index].sum();
+        }
+        return counts;
+    }
+
+    /**
+     * Returns the number of recorded durations.
+     * @return The number
+     */
+    public long getCount() {
+        long count = 0;
+        for (final LongAdder bucket : buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    /**
+     * Returns the sum of the recorded durations.
+     * @return The sum, in nanoseconds
+     */
+    public long getSum() {
+        return sum.sum();
+    }
+
+    /**
+     * Estimates a percentile of the recorded durations, assuming the durations
+     * are spread evenly within each bucket.
+     * @param percentile The percentile, from 0 to 100, for example 99
+     * @return The estimated duration, in nanoseconds, or 0 if nothing is recorded
+     */
+    public long getPercentile(final double percentile) {
+        final long[] counts = getBucketCounts();
+        long total = 0;
+        for (final long count : counts) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        final double rank = Math.min(Math.max(percentile, 0), 100) / 100 * total;
+        long seen = 0;
+        for (int index = 0; index < BUCKET_COUNT; index++) {
+            final long count = counts[index];
+            if (count > 0 && seen + count >= rank) {
+                final long lower = index == 0 ? 0 : getUpperBound(index - 1);
+                if (index == BUCKET_COUNT - 1) {
+                    return lower;
+                }
+                final long upper = getUpperBound(index);
+                return lower + (long) ((upper - lower) * ((rank - seen) / count));
+            }
+            seen += count;
+        }
+        return getUpperBound(BUCKET_COUNT - 2);
+    }
+}
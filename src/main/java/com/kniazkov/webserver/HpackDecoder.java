@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2025 Ivan Kniazkov
+ */
+package com.kniazkov.webserver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Decoder of the header blocks that a client sends over one HTTP/2 connection (HPACK,
+ * RFC 7541). The decoder keeps the dynamic table of the client, so the blocks must be
+ * decoded in the order they are received.
+ */
+final class HpackDecoder {
+    /**
+     * Table of the fields referred to by index.
+     */
+    private final HpackTable table;
+
+    /**
+     * Maximum size of the dynamic table the client may use, in bytes.
+     */
+    private final int maxTableSize;
+
+    /**
+     * Maximum total size of the names and values of a decoded block, in bytes.
+     */
+    private final int maxHeaderSize;
+
+    /**
+     * The block being decoded.
+     */
+    private byte[] data;
+
+    /**
+     * Position of the next byte of the block to be decoded.
+     */
+    private int position;
+
+    /**
+     * Position following the last byte of the block.
+     */
+    private int end;
+
+    /**
+     * Constructor.
+     * @param maxTableSize Maximum size of the dynamic table the client may use, in bytes
+     * @param maxHeaderSize Maximum total size of the names and values of a decoded block,
+     *  in bytes; larger blocks (which a small compressed block may expand to) are refused
+     */
+    HpackDecoder(final int maxTableSize, final int maxHeaderSize) {
+        this.table = new HpackTable(maxTableSize);
+        this.maxTableSize = maxTableSize;
+        this.maxHeaderSize = maxHeaderSize;
+    }
+
+    /**
+     * Decodes a header block.
+     * @param block Array containing the block
+     * @param length Length of the block, in bytes
+     * @param fields List to which the names and values of the fields are added,
+     *  alternately, in the order they appear in the block
+     * @throws Http2Exception If the block is not valid; the state of the decoder is lost then,
+     *  so the connection must be closed
+     */
+    void decode(final byte[] block, final int length, final List<String> fields)
+            throws Http2Exception {
+        data = block;
+        position = 0;
+        end = length;
+        int total = 0;
+        while (position < end) {
+            final int first = data[position] & 0xff;
+            final String name;
+            final String value;
+            if ((first & 0x80) != 0) {
+                final int index = readInteger(7);
+                name = table.getName(index);
+                value = table.getValue(index);
+            } else if ((first & 0x40) != 0) {
+                final int index = readInteger(6);
+                name = index == 0 ? readString() : table.getName(index);
+                value = readString();
+                table.add(name, value);
+            } else if ((first & 0x20) != 0) {
+                final int size = readInteger(5);
+                if (size > maxTableSize) {
+                    throw new Http2Exception(Http2Exception.COMPRESSION_ERROR,
+                        "Dynamic table size exceeds the limit: " + size);
+                }
+                table.setMaxSize(size);
+                continue;
+            } else {
+                final int index = readInteger(4);
+                name = index == 0 ? readString() : table.getName(index);
+                value = readString();
+            }
+            total += name.length() + value.length();
+            if (total > maxHeaderSize) {
+                throw new Http2Exception(Http2Exception.ENHANCE_YOUR_CALM,
+                    "Header block is too large");
+            }
+            fields.add(name);
+            fields.add(value);
+        }
+        data = null;
+    }
+
+    /**
+     * Reads an integer whose first byte shares bits with a prefix.
+     * @param bits Number of bits of the first byte that belong to the integer
+     * @return The integer
+     * @throws Http2Exception If the integer is truncated or too large
+     */
+    private int readInteger(final int bits) throws Http2Exception {
+        final int mask = (1 << bits) - 1;
+        int result = data[position++] & mask;
+        if (result < mask) {
+            return result;
+        }
+        int shift = 0;
+        int next;
+        do {
+            if (position == end || shift > 21) {
+                throw new Http2Exception(Http2Exception.COMPRESSION_ERROR,
+                    "Invalid integer in a header block");
+            }
+            next = data[position++] & 0xff;
+            result += (next & 0x7f) << shift;
+            shift += 7;
+        } while ((next & 0x80) != 0);
+        return result;
+    }
+
+    /**
+     * Reads a string literal, which may be encoded with the Huffman code.
+     * @return The string, one character per byte
+     * @throws Http2Exception If the string is truncated or its encoding is not valid
+     */
+    private String readString() throws Http2Exception {
+        if (position == end) {
+            throw new Http2Exception(Http2Exception.COMPRESSION_ERROR,
+                "Missing string in a header block");
+        }
+        final boolean huffman = (data[position] & 0x80) != 0;
+        final int length = readInteger(7);
+        if (length > end - position) {
+            throw new Http2Exception(Http2Exception.COMPRESSION_ERROR,
+                "Truncated string in a header block");
+        }
+        final String result = huffman ? Huffman.decode(data, position, length)
+            : new String(data, position, length, StandardCharsets.ISO_8859_1);
+        position += length;
+        return result;
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2025 Ivan Kniazkov
+ */
+package com.kniazkov.webserver;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Encoder of the header blocks of the responses sent over one HTTP/2 connection (HPACK,
+ * RFC 7541). Fields that repeat from response to response (content types, the date
+ * within a second, {@code vary} and so on) are added to the dynamic table and then sent
+ * as a single byte; strings are compressed with the Huffman code when this makes them shorter.
+ * The blocks must be sent in the order they are encoded.
+ */
+final class HpackEncoder {
+    /**
+     * Names of the fields whose values are unique to a response, so adding them to
+     * the dynamic table would only evict useful fields.
+     */
+    private static final Set<String> NOT_INDEXED = new HashSet<>(Arrays.asList(
+        "content-length", "content-range", "etag", "last-modified"
+    ));
+
+    /**
+     * Names of the fields whose values are secret, so that intermediaries must not
+     * compress them either.
+     */
+    private static final Set<String> NEVER_INDEXED = new HashSet<>(Arrays.asList(
+        "set-cookie"
+    ));
+
+    /**
+     * Table of the fields referred to by index.
+     */
+    private final HpackTable table;
+
+    /**
+     * New size of the dynamic table that must be announced at the beginning of the next
+     * block, or -1.
+     */
+    private int pendingSize;
+
+    /**
+     * Constructor.
+     */
+    HpackEncoder() {
+        this.table = new HpackTable(HpackTable.DEFAULT_SIZE);
+        this.pendingSize = -1;
+    }
+
+    /**
+     * Applies the limit of the size of the dynamic table that the client has announced.
+     * The encoder does not use a larger table than the default one, even if the client
+     * allows it.
+     * @param limit Maximum size of the dynamic table, in bytes
+     */
+    void setMaxTableSize(final int limit) {
+        final int size = Math.min(limit, HpackTable.DEFAULT_SIZE);
+        if (size != table.getMaxSize()) {
+            table.setMaxSize(size);
+            pendingSize = size;
+        }
+    }
+
+    /**
+     * Starts a header block: announces the new size of the dynamic table, if it has changed.
+     * @param output Output to which the block is written
+     */
+    void begin(final ByteArrayOutputStream output) {
+        if (pendingSize >= 0) {
+            writeInteger(output, 0x20, 5, pendingSize);
+            pendingSize = -1;
+        }
+    }
+
+    /**
+     * Encodes a field.
+     * @param output Output to which the block is written
+     * @param name Name of the field, in lower case
+     * @param value Value of the field
+     */
+    void encode(final ByteArrayOutputStream output, final String name, final String value) {
+        final int index = table.find(name, value);
+        if (index > 0) {
+            writeInteger(output, 0x80, 7, index);
+            return;
+        }
+        final int nameIndex = -index;
+        if (NEVER_INDEXED.contains(name)) {
+            writeInteger(output, 0x10, 4, nameIndex);
+        } else if (NOT_INDEXED.contains(name)) {
+            writeInteger(output, 0x00, 4, nameIndex);
+        } else {
+            writeInteger(output, 0x40, 6, nameIndex);
+            table.add(name, value);
+        }
+        if (nameIndex == 0) {
+            writeString(output, name);
+        }
+        writeString(output, value);
+    }
+
+    /**
+     * Writes an integer whose first byte shares bits with a prefix.
+     * @param output Output to which the block is written
+     * @param prefix Bits of the first byte that precede the integer
+     * @param bits Number of bits of the first byte that belong to the integer
+     * @param value The integer
+     */
+    private static void writeInteger(final ByteArrayOutputStream output, final int prefix,
+            final int bits, int value) {
+        final int mask = (1 << bits) - 1;
+        if (value < mask) {
+            output.write(prefix | value);
+            return;
+        }
+        output.write(prefix | mask);
+        value -= mask;
+        while (value >= 0x80) {
+            output.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        output.write(value);
+    }
+
+    /**
+     * Writes a string literal, compressed with the Huffman code if this makes it shorter.
+     * @param output Output to which the block is written
+     * @param value The string; its characters must be bytes (ISO-8859-1)
+     */
+    private static void writeString(final ByteArrayOutputStream output, final String value) {
+        final int encoded = Huffman.getEncodedLength(value);
+        if (encoded < value.length()) {
+            writeInteger(output, 0x80, 7, encoded);
+            Huffman.encode(value, output);
+        } else {
+            writeInteger(output, 0x00, 7, value.length());
+            for (int index = 0; index < value.length(); index++) {
+                output.write(value.charAt(index));
+            }
+        }
+    }
+}
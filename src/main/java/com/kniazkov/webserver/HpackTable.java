@@ -0,0 +1,290 @@
+/*
+ * Copyright (c) 2025 Ivan Kniazkov
+ */
+package com.kniazkov.webserver;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Table of header fields that HPACK refers to by index (RFC 7541, section 2.3):
+ * the static table, which is the same for everyone, followed by the dynamic table,
+ * which holds the fields recently added by one side of a connection, newest first.
+ * Each direction of a connection has its own dynamic table: the decoder of the requests
+ * and the encoder of the responses keep theirs in sync with the client.
+ */
+final class HpackTable {
+    /**
+     * Initial maximum size of a dynamic table, in bytes.
+     */
+    static final int DEFAULT_SIZE = 4096;
+
+    /**
+     * Size that a field takes in the table in addition to its name and value, in bytes.
+     */
+    private static final int ENTRY_OVERHEAD = 32;
+
+    /**
+     * Names and values of the static table; index 1 is the first field.
+     */
+    private static final String[][] STATIC = {
+        {":authority", ""},
+        {":method", "GET"},
+        {":method", "POST"},
+        {":path", "/"},
+        {":path", "/index.html"},
+        {":scheme", "http"},
+        {":scheme", "https"},
+        {":status", "200"},
+        {":status", "204"},
+        {":status", "206"},
+        {":status", "304"},
+        {":status", "400"},
+        {":status", "404"},
+        {":status", "500"},
+        {"accept-charset", ""},
+        {"accept-encoding", "gzip, deflate"},
+        {"accept-language", ""},
+        {"accept-ranges", ""},
+        {"accept", ""},
+        {"access-control-allow-origin", ""},
+        {"age", ""},
+        {"allow", ""},
+        {"authorization", ""},
+        {"cache-control", ""},
+        {"content-disposition", ""},
+        {"content-encoding", ""},
+        {"content-language", ""},
+        {"content-length", ""},
+        {"content-location", ""},
+        {"content-range", ""},
+        {"content-type", ""},
+        {"cookie", ""},
+        {"date", ""},
+        {"etag", ""},
+        {"expect", ""},
+        {"expires", ""},
+        {"from", ""},
+        {"host", ""},
+        {"if-match", ""},
+        {"if-modified-since", ""},
+        {"if-none-match", ""},
+        {"if-range", ""},
+        {"if-unmodified-since", ""},
+        {"last-modified", ""},
+        {"link", ""},
+        {"location", ""},
+        {"max-forwards", ""},
+        {"proxy-authenticate", ""},
+        {"proxy-authorization", ""},
+        {"range", ""},
+        {"referer", ""},
+        {"refresh", ""},
+        {"retry-after", ""},
+        {"server", ""},
+        {"set-cookie", ""},
+        {"strict-transport-security", ""},
+        {"transfer-encoding", ""},
+        {"user-agent", ""},
+        {"vary", ""},
+        {"via", ""},
+        {"www-authenticate", ""},
+    };
+
+    /**
+     * Index of the first field of the static table with each name.
+     */
+    private static final Map<String, Integer> STATIC_INDEXES = new HashMap<>();
+
+    static {
+        for (int index = STATIC.length; index > 0; index--) {
+            STATIC_INDEXES.put(STATIC[index - 1][0], index);
+        }
+    }
+
+    /**
+     * Names of the fields of the dynamic table, in a circular array.
+     */
+    private String[] names;
+
+    /**
+     * Values of the fields of the dynamic table, in a circular array.
+     */
+    private String[] values;
+
+    /**
+     * Position of the newest field in the circular arrays.
+     */
+    private int newest;
+
+    /**
+     * Number of fields in the dynamic table.
+     */
+    private int count;
+
+    /**
+     * Size of the dynamic table, in bytes.
+     */
+    private int size;
+
+    /**
+     * Maximum size of the dynamic table, in bytes.
+     */
+    private int maxSize;
+
+    /**
+     * Constructor.
+     * @param maxSize Maximum size of the dynamic table, in bytes
+     */
+    HpackTable(final int maxSize) {
+        this.names = new String[16];
+        this.values = new String[16];
+        this.newest = 0;
+        this.count = 0;
+        this.size = 0;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns the name of a field.
+     * @param index Index of the field, starting from 1
+     * @return The name
+     * @throws Http2Exception If there is no field with this index
+     */
+    String getName(final int index) throws Http2Exception {
+        if (index > 0 && index <= STATIC.length) {
+            return STATIC[index - 1][0];
+        }
+        return names[getPosition(index)];
+    }
+
+    /**
+     * Returns the value of a field.
+     * @param index Index of the field, starting from 1
+     * @return The value
+     * @throws Http2Exception If there is no field with this index
+     */
+    String getValue(final int index) throws Http2Exception {
+        if (index > 0 && index <= STATIC.length) {
+            return STATIC[index - 1][1];
+        }
+        return values[getPosition(index)];
+    }
+
+    /**
+     * Searches for a field.
+     * @param name Name of the field
+     * @param value Value of the field
+     * @return Index of a field with this name and value; if there is none,
+     *  the negated index of a field with this name; 0 if there is no such name either
+     */
+    int find(final String name, final String value) {
+        int nameIndex = 0;
+        final Integer first = STATIC_INDEXES.get(name);
+        if (first != null) {
+            for (int index = first; index <= STATIC.length && STATIC[index - 1][0].equals(name);
+                    index++) {
+                if (STATIC[index - 1][1].equals(value)) {
+                    return index;
+                }
+            }
+            nameIndex = first;
+        }
+        for (int offset = 0; offset < count; offset++) {
+            final int position = (newest - offset + names.length) % names.length;
+            if (names[position].equals(name)) {
+                if (values[position].equals(value)) {
+                    return STATIC.length + 1 + offset;
+                }
+                if (nameIndex == 0) {
+                    nameIndex = STATIC.length + 1 + offset;
+                }
+            }
+        }
+        return -nameIndex;
+    }
+
+    /**
+     * Adds a field to the dynamic table, evicting the oldest fields to make room for it.
+     * A field larger than the table just empties it.
+     * @param name Name of the field
+     * @param value Value of the field
+     */
+    void add(final String name, final String value) {
+        final int entrySize = name.length() + value.length() + ENTRY_OVERHEAD;
+        evict(maxSize - entrySize);
+        if (entrySize > maxSize) {
+            return;
+        }
+        if (count == names.length) {
+            grow();
+        }
+        newest = (newest + 1) % names.length;
+        names[newest] = name;
+        values[newest] = value;
+        count++;
+        size += entrySize;
+    }
+
+    /**
+     * Changes the maximum size of the dynamic table, evicting the fields that don't fit.
+     * @param value Maximum size, in bytes
+     */
+    void setMaxSize(final int value) {
+        maxSize = value;
+        evict(value);
+    }
+
+    /**
+     * Returns the maximum size of the dynamic table.
+     * @return Maximum size, in bytes
+     */
+    int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Evicts the oldest fields of the dynamic table until its size does not exceed a limit.
+     * @param limit The limit, in bytes
+     */
+    private void evict(final int limit) {
+        while (count > 0 && size > limit) {
+            final int oldest = (newest - count + 1 + names.length) % names.length;
+            size -= names[oldest].length() + values[oldest].length() + ENTRY_OVERHEAD;
+            names[oldest] = null;
+            values[oldest] = null;
+            count--;
+        }
+    }
+
+    /**
+     * Doubles the capacity of the circular arrays.
+     */
+    private void grow() {
+        final String[] newNames = new String[names.length * 2];
+        final String[] newValues = new String[values.length * 2];
+        for (int offset = 0; offset < count; offset++) {
+            final int position = (newest - offset + names.length) % names.length;
+            newNames[count - 1 - offset] = names[position];
+            newValues[count - 1 - offset] = values[position];
+        }
+        names = newNames;
+        values = newValues;
+        newest = count - 1;
+    }
+
+    /**
+     * Returns the position of a field of the dynamic table in the circular arrays.
+     * @param index Index of the field, starting from 1
+     * @return The position
+     * @throws Http2Exception If there is no field with this index
+     */
+    private int getPosition(final int index) throws Http2Exception {
+        final int offset = index - STATIC.length - 1;
+        if (offset < 0 || offset >= count) {
+            throw new Http2Exception(Http2Exception.COMPRESSION_ERROR,
+                "Invalid index of a header field: " + index);
+        }
+        return (newest - offset + names.length) % names.length;
+    }
+}
@@ -0,0 +1,1430 @@
+/*
+ * Copyright (c) 2025 Ivan Kniazkov
+ */
+package com.kniazkov.webserver;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * HTTP/2 connection (RFC 9113). A thread of its own reads the frames of the connection;
+ * each request, once received completely, is passed to the worker pool as a stream,
+ * so the requests of one connection are processed simultaneously and their responses
+ * are interleaved. Headers are compressed with HPACK; the server respects the flow
+ * control windows of the client (a worker whose stream has used up its window waits
+ * for the client to allow more) and allows the client to send request bodies
+ * as fast as they are stored.
+ * Connections are negotiated with ALPN over TLS ({@code h2}) or started with
+ * the connection preface over plain sockets ({@code h2c} with prior knowledge).
+ */
+final class Http2Connection implements Runnable {
+    /**
+     * Connection preface that an HTTP/2 client sends first.
+     */
+    static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n"
+        .getBytes(StandardCharsets.ISO_8859_1);
+
+    /**
+     * Logger.
+     */
+    private static final Logger logger = Logger.getLogger(Http2Connection.class.getName());
+
+    /**
+     * Frame type: data of a request or response body.
+     */
+    private static final int DATA = 0x0;
+
+    /**
+     * Frame type: header block of a request or response.
+     */
+    private static final int HEADERS = 0x1;
+
+    /**
+     * Frame type: priority of a stream, which the server ignores.
+     */
+    private static final int PRIORITY = 0x2;
+
+    /**
+     * Frame type: the stream is terminated.
+     */
+    private static final int RST_STREAM = 0x3;
+
+    /**
+     * Frame type: parameters of the connection.
+     */
+    private static final int SETTINGS = 0x4;
+
+    /**
+     * Frame type: a pushed stream, which clients must not send.
+     */
+    private static final int PUSH_PROMISE = 0x5;
+
+    /**
+     * Frame type: ping, which is answered by the other side.
+     */
+    private static final int PING = 0x6;
+
+    /**
+     * Frame type: the connection is being closed.
+     */
+    private static final int GOAWAY = 0x7;
+
+    /**
+     * Frame type: the other side may send more data.
+     */
+    private static final int WINDOW_UPDATE = 0x8;
+
+    /**
+     * Frame type: continuation of a header block.
+     */
+    private static final int CONTINUATION = 0x9;
+
+    /**
+     * Flag: the frame is the last one of the stream (sent by its side).
+     * For {@code SETTINGS} and {@code PING} frames, the same bit means {@link #ACK}.
+     */
+    private static final int END_STREAM = 0x1;
+
+    /**
+     * Flag: the frame acknowledges a {@code SETTINGS} or {@code PING} frame.
+     */
+    private static final int ACK = 0x1;
+
+    /**
+     * Flag: the frame ends a header block.
+     */
+    private static final int END_HEADERS = 0x4;
+
+    /**
+     * Flag: the frame is padded.
+     */
+    private static final int PADDED = 0x8;
+
+    /**
+     * Flag: the {@code HEADERS} frame contains the priority of the stream.
+     */
+    private static final int PRIORITY_FLAG = 0x20;
+
+    /**
+     * Setting: maximum size of the dynamic table of the header decoder.
+     */
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+
+    /**
+     * Setting: maximum number of streams open at the same time.
+     */
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+
+    /**
+     * Setting: initial flow control window of a stream.
+     */
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+
+    /**
+     * Setting: maximum size of a frame payload.
+     */
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+
+    /**
+     * Setting: maximum size of a header list.
+     */
+    private static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+    /**
+     * Size of a frame header, in bytes.
+     */
+    private static final int FRAME_HEADER_SIZE = 9;
+
+    /**
+     * Default (and minimum) maximum size of a frame payload, in bytes.
+     */
+    private static final int DEFAULT_FRAME_SIZE = 16384;
+
+    /**
+     * Largest allowed maximum size of a frame payload, in bytes.
+     */
+    private static final int MAX_FRAME_SIZE = 16777215;
+
+    /**
+     * Initial flow control window, in bytes, until the other side announces another one.
+     */
+    private static final int DEFAULT_WINDOW_SIZE = 65535;
+
+    /**
+     * Largest flow control window, in bytes.
+     */
+    private static final long MAX_WINDOW_SIZE = Integer.MAX_VALUE;
+
+    /**
+     * Flow control window that the server gives the client, for the connection and for each
+     * stream, in bytes. The received data is stored at once, so the window only needs to
+     * cover the round trip of {@code WINDOW_UPDATE} frames.
+     */
+    private static final int RECEIVE_WINDOW = 1 << 20;
+
+    /**
+     * Number of the last thread created to read a connection.
+     */
+    private static final AtomicInteger threadNumber = new AtomicInteger();
+
+    /**
+     * Socket of the connection.
+     */
+    private final Socket socket;
+
+    /**
+     * Reader of the received data.
+     */
+    private final StreamReader reader;
+
+    /**
+     * Output collecting the frames until they are flushed; writing frames is synchronized
+     * on it.
+     */
+    private final OutputStream output;
+
+    /**
+     * Options.
+     */
+    private final Options options;
+
+    /**
+     * Processor that invokes the handler and writes responses.
+     */
+    private final RequestProcessor processor;
+
+    /**
+     * Limiter of the server load, which counts the connection as open.
+     */
+    private final LoadLimiter limiter;
+
+    /**
+     * Pool of worker threads that process the streams.
+     */
+    private final ExecutorService pool;
+
+    /**
+     * Open HTTP/2 connections of the engine, from which the connection removes itself
+     * once it is closed.
+     */
+    private final Set<Http2Connection> connections;
+
+    /**
+     * Decoder of the request headers.
+     */
+    private final HpackDecoder decoder;
+
+    /**
+     * Encoder of the response headers; used while writing frames only.
+     */
+    private final HpackEncoder encoder;
+
+    /**
+     * Buffer into which response header blocks are encoded; used while writing frames only.
+     */
+    private final ByteArrayOutputStream block;
+
+    /**
+     * Streams whose requests are being received or processed, by identifiers.
+     * Guarded by the connection.
+     */
+    private final Map<Integer, Http2Stream> streams;
+
+    /**
+     * Header of the frame being read.
+     */
+    private final byte[] frameHeader;
+
+    /**
+     * Payload of the frame being read.
+     */
+    private final byte[] payload;
+
+    /**
+     * Header block being received in {@code HEADERS} and {@code CONTINUATION} frames.
+     */
+    private byte[] headerBlock;
+
+    /**
+     * Length of the header block being received, in bytes.
+     */
+    private int headerBlockLength;
+
+    /**
+     * Identifier of the stream whose header block is being received, or 0.
+     */
+    private int headerStreamId;
+
+    /**
+     * Flag indicating that the stream whose header block is being received ends
+     * with the block.
+     */
+    private boolean headerEndStream;
+
+    /**
+     * Identifier of the last stream started by the client.
+     */
+    private int lastStreamId;
+
+    /**
+     * Number of bytes the server may send on the connection before the client allows more.
+     * Guarded by the connection.
+     */
+    private long sendWindow;
+
+    /**
+     * Initial flow control window of the streams, announced by the client.
+     * Guarded by the connection.
+     */
+    private long initialWindow;
+
+    /**
+     * Maximum size of a frame payload the client accepts, in bytes.
+     */
+    private volatile int maxFrameSize;
+
+    /**
+     * Number of bytes of request bodies received since the client was last allowed
+     * to send more on the connection.
+     */
+    private int unacknowledged;
+
+    /**
+     * Flag indicating that no more streams are accepted.
+     */
+    private volatile boolean goingAway;
+
+    /**
+     * Flag indicating that the connection is closed. Guarded by the connection.
+     */
+    private boolean closed;
+
+    /**
+     * Constructor.
+     * @param socket Socket of the connection
+     * @param reader Reader of the received data, positioned at the connection preface
+     * @param options Options
+     * @param processor Processor that invokes the handler and writes responses
+     * @param limiter Limiter of the server load, which counts the connection as open
+     * @param pool Pool of worker threads that process the streams
+     * @param connections Open HTTP/2 connections of the engine, to which the connection
+     *  is added
+     * @throws IOException If the output stream of the socket cannot be obtained
+     */
+    Http2Connection(final Socket socket, final StreamReader reader, final Options options,
+            final RequestProcessor processor, final LoadLimiter limiter,
+            final ExecutorService pool, final Set<Http2Connection> connections)
+            throws IOException {
+        this.socket = socket;
+        this.reader = reader;
+        this.output = new BufferedOutputStream(socket.getOutputStream(), 65536);
+        this.options = options;
+        this.processor = processor;
+        this.limiter = limiter;
+        this.pool = pool;
+        this.connections = connections;
+        this.decoder = new HpackDecoder(HpackTable.DEFAULT_SIZE, RequestParser.MAX_HEADER_SIZE);
+        this.encoder = new HpackEncoder();
+        this.block = new ByteArrayOutputStream(1024);
+        this.streams = new HashMap<>();
+        this.frameHeader = new byte[FRAME_HEADER_SIZE];
+        this.payload = new byte[DEFAULT_FRAME_SIZE];
+        this.headerBlock = new byte[DEFAULT_FRAME_SIZE];
+        this.headerBlockLength = 0;
+        this.headerStreamId = 0;
+        this.headerEndStream = false;
+        this.lastStreamId = 0;
+        this.sendWindow = DEFAULT_WINDOW_SIZE;
+        this.initialWindow = DEFAULT_WINDOW_SIZE;
+        this.maxFrameSize = DEFAULT_FRAME_SIZE;
+        this.unacknowledged = 0;
+        this.goingAway = false;
+        this.closed = false;
+        connections.add(this);
+    }
+
+    /**
+     * Starts the thread that reads the connection.
+     */
+    void start() {
+        final Thread thread = new Thread(this, "http2-connection-" + threadNumber.incrementAndGet());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Starting point of the thread reading the connection.
+     */
+    @Override
+    public void run() {
+        boolean graceful = false;
+        try {
+            if (options.timeout > 0) {
+                socket.setSoTimeout(options.timeout);
+            }
+            writeSettings();
+            final byte[] preface = new byte[PREFACE.length];
+            readFully(preface, preface.length);
+            if (!Arrays.equals(preface, PREFACE)) {
+                throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Invalid preface");
+            }
+            while (readFrame()) {
+                // reading frames until the client goes away
+            }
+            graceful = true;
+        } catch (Http2Exception e) {
+            logger.log(Level.FINE, "HTTP/2 protocol error", e);
+            goAway(e.errorCode);
+        } catch (SocketTimeoutException ignored) {
+            goAway(Http2Exception.NO_ERROR);
+            graceful = true;
+        } catch (EOFException ignored) {
+            // the client has closed the connection
+        } catch (IOException e) {
+            logger.log(Level.FINE, "I/O error while reading HTTP/2 connection", e);
+        } finally {
+            if (graceful) {
+                awaitStreams();
+            }
+            close();
+        }
+    }
+
+    /**
+     * Stops accepting streams: tells the client that streams it starts from now on
+     * will not be processed. The streams being processed are completed.
+     */
+    void shutdown() {
+        goAway(Http2Exception.NO_ERROR);
+    }
+
+    /**
+     * Closes the connection. The streams being processed fail to send their responses.
+     */
+    void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            for (final Http2Stream stream : streams.values()) {
+                stream.reset = true;
+                if (!stream.requestComplete && stream.body != null) {
+                    stream.body.discard();
+                }
+            }
+            streams.clear();
+            notifyAll();
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Failed to close client connection cleanly", e);
+        }
+        limiter.releaseConnection();
+        connections.remove(this);
+    }
+
+    /**
+     * Stops accepting streams on all connections of an engine, see {@link #shutdown()}.
+     * @param connections Open HTTP/2 connections of the engine
+     */
+    static void shutdown(final Set<Http2Connection> connections) {
+        for (final Http2Connection connection : connections) {
+            connection.shutdown();
+        }
+    }
+
+    /**
+     * Closes all connections of an engine, see {@link #close()}.
+     * @param connections Open HTTP/2 connections of the engine
+     */
+    static void close(final Set<Http2Connection> connections) {
+        for (final Http2Connection connection : connections) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Reads a frame and handles it.
+     * @return {@code false} if the client has sent {@code GOAWAY}
+     * @throws IOException If the frame is not valid or the connection is broken
+     */
+    private boolean readFrame() throws IOException {
+        readFully(frameHeader, FRAME_HEADER_SIZE);
+        final int length = ((frameHeader[0] & 0xff) << 16) | ((frameHeader[1] & 0xff) << 8)
+            | (frameHeader[2] & 0xff);
+        final int type = frameHeader[3] & 0xff;
+        final int flags = frameHeader[4] & 0xff;
+        final int streamId = getInt(frameHeader, 5) & 0x7fffffff;
+        if (length > DEFAULT_FRAME_SIZE) {
+            throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR,
+                "Frame is too large: " + length);
+        }
+        readFully(payload, length);
+        if (headerStreamId != 0 && type != CONTINUATION) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR,
+                "Header block is interrupted");
+        }
+        switch (type) {
+            case DATA:
+                readData(streamId, flags, length);
+                break;
+            case HEADERS:
+                readHeaders(streamId, flags, length);
+                break;
+            case PRIORITY:
+                if (streamId == 0 || length != 5) {
+                    throw new Http2Exception(Http2Exception.PROTOCOL_ERROR,
+                        "Invalid PRIORITY frame");
+                }
+                break;
+            case RST_STREAM:
+                readResetStream(streamId, length);
+                break;
+            case SETTINGS:
+                readSettings(streamId, flags, length);
+                break;
+            case PUSH_PROMISE:
+                throw new Http2Exception(Http2Exception.PROTOCOL_ERROR,
+                    "Clients must not push streams");
+            case PING:
+                if (streamId != 0 || length != 8) {
+                    throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR,
+                        "Invalid PING frame");
+                }
+                if ((flags & ACK) == 0) {
+                    synchronized (output) {
+                        writeFrame(PING, ACK, 0, payload, 0, 8);
+                        output.flush();
+                    }
+                }
+                break;
+            case GOAWAY:
+                goingAway = true;
+                return false;
+            case WINDOW_UPDATE:
+                readWindowUpdate(streamId, length);
+                break;
+            case CONTINUATION:
+                if (streamId != headerStreamId || streamId == 0) {
+                    throw new Http2Exception(Http2Exception.PROTOCOL_ERROR,
+                        "Unexpected CONTINUATION frame");
+                }
+                appendHeaderBlock(0, length);
+                if ((flags & END_HEADERS) != 0) {
+                    startStream();
+                }
+                break;
+            default:
+                // frames of unknown types are ignored
+                break;
+        }
+        return true;
+    }
+
+    /**
+     * Handles a {@code DATA} frame: stores the data in the body of the request and, if the
+     * request is complete, passes it to the worker pool. The client is allowed to send more
+     * once half of a window is used.
+     * @param streamId Identifier of the stream
+     * @param flags Flags of the frame
+     * @param length Length of the payload
+     * @throws IOException If the frame is not valid or the body cannot be stored
+     */
+    private void readData(final int streamId, final int flags, final int length)
+            throws IOException {
+        if (streamId == 0) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "DATA frame without stream");
+        }
+        final int start = (flags & PADDED) != 0 ? 1 : 0;
+        final int end = length - ((flags & PADDED) != 0 ? (payload[0] & 0xff) : 0);
+        if (end < start) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Invalid padding");
+        }
+        unacknowledged += length;
+        if (unacknowledged > RECEIVE_WINDOW) {
+            throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR,
+                "Connection flow control window exceeded");
+        }
+        if (unacknowledged >= RECEIVE_WINDOW / 2) {
+            writeWindowUpdate(0, unacknowledged);
+            unacknowledged = 0;
+        }
+        final Http2Stream stream;
+        synchronized (this) {
+            stream = streams.get(streamId);
+        }
+        if (stream == null || stream.requestComplete) {
+            if (streamId > lastStreamId) {
+                throw new Http2Exception(Http2Exception.PROTOCOL_ERROR,
+                    "DATA frame for an idle stream");
+            }
+            writeResetStream(streamId, Http2Exception.STREAM_CLOSED);
+            return;
+        }
+        stream.unacknowledged += length;
+        if (stream.unacknowledged > RECEIVE_WINDOW) {
+            resetStream(stream, Http2Exception.FLOW_CONTROL_ERROR);
+            return;
+        }
+        if (stream.body == null) {
+            stream.body = new SpillOutput(options.uploadMemoryThreshold);
+        }
+        stream.body.write(payload, start, end - start);
+        if ((flags & END_STREAM) != 0) {
+            stream.requestComplete = true;
+            dispatch(stream);
+        } else if (stream.unacknowledged >= RECEIVE_WINDOW / 2) {
+            writeWindowUpdate(streamId, stream.unacknowledged);
+            stream.unacknowledged = 0;
+        }
+    }
+
+    /**
+     * Handles a {@code HEADERS} frame: starts receiving a header block.
+     * @param streamId Identifier of the stream
+     * @param flags Flags of the frame
+     * @param length Length of the payload
+     * @throws IOException If the frame is not valid
+     */
+    private void readHeaders(final int streamId, final int flags, final int length)
+            throws IOException {
+        if (streamId == 0 || (streamId & 1) == 0) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR,
+                "Invalid stream identifier: " + streamId);
+        }
+        int start = 0;
+        int end = length;
+        if ((flags & PADDED) != 0) {
+            start = 1;
+            end -= length > 0 ? payload[0] & 0xff : 0;
+        }
+        if ((flags & PRIORITY_FLAG) != 0) {
+            start += 5;
+        }
+        if (end < start) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Invalid HEADERS frame");
+        }
+        headerStreamId = streamId;
+        headerEndStream = (flags & END_STREAM) != 0;
+        headerBlockLength = 0;
+        appendHeaderBlock(start, end - start);
+        if ((flags & END_HEADERS) != 0) {
+            startStream();
+        }
+    }
+
+    /**
+     * Appends a fragment of a header block from the payload of the frame.
+     * @param start Index of the first byte of the fragment in the payload
+     * @param length Length of the fragment
+     * @throws Http2Exception If the header block is too large
+     */
+    private void appendHeaderBlock(final int start, final int length) throws Http2Exception {
+        final int size = headerBlockLength + length;
+        if (size > RequestParser.MAX_HEADER_SIZE) {
+            throw new Http2Exception(Http2Exception.ENHANCE_YOUR_CALM,
+                "Header block is too large");
+        }
+        if (size > headerBlock.length) {
+            headerBlock = Arrays.copyOf(headerBlock, Math.max(size, headerBlock.length * 2));
+        }
+        System.arraycopy(payload, start, headerBlock, headerBlockLength, length);
+        headerBlockLength = size;
+    }
+
+    /**
+     * Decodes the received header block and starts the stream, or completes the request
+     * if the block is a trailer.
+     * @throws IOException If the block is not valid
+     */
+    private void startStream() throws IOException {
+        final int streamId = headerStreamId;
+        headerStreamId = 0;
+        final List<String> fields = new ArrayList<>();
+        decoder.decode(headerBlock, headerBlockLength, fields);
+        Http2Stream stream;
+        synchronized (this) {
+            stream = streams.get(streamId);
+        }
+        if (stream != null || streamId <= lastStreamId) {
+            if (stream == null || stream.requestComplete || !headerEndStream) {
+                throw new Http2Exception(Http2Exception.PROTOCOL_ERROR,
+                    "Unexpected header block for stream " + streamId);
+            }
+            stream.requestComplete = true;
+            dispatch(stream);
+            return;
+        }
+        lastStreamId = streamId;
+        if (goingAway) {
+            writeResetStream(streamId, Http2Exception.REFUSED_STREAM);
+            return;
+        }
+        synchronized (this) {
+            if (streams.size() >= options.http2MaxConcurrentStreams) {
+                stream = null;
+            } else {
+                stream = new Http2Stream(this, streamId, fields, initialWindow);
+                streams.put(streamId, stream);
+            }
+        }
+        if (stream == null) {
+            writeResetStream(streamId, Http2Exception.REFUSED_STREAM);
+        } else if (headerEndStream) {
+            stream.requestComplete = true;
+            dispatch(stream);
+        }
+    }
+
+    /**
+     * Handles a {@code RST_STREAM} frame: the client no longer needs the stream.
+     * @param streamId Identifier of the stream
+     * @param length Length of the payload
+     * @throws Http2Exception If the frame is not valid
+     */
+    private void readResetStream(final int streamId, final int length) throws Http2Exception {
+        if (streamId == 0 || length != 4) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Invalid RST_STREAM frame");
+        }
+        final Http2Stream stream;
+        synchronized (this) {
+            stream = streams.remove(streamId);
+            notifyAll();
+        }
+        if (stream != null) {
+            stream.reset = true;
+            if (!stream.requestComplete && stream.body != null) {
+                stream.body.discard();
+            }
+        }
+    }
+
+    /**
+     * Handles a {@code SETTINGS} frame: applies the parameters and acknowledges them.
+     * @param streamId Identifier of the stream
+     * @param flags Flags of the frame
+     * @param length Length of the payload
+     * @throws IOException If the frame is not valid or the acknowledgment can't be sent
+     */
+    private void readSettings(final int streamId, final int flags, final int length)
+            throws IOException {
+        if (streamId != 0 || length % 6 != 0 || ((flags & ACK) != 0 && length != 0)) {
+            throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "Invalid SETTINGS frame");
+        }
+        if ((flags & ACK) != 0) {
+            return;
+        }
+        for (int position = 0; position < length; position += 6) {
+            final int id = ((payload[position] & 0xff) << 8) | (payload[position + 1] & 0xff);
+            final long value = getInt(payload, position + 2) & 0xffffffffL;
+            switch (id) {
+                case SETTINGS_HEADER_TABLE_SIZE:
+                    synchronized (output) {
+                        encoder.setMaxTableSize((int) Math.min(value, Integer.MAX_VALUE));
+                    }
+                    break;
+                case SETTINGS_INITIAL_WINDOW_SIZE:
+                    if (value > MAX_WINDOW_SIZE) {
+                        throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR,
+                            "Invalid initial window size: " + value);
+                    }
+                    synchronized (this) {
+                        final long delta = value - initialWindow;
+                        initialWindow = value;
+                        for (final Http2Stream stream : streams.values()) {
+                            stream.sendWindow += delta;
+                        }
+                        notifyAll();
+                    }
+                    break;
+                case SETTINGS_MAX_FRAME_SIZE:
+                    if (value < DEFAULT_FRAME_SIZE || value > MAX_FRAME_SIZE) {
+                        throw new Http2Exception(Http2Exception.PROTOCOL_ERROR,
+                            "Invalid maximum frame size: " + value);
+                    }
+                    maxFrameSize = (int) value;
+                    break;
+                default:
+                    // other settings do not concern the server
+                    break;
+            }
+        }
+        synchronized (output) {
+            writeFrame(SETTINGS, ACK, 0, payload, 0, 0);
+            output.flush();
+        }
+    }
+
+    /**
+     * Handles a {@code WINDOW_UPDATE} frame: lets the workers waiting for the window
+     * send more data.
+     * @param streamId Identifier of the stream or 0 for the connection
+     * @param length Length of the payload
+     * @throws IOException If the frame is not valid
+     */
+    private void readWindowUpdate(final int streamId, final int length) throws IOException {
+        if (length != 4) {
+            throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR,
+                "Invalid WINDOW_UPDATE frame");
+        }
+        final int increment = getInt(payload, 0) & 0x7fffffff;
+        Http2Stream failed = null;
+        synchronized (this) {
+            if (streamId == 0) {
+                if (increment == 0 || sendWindow + increment > MAX_WINDOW_SIZE) {
+                    throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR,
+                        "Invalid window increment: " + increment);
+                }
+                sendWindow += increment;
+            } else {
+                final Http2Stream stream = streams.get(streamId);
+                if (stream != null) {
+                    if (increment == 0 || stream.sendWindow + increment > MAX_WINDOW_SIZE) {
+                        failed = stream;
+                    } else {
+                        stream.sendWindow += increment;
+                    }
+                }
+            }
+            notifyAll();
+        }
+        if (failed != null) {
+            resetStream(failed, Http2Exception.FLOW_CONTROL_ERROR);
+        }
+    }
+
+    /**
+     * Passes a stream whose request is complete to the worker pool, or refuses it
+     * if the work queue is full.
+     * @param stream The stream
+     * @throws IOException If the refusal can't be sent
+     */
+    private void dispatch(final Http2Stream stream) throws IOException {
+        try {
+            pool.execute(() -> serve(stream));
+        } catch (RejectedExecutionException ignored) {
+            limiter.requestRejected();
+            if (stream.body != null) {
+                stream.body.discard();
+            }
+            resetStream(stream, Http2Exception.REFUSED_STREAM);
+        }
+    }
+
+    /**
+     * Processes the request of a stream and sends the response; called by a worker thread.
+     * @param stream The stream
+     */
+    private void serve(final Http2Stream stream) {
+        Path spilled = null;
+        boolean pending = false;
+        try {
+            if (stream.body != null) {
+                stream.body.close();
+                spilled = stream.body.getPath();
+            }
+            final Request request;
+            try {
+                request = parse(stream);
+            } catch (BadRequestException ignored) {
+                processor.writeResponse(stream, "400 Bad Request");
+                return;
+            } finally {
+                if (spilled != null) {
+                    Files.deleteIfExists(spilled);
+                }
+            }
+            if (request == null) {
+                resetStream(stream, Http2Exception.PROTOCOL_ERROR);
+            } else if (processor.isAsync()) {
+                final CompletableFuture<Response> result = processor.start(request);
+                if (result.isDone()) {
+                    processor.finish(request, stream, result);
+                } else {
+                    pending = true;
+                    result.whenComplete((response, failure) -> resume(stream, request, result));
+                }
+            } else {
+                processor.process(request, stream);
+            }
+        } catch (IOException e) {
+            logger.log(Level.FINE, "I/O error while serving HTTP/2 stream", e);
+        } finally {
+            if (!pending) {
+                complete(stream);
+            }
+        }
+    }
+
+    /**
+     * Passes a stream whose asynchronous response is ready back to a worker thread
+     * to send the response. If the work queue is full, the response is sent by the calling
+     * thread.
+     * @param stream The stream
+     * @param request The request
+     * @param result Completed future of the response
+     */
+    private void resume(final Http2Stream stream, final Request request,
+            final CompletableFuture<Response> result) {
+        final Runnable task = () -> {
+            try {
+                processor.finish(request, stream, result);
+            } catch (IOException e) {
+                logger.log(Level.FINE, "I/O error while serving HTTP/2 stream", e);
+            } finally {
+                complete(stream);
+            }
+        };
+        try {
+            pool.execute(task);
+        } catch (RejectedExecutionException ignored) {
+            task.run();
+        }
+    }
+
+    /**
+     * Ends the response of a stream and forgets the stream.
+     * @param stream The stream
+     */
+    private void complete(final Http2Stream stream) {
+        try {
+            stream.finish();
+        } catch (IOException e) {
+            logger.log(Level.FINE, "I/O error while serving HTTP/2 stream", e);
+        }
+        synchronized (this) {
+            streams.remove(stream.id);
+            notifyAll();
+        }
+    }
+
+    /**
+     * Parses the request of a stream: the pseudo-header fields and header fields are turned
+     * into a request line and headers of HTTP/1.1, which, followed by the body, are parsed
+     * by the {@link RequestParser}, so the request is exactly the same as if it was received
+     * over HTTP/1.1. Cookies split into several fields are joined, and the length
+     * of the body is taken from the received data.
+     * @param stream The stream
+     * @return The request or {@code null} if the request is malformed (RFC 9113, section 8.2):
+     *  the pseudo-header fields are not valid, a name is not a lower-case token,
+     *  or a connection-specific field is present
+     * @throws IOException If the request is not valid or its body cannot be read
+     */
+    private Request parse(final Http2Stream stream) throws IOException {
+        String method = null;
+        String path = null;
+        String authority = null;
+        boolean hasHost = false;
+        final StringBuilder headers = new StringBuilder(256);
+        final StringBuilder cookies = new StringBuilder();
+        boolean regular = false;
+        final List<String> fields = stream.fields;
+        for (int index = 0; index < fields.size(); index += 2) {
+            final String name = fields.get(index);
+            final String value = fields.get(index + 1);
+            if (!isValidName(name) || !isValidValue(value)) {
+                return null;
+            }
+            if (name.startsWith(":")) {
+                if (regular) {
+                    return null;
+                }
+                switch (name) {
+                    case ":method":
+                        if (method != null || !isToken(value, 0)) {
+                            return null;
+                        }
+                        method = value;
+                        break;
+                    case ":path":
+                        if (path != null || containsSpace(value)) {
+                            return null;
+                        }
+                        path = value;
+                        break;
+                    case ":authority":
+                        if (authority != null || containsSpace(value)) {
+                            return null;
+                        }
+                        authority = value;
+                        break;
+                    case ":scheme":
+                        break;
+                    default:
+                        return null;
+                }
+            } else {
+                regular = true;
+                if (isConnectionSpecific(name, value)) {
+                    return null;
+                }
+                if (name.equals("cookie")) {
+                    if (cookies.length() > 0) {
+                        cookies.append("; ");
+                    }
+                    cookies.append(value);
+                } else if (!name.equals("content-length")) {
+                    hasHost |= name.equals("host");
+                    headers.append(name).append(": ").append(value).append("\r\n");
+                }
+            }
+        }
+        if (method == null || path == null || path.isEmpty()) {
+            return null;
+        }
+        final StringBuilder head = new StringBuilder(headers.length() + cookies.length() + 128);
+        head.append(method).append(' ').append(path).append(" HTTP/2.0\r\n");
+        if (authority != null && !hasHost) {
+            head.append("host: ").append(authority).append("\r\n");
+        }
+        head.append(headers);
+        if (cookies.length() > 0) {
+            head.append("cookie: ").append(cookies).append("\r\n");
+        }
+        final long length = stream.body != null ? stream.body.getSize() : 0;
+        if (length > 0 || method.equals("POST")) {
+            head.append("content-length: ").append(length).append("\r\n");
+        }
+        head.append("\r\n");
+        InputStream data = new ByteArrayInputStream(
+            head.toString().getBytes(StandardCharsets.ISO_8859_1));
+        if (stream.body != null) {
+            final byte[] array = stream.body.getData();
+            data = new SequenceInputStream(data, array != null ? new ByteArrayInputStream(array)
+                : Files.newInputStream(stream.body.getPath()));
+        }
+        try (InputStream input = data) {
+            return RequestParser.parse(new StreamReader(input, options.readBufferSize), options,
+                processor.getMetrics());
+        }
+    }
+
+    /**
+     * Checks whether a name of a header field is valid: it must be a token in lower case,
+     * optionally prefixed with a colon if it is a pseudo-header field.
+     * @param name The name
+     * @return {@code true} if the name is valid
+     */
+    private static boolean isValidName(final String name) {
+        final boolean pseudo = name.startsWith(":");
+        if (!isToken(name, pseudo ? 1 : 0)) {
+            return false;
+        }
+        for (int index = 0; index < name.length(); index++) {
+            final char ch = name.charAt(index);
+            if (ch >= 'A' && ch <= 'Z') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether a string, starting at the given index, is a non-empty token (RFC 9110,
+     * section 5.6.2), that is, it consists of visible characters other than separators.
+     * @param text The string
+     * @param start Index of the first character of the token
+     * @return {@code true} if it is a token
+     */
+    private static boolean isToken(final String text, final int start) {
+        if (text.length() <= start) {
+            return false;
+        }
+        for (int index = start; index < text.length(); index++) {
+            final char ch = text.charAt(index);
+            if (ch <= ' ' || ch >= 127 || "\"(),/:;<=>?@[\\]{}".indexOf(ch) >= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether a value of a header field can be put into an HTTP/1.1 header.
+     * @param value The value
+     * @return {@code true} if it contains no line breaks and no null characters
+     */
+    private static boolean isValidValue(final String value) {
+        for (int index = 0; index < value.length(); index++) {
+            final char ch = value.charAt(index);
+            if (ch == '\r' || ch == '\n' || ch == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether a value contains whitespace, which would break the request line.
+     * @param value The value
+     * @return {@code true} if it contains a space or a control character
+     */
+    private static boolean containsSpace(final String value) {
+        for (int index = 0; index < value.length(); index++) {
+            if (value.charAt(index) <= ' ') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether a header field is connection-specific; such fields
+     * are not allowed in HTTP/2 (RFC 9113, section 8.2.2).
+     * @param name The name in lower case
+     * @param value The value
+     * @return {@code true} if the field is connection-specific
+     */
+    private static boolean isConnectionSpecific(final String name, final String value) {
+        switch (name) {
+            case "connection":
+            case "keep-alive":
+            case "proxy-connection":
+            case "transfer-encoding":
+            case "upgrade":
+                return true;
+            case "te":
+                return !value.equals("trailers");
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Sends the header block of a response; called by worker threads.
+     * @param stream The stream
+     * @param fields Names (in lower case) and values of the fields, alternately
+     * @param endStream Flag indicating that the response has no body
+     * @throws IOException If the connection is closed
+     */
+    void sendHeaders(final Http2Stream stream, final List<String> fields,
+            final boolean endStream) throws IOException {
+        synchronized (output) {
+            checkOpen(stream);
+            block.reset();
+            encoder.begin(block);
+            for (int index = 0; index < fields.size(); index += 2) {
+                encoder.encode(block, fields.get(index), fields.get(index + 1));
+            }
+            final byte[] encoded = block.toByteArray();
+            final int frameSize = maxFrameSize;
+            int position = 0;
+            boolean first = true;
+            do {
+                final int count = Math.min(encoded.length - position, frameSize);
+                final boolean last = position + count == encoded.length;
+                final int flags = (last ? END_HEADERS : 0)
+                    | (first && endStream ? END_STREAM : 0);
+                writeFrame(first ? HEADERS : CONTINUATION, flags, stream.id, encoded, position,
+                    count);
+                position += count;
+                first = false;
+            } while (position < encoded.length);
+        }
+    }
+
+    /**
+     * Sends data of a response in {@code DATA} frames; called by worker threads.
+     * If the flow control window of the connection or of the stream is used up, the thread
+     * waits until the client allows more data.
+     * @param stream The stream
+     * @param data Array containing the data
+     * @param offset Index of the first byte
+     * @param length Number of bytes
+     * @param endStream Flag indicating that the data ends the response
+     * @throws IOException If the connection is closed or the stream is reset
+     */
+    void sendData(final Http2Stream stream, final byte[] data, int offset, int length,
+            final boolean endStream) throws IOException {
+        do {
+            int count = reserve(stream, length, false);
+            if (count < 0) {
+                flush();
+                count = reserve(stream, length, true);
+            }
+            final boolean last = count == length;
+            synchronized (output) {
+                checkOpen(stream);
+                writeFrame(DATA, last && endStream ? END_STREAM : 0, stream.id, data, offset,
+                    count);
+            }
+            offset += count;
+            length -= count;
+        } while (length > 0);
+    }
+
+    /**
+     * Takes bytes from the flow control windows of the connection and of a stream.
+     * @param stream The stream
+     * @param length Number of bytes the stream is going to send
+     * @param wait Flag indicating that the calling thread waits until the windows allow
+     *  to send data
+     * @return Number of bytes the stream may send in one frame, or -1 if the windows
+     *  are used up and the thread does not wait
+     * @throws IOException If the connection is closed or the stream is reset
+     */
+    private synchronized int reserve(final Http2Stream stream, final int length,
+            final boolean wait) throws IOException {
+        while (length > 0 && (sendWindow <= 0 || stream.sendWindow <= 0)) {
+            checkOpen(stream);
+            if (!wait) {
+                return -1;
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the window", e);
+            }
+        }
+        checkOpen(stream);
+        final int count = (int) Math.min(Math.min(length, maxFrameSize),
+            Math.min(sendWindow, stream.sendWindow));
+        sendWindow -= count;
+        stream.sendWindow -= count;
+        return Math.max(count, 0);
+    }
+
+    /**
+     * Resets a stream: the server won't send or process anything more on it.
+     * @param stream The stream
+     * @param errorCode Error code telling the client why the stream is reset
+     * @throws IOException If the connection is closed
+     */
+    void resetStream(final Http2Stream stream, final int errorCode) throws IOException {
+        synchronized (this) {
+            streams.remove(stream.id);
+            notifyAll();
+        }
+        stream.reset = true;
+        writeResetStream(stream.id, errorCode);
+    }
+
+    /**
+     * Sends the frames written so far to the client.
+     * @throws IOException If the connection is closed
+     */
+    void flush() throws IOException {
+        synchronized (output) {
+            output.flush();
+        }
+    }
+
+    /**
+     * Checks that a stream can still send its response.
+     * @param stream The stream
+     * @throws IOException If the connection is closed or the stream is reset
+     */
+    private void checkOpen(final Http2Stream stream) throws IOException {
+        if (stream.reset) {
+            throw new IOException("The stream is reset");
+        }
+        if (socket.isClosed()) {
+            throw new IOException("The connection is closed");
+        }
+    }
+
+    /**
+     * Sends the settings of the server, which start the connection, and enlarges
+     * the flow control window of the connection.
+     * @throws IOException If the connection is broken
+     */
+    private void writeSettings() throws IOException {
+        final byte[] settings = new byte[18];
+        putSetting(settings, 0, SETTINGS_MAX_CONCURRENT_STREAMS, options.http2MaxConcurrentStreams);
+        putSetting(settings, 6, SETTINGS_INITIAL_WINDOW_SIZE, RECEIVE_WINDOW);
+        putSetting(settings, 12, SETTINGS_MAX_HEADER_LIST_SIZE, RequestParser.MAX_HEADER_SIZE);
+        synchronized (output) {
+            writeFrame(SETTINGS, 0, 0, settings, 0, settings.length);
+            writeWindowUpdate(0, RECEIVE_WINDOW - DEFAULT_WINDOW_SIZE);
+        }
+    }
+
+    /**
+     * Tells the client that the connection is being closed and which streams will
+     * be processed, unless it is already done.
+     * @param errorCode Error code telling the client why the connection is closed
+     */
+    private void goAway(final int errorCode) {
+        if (goingAway && errorCode == Http2Exception.NO_ERROR) {
+            return;
+        }
+        goingAway = true;
+        final byte[] data = new byte[8];
+        putInt(data, 0, lastStreamId);
+        putInt(data, 4, errorCode);
+        try {
+            synchronized (output) {
+                writeFrame(GOAWAY, 0, 0, data, 0, data.length);
+                output.flush();
+            }
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Failed to send GOAWAY frame", e);
+        }
+    }
+
+    /**
+     * Waits until the streams being processed are complete, for at most 30 seconds.
+     */
+    private void awaitStreams() {
+        final long deadline = System.currentTimeMillis() + 30000;
+        synchronized (this) {
+            long left = deadline - System.currentTimeMillis();
+            while (!streams.isEmpty() && !closed && left > 0) {
+                try {
+                    wait(left);
+                } catch (InterruptedException ignored) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                left = deadline - System.currentTimeMillis();
+            }
+        }
+    }
+
+    /**
+     * Sends a {@code WINDOW_UPDATE} frame, allowing the client to send more data.
+     * @param streamId Identifier of the stream or 0 for the connection
+     * @param increment Number of bytes the client may send in addition
+     * @throws IOException If the connection is broken
+     */
+    private void writeWindowUpdate(final int streamId, final int increment) throws IOException {
+        final byte[] data = new byte[4];
+        putInt(data, 0, increment);
+        synchronized (output) {
+            writeFrame(WINDOW_UPDATE, 0, streamId, data, 0, data.length);
+            output.flush();
+        }
+    }
+
+    /**
+     * Sends a {@code RST_STREAM} frame.
+     * @param streamId Identifier of the stream
+     * @param errorCode Error code telling the client why the stream is reset
+     * @throws IOException If the connection is broken
+     */
+    private void writeResetStream(final int streamId, final int errorCode) throws IOException {
+        final byte[] data = new byte[4];
+        putInt(data, 0, errorCode);
+        synchronized (output) {
+            writeFrame(RST_STREAM, 0, streamId, data, 0, data.length);
+            output.flush();
+        }
+    }
+
+    /**
+     * Writes a frame to the output; the caller must hold the lock of the output.
+     * @param type Type of the frame
+     * @param flags Flags of the frame
+     * @param streamId Identifier of the stream or 0
+     * @param data Array containing the payload
+     * @param offset Index of the first byte of the payload
+     * @param length Length of the payload
+     * @throws IOException If the connection is broken
+     */
+    private void writeFrame(final int type, final int flags, final int streamId,
+            final byte[] data, final int offset, final int length) throws IOException {
+        final byte[] header = new byte[FRAME_HEADER_SIZE];
+        header[0] = (byte) (length >>> 16);
+        header[1] = (byte) (length >>> 8);
+        header[2] = (byte) length;
+        header[3] = (byte) type;
+        header[4] = (byte) flags;
+        putInt(header, 5, streamId);
+        output.write(header);
+        output.write(data, offset, length);
+    }
+
+    /**
+     * Reads exactly the given number of bytes. While streams are being processed,
+     * the read timeout of the socket does not close the connection.
+     * @param data Array into which the bytes are read
+     * @param length Number of bytes
+     * @throws EOFException If the client has closed the connection
+     * @throws SocketTimeoutException If the connection has been idle for too long
+     * @throws IOException If the connection is broken
+     */
+    private void readFully(final byte[] data, final int length) throws IOException {
+        int done = 0;
+        while (done < length) {
+            final int count;
+            try {
+                count = reader.read(data, done, length - done);
+            } catch (SocketTimeoutException e) {
+                synchronized (this) {
+                    if (streams.isEmpty()) {
+                        throw e;
+                    }
+                }
+                continue;
+            }
+            if (count < 0) {
+                throw new EOFException();
+            }
+            done += count;
+        }
+    }
+
+    /**
+     * Puts a setting into the payload of a {@code SETTINGS} frame.
+     * @param data The payload
+     * @param offset Index of the setting
+     * @param id Identifier of the setting
+     * @param value Value of the setting
+     */
+    private static void putSetting(final byte[] data, final int offset, final int id,
+            final int value) {
+        data[offset] = (byte) (id >>> 8);
+        data[offset + 1] = (byte) id;
+        putInt(data, offset + 2, value);
+    }
+
+    /**
+     * Puts a 32-bit integer into an array, most significant byte first.
+     * @param data The array
+     * @param offset Index of the first byte
+     * @param value The integer
+     */
+    private static void putInt(final byte[] data, final int offset, final int value) {
+        data[offset] = (byte) (value >>> 24);
+        data[offset + 1] = (byte) (value >>> 16);
+        data[offset + 2] = (byte) (value >>> 8);
+        data[offset + 3] = (byte) value;
+    }
+
+    /**
+     * Gets a 32-bit integer from an array, most significant byte first.
+     * @param data The array
+     * @param offset Index of the first byte
+     * @return The integer
+     */
+    private static int getInt(final byte[] data, final int offset) {
+        return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16)
+            | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+    }
+}
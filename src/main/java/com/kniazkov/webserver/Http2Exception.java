@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2025 Ivan Kniazkov
+ */
+package com.kniazkov.webserver;
+
+import java.io.IOException;
+
+/**
+ * Exception thrown when an HTTP/2 client violates the protocol. Unless it is thrown
+ * for a single stream, the connection is closed with a {@code GOAWAY} frame carrying
+ * the error code.
+ */
+final class Http2Exception extends IOException {
+    /**
+     * Version of the serialized form.
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Error code: the connection is closed without an error.
+     */
+    static final int NO_ERROR = 0x0;
+
+    /**
+     * Error code: the client has violated the protocol.
+     */
+    static final int PROTOCOL_ERROR = 0x1;
+
+    /**
+     * Error code: the server has failed unexpectedly.
+     */
+    static final int INTERNAL_ERROR = 0x2;
+
+    /**
+     * Error code: the client has violated the flow control.
+     */
+    static final int FLOW_CONTROL_ERROR = 0x3;
+
+    /**
+     * Error code: a frame has been received for a stream that is already closed.
+     */
+    static final int STREAM_CLOSED = 0x5;
+
+    /**
+     * Error code: a frame has an invalid size.
+     */
+    static final int FRAME_SIZE_ERROR = 0x6;
+
+    /**
+     * Error code: the stream has been refused before any processing.
+     */
+    static final int REFUSED_STREAM = 0x7;
+
+    /**
+     * Error code: the stream is no longer needed.
+     */
+    static final int CANCEL = 0x8;
+
+    /**
+     * Error code: the header compression state can't be maintained.
+     */
+    static final int COMPRESSION_ERROR = 0x9;
+
+    /**
+     * Error code: the client is behaving in a way that may exhaust the server,
+     * for example, it sends too large headers.
+     */
+    static final int ENHANCE_YOUR_CALM = 0xb;
+
+    /**
+     * Error code of the violation.
+     */
+    final int errorCode;
+
+    /**
+     * Constructor.
+     * @param errorCode Error code of the violation
+     * @param message Description of the violation
+     */
+    Http2Exception(final int errorCode, final String message) {
+        super(message);
+        this.errorCode = errorCode;
+    }
+}
@@ -0,0 +1,343 @@
+/*
+ * Copyright (c) 2025 Ivan Kniazkov
+ */
+package com.kniazkov.webserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A stream of an HTTP/2 connection: one request and its response.
+ * The stream is the output to which the {@link RequestProcessor} writes the response,
+ * in the same form as for HTTP/1.1, so that handlers and static files are served
+ * the same way over both protocols. The stream translates the response as it is written:
+ * the status line and headers become a {@code HEADERS} frame (without the headers
+ * that only make sense for HTTP/1.1 connections), and the body, with the chunked transfer
+ * coding removed, becomes {@code DATA} frames.
+ */
+final class Http2Stream extends ClientOutput {
+    /**
+     * State of the translation: the status line and headers are being received.
+     */
+    private static final int HEAD = 0;
+
+    /**
+     * State of the translation: the body, whose length is known, is being received.
+     */
+    private static final int BODY = 1;
+
+    /**
+     * State of the translation: the size line of a chunk is being received.
+     */
+    private static final int CHUNK_SIZE = 2;
+
+    /**
+     * State of the translation: the data of a chunk is being received.
+     */
+    private static final int CHUNK_DATA = 3;
+
+    /**
+     * State of the translation: the line break following the data of a chunk
+     * is being received.
+     */
+    private static final int CHUNK_END = 4;
+
+    /**
+     * State of the translation: the trailer following the last chunk is being received.
+     */
+    private static final int TRAILER = 5;
+
+    /**
+     * State of the translation: the response is complete, anything written later
+     * (for example, a second response to the same request) is ignored.
+     */
+    private static final int DONE = 6;
+
+    /**
+     * Length of the body that is not known until the end of the response.
+     */
+    private static final long UNKNOWN_LENGTH = -1;
+
+    /**
+     * Connection to which the stream belongs.
+     */
+    final Http2Connection connection;
+
+    /**
+     * Identifier of the stream.
+     */
+    final int id;
+
+    /**
+     * Names and values of the request header fields, alternately.
+     */
+    final List<String> fields;
+
+    /**
+     * Body of the request received so far, or {@code null} if the request has no body.
+     */
+    SpillOutput body;
+
+    /**
+     * Flag indicating that the whole request has been received.
+     */
+    boolean requestComplete;
+
+    /**
+     * Number of bytes the server may send on the stream before the client allows more.
+     * Guarded by the connection.
+     */
+    long sendWindow;
+
+    /**
+     * Number of bytes of the request body received since the client was last allowed
+     * to send more. Used by the thread reading the connection only.
+     */
+    int unacknowledged;
+
+    /**
+     * Flag indicating that the stream has been reset, by the client or the server.
+     */
+    volatile boolean reset;
+
+    /**
+     * State of the translation of the response.
+     */
+    private int state;
+
+    /**
+     * Status line and headers of the response received so far.
+     */
+    private final ByteArrayOutputStream head;
+
+    /**
+     * Number of bytes of the current line of the status line and headers received so far,
+     * not counting line breaks.
+     */
+    private int lineLength;
+
+    /**
+     * Number of bytes of the body (or of the current chunk) that are not received yet,
+     * or {@link #UNKNOWN_LENGTH}.
+     */
+    private long remaining;
+
+    /**
+     * Flag indicating that the body of the response uses the chunked transfer coding.
+     */
+    private boolean chunked;
+
+    /**
+     * Size line of the chunk being received, or the trailer line being received.
+     */
+    private final StringBuilder line;
+
+    /**
+     * Constructor.
+     * @param connection Connection to which the stream belongs
+     * @param id Identifier of the stream
+     * @param fields Names and values of the request header fields, alternately
+     * @param sendWindow Number of bytes the server may send on the stream at first
+     */
+    Http2Stream(final Http2Connection connection, final int id, final List<String> fields,
+            final long sendWindow) {
+        this.connection = connection;
+        this.id = id;
+        this.fields = fields;
+        this.body = null;
+        this.requestComplete = false;
+        this.sendWindow = sendWindow;
+        this.unacknowledged = 0;
+        this.reset = false;
+        this.state = HEAD;
+        this.head = new ByteArrayOutputStream(256);
+        this.lineLength = 0;
+        this.remaining = UNKNOWN_LENGTH;
+        this.chunked = false;
+        this.line = new StringBuilder();
+    }
+
+    @Override
+    public void write(final int value) throws IOException {
+        write(new byte[] { (byte) value }, 0, 1);
+    }
+
+    @Override
+    public void write(final byte[] data, int offset, int length) throws IOException {
+        if (reset) {
+            throw new IOException("The stream is reset");
+        }
+        countWritten(length);
+        while (length > 0 && state != DONE) {
+            final int count;
+            switch (state) {
+                case HEAD:
+                    count = readHead(data, offset, length);
+                    break;
+                case BODY:
+                case CHUNK_DATA:
+                    count = (int) (remaining < 0 ? length : Math.min(length, remaining));
+                    if (remaining > 0) {
+                        remaining -= count;
+                    }
+                    if (state == BODY) {
+                        final boolean last = remaining == 0;
+                        connection.sendData(this, data, offset, count, last);
+                        if (last) {
+                            state = DONE;
+                        }
+                    } else {
+                        connection.sendData(this, data, offset, count, false);
+                        if (remaining == 0) {
+                            state = CHUNK_END;
+                        }
+                    }
+                    break;
+                default:
+                    count = readLine(data, offset, length);
+                    break;
+            }
+            offset += count;
+            length -= count;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        connection.flush();
+    }
+
+    /**
+     * Completes the response once the processor has written it: ends the stream,
+     * or resets it if the response is cut off.
+     * @throws IOException If the connection is closed
+     */
+    void finish() throws IOException {
+        if (!reset && state != DONE) {
+            if (state == BODY && remaining < 0) {
+                connection.sendData(this, new byte[0], 0, 0, true);
+            } else {
+                connection.resetStream(this, Http2Exception.INTERNAL_ERROR);
+            }
+            state = DONE;
+        }
+        connection.flush();
+    }
+
+    /**
+     * Receives bytes of the status line and headers; once they are complete,
+     * sends the {@code HEADERS} frame.
+     * @param data Array containing the bytes
+     * @param offset Index of the first byte
+     * @param length Number of bytes
+     * @return Number of bytes that belong to the status line and headers
+     * @throws IOException If the connection is closed
+     */
+    private int readHead(final byte[] data, final int offset, final int length)
+            throws IOException {
+        for (int index = 0; index < length; index++) {
+            final byte value = data[offset + index];
+            head.write(value);
+            if (value == '\n') {
+                if (lineLength == 0 && head.size() > 2) {
+                    sendHeaders();
+                    return index + 1;
+                }
+                lineLength = 0;
+            } else if (value != '\r') {
+                lineLength++;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Translates the status line and headers of the response into a {@code HEADERS} frame
+     * and sends it.
+     * @throws IOException If the connection is closed
+     */
+    private void sendHeaders() throws IOException {
+        final String[] lines = new String(head.toByteArray(), StandardCharsets.ISO_8859_1)
+            .split("\r\n");
+        final List<String> response = new ArrayList<>(lines.length * 2);
+        response.add(":status");
+        response.add(lines[0].length() >= 12 ? lines[0].substring(9, 12) : "500");
+        boolean hasBody = true;
+        for (int index = 1; index < lines.length; index++) {
+            final int colon = lines[index].indexOf(':');
+            if (colon <= 0) {
+                continue;
+            }
+            final String name = lines[index].substring(0, colon).trim().toLowerCase();
+            final String value = lines[index].substring(colon + 1).trim();
+            switch (name) {
+                case "connection":
+                case "keep-alive":
+                case "proxy-connection":
+                case "upgrade":
+                    continue;
+                case "transfer-encoding":
+                    chunked = value.equalsIgnoreCase("chunked");
+                    continue;
+                case "content-length":
+                    remaining = Long.parseLong(value);
+                    hasBody = remaining > 0;
+                    break;
+                default:
+                    break;
+            }
+            response.add(name);
+            response.add(value);
+        }
+        head.reset();
+        if (chunked) {
+            remaining = UNKNOWN_LENGTH;
+        }
+        connection.sendHeaders(this, response, !hasBody);
+        state = !hasBody ? DONE : chunked ? CHUNK_SIZE : BODY;
+    }
+
+    /**
+     * Receives bytes of a size line of a chunk, of the line break after the data
+     * of a chunk, or of the trailer.
+     * @param data Array containing the bytes
+     * @param offset Index of the first byte
+     * @param length Number of bytes
+     * @return Number of bytes that belong to the line
+     * @throws IOException If the size of a chunk is not valid or the connection is closed
+     */
+    private int readLine(final byte[] data, final int offset, final int length)
+            throws IOException {
+        for (int index = 0; index < length; index++) {
+            final char value = (char) (data[offset + index] & 0xff);
+            if (value != '\n') {
+                if (value != '\r') {
+                    line.append(value);
+                }
+                continue;
+            }
+            if (state == CHUNK_SIZE) {
+                final int extension = line.indexOf(";");
+                final String size = (extension >= 0 ? line.substring(0, extension)
+                    : line.toString()).trim();
+                try {
+                    remaining = Long.parseLong(size, 16);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid chunk size: " + size, e);
+                }
+                state = remaining > 0 ? CHUNK_DATA : TRAILER;
+            } else if (state == CHUNK_END) {
+                state = CHUNK_SIZE;
+            } else if (line.length() == 0) {
+                connection.sendData(this, data, offset, 0, true);
+                state = DONE;
+            }
+            line.setLength(0);
+            return index + 1;
+        }
+        return length;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2025 Ivan Kniazkov
+ */
+package com.kniazkov.webserver;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+
+/**
+ * Conversion of dates to and from the format used in HTTP headers,
+ * for example, {@code Sun, 06 Nov 1994 08:49:37 GMT}.
+ */
+final class HttpDate {
+    /**
+     * The formatter.
+     */
+    private static final DateTimeFormatter formatter =
+        DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US)
+            .withZone(ZoneOffset.UTC);
+
+    /**
+     * The {@code Date} header for the current second.
+     */
+    private static volatile DateHeader current = new DateHeader(-1, null);
+
+    /**
+     * Private constructor.
+     */
+    private HttpDate() {
+    }
+
+    /**
+     * Returns the {@code Date} header containing the current time.
+     * The header is formatted at most once a second and shared by all threads.
+     * @return Encoded header line, including the line end
+     */
+    static byte[] getDateHeader() {
+        final long second = System.currentTimeMillis() / 1000;
+        DateHeader header = current;
+        if (header.second != second) {
+            header = new DateHeader(second, HeaderBuilder.encodeLine("Date: " + format(second * 1000)));
+            current = header;
+        }
+        return header.line;
+    }
+
+    /**
+     * Formats a date.
+     * @param millis Number of milliseconds since the epoch
+     * @return Formatted date
+     */
+    static String format(final long millis) {
+        return formatter.format(Instant.ofEpochMilli(millis));
+    }
+
+    /**
+     * Parses a date.
+     * @param text Formatted date
+     * @return Number of milliseconds since the epoch or -1 if the text is not a valid date
+     */
+    static long parse(final String text) {
+        try {
+            return ZonedDateTime.parse(text.trim(), formatter).toInstant().toEpochMilli();
+        } catch (DateTimeParseException ignored) {
+            return -1;
+        }
+    }
+
+    /**
+     * Formatted {@code Date} header together with the second it denotes.
+     */
+    private static final class DateHeader {
+        /**
+         * Number of seconds since the epoch.
+         */
+        final long second;
+
+        /**
+         * Encoded header line.
+         */
+        final byte[] line;
+
+        /**
+         * Constructor.
+         * @param second Number of seconds since the epoch
+         * @param line Encoded header line
+         */
+        DateHeader(final long second, final byte[] line) {
+            this.second = second;
+            this.line = line;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2025 Ivan Kniazkov
+ */
+package com.kniazkov.webserver;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * The Huffman code with which HPACK compresses header names and values
+ * (RFC 7541, Appendix B). The code is canonical, so it is defined by the lengths
+ * of the codes of the symbols alone: codes of the same length are consecutive numbers,
+ * assigned in the order of the symbols.
+ */
+final class Huffman {
+    /**
+     * Symbol marking the end of the data; only a prefix of its code may appear,
+     * as padding of the last byte.
+     */
+    private static final int EOS = 256;
+
+    /**
+     * Length of the longest code, in bits.
+     */
+    private static final int MAX_LENGTH = 30;
+
+    /**
+     * Lengths of the codes of the symbols (the bytes and {@link #EOS}), in bits.
+     */
+    private static final byte[] LENGTHS = {
+        13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+        28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+        6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+        5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+        13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+        7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+        15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+        6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+        20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+        24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+        22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+        21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+        26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+        19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+        20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+        26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+        30
+    };
+
+    /**
+     * Codes of the symbols.
+     */
+    private static final int[] CODES = new int[LENGTHS.length];
+
+    /**
+     * The symbols, sorted by the lengths of their codes, then by their values.
+     */
+    private static final int[] SYMBOLS = new int[LENGTHS.length];
+
+    /**
+     * Code of the first symbol of each code length.
+     */
+    private static final int[] FIRST_CODES = new int[MAX_LENGTH + 1];
+
+    /**
+     * Index in {@link #SYMBOLS} of the first symbol of each code length.
+     */
+    private static final int[] FIRST_INDEXES = new int[MAX_LENGTH + 1];
+
+    /**
+     * Number of symbols of each code length.
+     */
+    private static final int[] COUNTS = new int[MAX_LENGTH + 1];
+
+    static {
+        for (final byte length : LENGTHS) {
+            COUNTS[length]++;
+        }
+        int code = 0;
+        int index = 0;
+        for (int length = 1; length <= MAX_LENGTH; length++) {
+            FIRST_CODES[length] = code;
+            FIRST_INDEXES[length] = index;
+            code = (code + COUNTS[length]) << 1;
+            index += COUNTS[length];
+        }
+        final int[] next = FIRST_CODES.clone();
+        final int[] position = FIRST_INDEXES.clone();
+        for (int symbol = 0; symbol < LENGTHS.length; symbol++) {
+            final int length = LENGTHS[symbol];
+            CODES[symbol] = next[length]++;
+            SYMBOLS[position[length]++] = symbol;
+        }
+    }
+
+    /**
+     * Private constructor.
+     */
+    private Huffman() {
+    }
+
+    /**
+     * Returns the length of a string encoded with the Huffman code.
+     * @param value The string; its characters must be bytes (ISO-8859-1)
+     * @return Length of the encoded string, in bytes
+     */
+    static int getEncodedLength(final String value) {
+        long bits = 0;
+        for (int index = 0; index < value.length(); index++) {
+            bits += LENGTHS[value.charAt(index) & 0xff];
+        }
+        return (int) ((bits + 7) >>> 3);
+    }
+
+    /**
+     * Encodes a string with the Huffman code; the last byte is padded with ones.
+     * @param value The string; its characters must be bytes (ISO-8859-1)
+     * @param output Output to which the encoded string is written
+     */
+    static void encode(final String value, final ByteArrayOutputStream output) {
+        long buffer = 0;
+        int bits = 0;
+        for (int index = 0; index < value.length(); index++) {
+            final int symbol = value.charAt(index) & 0xff;
+            buffer = (buffer << LENGTHS[symbol]) | CODES[symbol];
+            bits += LENGTHS[symbol];
+            while (bits >= 8) {
+                bits -= 8;
+                output.write((int) (buffer >>> bits));
+            }
+        }
+        if (bits > 0) {
+            output.write((int) ((buffer << (8 - bits)) | (0xff >>> bits)));
+        }
+    }
+
+    /**
+     * Decodes a string encoded with the Huffman code.
+     * @param data Array containing the encoded string
+     * @param start Index of the first byte of the encoded string
+     * @param length Length of the encoded string, in bytes
+     * @return The decoded string, one character per byte
+     * @throws Http2Exception If the data is not a valid encoded string
+     */
+    static String decode(final byte[] data, final int start, final int length)
+            throws Http2Exception {
+        final StringBuilder builder = new StringBuilder(length * 8 / 5);
+        int code = 0;
+        int bits = 0;
+        for (int index = start; index < start + length; index++) {
+            final int value = data[index] & 0xff;
+            for (int bit = 7; bit >= 0; bit--) {
+                code = (code << 1) | ((value >>> bit) & 1);
+                bits++;
+                final int offset = code - FIRST_CODES[bits];
+                if (offset >= 0 && offset < COUNTS[bits]) {
+                    final int symbol = SYMBOLS[FIRST_INDEXES[bits] + offset];
+                    if (symbol == EOS) {
+                        throw new Http2Exception(Http2Exception.COMPRESSION_ERROR,
+                            "End of string symbol in a Huffman-encoded string");
+                    }
+                    builder.append((char) symbol);
+                    code = 0;
+                    bits = 0;
+                } else if (bits == MAX_LENGTH) {
+                    throw new Http2Exception(Http2Exception.COMPRESSION_ERROR,
+                        "Invalid Huffman code");
+                }
+            }
+        }
+        if (bits > 7 || code != (1 << bits) - 1) {
+            throw new Http2Exception(Http2Exception.COMPRESSION_ERROR,
+                "Invalid padding of a Huffman-encoded string");
+        }
+        return builder.toString();
+    }
+}
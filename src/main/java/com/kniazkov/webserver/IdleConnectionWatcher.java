@@ -0,0 +1,242 @@
+/*
+ * Copyright (c) 2025 Ivan Kniazkov
+ */
+package com.kniazkov.webserver;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Thread that watches idle keep-alive connections of the thread-per-connection engine.
+ * Instead of blocking a worker thread until the client sends its next request, the engine
+ * hands the connection over to the watcher, which waits for data on all such connections
+ * with a single selector. When data arrives, the connection is switched back to blocking
+ * mode and given back to a worker; if nothing arrives within the timeout, it is closed.
+ * So the number of keep-alive clients is no longer limited by the number of worker threads.
+ */
+final class IdleConnectionWatcher implements Runnable {
+    /**
+     * Logger.
+     */
+    private static final Logger logger = Logger.getLogger(IdleConnectionWatcher.class.getName());
+
+    /**
+     * How long the selector waits for events before checking for expired connections,
+     * in milliseconds.
+     */
+    private static final long SELECT_TIMEOUT = 1000;
+
+    /**
+     * Time in milliseconds after which an idle connection is closed.
+     */
+    private final int timeout;
+
+    /**
+     * Connections handed over by workers and not registered with the selector yet.
+     */
+    private final Queue<Entry> pending;
+
+    /**
+     * The selector.
+     */
+    private final Selector selector;
+
+    /**
+     * Flag, as long as it is set, the watcher waits for events.
+     */
+    private volatile boolean work;
+
+    /**
+     * Constructor.
+     * @param timeout Time in milliseconds after which an idle connection is closed
+     * @throws IOException If the selector cannot be opened
+     */
+    IdleConnectionWatcher(final int timeout) throws IOException {
+        this.timeout = timeout;
+        this.pending = new ConcurrentLinkedQueue<>();
+        this.selector = Selector.open();
+        this.work = true;
+    }
+
+    /**
+     * Starts watching a connection. Exactly one of the actions is invoked later,
+     * by the watcher thread, so they should not block.
+     * @param channel The channel of the connection, in blocking mode; it must not be used
+     *  until one of the actions is invoked
+     * @param resume Action invoked when the client has sent data; the channel is
+     *  in blocking mode again
+     * @param close Action invoked when the connection has been idle for too long
+     *  or the watcher is stopped; it must close the channel
+     */
+    void watch(final SocketChannel channel, final Runnable resume, final Runnable close) {
+        pending.add(new Entry(channel, resume, close));
+        selector.wakeup();
+        if (!work) {
+            closePending();
+        }
+    }
+
+    /**
+     * Starting point of the watcher.
+     */
+    @Override
+    public void run() {
+        final List<Entry> ready = new ArrayList<>();
+        try {
+            while (work) {
+                selector.select(SELECT_TIMEOUT);
+                register();
+                final Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    final SelectionKey key = iterator.next();
+                    iterator.remove();
+                    key.cancel();
+                    ready.add((Entry) key.attachment());
+                }
+                final long now = System.currentTimeMillis();
+                for (final SelectionKey key : selector.keys()) {
+                    final Entry entry = (Entry) key.attachment();
+                    if (key.isValid() && now - entry.since > timeout) {
+                        key.cancel();
+                        entry.close.run();
+                    }
+                }
+                if (!ready.isEmpty()) {
+                    // the keys must be deregistered before the channels become blocking again
+                    selector.selectNow();
+                    for (final Entry entry : ready) {
+                        resume(entry);
+                    }
+                    ready.clear();
+                }
+            }
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "I/O error while watching idle connections", e);
+        } finally {
+            work = false;
+            for (final Entry entry : ready) {
+                entry.close.run();
+            }
+            closeAll();
+            try {
+                selector.close();
+            } catch (IOException e) {
+                logger.log(Level.FINE, "Failed to close the selector", e);
+            }
+        }
+    }
+
+    /**
+     * Stops the watcher; connections it is watching are closed.
+     */
+    void stop() {
+        work = false;
+        selector.wakeup();
+    }
+
+    /**
+     * Registers the connections handed over since the last check with the selector.
+     */
+    private void register() {
+        Entry entry = pending.poll();
+        while (entry != null) {
+            try {
+                entry.channel.configureBlocking(false);
+                entry.channel.register(selector, SelectionKey.OP_READ, entry);
+            } catch (ClosedChannelException ignored) {
+                entry.close.run();
+            } catch (IOException e) {
+                logger.log(Level.FINE, "Failed to watch an idle connection", e);
+                entry.close.run();
+            }
+            entry = pending.poll();
+        }
+    }
+
+    /**
+     * Gives a connection that has received data back to the engine.
+     * @param entry The connection
+     */
+    private void resume(final Entry entry) {
+        try {
+            entry.channel.configureBlocking(true);
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Failed to resume an idle connection", e);
+            entry.close.run();
+            return;
+        }
+        entry.resume.run();
+    }
+
+    /**
+     * Closes all watched connections.
+     */
+    private void closeAll() {
+        for (final SelectionKey key : selector.keys()) {
+            if (key.isValid()) {
+                key.cancel();
+                ((Entry) key.attachment()).close.run();
+            }
+        }
+        closePending();
+    }
+
+    /**
+     * Closes the connections that are handed over, but not registered with the selector.
+     */
+    private void closePending() {
+        Entry entry = pending.poll();
+        while (entry != null) {
+            entry.close.run();
+            entry = pending.poll();
+        }
+    }
+
+    /**
+     * Connection being watched.
+     */
+    private static final class Entry {
+        /**
+         * The channel of the connection.
+         */
+        final SocketChannel channel;
+
+        /**
+         * Action invoked when the client has sent data.
+         */
+        final Runnable resume;
+
+        /**
+         * Action invoked when the connection must be closed.
+         */
+        final Runnable close;
+
+        /**
+         * Time when the connection became idle.
+         */
+        final long since;
+
+        /**
+         * Constructor.
+         * @param channel The channel of the connection
+         * @param resume Action invoked when the client has sent data
+         * @param close Action invoked when the connection must be closed
+         */
+        Entry(final SocketChannel channel, final Runnable resume, final Runnable close) {
+            this.channel = channel;
+            this.resume = resume;
+            this.close = close;
+            this.since = System.currentTimeMillis();
+        }
+    }
+}
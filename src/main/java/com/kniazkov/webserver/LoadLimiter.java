@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2025 Ivan Kniazkov
+ */
+package com.kniazkov.webserver;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the load of a server engine within the limits set by the options:
+ * counts open connections against {@link Options#maxConnections} and counts the work
+ * refused because of the limits. Work that cannot be admitted is answered with
+ * {@code 503 Service Unavailable} right away instead of waiting in a queue until
+ * the client gives up, so that the requests that are admitted are served in time.
+ */
+final class LoadLimiter {
+    /**
+     * Maximum number of open connections, or 0 if there is no limit.
+     */
+    private final int maxConnections;
+
+    /**
+     * Number of open connections.
+     */
+    private final AtomicInteger connections;
+
+    /**
+     * Number of connections refused because of the connection limit.
+     */
+    private final AtomicLong rejectedConnections;
+
+    /**
+     * Number of requests refused because the work queue was full.
+     */
+    private final AtomicLong rejectedRequests;
+
+    /**
+     * Constructor.
+     * @param options Options for starting the server
+     */
+    LoadLimiter(final Options options) {
+        this.maxConnections = Math.max(options.maxConnections, 0);
+        this.connections = new AtomicInteger();
+        this.rejectedConnections = new AtomicLong();
+        this.rejectedRequests = new AtomicLong();
+    }
+
+    /**
+     * Registers a new connection if the limit allows it.
+     * @return {@code true} if the connection is admitted; it must be released with
+     *  {@link #releaseConnection()} once closed. {@code false} if the limit is reached;
+     *  the rejection is counted
+     */
+    boolean tryAcquireConnection() {
+        while (true) {
+            final int count = connections.get();
+            if (maxConnections > 0 && count >= maxConnections) {
+                rejectedConnections.incrementAndGet();
+                return false;
+            }
+            if (connections.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Unregisters a closed connection.
+     */
+    void releaseConnection() {
+        connections.decrementAndGet();
+    }
+
+    /**
+     * Counts a request refused because the work queue was full.
+     */
+    void requestRejected() {
+        rejectedRequests.incrementAndGet();
+    }
+
+    /**
+     * Returns the current statistics.
+     * @return Load statistics
+     */
+    LoadStatistics getStatistics() {
+        return new LoadStatistics(connections.get(), rejectedConnections.get(),
+            rejectedRequests.get());
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2025 Ivan Kniazkov
+ */
+package com.kniazkov.webserver;
+
+/**
+ * Statistics of the server load and of the work the server refused to take
+ * at some point in time.
+ */
+public final class LoadStatistics {
+    /**
+     * Number of client connections currently open.
+     */
+    public final int activeConnections;
+
+    /**
+     * Number of connections refused because {@link Options#maxConnections} connections
+     * were already open.
+     */
+    public final long rejectedConnections;
+
+    /**
+     * Number of requests (for the thread-per-connection engine, connections) refused
+     * because {@link Options#maxQueueSize} tasks were already waiting for a worker.
+     */
+    public final long rejectedRequests;
+
+    /**
+     * Constructor.
+     * @param activeConnections Number of client connections currently open
+     * @param rejectedConnections Number of connections refused because of the connection limit
+     * @param rejectedRequests Number of requests refused because the work queue was full
+     */
+    LoadStatistics(final int activeConnections, final long rejectedConnections,
+            final long rejectedRequests) {
+        this.activeConnections = activeConnections;
+        this.rejectedConnections = rejectedConnections;
+        this.rejectedRequests = rejectedRequests;
+    }
+
+    /**
+     * Stringification (for debugging purposes).
+     * @return Statistics as string representation
+     */
+    @Override
+    public String toString() {
+        return "connections: " + activeConnections + ", rejected connections: "
+            + rejectedConnections + ", rejected requests: " + rejectedRequests;
+    }
+}
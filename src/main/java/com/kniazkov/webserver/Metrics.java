@@ -0,0 +1,490 @@
+/*
+ * Copyright (c) 2025 Ivan Kniazkov
+ */
+package com.kniazkov.webserver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics of a server: how long the phases of request processing take, how loaded
+ * the server is and how much it has sent and received. The metrics are collected
+ * by the server (unless {@link Options#metrics} is turned off) and can be read through
+ * this class or scraped in the Prometheus text format, see {@link Options#metricsPath}
+ * and {@link Options#metricsPort}.
+ * Counters and histograms are updated without locking, so collecting them costs
+ * a few increments of {@link LongAdder} per request.
+ */
+public final class Metrics {
+    /**
+     * Content type of the Prometheus text format.
+     */
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    /**
+     * Smallest response code that is counted.
+     */
+    private static final int MIN_CODE = 100;
+
+    /**
+     * Largest response code that is counted.
+     */
+    private static final int MAX_CODE = 599;
+
+    /**
+     * Metrics that are not collected, for code that runs outside of a server.
+     */
+    static final Metrics NONE = new Metrics(false, null);
+
+    /**
+     * Flag indicating that the metrics are collected.
+     */
+    final boolean enabled;
+
+    /**
+     * Time spent parsing requests, after the request headers have been received.
+     */
+    final Histogram parse;
+
+    /**
+     * Time spent in handlers.
+     */
+    final Histogram handle;
+
+    /**
+     * Time spent writing responses of handlers.
+     */
+    final Histogram write;
+
+    /**
+     * Time spent reading and sending static files.
+     */
+    final Histogram fileRead;
+
+    /**
+     * Time spent in successful TLS handshakes.
+     */
+    final Histogram handshake;
+
+    /**
+     * Number of requests being handled or written right now.
+     */
+    private final LongAdder inFlight;
+
+    /**
+     * Number of responses, by response code.
+     */
+    private final LongAdder[] responses;
+
+    /**
+     * Number of bytes received: request headers and bodies.
+     */
+    private final LongAdder received;
+
+    /**
+     * Number of bytes of responses written.
+     */
+    private final LongAdder sent;
+
+    /**
+     * Number of full TLS handshakes.
+     */
+    private final LongAdder fullHandshakes;
+
+    /**
+     * Number of TLS handshakes that resumed a session.
+     */
+    private final LongAdder resumedHandshakes;
+
+    /**
+     * Number of TLS handshakes that failed or timed out.
+     */
+    private final LongAdder failedHandshakes;
+
+    /**
+     * Limiter of the server load, which knows the number of open connections,
+     * or {@code null}.
+     */
+    private final LoadLimiter limiter;
+
+    /**
+     * Pool of worker threads of the engine or {@code null} if it is not created yet.
+     */
+    private volatile ExecutorService pool;
+
+    /**
+     * Constructor.
+     * @param enabled Flag indicating that the metrics are collected
+     * @param limiter Limiter of the server load or {@code null}
+     */
+    Metrics(final boolean enabled, final LoadLimiter limiter) {
+        this.enabled = enabled;
+        this.parse = new Histogram();
+        this.handle = new Histogram();
+        this.write = new Histogram();
+        this.fileRead = new Histogram();
+        this.handshake = new Histogram();
+        this.inFlight = new LongAdder();
+        this.responses = new LongAdder[MAX_CODE - MIN_CODE + 1];
+        for (int index = 0; index < responses.length; index++) {
+            responses[index] = new LongAdder();
+        }
+        this.received = new LongAdder();
+        this.sent = new LongAdder();
+        this.fullHandshakes = new LongAdder();
+        this.resumedHandshakes = new LongAdder();
+        this.failedHandshakes = new LongAdder();
+        this.limiter = limiter;
+    }
+
+    /**
+     * Returns the histogram of the time spent parsing requests, from the moment
+     * the request headers have been received until the request, including its body,
+     * is parsed.
+     * @return The histogram
+     */
+    public Histogram getParseTimes() {
+        return parse;
+    }
+
+    /**
+     * Returns the histogram of the time spent in handlers. For asynchronous handlers,
+     * this is the time until the returned stage completes.
+     * @return The histogram
+     */
+    public Histogram getHandleTimes() {
+        return handle;
+    }
+
+    /**
+     * Returns the histogram of the time spent writing responses of handlers,
+     * including compression and producing the data of streams.
+     * @return The histogram
+     */
+    public Histogram getWriteTimes() {
+        return write;
+    }
+
+    /**
+     * Returns the histogram of the time spent serving static files: finding, reading
+     * (or taking from the cache) and writing them.
+     * @return The histogram
+     */
+    public Histogram getFileReadTimes() {
+        return fileRead;
+    }
+
+    /**
+     * Returns the histogram of the time spent in successful TLS handshakes, from the moment
+     * the connection is taken by a handshake thread.
+     * @return The histogram
+     */
+    public Histogram getHandshakeTimes() {
+        return handshake;
+    }
+
+    /**
+     * Returns the number of full TLS handshakes, in which a new session is negotiated.
+     * @return The number of handshakes
+     */
+    public long getFullHandshakes() {
+        return fullHandshakes.sum();
+    }
+
+    /**
+     * Returns the number of abbreviated TLS handshakes, in which the client resumes
+     * a session from the session cache or with a session ticket.
+     * @return The number of handshakes
+     */
+    public long getResumedHandshakes() {
+        return resumedHandshakes.sum();
+    }
+
+    /**
+     * Returns the number of TLS handshakes that failed or timed out.
+     * @return The number of handshakes
+     */
+    public long getFailedHandshakes() {
+        return failedHandshakes.sum();
+    }
+
+    /**
+     * Returns the number of requests being processed right now. Requests waiting for
+     * an asynchronous handler are counted as well.
+     * @return The number of requests
+     */
+    public long getRequestsInFlight() {
+        return inFlight.sum();
+    }
+
+    /**
+     * Returns the number of open connections.
+     * @return The number of connections
+     */
+    public int getOpenConnections() {
+        return limiter != null ? limiter.getStatistics().activeConnections : 0;
+    }
+
+    /**
+     * Returns the number of requests waiting in the queue for a worker thread.
+     * @return The number of requests or 0 if the queue is not known
+     */
+    public int getQueueDepth() {
+        final ExecutorService executor = pool;
+        return executor instanceof ThreadPoolExecutor
+            ? ((ThreadPoolExecutor) executor).getQueue().size() : 0;
+    }
+
+    /**
+     * Returns the number of responses sent with a response code.
+     * @param code The response code, for example 404
+     * @return The number of responses
+     */
+    public long getResponseCount(final int code) {
+        return code >= MIN_CODE && code <= MAX_CODE ? responses[code - MIN_CODE].sum() : 0;
+    }
+
+    /**
+     * Returns the number of bytes received from clients (request headers and bodies).
+     * @return The number of bytes
+     */
+    public long getBytesReceived() {
+        return received.sum();
+    }
+
+    /**
+     * Returns the number of bytes of responses sent to clients.
+     * @return The number of bytes
+     */
+    public long getBytesSent() {
+        return sent.sum();
+    }
+
+    /**
+     * Returns a handler that responds with the metrics in the Prometheus text format.
+     * It can be mounted on a {@link Router} to serve the metrics on a path the application
+     * chooses.
+     * @return The handler
+     */
+    public Handler getHandler() {
+        return request -> new Response() {
+            /**
+             * The metrics, formatted once.
+             */
+            private final byte[] data = toPrometheus().getBytes(StandardCharsets.UTF_8);
+
+            @Override
+            public String getContentType() {
+                return CONTENT_TYPE;
+            }
+
+            @Override
+            public byte[] getData() {
+                return data;
+            }
+        };
+    }
+
+    /**
+     * Formats the metrics in the Prometheus text format.
+     * @return The formatted metrics
+     */
+    public String toPrometheus() {
+        final StringBuilder b = new StringBuilder(8192);
+        appendHistogram(b, "webserver_parse_seconds",
+            "Time spent parsing requests after their headers are received.", parse);
+        appendHistogram(b, "webserver_handle_seconds", "Time spent in handlers.", handle);
+        appendHistogram(b, "webserver_write_seconds",
+            "Time spent writing responses of handlers.", write);
+        appendHistogram(b, "webserver_file_read_seconds",
+            "Time spent reading and sending static files.", fileRead);
+        appendHistogram(b, "webserver_tls_handshake_seconds",
+            "Time spent in successful TLS handshakes.", handshake);
+        appendHeader(b, "webserver_tls_handshakes_total", "TLS handshakes by result.", "counter");
+        b.append("webserver_tls_handshakes_total{result=\"full\"} ")
+            .append(getFullHandshakes()).append('\n');
+        b.append("webserver_tls_handshakes_total{result=\"resumed\"} ")
+            .append(getResumedHandshakes()).append('\n');
+        b.append("webserver_tls_handshakes_total{result=\"failed\"} ")
+            .append(getFailedHandshakes()).append('\n');
+        appendHeader(b, "webserver_requests_in_flight", "Requests being processed.", "gauge");
+        b.append("webserver_requests_in_flight ").append(getRequestsInFlight()).append('\n');
+        appendHeader(b, "webserver_open_connections", "Open connections.", "gauge");
+        b.append("webserver_open_connections ").append(getOpenConnections()).append('\n');
+        appendHeader(b, "webserver_queue_depth",
+            "Requests waiting for a worker thread.", "gauge");
+        b.append("webserver_queue_depth ").append(getQueueDepth()).append('\n');
+        appendHeader(b, "webserver_responses_total", "Responses by status code.", "counter");
+        for (int index = 0; index < responses.length; index++) {
+            final long count = responses[index].sum();
+            if (count > 0) {
+                b.append("webserver_responses_total{code=\"").append(index + MIN_CODE)
+                    .append("\"} ").append(count).append('\n');
+            }
+        }
+        appendHeader(b, "webserver_received_bytes_total",
+            "Bytes of requests received.", "counter");
+        b.append("webserver_received_bytes_total ").append(getBytesReceived()).append('\n');
+        appendHeader(b, "webserver_sent_bytes_total", "Bytes of responses sent.", "counter");
+        b.append("webserver_sent_bytes_total ").append(getBytesSent()).append('\n');
+        if (limiter != null) {
+            final LoadStatistics load = limiter.getStatistics();
+            appendHeader(b, "webserver_rejected_connections_total",
+                "Connections refused because of the connection limit.", "counter");
+            b.append("webserver_rejected_connections_total ").append(load.rejectedConnections)
+                .append('\n');
+            appendHeader(b, "webserver_rejected_requests_total",
+                "Requests refused because the work queue was full.", "counter");
+            b.append("webserver_rejected_requests_total ").append(load.rejectedRequests)
+                .append('\n');
+        }
+        return b.toString();
+    }
+
+    /**
+     * Returns the start time of a measured phase.
+     * @return Current value of the nanosecond timer or 0 if the metrics are not collected
+     */
+    long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records the duration of a phase that started at the given time.
+     * @param histogram Histogram of the phase
+     * @param start Value returned by {@link #start()}
+     * @return Current value of the nanosecond timer, which may serve as the start time
+     *  of the next phase, or 0 if the metrics are not collected
+     */
+    long stop(final Histogram histogram, final long start) {
+        if (!enabled) {
+            return 0;
+        }
+        final long now = System.nanoTime();
+        histogram.record(now - start);
+        return now;
+    }
+
+    /**
+     * Counts a request whose processing has started.
+     */
+    void requestStarted() {
+        if (enabled) {
+            inFlight.increment();
+        }
+    }
+
+    /**
+     * Counts a request whose processing has finished.
+     */
+    void requestFinished() {
+        if (enabled) {
+            inFlight.decrement();
+        }
+    }
+
+    /**
+     * Counts a response.
+     * @param code Response code, for example {@code 404 Not Found}
+     */
+    void countResponse(final String code) {
+        if (enabled && code.length() >= 3) {
+            final int value = (code.charAt(0) - '0') * 100 + (code.charAt(1) - '0') * 10
+                + code.charAt(2) - '0';
+            if (value >= MIN_CODE && value <= MAX_CODE) {
+                responses[value - MIN_CODE].increment();
+            }
+        }
+    }
+
+    /**
+     * Counts received bytes.
+     * @param count Number of bytes
+     */
+    void received(final long count) {
+        if (enabled && count > 0) {
+            received.add(count);
+        }
+    }
+
+    /**
+     * Counts sent bytes.
+     * @param count Number of bytes
+     */
+    void sent(final long count) {
+        if (enabled && count > 0) {
+            sent.add(count);
+        }
+    }
+
+    /**
+     * Counts a successful TLS handshake.
+     * @param start Value returned by {@link #start()} when the handshake started
+     * @param resumed Flag indicating that the client has resumed a session
+     */
+    void handshakeCompleted(final long start, final boolean resumed) {
+        if (enabled) {
+            stop(handshake, start);
+            (resumed ? resumedHandshakes : fullHandshakes).increment();
+        }
+    }
+
+    /**
+     * Counts a TLS handshake that has failed or timed out.
+     */
+    void handshakeFailed() {
+        if (enabled) {
+            failedHandshakes.increment();
+        }
+    }
+
+    /**
+     * Sets the pool of worker threads, whose queue length is reported as the queue depth.
+     * @param pool The pool
+     */
+    void setWorkerPool(final ExecutorService pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Appends the {@code HELP} and {@code TYPE} lines of a metric.
+     * @param b Builder of the text
+     * @param name Name of the metric
+     * @param help Description of the metric
+     * @param type Type of the metric
+     */
+    private static void appendHeader(final StringBuilder b, final String name,
+            final String help, final String type) {
+        b.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        b.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    /**
+     * Appends a histogram; its buckets are cumulative and measured in seconds,
+     * as Prometheus expects.
+     * @param b Builder of the text
+     * @param name Name of the metric
+     * @param help Description of the metric
+     * @param histogram The histogram
+     */
+    private static void appendHistogram(final StringBuilder b, final String name,
+            final String help, final Histogram histogram) {
+        appendHeader(b, name, help, "histogram");
+        final long[] counts = histogram.getBucketCounts();
+        long total = 0;
+        for (int index = 0; index < counts.length; index++) {
+            total += counts[index];
+            b.append(name).append("_bucket{le=\"");
+            if (index == counts.length - 1) {
+                b.append("+Inf");
+            } else {
+                b.append(Histogram.getUpperBound(index) / 1e9);
+            }
+            b.append("\"} ").append(total).append('\n');
+        }
+        b.append(name).append("_sum ").append(histogram.getSum() / 1e9).append('\n');
+        b.append(name).append("_count ").append(total).append('\n');
+    }
+}
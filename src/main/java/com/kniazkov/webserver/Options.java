@@ -6,6 +6,12 @@ package com.kniazkov.webserver;
 import com.kniazkov.json.Json;
 import com.kniazkov.json.JsonException;
 import java.io.File;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
+import javax.net.ssl.SSLServerSocket;
 
 /**
  * Some options for starting the server.
@@ -22,18 +28,133 @@ public final class Options implements Cloneable {
 	 */
 	public String wwwRoot = "./www";
 
+	/**
+	 * Maximum total size of static files kept in memory, in bytes.
+	 * Cached files are stored outside the heap and are served without reading the disk;
+	 * the least recently used files are evicted when the cache is full.
+	 * Zero disables the cache.
+	 */
+	public long fileCacheSize = 64L * 1024 * 1024;
+
+	/**
+	 * Maximum size of a static file that can be cached, in bytes.
+	 * Larger files are read from disk on each request.
+	 */
+	public long maxCachedFileSize = 1024 * 1024;
+
+	/**
+	 * Minimum size of a static file that is transferred to the client directly from the file,
+	 * in bytes. Such files are not loaded into memory, the data is copied by the operating system
+	 * kernel (for HTTPS connections, through a small intermediate buffer).
+	 * Smaller files that are not cached are read into memory entirely.
+	 */
+	public long sendfileThreshold = 64 * 1024;
+
+	/**
+	 * Compress responses (gzip or deflate, as negotiated with the client)
+	 * whose content type is textual, for example, HTML, CSS, JavaScript or JSON.
+	 * Compressed variants of cached static files are cached as well; if a static file
+	 * has a sibling with the {@code .gz} extension (e.g. {@code app.js.gz}), the sibling is sent
+	 * to clients that accept gzip.
+	 */
+	public boolean compression = true;
+
+	/**
+	 * Minimum size of response data that is compressed, in bytes.
+	 * Compressing tiny responses costs more than it saves.
+	 */
+	public int compressionThreshold = 1024;
+
+	/**
+	 * Maximum size of uploaded data kept in memory, in bytes.
+	 * Files uploaded with {@code multipart/form-data} that are larger are written to temporary
+	 * files (see {@link FileDescriptor#path}), which are deleted once the request is processed.
+	 * Fields that are not files, and POST bodies that are not {@code multipart/form-data},
+	 * are kept in memory as strings, so a request with a larger one is answered
+	 * with {@code 400 Bad Request}.
+	 * The non-blocking engine also writes request bodies larger than this to a temporary file
+	 * while receiving them.
+	 */
+	public long uploadMemoryThreshold = 1024 * 1024;
+
+	/**
+	 * Size of the buffer into which the data received from a client is read before parsing,
+	 * in bytes. Larger buffers mean fewer reads for large request bodies (uploads).
+	 */
+	public int readBufferSize = 8192;
+
 	/**
 	 * The number of simultaneous requests that the server can handle.
 	 */
 	public int threadCount = 16;
 
+	/**
+	 * Maximum number of tasks waiting for a free worker thread. For the thread-per-connection
+	 * engine a task is a new connection, for the non-blocking engine it is a received request.
+	 * When the queue is full, the client gets {@code 503 Service Unavailable} at once,
+	 * so the latency of the admitted requests stays bounded under overload.
+	 * Zero means no limit. Ignored for {@link #virtualThreads}, which do not queue.
+	 */
+	public int maxQueueSize = 1000;
+
+	/**
+	 * Maximum number of client connections open at the same time. Clients connecting
+	 * beyond the limit get {@code 503 Service Unavailable} (HTTPS clients are just
+	 * disconnected, since answering them would need a TLS handshake). Zero means no limit.
+	 */
+	public int maxConnections = 10000;
+
+	/**
+	 * Value of the {@code Retry-After} header sent with {@code 503 Service Unavailable}
+	 * when the server is overloaded, in seconds.
+	 */
+	public int retryAfter = 1;
+
+	/**
+	 * Run workers in virtual threads, one new virtual thread per task, instead of
+	 * a fixed pool of {@link #threadCount} platform threads.
+	 * Handlers that are mostly blocked on I/O then no longer limit the number of requests
+	 * that are processed simultaneously.
+	 * Requires Java 21 or newer; on older JVMs the fixed pool is used.
+	 */
+	public boolean virtualThreads = false;
+
+	/**
+	 * Disable Nagle's algorithm ({@code TCP_NODELAY}) on client connections.
+	 * The server collects each response (and the responses to pipelined requests)
+	 * before writing it, so there is nothing for Nagle's algorithm to merge, and it would
+	 * only delay the last segment of a response.
+	 */
+	public boolean tcpNoDelay = true;
+
+	/**
+	 * Size of the socket send buffer of client connections ({@code SO_SNDBUF}), in bytes.
+	 * Zero means the operating system default.
+	 */
+	public int socketSendBufferSize = 0;
+
+	/**
+	 * Size of the socket receive buffer of client connections ({@code SO_RCVBUF}), in bytes.
+	 * Zero means the operating system default.
+	 */
+	public int socketReceiveBufferSize = 0;
+
     /**
      * Socket read timeout in milliseconds.
      * Defines how long the server will wait for client data before closing the connection
-	 * due to inactivity.
+	 * due to inactivity. Zero means that a connection serves one request and is closed;
+	 * otherwise connections are kept alive, and idle ones wait for the next request
+	 * without occupying a worker thread (except for HTTPS and {@link #virtualThreads}).
      */
 	public int timeout = 0;
 
+	/**
+	 * Maximum time in milliseconds for the stage returned by an {@link AsyncHandler}
+	 * to complete. If it takes longer, the client gets {@code 504 Gateway Timeout}.
+	 * Zero means no limit.
+	 */
+	public int asyncTimeout = 30000;
+
     /**
      * Path to the keystore file (e.g. {@code keystore.jks}) used for HTTPS connections.
      * If {@code null}, the server will start in plain HTTP mode.
@@ -41,6 +162,11 @@ public final class Options implements Cloneable {
 	 * <code>
 	 *     keytool -genkeypair -alias testserver -keyalg RSA -keysize 2048 -validity 365 -keystore keystore.jks -storepass changeit
 	 * </code>
+	 * An EC key makes full handshakes several times cheaper for the server than an RSA key
+	 * (ECDSA signatures instead of RSA ones); all current browsers support it:
+	 * <code>
+	 *     keytool -genkeypair -alias testserver -keyalg EC -groupname secp256r1 -validity 365 -keystore keystore.p12 -storetype PKCS12 -storepass changeit
+	 * </code>
      */
     public String certificate = null;
 
@@ -56,6 +182,118 @@ public final class Options implements Cloneable {
      */
     public String keyPassword = null;
 
+	/**
+	 * Type of the keystore file, for example {@code JKS} or {@code PKCS12}.
+	 */
+	public String keystoreType = "JKS";
+
+	/**
+	 * Comma-separated list of the TLS protocol versions that clients may use,
+	 * for example {@code TLSv1.3,TLSv1.2}. If {@code null}, the defaults of the JVM are used.
+	 */
+	public String tlsProtocols = null;
+
+	/**
+	 * Comma-separated list of the cipher suites that clients may use, for example
+	 * {@code TLS_AES_128_GCM_SHA256,TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256}; suites that
+	 * do not match the key type of the certificate are never chosen.
+	 * If {@code null}, the defaults of the JVM are used.
+	 */
+	public String tlsCipherSuites = null;
+
+	/**
+	 * Maximum number of TLS sessions kept by the server so that returning clients can resume
+	 * them with an abbreviated handshake instead of a full one. Zero means no limit.
+	 * Session tickets, which let clients resume sessions without the cache, are a setting
+	 * of the whole JVM: start it with {@code -Djdk.tls.server.enableSessionTicketExtension=true}
+	 * (Java 13 or newer).
+	 */
+	public int tlsSessionCacheSize = 20480;
+
+	/**
+	 * Time after which a TLS session can no longer be resumed, in seconds.
+	 * Zero means no limit.
+	 */
+	public int tlsSessionTimeout = 86400;
+
+	/**
+	 * Number of threads that perform TLS handshakes (at least one). A connection is passed to a worker
+	 * thread only after its handshake is complete, so slow or expensive handshakes do not
+	 * occupy the workers. The handshakes wait in a queue limited by {@link #maxQueueSize};
+	 * when it is full, new connections are closed.
+	 */
+	public int handshakeThreads = 4;
+
+	/**
+	 * Maximum time for a client to complete the TLS handshake, in milliseconds.
+	 * Zero means no limit.
+	 */
+	public int handshakeTimeout = 10000;
+
+	/**
+	 * Use the non-blocking engine instead of the thread-per-connection one.
+	 * The non-blocking engine reads and parses requests of all connections in a single thread
+	 * using a selector, and only passes fully parsed requests to the {@link #threadCount} worker
+	 * threads, so that idle keep-alive connections do not occupy the workers.
+	 * Works for plain HTTP only; if {@link #certificate} is set, this option is ignored.
+	 */
+	public boolean nonBlocking = false;
+
+	/**
+	 * Serve HTTP/2 clients. Over HTTPS, the protocol is negotiated with ALPN (which needs
+	 * Java 9 or newer, or Java 8u252 or newer); over plain HTTP, clients that start
+	 * the connection with the HTTP/2 preface (prior knowledge) are served. The requests
+	 * of a connection are processed by the worker threads simultaneously.
+	 * Disabled by default, so existing HTTPS servers keep speaking HTTP/1.1 until
+	 * this option is set to {@code true}.
+	 */
+	public boolean http2 = false;
+
+	/**
+	 * Maximum number of requests an HTTP/2 client may send over one connection
+	 * at the same time; further requests are refused until the responses are sent.
+	 */
+	public int http2MaxConcurrentStreams = 100;
+
+	/**
+	 * Maximum size of a message received over a WebSocket connection, in bytes, after
+	 * decompression; a client sending a larger message is disconnected.
+	 */
+	public int webSocketMaxMessageSize = 1 << 20;
+
+	/**
+	 * Time in milliseconds after which a WebSocket client that has sent nothing is pinged;
+	 * if it does not answer within the same time, the connection is closed. Zero disables
+	 * pings, so a silent client is never disconnected.
+	 */
+	public int webSocketPingInterval = 30000;
+
+	/**
+	 * Compress WebSocket messages (the {@code permessage-deflate} extension)
+	 * if the client offers it.
+	 */
+	public boolean webSocketCompression = true;
+
+	/**
+	 * Collect metrics (latencies of the processing phases, load, response codes,
+	 * traffic), see {@link Server#getMetrics()}.
+	 */
+	public boolean metrics = true;
+
+	/**
+	 * Path at which the server responds with its metrics in the Prometheus text format,
+	 * for example {@code /metrics}, instead of calling the handler.
+	 * If {@code null}, the metrics are not served on the main port.
+	 */
+	public String metricsPath = null;
+
+	/**
+	 * Port of a separate plain HTTP listener that serves the metrics in the Prometheus
+	 * text format at any path, so that they are not exposed to the clients of the main
+	 * port. Zero means no such listener.
+	 */
+	public int metricsPort = 0;
+
 	/**
 	 * Creates and returns a copy of this {@code Options} instance.
 	 *
@@ -66,14 +304,95 @@ public final class Options implements Cloneable {
 		Options o = new Options();
 		o.port = port;
 		o.wwwRoot = wwwRoot;
+		o.fileCacheSize = fileCacheSize;
+		o.maxCachedFileSize = maxCachedFileSize;
+		o.sendfileThreshold = sendfileThreshold;
+		o.compression = compression;
+		o.compressionThreshold = compressionThreshold;
+		o.uploadMemoryThreshold = uploadMemoryThreshold;
+		o.readBufferSize = readBufferSize;
 		o.threadCount = threadCount;
+		o.maxQueueSize = maxQueueSize;
+		o.maxConnections = maxConnections;
+		o.retryAfter = retryAfter;
+		o.virtualThreads = virtualThreads;
+		o.tcpNoDelay = tcpNoDelay;
+		o.socketSendBufferSize = socketSendBufferSize;
+		o.socketReceiveBufferSize = socketReceiveBufferSize;
 		o.timeout = timeout;
+		o.asyncTimeout = asyncTimeout;
         o.certificate = certificate;
         o.keystorePassword = keystorePassword;
         o.keyPassword = keyPassword;
+		o.keystoreType = keystoreType;
+		o.tlsProtocols = tlsProtocols;
+		o.tlsCipherSuites = tlsCipherSuites;
+		o.tlsSessionCacheSize = tlsSessionCacheSize;
+		o.tlsSessionTimeout = tlsSessionTimeout;
+		o.handshakeThreads = handshakeThreads;
+		o.handshakeTimeout = handshakeTimeout;
+		o.nonBlocking = nonBlocking;
+		o.http2 = http2;
+		o.http2MaxConcurrentStreams = http2MaxConcurrentStreams;
+		o.webSocketMaxMessageSize = webSocketMaxMessageSize;
+		o.webSocketPingInterval = webSocketPingInterval;
+		o.webSocketCompression = webSocketCompression;
+		o.metrics = metrics;
+		o.metricsPath = metricsPath;
+		o.metricsPort = metricsPort;
 		return o;
 	}
 
+	/**
+	 * Applies the socket options to the listening socket before it is bound.
+	 * The receive buffer size must be set here to take effect for accepted connections
+	 * (the TCP window scale is negotiated during the handshake).
+	 * @param socket The listening socket
+	 * @throws SocketException If the options cannot be set
+	 */
+	void configure(final ServerSocket socket) throws SocketException {
+		if (socketReceiveBufferSize > 0) {
+			socket.setReceiveBufferSize(socketReceiveBufferSize);
+		}
+		if (socket instanceof SSLServerSocket) {
+			final SSLServerSocket secure = (SSLServerSocket) socket;
+			if (tlsProtocols != null) {
+				secure.setEnabledProtocols(split(tlsProtocols));
+			}
+			if (tlsCipherSuites != null) {
+				secure.setEnabledCipherSuites(split(tlsCipherSuites));
+			}
+		}
+	}
+
+	/**
+	 * Applies the socket options to an accepted client connection.
+	 * @param socket The socket of the connection
+	 * @throws SocketException If the options cannot be set
+	 */
+	void configure(final Socket socket) throws SocketException {
+		socket.setTcpNoDelay(tcpNoDelay);
+		if (socketSendBufferSize > 0) {
+			socket.setSendBufferSize(socketSendBufferSize);
+		}
+	}
+
+	/**
+	 * Splits a comma-separated list.
+	 * @param list The list
+	 * @return Its trimmed, non-empty items
+	 */
+	private static String[] split(final String list) {
+		final List<String> items = new ArrayList<>();
+		for (final String item : list.split(",")) {
+			final String trimmed = item.trim();
+			if (!trimmed.isEmpty()) {
+				items.add(trimmed);
+			}
+		}
+		return items.toArray(new String[0]);
+	}
+
     /**
      * Loads server options from a JSON configuration file.
      *
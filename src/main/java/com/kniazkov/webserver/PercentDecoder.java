@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2025 Ivan Kniazkov
+ */
+package com.kniazkov.webserver;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decoder of percent-encoded strings (URL paths, query strings, form data and cookies).
+ * Unlike {@link java.net.URLDecoder}, it does not allocate anything if the string contains
+ * nothing to decode, and it leaves malformed escape sequences as they are instead of throwing
+ * an exception.
+ */
+final class PercentDecoder {
+    /**
+     * Private constructor.
+     */
+    private PercentDecoder() {
+    }
+
+    /**
+     * Decodes a percent-encoded string. Decoded bytes are interpreted as UTF-8.
+     * @param text String containing the encoded part
+     * @param start Index of the first character of the encoded part
+     * @param end Index of the character following the encoded part
+     * @param plusAsSpace Flag indicating that {@code +} means space
+     *  (as in {@code application/x-www-form-urlencoded} data)
+     * @return Decoded string
+     */
+    static String decode(final String text, final int start, final int end,
+            final boolean plusAsSpace) {
+        int index = start;
+        while (index < end) {
+            final char ch = text.charAt(index);
+            if (ch == '%' || ch == '+' && plusAsSpace) {
+                break;
+            }
+            index++;
+        }
+        if (index == end) {
+            return start == 0 && end == text.length() ? text : text.substring(start, end);
+        }
+        final byte[] bytes = new byte[(end - start) * 3];
+        int size = 0;
+        index = start;
+        while (index < end) {
+            final char ch = text.charAt(index);
+            if (ch == '%' && index + 2 < end) {
+                final int high = digit(text.charAt(index + 1));
+                final int low = digit(text.charAt(index + 2));
+                if (high >= 0 && low >= 0) {
+                    bytes[size++] = (byte) (high << 4 | low);
+                    index += 3;
+                    continue;
+                }
+            }
+            if (ch == '+' && plusAsSpace) {
+                bytes[size++] = ' ';
+            } else if (ch < 0x80) {
+                bytes[size++] = (byte) ch;
+            } else {
+                final int next =
+                    Character.isHighSurrogate(ch) && index + 1 < end ? index + 2 : index + 1;
+                final byte[] encoded = text.substring(index, next).getBytes(StandardCharsets.UTF_8);
+                System.arraycopy(encoded, 0, bytes, size, encoded.length);
+                size += encoded.length;
+                index = next;
+                continue;
+            }
+            index++;
+        }
+        return new String(bytes, 0, size, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Decodes a whole percent-encoded string.
+     * @param text The string
+     * @param plusAsSpace Flag indicating that {@code +} means space
+     * @return Decoded string
+     */
+    static String decode(final String text, final boolean plusAsSpace) {
+        return decode(text, 0, text.length(), plusAsSpace);
+    }
+
+    /**
+     * Returns the value of a hexadecimal digit.
+     * @param ch The digit
+     * @return Its value or -1 if the character is not a hexadecimal digit
+     */
+    private static int digit(final char ch) {
+        if (ch >= '0' && ch <= '9') {
+            return ch - '0';
+        }
+        if (ch >= 'a' && ch <= 'f') {
+            return ch - 'a' + 10;
+        }
+        if (ch >= 'A' && ch <= 'F') {
+            return ch - 'A' + 10;
+        }
+        return -1;
+    }
+}
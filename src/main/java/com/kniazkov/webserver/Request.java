@@ -3,13 +3,23 @@
  */
 package com.kniazkov.webserver;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Request received from a client and then parsed.
  */
 public final class Request {
+    /**
+     * Logger.
+     */
+    private static final Logger logger = Logger.getLogger(Request.class.getName());
+
     /**
      * The address entered in the address line, or generated by an HTTP request.<br/>
      * Examples:
@@ -34,19 +44,24 @@ public final class Request {
 
     /**
      * Parsed web form data (query string parameters or URL-encoded body).
+     * The data is decoded on first access. Fields are listed in the order they were sent.
+     * @see #getFormData()
      */
-    public Map<String, String> formData = new TreeMap<>();
+    public Map<String, String> formData;
 
     /**
      * Parsed web form data containing transferred files using POST method
      * with <code>multipart/form-data</code>.
+     * @see #getFiles()
      */
-    public Map<String, FileDescriptor> files = new TreeMap<>();
+    public Map<String, FileDescriptor> files;
 
     /**
      * Parsed HTTP cookies sent by the client.
+     * The cookies are decoded from the {@code Cookie} header on first access.
+     * @see #getCookies()
      */
-    public Map<String, String> cookies = new TreeMap<>();
+    public Map<String, String> cookies;
 
     /**
      * Indicates whether the client requested to close the connection
@@ -60,4 +75,87 @@ public final class Request {
      * For example, {@code /api/data} in {@code /api/data?x=1}.
      */
     public String path = "";
-}
\ No newline at end of file
+
+    /**
+     * Request headers. Names are case-insensitive, i.e. {@code headers.get("content-type")}
+     * and {@code headers.get("Content-Type")} return the same value. If a header occurs
+     * several times, its values are joined with commas.
+     */
+    public Map<String, String> headers;
+
+    /**
+     * Values of the parameters of the path pattern that matched the request, such as
+     * {@code id} in {@code /users/{id}}, set by {@link Router}. Empty if the request
+     * has not been routed or the pattern has no parameters.
+     * @see #getPathParameters()
+     */
+    public Map<String, String> pathParameters = Collections.emptyMap();
+
+    /**
+     * Constructor of an empty request.
+     */
+    public Request() {
+        this.formData = new CompactMap<>();
+        this.files = new CompactMap<>();
+        this.cookies = new CompactMap<>();
+        this.headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    }
+
+    /**
+     * Constructor of a request being parsed.
+     * @param headers Request headers
+     */
+    Request(final Headers headers) {
+        this.formData = new CompactMap<>();
+        this.files = new CompactMap<>();
+        this.cookies = EncodedMap.cookies(() -> headers.join(HeaderNames.COOKIE, "; "));
+        this.headers = headers;
+    }
+
+    /**
+     * Returns the web form data (query string parameters or URL-encoded body).
+     * @return Map of form fields
+     */
+    public Map<String, String> getFormData() {
+        return formData;
+    }
+
+    /**
+     * Returns the files transferred using POST method with <code>multipart/form-data</code>.
+     * @return Map of files
+     */
+    public Map<String, FileDescriptor> getFiles() {
+        return files;
+    }
+
+    /**
+     * Returns the HTTP cookies sent by the client.
+     * @return Map of cookies
+     */
+    public Map<String, String> getCookies() {
+        return cookies;
+    }
+
+    /**
+     * Returns the values of the path parameters set by {@link Router}.
+     * @return Map of path parameters
+     */
+    public Map<String, String> getPathParameters() {
+        return pathParameters;
+    }
+
+    /**
+     * Deletes the temporary files containing uploaded files (see {@link FileDescriptor#path}).
+     */
+    void deleteTemporaryFiles() {
+        for (final FileDescriptor file : files.values()) {
+            if (file.path != null) {
+                try {
+                    Files.deleteIfExists(file.path);
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Failed to delete a temporary file", e);
+                }
+            }
+        }
+    }
+}
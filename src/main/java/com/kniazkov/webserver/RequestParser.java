@@ -0,0 +1,350 @@
+/*
+ * Copyright (c) 2025 Ivan Kniazkov
+ */
+package com.kniazkov.webserver;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Parser that turns the raw data received from a client into {@link Request} objects.
+ * The parser does not depend on how the data is delivered, so it is shared by all server engines.
+ * The request line and headers are parsed directly in the received bytes: names of well-known
+ * headers are not allocated at all, values are only turned into strings when accessed.
+ */
+final class RequestParser {
+    /**
+     * Maximum size of the request line and headers, in bytes.
+     */
+    static final int MAX_HEADER_SIZE = 65536;
+
+    /**
+     * Private constructor.
+     */
+    private RequestParser() {
+    }
+
+    /**
+     * Parses an HTTP request received from the client.
+     *
+     * This method reads data from the stream reader (request line, headers, and optionally
+     * the body), determines the HTTP method, target address, headers, and fills the
+     * {@link Request} object.
+     * For POST requests, it also extracts form parameters or file data
+     * in case of <code>multipart/form-data</code>.
+     *
+     * Uploaded files larger than {@link Options#uploadMemoryThreshold} are written
+     * to temporary files, which are deleted by {@link Request#deleteTemporaryFiles()}.
+     * Other fields larger than that, as well as larger POST bodies that are not
+     * <code>multipart/form-data</code>, are rejected, so that they never have to be read into
+     * the heap as a whole.
+     *
+     * @param reader The stream reader used to read client data line by line
+     * @param options Options
+     * @return A {@link Request} object containing the parsed request data or {@code null}
+     *  if the client has sent nothing (i.e., the connection was closed)
+     * @throws BadRequestException If the received data is not a valid HTTP request
+     * @throws IOException If an error occurs while reading from the stream
+     */
+    static Request parse(final StreamReader reader, final Options options) throws IOException {
+        return parse(reader, options, Metrics.NONE);
+    }
+
+    /**
+     * Parses an HTTP request received from the client, see
+     * {@link #parse(StreamReader, Options)}, and records the parse time and the number
+     * of received bytes in the metrics.
+     * @param reader The stream reader used to read client data line by line
+     * @param options Options
+     * @param metrics Metrics of the server
+     * @return A {@link Request} object containing the parsed request data or {@code null}
+     *  if the client has sent nothing (i.e., the connection was closed)
+     * @throws BadRequestException If the received data is not a valid HTTP request
+     * @throws IOException If an error occurs while reading from the stream
+     */
+    static Request parse(final StreamReader reader, final Options options, final Metrics metrics)
+            throws IOException {
+        reader.setLimit(-1);
+        final byte[] head = reader.readHeaders(MAX_HEADER_SIZE);
+        if (head == null) {
+            return null;
+        }
+        final long start = metrics.start();
+        int lineEnd = indexOf(head, 0, head.length, '\n');
+        int next = lineEnd + 1;
+        if (lineEnd < 0) {
+            lineEnd = head.length;
+            next = lineEnd;
+        }
+        final int first = skipSpaces(head, 0, lineEnd);
+        final int last = trimSpaces(head, first, lineEnd);
+        if (first == last) {
+            return null;
+        }
+        final Headers headers = new Headers(head);
+        final Request request = new Request(headers);
+        parseRequestLine(head, first, last, request);
+
+        long contentLength = 0;
+        String boundary = "";
+        int position = next;
+        while (position < head.length) {
+            lineEnd = indexOf(head, position, head.length, '\n');
+            next = lineEnd + 1;
+            if (lineEnd < 0) {
+                lineEnd = head.length;
+                next = lineEnd;
+            }
+            final int end = trimSpaces(head, position, lineEnd);
+            if (end == position) {
+                break;
+            }
+            final int colon = indexOf(head, position, end, ':');
+            if (colon > position) {
+                final String name = HeaderNames.intern(head, position,
+                    trimSpaces(head, position, colon));
+                final int index = headers.add(name, skipSpaces(head, colon + 1, end), end);
+                if (name == HeaderNames.CONTENT_LENGTH) {
+                    contentLength = parseContentLength(headers.getValue(index));
+                } else if (name == HeaderNames.CONTENT_TYPE) {
+                    final String value = headers.getValue(index);
+                    if (value.startsWith("multipart/form-data;")) {
+                        final int boundaryIndex = value.indexOf("boundary=");
+                        if (boundaryIndex != -1) {
+                            boundary = value.substring(boundaryIndex + 9);
+                        }
+                    }
+                } else if (name == HeaderNames.CONNECTION) {
+                    if (headers.valueEqualsIgnoreCase(index, "close")) {
+                        request.closeConnection = true;
+                    }
+                }
+            }
+            position = next;
+        }
+
+        final String address = request.address;
+        final int qIndex = address.indexOf('?');
+        request.path = qIndex >= 0 ? address.substring(0, qIndex) : address;
+
+        if (request.method == Method.POST) {
+            reader.setLimit(contentLength);
+            reader.setBoundary("--" + boundary);
+        }
+
+        if (request.method == Method.GET) {
+            if (qIndex >= 0) {
+                request.formData = EncodedMap.form(() -> address.substring(qIndex + 1));
+            }
+        } else if (request.method == Method.POST && boundary.length() == 0) {
+            if (contentLength > options.uploadMemoryThreshold) {
+                throw new BadRequestException("Form data is too large: " + contentLength);
+            }
+            final String body = reader.readLine(options.uploadMemoryThreshold);
+            request.formData = EncodedMap.form(() -> body);
+        } else if (boundary.length() > 0) {
+            try {
+                parseMultipart(reader, request, boundary, options.uploadMemoryThreshold);
+            } catch (IOException | RuntimeException e) {
+                request.deleteTemporaryFiles();
+                throw e;
+            }
+        }
+
+        if (request.method == Method.POST) {
+            reader.skipToLimit();
+            metrics.received(contentLength);
+        }
+        metrics.received(head.length);
+        metrics.stop(metrics.parse, start);
+        return request;
+    }
+
+    /**
+     * Parses the request line, for example, {@code GET /index.html HTTP/1.1}.
+     * If the line does not consist of three parts, the request is left with
+     * the unknown method and the empty address.
+     * @param data Array containing the line
+     * @param start Index of the first byte of the line
+     * @param end Index of the byte following the line
+     * @param request The request to which the method, the address and the version are set
+     */
+    private static void parseRequestLine(final byte[] data, final int start, final int end,
+            final Request request) {
+        final int methodEnd = indexOf(data, start, end, ' ');
+        if (methodEnd < 0) {
+            return;
+        }
+        final int addressStart = skipSpaces(data, methodEnd, end);
+        final int addressEnd = indexOf(data, addressStart, end, ' ');
+        if (addressEnd < 0) {
+            return;
+        }
+        final int versionStart = skipSpaces(data, addressEnd, end);
+        if (versionStart == end) {
+            return;
+        }
+        request.address = new String(data, addressStart, addressEnd - addressStart,
+            StandardCharsets.ISO_8859_1);
+        request.httpVersion = new String(data, versionStart, end - versionStart,
+            StandardCharsets.ISO_8859_1);
+        final int length = methodEnd - start;
+        if (length == 3 && HeaderNames.matchesIgnoreCase("GET", data, start)) {
+            request.method = Method.GET;
+        } else if (length == 4 && HeaderNames.matchesIgnoreCase("POST", data, start)) {
+            request.method = Method.POST;
+        }
+    }
+
+    /**
+     * Parses the value of the {@code Content-Length} header.
+     * @param value The value
+     * @return Length of the request body
+     * @throws BadRequestException If the value is not a valid length
+     */
+    private static long parseContentLength(final String value) throws BadRequestException {
+        final int length = value.length();
+        if (length == 0 || length > 18) {
+            throw new BadRequestException("Invalid content length: " + value);
+        }
+        long result = 0;
+        for (int index = 0; index < length; index++) {
+            final char ch = value.charAt(index);
+            if (ch < '0' || ch > '9') {
+                throw new BadRequestException("Invalid content length: " + value);
+            }
+            result = result * 10 + (ch - '0');
+        }
+        return result;
+    }
+
+    /**
+     * Searches for a byte.
+     * @param data Array to be searched
+     * @param start Index of the first byte to be checked
+     * @param end Index of the byte following the last byte to be checked
+     * @param value The byte
+     * @return Index of the byte or -1 if there is no such byte
+     */
+    private static int indexOf(final byte[] data, final int start, final int end,
+            final char value) {
+        for (int index = start; index < end; index++) {
+            if (data[index] == value) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Skips whitespace.
+     * @param data Array containing the data
+     * @param start Index of the first byte to be checked
+     * @param end Index of the byte following the data
+     * @return Index of the first byte that is not whitespace, or {@code end}
+     */
+    private static int skipSpaces(final byte[] data, int start, final int end) {
+        while (start < end && (data[start] & 0xff) <= ' ') {
+            start++;
+        }
+        return start;
+    }
+
+    /**
+     * Removes trailing whitespace (including CR).
+     * @param data Array containing the data
+     * @param start Index of the first byte of the data
+     * @param end Index of the byte following the data
+     * @return Index of the byte following the last byte that is not whitespace, or {@code start}
+     */
+    private static int trimSpaces(final byte[] data, final int start, int end) {
+        while (end > start && (data[end - 1] & 0xff) <= ' ') {
+            end--;
+        }
+        return end;
+    }
+
+    /**
+     * Parses data of a POST request sent as <code>multipart/form-data</code>.
+     * @param reader The stream reader positioned at the beginning of the request body
+     * @param request The request to which the form fields and files are added
+     * @param boundary Boundary separating the parts
+     * @param threshold Maximum size of a file kept in memory and of a field that is not a file,
+     *  in bytes
+     * @throws BadRequestException If the data is not valid or a field that is not a file
+     *  is larger than the threshold
+     * @throws IOException If an error occurs while reading from the stream or writing
+     *  a temporary file
+     */
+    private static void parseMultipart(final StreamReader reader, final Request request,
+            final String boundary, final long threshold) throws IOException {
+        String item = reader.readLine(MAX_HEADER_SIZE);
+        if (!item.equals("--" + boundary)) {
+            throw new BadRequestException("Multipart data does not start with the boundary");
+        }
+        do {
+            String key = "";
+            String contentType = "";
+            String fileName = "";
+            do {
+                item = reader.readLine(MAX_HEADER_SIZE);
+                if (item.startsWith("Content-Disposition: form-data")) {
+                    int nameIndex = item.indexOf("name=\"");
+                    if (nameIndex >= 0) {
+                        key = item.substring(nameIndex + 6);
+                        int closingQuoteIndex = key.indexOf("\"");
+                        if (closingQuoteIndex < 0) {
+                            throw new BadRequestException("Unclosed quote in the field name");
+                        }
+                        key = key.substring(0, closingQuoteIndex);
+                    }
+                    int fileNameIndex = item.indexOf("filename=\"");
+                    if (fileNameIndex >= 0) {
+                        fileName = item.substring(fileNameIndex + 10);
+                        int closingQuoteIndex = fileName.indexOf("\"");
+                        if (closingQuoteIndex < 0) {
+                            throw new BadRequestException("Unclosed quote in the file name");
+                        }
+                        fileName = fileName.substring(0, closingQuoteIndex);
+                    }
+                }
+                else if (item.startsWith("Content-Type:")) {
+                    contentType = item.substring(14);
+                }
+            } while (item.length() != 0);
+            final SpillOutput data = new SpillOutput(threshold);
+            try {
+                reader.readToBoundary(data);
+                data.close();
+            } catch (IOException | RuntimeException e) {
+                data.discard();
+                throw e;
+            }
+            final int first = reader.readByte();
+            final int second = reader.readByte();
+            if (fileName.length() == 0) {
+                final byte[] value = data.getData();
+                if (value == null) {
+                    data.discard();
+                    throw new BadRequestException("Form field is too large: " + key);
+                }
+                request.formData.put(key, new String(value, StandardCharsets.UTF_8));
+            } else {
+                final FileDescriptor file = new FileDescriptor();
+                file.name = PercentDecoder.decode(fileName, true);
+                file.contentType = contentType;
+                file.data = data.getData();
+                file.path = data.getPath();
+                file.size = data.getSize();
+                final FileDescriptor previous = request.files.put(key, file);
+                if (previous != null && previous.path != null) {
+                    Files.deleteIfExists(previous.path);
+                }
+            }
+            if (first != 13 && second != 10) {
+                break;
+            }
+        } while (true);
+    }
+}
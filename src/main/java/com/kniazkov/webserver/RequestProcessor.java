@@ -0,0 +1,1188 @@
+/*
+ * Copyright (c) 2025 Ivan Kniazkov
+ */
+package com.kniazkov.webserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Processor of parsed requests: invokes the handler and writes the resulting response
+ * (or a static file) to the client.
+ * The processor does not hold any state related to a particular connection, so one instance
+ * is shared by all threads of a server engine.
+ */
+final class RequestProcessor {
+    /**
+     * Logger.
+     */
+    private static final Logger logger = Logger.getLogger(RequestProcessor.class.getName());
+
+    /**
+     * Length of the response data meaning that the response has no body at all
+     * ({@code 304 Not Modified}).
+     */
+    private static final long NO_BODY = -1;
+
+    /**
+     * Length of the response data meaning that the data is sent with the chunked
+     * transfer coding.
+     */
+    private static final long CHUNKED = -2;
+
+    /**
+     * Length of the response data meaning that the data lasts until the connection is closed.
+     */
+    private static final long UNTIL_CLOSE = -3;
+
+    /**
+     * Maximum number of content types whose header lines are kept encoded.
+     */
+    private static final int MAX_CACHED_CONTENT_TYPES = 64;
+
+    /**
+     * Header line {@code Access-Control-Allow-Origin: *}.
+     */
+    private static final byte[] ACCESS_CONTROL_ALLOW_ORIGIN =
+        HeaderBuilder.encodeLine("Access-Control-Allow-Origin: *");
+
+    /**
+     * Header line {@code Transfer-Encoding: chunked}.
+     */
+    private static final byte[] TRANSFER_ENCODING_CHUNKED =
+        HeaderBuilder.encodeLine("Transfer-Encoding: chunked");
+
+    /**
+     * Header line {@code Accept-Ranges: bytes}.
+     */
+    private static final byte[] ACCEPT_RANGES = HeaderBuilder.encodeLine("Accept-Ranges: bytes");
+
+    /**
+     * Header line {@code Vary: Accept-Encoding}.
+     */
+    private static final byte[] VARY_ACCEPT_ENCODING =
+        HeaderBuilder.encodeLine("Vary: Accept-Encoding");
+
+    /**
+     * Header line {@code Connection: close}.
+     */
+    private static final byte[] CONNECTION_CLOSE = HeaderBuilder.encodeLine("Connection: close");
+
+    /**
+     * Prefix of the {@code Content-Type} header line.
+     */
+    private static final byte[] CONTENT_TYPE = HeaderBuilder.encodePrefix("Content-Type");
+
+    /**
+     * Prefix of the {@code Content-Length} header line.
+     */
+    private static final byte[] CONTENT_LENGTH = HeaderBuilder.encodePrefix("Content-Length");
+
+    /**
+     * Prefix of the {@code ETag} header line.
+     */
+    private static final byte[] ETAG = HeaderBuilder.encodePrefix("ETag");
+
+    /**
+     * Prefix of the {@code Last-Modified} header line.
+     */
+    private static final byte[] LAST_MODIFIED = HeaderBuilder.encodePrefix("Last-Modified");
+
+    /**
+     * Prefix of the {@code Content-Range} header line.
+     */
+    private static final byte[] CONTENT_RANGE = HeaderBuilder.encodePrefix("Content-Range");
+
+    /**
+     * Prefix of the {@code Content-Encoding} header line.
+     */
+    private static final byte[] CONTENT_ENCODING = HeaderBuilder.encodePrefix("Content-Encoding");
+
+    /**
+     * Prefix of the {@code Set-Cookie} header line.
+     */
+    private static final byte[] SET_COOKIE = HeaderBuilder.encodePrefix("Set-Cookie");
+
+    /**
+     * Ending of the {@code Set-Cookie} header line.
+     */
+    private static final byte[] COOKIE_PATH = HeaderBuilder.encodeLine("; Path=/");
+
+    /**
+     * Prefix of the {@code Retry-After} header line.
+     */
+    private static final byte[] RETRY_AFTER = HeaderBuilder.encodePrefix("Retry-After");
+
+    /**
+     * Encoded status lines, by response code.
+     */
+    private static final ConcurrentHashMap<String, byte[]> statusLines = new ConcurrentHashMap<>();
+
+    /**
+     * Encoded {@code Content-Type} header lines, by content type.
+     */
+    private static final ConcurrentHashMap<String, byte[]> contentTypeLines =
+        new ConcurrentHashMap<>();
+
+    /**
+     * Builder of the header block of each thread.
+     */
+    private static final ThreadLocal<HeaderBuilder> headerBuilder =
+        ThreadLocal.withInitial(HeaderBuilder::new);
+
+    /**
+     * Options.
+     */
+    private final Options options;
+
+    /**
+     * Encoded {@code Keep-Alive} header line, which depends on the options.
+     */
+    private final byte[] keepAlive;
+
+    /**
+     * Handler that handles requests received from clients.
+     */
+    private final AsyncHandler asyncHandler;
+
+    /**
+     * Synchronous handler that is adapted to {@link #asyncHandler} and called directly,
+     * or {@code null} if the handler is asynchronous.
+     */
+    private final Handler handler;
+
+    /**
+     * Cache of static files.
+     */
+    private final FileCache cache;
+
+    /**
+     * Absolute path to the folder containing static files.
+     */
+    private final Path root;
+
+    /**
+     * Metrics of the server.
+     */
+    private final Metrics metrics;
+
+    /**
+     * Handler responding with the metrics on {@link Options#metricsPath}.
+     */
+    private final Handler metricsHandler;
+
+    /**
+     * Constructor.
+     * @param options Options
+     * @param handler Handler that handles requests received from clients
+     * @param cache Cache of static files
+     * @param metrics Metrics of the server
+     */
+    RequestProcessor(final Options options, final AsyncHandler handler, final FileCache cache,
+            final Metrics metrics) {
+        this.options = options;
+        this.metrics = metrics;
+        this.metricsHandler = metrics.getHandler();
+        this.asyncHandler = handler;
+        this.handler = handler instanceof HandlerAdapter ? ((HandlerAdapter) handler).handler : null;
+        this.cache = cache;
+        this.root = Paths.get(options.wwwRoot).toAbsolutePath().normalize();
+        this.keepAlive = HeaderBuilder.encodeLine("Keep-Alive: timeout="
+            + Math.max(options.timeout / 1000, 1) + ", max=100");
+    }
+
+    /**
+     * Processes a single parsed HTTP request.
+     *
+     * Invokes the handler and writes the resulting {@link Response} or a static file
+     * to the output stream. Temporary files of the request are deleted afterwards.
+     *
+     * @param request The parsed request
+     * @param stream The output to which the response is written
+     * @return {@code true} if the connection must be closed after the response has been sent
+     * @throws IOException If an I/O error occurs while writing the response
+     */
+    boolean process(final Request request, final ClientOutput stream) throws IOException {
+        final long written = stream.getWrittenBytes();
+        metrics.requestStarted();
+        try {
+            return processRequest(request, stream);
+        } finally {
+            metrics.requestFinished();
+            metrics.sent(stream.getWrittenBytes() - written);
+            request.deleteTemporaryFiles();
+        }
+    }
+
+    /**
+     * Returns the metrics of the server.
+     * @return The metrics
+     */
+    Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Checks whether a request asks for the metrics, see {@link Options#metricsPath}.
+     * @param request The request
+     * @return {@code true} if the metrics must be returned instead of calling the handler
+     */
+    private boolean isMetricsRequest(final Request request) {
+        return options.metricsPath != null && request.method == Method.GET
+            && options.metricsPath.equals(request.path);
+    }
+
+    /**
+     * Checks whether the handler is asynchronous. Requests for an asynchronous handler
+     * are processed by {@link #start(Request)} and {@link #finish(Request, ClientOutput,
+     * CompletableFuture)} instead of {@link #process(Request, ClientOutput)}.
+     * @return {@code true} if the handler is asynchronous
+     */
+    boolean isAsync() {
+        return handler == null;
+    }
+
+    /**
+     * Invokes the asynchronous handler.
+     * @param request The parsed request
+     * @return Future that completes with the response of the handler, exceptionally
+     *  if the handler fails, or with {@link TimeoutException} if the handler takes longer
+     *  than {@link Options#asyncTimeout}
+     */
+    CompletableFuture<Response> start(final Request request) {
+        final CompletableFuture<Response> result = new CompletableFuture<>();
+        if (isMetricsRequest(request)) {
+            result.complete(metricsHandler.handle(request));
+            return result;
+        }
+        if (metrics.enabled) {
+            final long start = metrics.start();
+            metrics.requestStarted();
+            result.whenComplete((response, failure) -> {
+                metrics.stop(metrics.handle, start);
+                metrics.requestFinished();
+            });
+        }
+        final CompletionStage<Response> stage;
+        try {
+            stage = asyncHandler.handle(request);
+        } catch (Throwable t) {
+            result.completeExceptionally(t);
+            return result;
+        }
+        if (stage == null) {
+            result.completeExceptionally(new NullPointerException("Handler returned no stage"));
+            return result;
+        }
+        stage.whenComplete((response, failure) -> {
+            if (failure != null) {
+                result.completeExceptionally(failure);
+            } else {
+                result.complete(response);
+            }
+        });
+        if (!result.isDone() && options.asyncTimeout > 0) {
+            final ScheduledFuture<?> timer = Timer.INSTANCE.schedule(
+                () -> result.completeExceptionally(new TimeoutException()),
+                options.asyncTimeout, TimeUnit.MILLISECONDS);
+            result.whenComplete((response, failure) -> timer.cancel(false));
+        }
+        return result;
+    }
+
+    /**
+     * Writes the response of the asynchronous handler to the output stream, see
+     * {@link #process(Request, ClientOutput)}. Temporary files of the request are deleted
+     * afterwards.
+     * @param request The parsed request
+     * @param stream The output to which the response is written
+     * @param result Completed future returned by {@link #start(Request)}
+     * @return {@code true} if the connection must be closed after the response has been sent
+     * @throws IOException If an I/O error occurs while writing the response
+     */
+    boolean finish(final Request request, final ClientOutput stream,
+            final CompletableFuture<Response> result) throws IOException {
+        final long written = stream.getWrittenBytes();
+        metrics.requestStarted();
+        try {
+            if (request.method == Method.UNKNOWN) {
+                writeResponse(stream, "200 OK", "text/javascript");
+            }
+            final Response response;
+            try {
+                response = result.join();
+            } catch (CompletionException | CancellationException e) {
+                Throwable cause = e;
+                while (cause instanceof CompletionException && cause.getCause() != null) {
+                    cause = cause.getCause();
+                }
+                if (cause instanceof TimeoutException) {
+                    logger.log(Level.WARNING, "Handler has not responded in time");
+                    writeResponse(stream, "504 Gateway Timeout");
+                } else {
+                    logger.log(Level.WARNING, "Handler threw an exception", cause);
+                    writeResponse(stream, "500 Internal Server Error");
+                }
+                return true;
+            }
+            return respond(request, stream, response, metrics.start());
+        } finally {
+            metrics.requestFinished();
+            metrics.sent(stream.getWrittenBytes() - written);
+            request.deleteTemporaryFiles();
+        }
+    }
+
+    /**
+     * Processes a single parsed HTTP request, see {@link #process(Request, ClientOutput)}.
+     * @param request The parsed request
+     * @param stream The output to which the response is written
+     * @return {@code true} if the connection must be closed after the response has been sent
+     * @throws IOException If an I/O error occurs while writing the response
+     */
+    private boolean processRequest(final Request request, final ClientOutput stream)
+            throws IOException {
+        if (request.method == Method.UNKNOWN) {
+            writeResponse(stream, "200 OK", "text/javascript");
+        }
+        if (isMetricsRequest(request)) {
+            return respond(request, stream, metricsHandler.handle(request), metrics.start());
+        }
+        final Response response;
+        final long start = metrics.start();
+        final long handled;
+        try {
+            response = handler.handle(request);
+            handled = metrics.stop(metrics.handle, start);
+        } catch (Throwable t) {
+            metrics.stop(metrics.handle, start);
+            logger.log(Level.WARNING, "Handler threw an exception", t);
+            writeResponse(stream, "500 Internal Server Error");
+            return true;
+        }
+        return respond(request, stream, response, handled);
+    }
+
+    /**
+     * Writes the response of the handler, or a static file if there is no response.
+     * @param request The parsed request
+     * @param stream The output to which the response is written
+     * @param response Response of the handler or {@code null}
+     * @param start Time when writing has started, for the metrics
+     * @return {@code true} if the connection must be closed after the response has been sent
+     * @throws IOException If an I/O error occurs while writing the response
+     */
+    private boolean respond(final Request request, final ClientOutput stream,
+            final Response response, final long start) throws IOException {
+        final String encoding = options.compression
+            ? Compressor.negotiate(request.headers.getOrDefault(HeaderNames.ACCEPT_ENCODING, "")) : null;
+        if (response != null) {
+            final String etag = quoteETag(response.getETag());
+            final long lastModified = response.getLastModified();
+            final String lastModifiedText = lastModified >= 0 ? HttpDate.format(lastModified) : null;
+            if (isNotModified(request, etag, lastModified)) {
+                writeNotModified(stream, response.getContentType(), etag, lastModifiedText,
+                    response.getCookies());
+            } else if (response instanceof ResponseFile) {
+                sendFile(stream, (ResponseFile) response, etag, lastModifiedText);
+            } else if (response instanceof ResponseStream) {
+                if (!sendStream(request, stream, (ResponseStream) response, encoding, etag,
+                        lastModifiedText)) {
+                    metrics.stop(metrics.write, start);
+                    return true;
+                }
+            } else {
+                writeResponse(
+                    stream,
+                    "200 OK",
+                    response.getContentType(),
+                    response.getData(),
+                    response.getCookies(),
+                    encoding,
+                    etag,
+                    lastModifiedText,
+                    null
+                );
+            }
+            metrics.stop(metrics.write, start);
+        } else {
+            readAndSendLocalFile(request, stream, encoding);
+            metrics.stop(metrics.fileRead, start);
+        }
+        return request.closeConnection || options.timeout == 0;
+    }
+
+    /**
+     * Reads a static file from the local {@code wwwRoot} folder and sends it to the client.
+     * If the requested path is {@code /}, the default file {@code /index.html} is served.
+     * If the file does not exist, a {@code 404 Not Found} response is returned.
+     * If an I/O error occurs, a {@code 500 Internal Server Error} is returned.
+     * Files that are small enough are served from the cache, large files are transferred
+     * to the client without loading them into memory.
+     * Textual files are compressed if the client accepts it; precompressed siblings
+     * ({@code .gz} files) are preferred over compression on the fly.
+     * If the copy cached by the client is still valid, {@code 304 Not Modified} is returned
+     * without reading the file.
+     * If the client requests a part of the file with the {@code Range} header, only that part
+     * is sent, uncompressed ({@code 206 Partial Content}).
+     *
+     * @param request The parsed HTTP request containing the target address
+     * @param stream The output to which the response is written
+     * @param encoding Compression method accepted by the client or {@code null}
+     * @throws IOException If an error occurs while reading the file or writing the response
+     */
+    private void readAndSendLocalFile(final Request request, final ClientOutput stream,
+            final String encoding) throws IOException {
+        if (request.address.startsWith("/?")) {
+            writeResponse(stream, "500 Internal Server Error");
+        } else {
+            String path = request.address;
+            int index = path.indexOf('?');
+            if (index >= 0)
+                path = path.substring(0, index);
+            if (path.equals("/")) {
+                path = "/index.html";
+            } else {
+                path = PercentDecoder.decode(path, false);
+            }
+            final Path file = resolveLocalFile(path);
+            final String type = getContentType(path);
+            final boolean compress = encoding != null && Compressor.isCompressible(type);
+            try {
+                FileCache.Entry entry = file != null ? cache.get(file) : null;
+                if (entry == null) {
+                    writeResponse(stream, "404 Not Found");
+                    return;
+                }
+                if (isNotModified(request, entry.etag, entry.lastModified)) {
+                    writeNotModified(stream, type, entry.etag, entry.lastModifiedText, null);
+                    return;
+                }
+                final List<ByteRange> ranges = getRanges(request, entry);
+                if (ranges != null) {
+                    sendRanges(stream, type, cache.load(entry), ranges);
+                    return;
+                }
+                final FileCache.Entry precompressed =
+                    compress && Compressor.GZIP.equals(encoding)
+                        ? findPrecompressedFile(entry) : null;
+                if (precompressed == null) {
+                    entry = cache.load(entry);
+                }
+                if (precompressed != null) {
+                    sendCacheEntry(stream, type, entry, cache.load(precompressed), Compressor.GZIP);
+                } else if (entry.content != null) {
+                    ByteBuffer data = entry.content;
+                    String contentEncoding = null;
+                    if (compress && entry.size >= options.compressionThreshold) {
+                        data = cache.getCompressed(entry, encoding);
+                        if (data != entry.content) {
+                            contentEncoding = encoding;
+                        }
+                    }
+                    writeResponse(stream, "200 OK", type, data, contentEncoding,
+                        getVariantETag(entry.etag, contentEncoding), entry.lastModifiedText, "");
+                } else if (entry.size >= options.sendfileThreshold) {
+                    sendCacheEntry(stream, type, entry, entry, null);
+                } else {
+                    byte[] content = Files.readAllBytes(file);
+                    writeResponse(stream, "200 OK", type, content, null, compress ? encoding : null,
+                        entry.etag, entry.lastModifiedText, "");
+                }
+            }
+            catch (IOException ignored) {
+                writeResponse(stream, "500 Internal Server Error");
+            }
+        }
+    }
+
+    /**
+     * Looks for a precompressed sibling of a static file, i.e. a file with the same name
+     * and the additional {@code .gz} extension, which is not older than the file itself.
+     * @param entry Cache entry of the static file
+     * @return Cache entry of the sibling or {@code null} if there is no such file
+     * @throws IOException If the sibling cannot be read
+     */
+    private FileCache.Entry findPrecompressedFile(final FileCache.Entry entry) throws IOException {
+        final Path sibling = entry.path.resolveSibling(entry.path.getFileName() + ".gz");
+        if (!sibling.toFile().isFile()) {
+            return null;
+        }
+        final FileCache.Entry result = cache.get(sibling);
+        return result != null && result.lastModified >= entry.lastModified ? result : null;
+    }
+
+    /**
+     * Sends a static file, from the cache if it is cached there, or directly from the disk.
+     * @param stream The output to which the response is written
+     * @param type Content type of the file
+     * @param file Cache entry of the requested file, which provides the validators
+     * @param entry Cache entry of the file to be sent (the requested file itself or its
+     *  precompressed sibling)
+     * @param contentEncoding Encoding of the file content (if it is already compressed)
+     *  or {@code null}
+     * @throws IOException If an error occurs while reading the file or writing the response
+     */
+    private void sendCacheEntry(final ClientOutput stream, final String type,
+            final FileCache.Entry file, final FileCache.Entry entry, final String contentEncoding)
+            throws IOException {
+        final String etag = getVariantETag(file.etag, contentEncoding);
+        if (entry.content != null) {
+            writeResponse(stream, "200 OK", type, entry.content, contentEncoding,
+                etag, file.lastModifiedText, "");
+        } else {
+            final FileChannel channel = FileChannel.open(entry.path, StandardOpenOption.READ);
+            writeResponse(stream, "200 OK", type, channel, 0, channel.size(), contentEncoding,
+                etag, file.lastModifiedText, "", null);
+        }
+    }
+
+    /**
+     * Determines the parts of a static file requested by the client.
+     * The {@code Range} header is ignored if the {@code If-Range} header is present and does
+     * not match the current version of the file, since the part of the file held by the client
+     * is outdated and the whole file must be sent again.
+     * @param request The request
+     * @param entry Cache entry of the file
+     * @return List of ranges to be sent, an empty list if the ranges cannot be satisfied,
+     *  or {@code null} if the whole file must be sent
+     */
+    private static List<ByteRange> getRanges(final Request request, final FileCache.Entry entry) {
+        if (request.method != Method.GET || !request.headers.containsKey(HeaderNames.RANGE)) {
+            return null;
+        }
+        final String ifRange = request.headers.getOrDefault(HeaderNames.IF_RANGE, "");
+        if (!ifRange.isEmpty()) {
+            if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+                if (!ifRange.equals(entry.etag)) {
+                    return null;
+                }
+            } else if (HttpDate.parse(ifRange) / 1000 != entry.lastModified / 1000) {
+                return null;
+            }
+        }
+        return ByteRange.parse(request.headers.get(HeaderNames.RANGE), entry.size);
+    }
+
+    /**
+     * Sends parts of a static file to the client: one part as the body of
+     * a {@code 206 Partial Content} response, several parts as {@code multipart/byteranges}.
+     * The parts are taken from the cached content or transferred from the file directly.
+     * If there are no parts, {@code 416 Range Not Satisfiable} is sent.
+     * @param stream The output to which the response is written
+     * @param type Content type of the file
+     * @param entry Cache entry of the file
+     * @param ranges Parts of the file to be sent
+     * @throws IOException If an error occurs while reading the file or writing the response
+     */
+    private void sendRanges(final ClientOutput stream, final String type,
+            final FileCache.Entry entry, final List<ByteRange> ranges) throws IOException {
+        final String code = "206 Partial Content";
+        if (ranges.isEmpty()) {
+            writeHeaders(stream, "416 Range Not Satisfiable", type, 0, null, entry.etag,
+                entry.lastModifiedText, "bytes */" + entry.size, null);
+            stream.endResponse();
+            return;
+        }
+        if (ranges.size() == 1) {
+            final ByteRange range = ranges.get(0);
+            final String contentRange = range.getContentRange(entry.size);
+            if (entry.content != null) {
+                writeResponse(stream, code, type, range.slice(entry.content), null, entry.etag,
+                    entry.lastModifiedText, contentRange);
+            } else {
+                final FileChannel channel = FileChannel.open(entry.path, StandardOpenOption.READ);
+                writeResponse(stream, code, type, channel, range.first, range.getLength(), null,
+                    entry.etag, entry.lastModifiedText, contentRange, null);
+            }
+            return;
+        }
+        final String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong());
+        final byte[][] headers = new byte[ranges.size()][];
+        long length = 0;
+        for (int index = 0; index < headers.length; index++) {
+            final ByteRange range = ranges.get(index);
+            headers[index] = ("\r\n--" + boundary + "\r\nContent-Type: " + type
+                + "\r\nContent-Range: " + range.getContentRange(entry.size) + "\r\n\r\n")
+                .getBytes(StandardCharsets.ISO_8859_1);
+            length += headers[index].length + range.getLength();
+        }
+        final byte[] end = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        length += end.length;
+        final FileChannel channel = entry.content == null
+            ? FileChannel.open(entry.path, StandardOpenOption.READ) : null;
+        try {
+            writeHeaders(stream, code, "multipart/byteranges; boundary=" + boundary, length, null,
+                entry.etag, entry.lastModifiedText, "", null);
+            for (int index = 0; index < headers.length; index++) {
+                final ByteRange range = ranges.get(index);
+                stream.write(headers[index]);
+                if (channel == null) {
+                    stream.write(range.slice(entry.content));
+                } else {
+                    stream.transfer(channel, range.first, range.getLength());
+                }
+            }
+            stream.write(end);
+            stream.endResponse();
+        } finally {
+            if (channel != null) {
+                stream.release(channel);
+            }
+        }
+    }
+
+    /**
+     * Sends a response containing a file returned by the handler.
+     * If the file does not exist, a {@code 404 Not Found} response is returned.
+     * @param stream The output to which the response is written
+     * @param response The response
+     * @param etag Entity tag of the response or {@code null}
+     * @param lastModified Modification time of the response, formatted for HTTP headers,
+     *  or {@code null}
+     * @throws IOException If an error occurs while reading the file or writing the response
+     */
+    private void sendFile(final ClientOutput stream, final ResponseFile response,
+            final String etag, final String lastModified) throws IOException {
+        final FileChannel channel;
+        try {
+            channel = response.open();
+        } catch (NoSuchFileException ignored) {
+            writeResponse(stream, "404 Not Found");
+            return;
+        }
+        writeResponse(stream, "200 OK", response.getContentType(), channel,
+            response.getPosition(), response.getCount(channel), null, etag, lastModified, null,
+            response.getCookies());
+    }
+
+    /**
+     * Sends a response whose data is produced by the handler while it is being sent.
+     * The data is sent with the chunked transfer coding; HTTP/1.0 clients, which do not
+     * support it, receive the data as is, and the connection is closed after it.
+     * Since the status line is sent before the data is produced, errors occurring
+     * while producing the data can't be reported to the client: the response is cut off
+     * and the connection is closed.
+     * @param request The request
+     * @param stream The output to which the response is written
+     * @param response The response
+     * @param encoding Compression method accepted by the client or {@code null}
+     * @param etag Entity tag of the response or {@code null}
+     * @param lastModified Modification time of the response, formatted for HTTP headers,
+     *  or {@code null}
+     * @return {@code true} if the connection can be kept alive
+     * @throws IOException If there's something wrong with the output stream
+     */
+    private boolean sendStream(final Request request, final ClientOutput stream,
+            final ResponseStream response, final String encoding, final String etag,
+            final String lastModified) throws IOException {
+        final boolean chunked = !"HTTP/1.0".equalsIgnoreCase(request.httpVersion);
+        final String type = response.getContentType();
+        final String contentEncoding =
+            encoding != null && Compressor.isCompressible(type) ? encoding : null;
+        writeHeaders(stream, "200 OK", type, chunked ? CHUNKED : UNTIL_CLOSE, contentEncoding,
+            getVariantETag(etag, contentEncoding), lastModified, null, response.getCookies());
+        final ChunkedOutput body = new ChunkedOutput(stream, chunked);
+        try {
+            OutputStream output = body;
+            if (Compressor.GZIP.equals(contentEncoding)) {
+                output = new GZIPOutputStream(body, 8192, true);
+            } else if (Compressor.DEFLATE.equals(contentEncoding)) {
+                output = new DeflaterOutputStream(body, true);
+            }
+            response.write(output);
+            output.close();
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Streamed response is interrupted", e);
+            return false;
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Streamed response threw an exception", e);
+            return false;
+        }
+        stream.endResponse();
+        return chunked;
+    }
+
+    /**
+     * Checks whether the copy of the resource cached by the client is still valid, based on
+     * the {@code If-None-Match} and {@code If-Modified-Since} request headers.
+     * {@code If-Modified-Since} is only taken into account if there is no
+     * {@code If-None-Match} header. Tags are compared using the weak comparison,
+     * so compressed and uncompressed representations of the same resource match each other.
+     * @param request The request
+     * @param etag Entity tag of the resource or {@code null}
+     * @param lastModified Modification time of the resource, in milliseconds, or -1
+     * @return {@code true} if the resource is not modified and {@code 304 Not Modified}
+     *  must be sent instead
+     */
+    private static boolean isNotModified(final Request request, final String etag,
+            final long lastModified) {
+        if (request.method != Method.GET) {
+            return false;
+        }
+        final String ifNoneMatch = request.headers.get(HeaderNames.IF_NONE_MATCH);
+        if (ifNoneMatch != null && !ifNoneMatch.isEmpty()) {
+            if (etag == null) {
+                return false;
+            }
+            final String opaque = getOpaqueTag(etag);
+            for (final String item : ifNoneMatch.split(",")) {
+                final String tag = item.trim();
+                if (tag.equals("*") || getOpaqueTag(tag).equals(opaque)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        final String ifModifiedSince = request.headers.get(HeaderNames.IF_MODIFIED_SINCE);
+        if (ifModifiedSince != null && !ifModifiedSince.isEmpty() && lastModified >= 0) {
+            final long since = HttpDate.parse(ifModifiedSince);
+            return since >= 0 && lastModified / 1000 <= since / 1000;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the opaque part of an entity tag, without the weakness indicator, the quotes,
+     * and the suffix that denotes a compressed representation.
+     * @param etag Entity tag
+     * @return Opaque part of the tag
+     */
+    private static String getOpaqueTag(final String etag) {
+        String tag = etag;
+        if (tag.startsWith("W/")) {
+            tag = tag.substring(2);
+        }
+        if (tag.length() >= 2 && tag.charAt(0) == '"' && tag.charAt(tag.length() - 1) == '"') {
+            tag = tag.substring(1, tag.length() - 1);
+        }
+        final String[] suffixes = { '-' + Compressor.GZIP, '-' + Compressor.DEFLATE };
+        for (final String suffix : suffixes) {
+            if (tag.endsWith(suffix)) {
+                return tag.substring(0, tag.length() - suffix.length());
+            }
+        }
+        return tag;
+    }
+
+    /**
+     * Adds quotes to an entity tag returned by a handler, if it is not quoted.
+     * @param etag Entity tag or {@code null}
+     * @return Quoted entity tag or {@code null}
+     */
+    private static String quoteETag(final String etag) {
+        if (etag == null || etag.isEmpty()) {
+            return null;
+        }
+        if (etag.endsWith("\"") && (etag.startsWith("\"") || etag.startsWith("W/\""))) {
+            return etag;
+        }
+        return '"' + etag + '"';
+    }
+
+    /**
+     * Returns the entity tag of a representation of a resource. Compressed representations
+     * differ from the original one byte by byte, so they get their own tags.
+     * @param etag Entity tag of the resource or {@code null}
+     * @param contentEncoding Encoding of the representation or {@code null}
+     * @return Entity tag of the representation or {@code null}
+     */
+    private static String getVariantETag(final String etag, final String contentEncoding) {
+        if (etag == null || contentEncoding == null) {
+            return etag;
+        }
+        return etag.substring(0, etag.length() - 1) + '-' + contentEncoding + '"';
+    }
+
+    /**
+     * Converts the path from the request to the path of a file inside the {@code wwwRoot} folder.
+     * @param path Decoded path from the request, starting with {@code /}
+     * @return Normalized absolute path of the file or {@code null} if the path
+     *  points outside the folder or is not valid
+     */
+    private Path resolveLocalFile(final String path) {
+        try {
+            final Path file = root.resolve(path.substring(1)).normalize();
+            return file.startsWith(root) ? file : null;
+        } catch (InvalidPathException ignored) {
+            return null;
+        }
+    }
+
+    /**
+     * Determines the content type of a static file by its extension.
+     * @param path Path to the file
+     * @return Content type, for example, {@code image/jpeg} or {@code text/html}
+     */
+    private static String getContentType(final String path) {
+        String extension = "";
+        int index = path.lastIndexOf('.');
+        if (index > 0)
+            extension = path.substring(index + 1).toLowerCase();
+        String type = "application/unknown";
+        if (extension.length() > 0) {
+            switch(extension)
+            {
+                case "txt":
+                    type = "text/plain";
+                    break;
+                case "htm":
+                case "html":
+                    type = "text/html";
+                    break;
+                case "css":
+                    type = "text/css";
+                    break;
+                case "js":
+                    type = "text/javascript";
+                    break;
+                case "jpg":
+                case "jpeg":
+                case "png":
+                case "gif":
+                    type = "image/" + extension;
+                    break;
+                default:
+                    type = "application/" + extension;
+            }
+        }
+        return type;
+    }
+
+    /**
+     * Sends a response to the client without body, without cookies,
+     * and without explicitly specified content type.
+     * @param stream The output to which the response is written
+     * @param code Response code, for example {@code 404 Not Found}
+     * @throws IOException If there's something wrong with the output stream
+     */
+    void writeResponse(final ClientOutput stream, final String code) throws IOException {
+        writeResponse(stream, code, null, (byte[]) null, null);
+    }
+
+    /**
+     * Sends a response to the client without body and without cookies.
+     * @param stream The output to which the response is written
+     * @param code Response code, for example {@code 404 Not Found}
+     * @param type Response type, for example, {@code image/jpeg} or {@code text/html}
+     * @throws IOException If there's something wrong with the output stream
+     */
+    void writeResponse(final ClientOutput stream, final String code, final String type)
+            throws IOException {
+        writeResponse(stream, code, type, (byte[]) null, null);
+    }
+
+    /**
+     * Sends a response to the client. No {@code Set-Cookie} headers are included.
+     * @param stream The output to which the response is written
+     * @param code Response code, for example {@code 404 Not Found}
+     * @param type Response type, for example, {@code image/jpeg} or {@code text/html}
+     * @param data Response data, or {@code null} if there is no data
+     * @throws IOException If there's something wrong with the output stream
+     */
+    void writeResponse(final ClientOutput stream, final String code, final String type,
+            final byte[] data) throws IOException {
+        writeResponse(stream, code, type, data, null);
+    }
+
+    /**
+     * Sends a response to the client.
+     * @param stream The output to which the response is written
+     * @param code Response code, for example {@code 404 Not Found}
+     * @param type Response type, for example, {@code image/jpeg} or {@code text/html}
+     * @param data Response data, or {@code null} if there is no data
+     * @param cookies Map of cookies to set in the response, if empty or {@code null},
+     *  no cookies are sent
+     * @throws IOException If there's something wrong with the output stream
+     */
+    void writeResponse(final ClientOutput stream, final String code, final String type,
+            final byte[] data, final Map<String, String> cookies) throws IOException {
+        writeResponse(stream, code, type, data, cookies, null, null, null, null);
+    }
+
+    /**
+     * Sends a response to the client, compressing the data if it is worth it.
+     * @param stream The output to which the response is written
+     * @param code Response code, for example {@code 404 Not Found}
+     * @param type Response type, for example, {@code image/jpeg} or {@code text/html}
+     * @param data Response data, or {@code null} if there is no data
+     * @param cookies Map of cookies to set in the response, if empty or {@code null},
+     *  no cookies are sent
+     * @param encoding Compression method accepted by the client or {@code null}
+     * @param etag Entity tag of the data or {@code null}
+     * @param lastModified Modification time of the data, formatted for HTTP headers,
+     *  or {@code null}
+     * @param contentRange See {@link #writeHeaders}
+     * @throws IOException If there's something wrong with the output stream
+     */
+    private void writeResponse(final ClientOutput stream, final String code, final String type,
+            final byte[] data, final Map<String, String> cookies, final String encoding,
+            final String etag, final String lastModified, final String contentRange)
+            throws IOException {
+        byte[] body = data;
+        String contentEncoding = null;
+        if (encoding != null && data != null && data.length >= options.compressionThreshold
+                && Compressor.isCompressible(type)) {
+            final byte[] compressed = Compressor.compress(data, 0, data.length, encoding);
+            if (compressed.length < data.length) {
+                body = compressed;
+                contentEncoding = encoding;
+            }
+        }
+        writeHeaders(stream, code, type, body != null ? body.length : 0, contentEncoding,
+            getVariantETag(etag, contentEncoding), lastModified, contentRange, cookies);
+        if (body != null) {
+            stream.write(body);
+        }
+        stream.endResponse();
+    }
+
+    /**
+     * Sends a response, whose data is contained in a byte buffer, to the client.
+     * @param stream The output to which the response is written
+     * @param code Response code, for example {@code 404 Not Found}
+     * @param type Response type, for example, {@code image/jpeg} or {@code text/html}
+     * @param data Buffer containing the response data; its position is not changed
+     * @param contentEncoding Encoding of the data (if it is compressed) or {@code null}
+     * @param etag Entity tag of the data or {@code null}
+     * @param lastModified Modification time of the data, formatted for HTTP headers,
+     *  or {@code null}
+     * @param contentRange See {@link #writeHeaders}
+     * @throws IOException If there's something wrong with the output stream
+     */
+    private void writeResponse(final ClientOutput stream, final String code, final String type,
+            final ByteBuffer data, final String contentEncoding, final String etag,
+            final String lastModified, final String contentRange) throws IOException {
+        writeHeaders(stream, code, type, data.remaining(), contentEncoding, etag, lastModified,
+            contentRange, null);
+        stream.write(data);
+        stream.endResponse();
+    }
+
+    /**
+     * Sends a response, whose data is a region of a file, to the client.
+     * The file channel is closed after the data has been sent.
+     * @param stream The output to which the response is written
+     * @param code Response code, for example {@code 404 Not Found}
+     * @param type Response type, for example, {@code image/jpeg} or {@code text/html}
+     * @param file File channel
+     * @param position Position of the first byte of the region
+     * @param count Number of bytes in the region
+     * @param contentEncoding Encoding of the file content (if it is compressed) or {@code null}
+     * @param etag Entity tag of the data or {@code null}
+     * @param lastModified Modification time of the data, formatted for HTTP headers,
+     *  or {@code null}
+     * @param contentRange See {@link #writeHeaders}
+     * @param cookies Map of cookies to set in the response, if empty or {@code null},
+     *  no cookies are sent
+     * @throws IOException If there's something wrong with the file or the output stream
+     */
+    private void writeResponse(final ClientOutput stream, final String code, final String type,
+            final FileChannel file, final long position, final long count,
+            final String contentEncoding, final String etag, final String lastModified,
+            final String contentRange, final Map<String, String> cookies) throws IOException {
+        try {
+            writeHeaders(stream, code, type, count, contentEncoding, etag, lastModified,
+                contentRange, cookies);
+            stream.transfer(file, position, count);
+            stream.endResponse();
+        } finally {
+            stream.release(file);
+        }
+    }
+
+    /**
+     * Sends a {@code 304 Not Modified} response, which has no body, to the client.
+     * @param stream The output to which the response is written
+     * @param type Type of the resource, for example, {@code image/jpeg} or {@code text/html}
+     * @param etag Entity tag of the resource or {@code null}
+     * @param lastModified Modification time of the resource, formatted for HTTP headers,
+     *  or {@code null}
+     * @param cookies Map of cookies to set in the response, if empty or {@code null},
+     *  no cookies are sent
+     * @throws IOException If there's something wrong with the output stream
+     */
+    private void writeNotModified(final ClientOutput stream, final String type, final String etag,
+            final String lastModified, final Map<String, String> cookies) throws IOException {
+        writeHeaders(stream, "304 Not Modified", type, NO_BODY, null, etag, lastModified, null,
+            cookies);
+        stream.endResponse();
+    }
+
+    /**
+     * Sends the status line and headers of a response to the client.
+     * @param stream The output to which the response is written
+     * @param code Response code, for example {@code 404 Not Found}
+     * @param type Response type, for example, {@code image/jpeg} or {@code text/html}
+     * @param length Length of the response data, in bytes, or one of the special values:
+     *  {@link #NO_BODY} (the {@code Content-Type} and {@code Content-Length} headers
+     *  are omitted), {@link #CHUNKED} or {@link #UNTIL_CLOSE}
+     * @param contentEncoding Encoding of the response data (if it is compressed) or {@code null}
+     * @param etag Entity tag of the response data or {@code null}
+     * @param lastModified Modification time of the response data, formatted
+     *  for HTTP headers, or {@code null}
+     * @param contentRange {@code null} if the resource does not support range requests,
+     *  an empty string if it does ({@code Accept-Ranges} is sent), or the value of
+     *  the {@code Content-Range} header if the response contains a part of the resource
+     * @param cookies Map of cookies to set in the response, if empty or {@code null},
+     *  no cookies are sent
+     * @throws IOException If there's something wrong with the output stream
+     */
+    private void writeHeaders(final ClientOutput stream, final String code, String type,
+            final long length, final String contentEncoding, final String etag,
+            final String lastModified, final String contentRange,
+            final Map<String, String> cookies) throws IOException {
+        if (type == null)
+            type = "application/unknown";
+        final HeaderBuilder b = headerBuilder.get().reset();
+
+        metrics.countResponse(code);
+        b.append(getStatusLine(code));
+        b.append(HttpDate.getDateHeader());
+        b.append(ACCESS_CONTROL_ALLOW_ORIGIN);
+
+        if (length != NO_BODY) {
+            b.append(getContentTypeLine(type));
+        }
+
+        if (length >= 0) {
+            b.appendHeader(CONTENT_LENGTH, length);
+        } else if (length == CHUNKED) {
+            b.append(TRANSFER_ENCODING_CHUNKED);
+        }
+
+        if (etag != null) {
+            b.appendHeader(ETAG, etag);
+        }
+        if (lastModified != null) {
+            b.appendHeader(LAST_MODIFIED, lastModified);
+        }
+        if (contentRange != null) {
+            b.append(ACCEPT_RANGES);
+            if (!contentRange.isEmpty()) {
+                b.appendHeader(CONTENT_RANGE, contentRange);
+            }
+        }
+
+        if (contentEncoding != null) {
+            b.appendHeader(CONTENT_ENCODING, contentEncoding);
+        }
+        if (options.compression && Compressor.isCompressible(type)) {
+            b.append(VARY_ACCEPT_ENCODING);
+        }
+
+        if (cookies != null) {
+            for (Map.Entry<String, String> entry : cookies.entrySet()) {
+                b.append(SET_COOKIE)
+                    .append(entry.getKey())
+                    .append("=")
+                    .append(entry.getValue())
+                    .append(COOKIE_PATH);
+            }
+        }
+
+        if (options.timeout == 0 || length == UNTIL_CLOSE)
+            b.append(CONNECTION_CLOSE);
+        else
+            b.append(keepAlive);
+
+        b.end();
+        b.writeTo(stream);
+    }
+
+    /**
+     * Encodes the response sent when the server is overloaded:
+     * {@code 503 Service Unavailable} with the {@code Retry-After} header,
+     * after which the connection is closed.
+     * @return The response, including the empty line that terminates the headers
+     */
+    byte[] encodeServiceUnavailable() {
+        metrics.countResponse("503");
+        return headerBuilder.get().reset()
+            .append(getStatusLine("503 Service Unavailable"))
+            .append(HttpDate.getDateHeader())
+            .append(ACCESS_CONTROL_ALLOW_ORIGIN)
+            .appendHeader(CONTENT_LENGTH, 0)
+            .appendHeader(RETRY_AFTER, Math.max(options.retryAfter, 0))
+            .append(CONNECTION_CLOSE)
+            .end()
+            .toByteArray();
+    }
+
+    /**
+     * Returns the encoded status line of a response.
+     * @param code Response code, for example {@code 404 Not Found}
+     * @return Encoded status line
+     */
+    private static byte[] getStatusLine(final String code) {
+        return statusLines.computeIfAbsent(code,
+            key -> HeaderBuilder.encodeLine("HTTP/1.1 " + key));
+    }
+
+    /**
+     * Returns the encoded {@code Content-Type} header line. Lines of the first content types
+     * seen are kept, so handlers that invent new types do not make the cache grow forever.
+     * @param type Content type
+     * @return Encoded header line
+     */
+    private static byte[] getContentTypeLine(final String type) {
+        byte[] line = contentTypeLines.get(type);
+        if (line == null) {
+            line = new HeaderBuilder().appendHeader(CONTENT_TYPE, type).toByteArray();
+            if (contentTypeLines.size() < MAX_CACHED_CONTENT_TYPES) {
+                contentTypeLines.putIfAbsent(type, line);
+            }
+        }
+        return line;
+    }
+
+    /**
+     * Holder of the timer that completes the stages of asynchronous handlers
+     * that take too long; the thread is created on first use.
+     */
+    private static final class Timer {
+        /**
+         * The timer.
+         */
+        static final ScheduledThreadPoolExecutor INSTANCE = create();
+
+        /**
+         * Creates the timer.
+         * @return The timer, with a single daemon thread
+         */
+        private static ScheduledThreadPoolExecutor create() {
+            final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, task -> {
+                final Thread thread = new Thread(task, "async-handler-timer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            timer.setRemoveOnCancelPolicy(true);
+            return timer;
+        }
+    }
+}
@@ -28,4 +28,24 @@ public interface Response {
     default Map<String, String> getCookies() {
         return null;
     }
+
+    /**
+     * Returns the entity tag of the response data, which is sent in the {@code ETag} header
+     * and allows the client to revalidate its cached copy with {@code If-None-Match}.
+     * If the tag is not quoted, the quotes are added.
+     * @return Entity tag or {@code null} if the response has no tag
+     */
+    default String getETag() {
+        return null;
+    }
+
+    /**
+     * Returns the time when the response data was last modified, which is sent
+     * in the {@code Last-Modified} header and allows the client to revalidate its cached copy
+     * with {@code If-Modified-Since}.
+     * @return Number of milliseconds since the epoch or -1 if the time is unknown
+     */
+    default long getLastModified() {
+        return -1;
+    }
 }
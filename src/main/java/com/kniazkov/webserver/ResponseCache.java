@@ -0,0 +1,420 @@
+/*
+ * Copyright (c) 2025 Ivan Kniazkov
+ */
+package com.kniazkov.webserver;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of responses returned by handlers, for handlers that return the same response
+ * to the same request for some time. A handler is wrapped by {@link #wrap(Handler, long)},
+ * and the wrapper calls it only if there is no fresh response for the request in the cache:
+ * <pre>
+ *     ResponseCache cache = new ResponseCache(16 * 1024 * 1024);
+ *     Router router = new Router()
+ *         .get("/news", cache.wrap(news, 5000))
+ *         .get("/prices", cache.wrap(prices, 1000, new String[] { "currency" },
+ *             new String[] { "region" }));
+ * </pre>
+ * Only GET requests are cached; a request is identified by its address (path and query)
+ * or, if the fields that matter are listed, by its path and the values of these form fields
+ * and cookies. Each wrapper has its own time to live, while all of them share the memory
+ * of the cache: when the total size of the cached data exceeds the capacity, the least
+ * recently used responses are removed.
+ * If several requests with the same key miss the cache at the same time, only the first one
+ * calls the handler; the others wait for its response, so a burst of requests for
+ * an expired response does not turn into a burst of handler calls.
+ * Responses that set cookies, files and streams are never cached.
+ */
+public final class ResponseCache {
+    /**
+     * Empty list of field names.
+     */
+    private static final String[] NONE = new String[0];
+
+    /**
+     * Estimated memory occupied by an entry besides its key and data, in bytes.
+     */
+    private static final int ENTRY_OVERHEAD = 128;
+
+    /**
+     * Maximum total size of cached responses, in bytes.
+     */
+    private final long capacity;
+
+    /**
+     * Cached responses, by key, in the order of access.
+     */
+    private final LinkedHashMap<String, Entry> entries;
+
+    /**
+     * Handler calls in progress, by key of the request that started them.
+     */
+    private final ConcurrentHashMap<String, CompletableFuture<Entry>> calls;
+
+    /**
+     * Counter used to give keys of each wrapper a unique prefix.
+     */
+    private final AtomicInteger wrappers;
+
+    /**
+     * Total size of cached responses, in bytes.
+     */
+    private long size;
+
+    /**
+     * Number of requests served without calling the handler.
+     */
+    private final AtomicLong hits;
+
+    /**
+     * Number of requests for which the handler was called.
+     */
+    private final AtomicLong misses;
+
+    /**
+     * Number of responses removed from the cache to free memory.
+     */
+    private final AtomicLong evictions;
+
+    /**
+     * Constructor.
+     * @param capacity Maximum total size of cached responses, in bytes
+     */
+    public ResponseCache(final long capacity) {
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+        this.calls = new ConcurrentHashMap<>();
+        this.wrappers = new AtomicInteger();
+        this.size = 0;
+        this.hits = new AtomicLong();
+        this.misses = new AtomicLong();
+        this.evictions = new AtomicLong();
+    }
+
+    /**
+     * Wraps a handler, so that its responses are cached by request address
+     * (path and query string).
+     * @param handler The handler
+     * @param ttl How long a response stays fresh, in milliseconds
+     * @return Caching handler
+     */
+    public Handler wrap(final Handler handler, final long ttl) {
+        return wrap(handler, ttl, NONE, NONE);
+    }
+
+    /**
+     * Wraps a handler, so that its responses are cached by request path and the values
+     * of the specified form fields and cookies; other fields and cookies are ignored.
+     * @param handler The handler
+     * @param ttl How long a response stays fresh, in milliseconds
+     * @param fields Names of form fields (query string parameters) that affect the response
+     * @param cookies Names of cookies that affect the response
+     * @return Caching handler
+     */
+    public Handler wrap(final Handler handler, final long ttl, final String[] fields,
+            final String[] cookies) {
+        if (ttl <= 0) {
+            throw new IllegalArgumentException("Time to live must be positive: " + ttl);
+        }
+        final String prefix = wrappers.incrementAndGet() + " ";
+        final boolean byAddress = fields.length == 0 && cookies.length == 0;
+        final String[] fieldNames = fields.clone();
+        final String[] cookieNames = cookies.clone();
+        return request -> {
+            if (request.method != Method.GET) {
+                return handler.handle(request);
+            }
+            final String key = byAddress ? prefix + request.address
+                : buildKey(prefix, request, fieldNames, cookieNames);
+            return handle(handler, ttl, request, key);
+        };
+    }
+
+    /**
+     * Removes all cached responses.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        size = 0;
+    }
+
+    /**
+     * Returns the current statistics of the cache. Requests that waited for the response
+     * of another request with the same key count as hits.
+     * @return Statistics
+     */
+    public synchronized CacheStatistics getStatistics() {
+        return new CacheStatistics(hits.get(), misses.get(), evictions.get(), entries.size(),
+            size, capacity);
+    }
+
+    /**
+     * Returns a cached response or calls the handler.
+     * @param handler The handler
+     * @param ttl How long a response stays fresh, in milliseconds
+     * @param request The request
+     * @param key Key of the request
+     * @return Response
+     */
+    private Response handle(final Handler handler, final long ttl, final Request request,
+            final String key) {
+        final Entry cached = get(key);
+        if (cached != null) {
+            hits.incrementAndGet();
+            return cached.response;
+        }
+        final CompletableFuture<Entry> call = new CompletableFuture<>();
+        final CompletableFuture<Entry> running = calls.putIfAbsent(key, call);
+        if (running != null) {
+            final Entry shared = await(running);
+            if (shared != null) {
+                hits.incrementAndGet();
+                return shared.response;
+            }
+            misses.incrementAndGet();
+            return handler.handle(request);
+        }
+        misses.incrementAndGet();
+        try {
+            final Response response = handler.handle(request);
+            final Entry entry = createEntry(key, response, ttl);
+            if (entry != null) {
+                put(key, entry);
+            }
+            call.complete(entry);
+            return entry != null ? entry.response : response;
+        } catch (RuntimeException | Error e) {
+            call.completeExceptionally(e);
+            throw e;
+        } finally {
+            calls.remove(key, call);
+        }
+    }
+
+    /**
+     * Waits for the response of a handler call started by another request with the same key.
+     * @param call The call
+     * @return Cache entry or {@code null} if the response cannot be shared
+     */
+    private static Entry await(final CompletableFuture<Entry> call) {
+        try {
+            return call.get();
+        } catch (InterruptedException ignored) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * Builds the key of a request from its path and the selected fields and cookies.
+     * @param prefix Prefix of the keys of the wrapper
+     * @param request The request
+     * @param fields Names of form fields
+     * @param cookies Names of cookies
+     * @return The key
+     */
+    private static String buildKey(final String prefix, final Request request,
+            final String[] fields, final String[] cookies) {
+        final StringBuilder key = new StringBuilder(prefix).append(request.path);
+        appendValues(key, '?', fields, fields.length > 0 ? request.formData : null);
+        appendValues(key, ';', cookies, cookies.length > 0 ? request.cookies : null);
+        return key.toString();
+    }
+
+    /**
+     * Appends the values of the selected entries of a map to a key.
+     * Missing entries and empty values are distinguished.
+     * @param key The key
+     * @param separator Character preceding the values
+     * @param names Names of the entries
+     * @param map The map
+     */
+    private static void appendValues(final StringBuilder key, final char separator,
+            final String[] names, final Map<String, String> map) {
+        if (map == null) {
+            return;
+        }
+        key.append(separator);
+        for (final String name : names) {
+            final String value = map.get(name);
+            if (value == null) {
+                key.append('\u0000');
+            } else {
+                key.append(value.length()).append(':').append(value);
+            }
+        }
+    }
+
+    /**
+     * Creates a cache entry containing a response.
+     * @param key Key of the request
+     * @param response The response or {@code null}
+     * @param ttl How long the response stays fresh, in milliseconds
+     * @return Cache entry or {@code null} if the response cannot be cached
+     */
+    private static Entry createEntry(final String key, final Response response,
+            final long ttl) {
+        final long expires = System.currentTimeMillis() + ttl;
+        if (response == null) {
+            return new Entry(null, ENTRY_OVERHEAD + key.length() * 2L, expires);
+        }
+        if (response instanceof ResponseFile || response instanceof ResponseStream) {
+            return null;
+        }
+        final Map<String, String> cookies = response.getCookies();
+        if (cookies != null && !cookies.isEmpty()) {
+            return null;
+        }
+        final CachedResponse copy = new CachedResponse(response);
+        final long memory = ENTRY_OVERHEAD + key.length() * 2L
+            + (copy.data != null ? copy.data.length : 0);
+        return new Entry(copy, memory, expires);
+    }
+
+    /**
+     * Returns a fresh cached response.
+     * @param key Key of the request
+     * @return Cache entry or {@code null} if there is no fresh response
+     */
+    private synchronized Entry get(final String key) {
+        final Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expires - System.currentTimeMillis() <= 0) {
+            entries.remove(key);
+            size -= entry.memory;
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Stores a response in the cache, removing the least recently used responses
+     * until the total size fits the capacity.
+     * @param key Key of the request
+     * @param entry Cache entry
+     */
+    private synchronized void put(final String key, final Entry entry) {
+        if (entry.memory > capacity) {
+            return;
+        }
+        final Entry previous = entries.put(key, entry);
+        if (previous != null) {
+            size -= previous.memory;
+        }
+        size += entry.memory;
+        final Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (size > capacity && iterator.hasNext()) {
+            final Entry eldest = iterator.next().getValue();
+            iterator.remove();
+            size -= eldest.memory;
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Entry of the cache.
+     */
+    private static final class Entry {
+        /**
+         * The response; {@code null} if the handler returned {@code null}.
+         */
+        final Response response;
+
+        /**
+         * Estimated memory occupied by the entry, in bytes.
+         */
+        final long memory;
+
+        /**
+         * Time when the response stops being fresh, in milliseconds since the epoch.
+         */
+        final long expires;
+
+        /**
+         * Constructor.
+         * @param response The response
+         * @param memory Estimated memory occupied by the entry
+         * @param expires Time when the response stops being fresh
+         */
+        Entry(final Response response, final long memory, final long expires) {
+            this.response = response;
+            this.memory = memory;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * Copy of a response, with the data already produced.
+     */
+    private static final class CachedResponse implements Response {
+        /**
+         * Content type.
+         */
+        private final String contentType;
+
+        /**
+         * Response data.
+         */
+        private final byte[] data;
+
+        /**
+         * Entity tag.
+         */
+        private final String etag;
+
+        /**
+         * Time when the response data was last modified.
+         */
+        private final long lastModified;
+
+        /**
+         * Constructor.
+         * @param response Original response
+         */
+        CachedResponse(final Response response) {
+            this.contentType = response.getContentType();
+            this.data = response.getData();
+            this.etag = response.getETag();
+            this.lastModified = response.getLastModified();
+        }
+
+        @Override
+        public String getContentType() {
+            return contentType;
+        }
+
+        @Override
+        public byte[] getData() {
+            return data;
+        }
+
+        @Override
+        public String getETag() {
+            return etag;
+        }
+
+        @Override
+        public long getLastModified() {
+            return lastModified;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2025 Ivan Kniazkov
+ */
+package com.kniazkov.webserver;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Response returned by the handler, in the form of a file or a region of a file.
+ * The server does not load the file into memory, but transfers it directly to the client
+ * (if possible, the copying is done by the operating system kernel),
+ * so this response is suitable for files of any size.
+ */
+public final class ResponseFile implements Response {
+	/**
+	 * Path to the file or {@code null} if the response is created from a channel.
+	 */
+	private final Path path;
+
+	/**
+	 * File channel or {@code null} if the response is created from a path.
+	 */
+	private final FileChannel channel;
+
+	/**
+	 * Position of the first byte of the region.
+	 */
+	private final long position;
+
+	/**
+	 * Number of bytes in the region, or -1 if the region lasts until the end of the file.
+	 */
+	private final long count;
+
+	/**
+	 * Content type.
+	 */
+	private final String contentType;
+
+	/**
+	 * Constructor that creates a response containing the whole file.
+	 * The file is opened only when the response is being sent.
+	 * @param path Path to the file
+	 * @param contentType Content type, for example, {@code image/jpeg} or {@code text/html}
+	 */
+	public ResponseFile(Path path, String contentType) {
+		this.path = path;
+		this.channel = null;
+		this.position = 0;
+		this.count = -1;
+		this.contentType = contentType;
+	}
+
+	/**
+	 * Constructor that creates a response containing a region of an opened file.
+	 * The server closes the channel after the response has been sent.
+	 * @param channel File channel; its position is not used and not changed
+	 * @param position Position of the first byte of the region
+	 * @param count Number of bytes in the region
+	 * @param contentType Content type, for example, {@code image/jpeg} or {@code text/html}
+	 */
+	public ResponseFile(FileChannel channel, long position, long count, String contentType) {
+		this.path = null;
+		this.channel = channel;
+		this.position = position;
+		this.count = count;
+		this.contentType = contentType;
+	}
+
+	public String getContentType() {
+		return contentType;
+	}
+
+	/**
+	 * Reads the whole region into memory.
+	 * The server itself does not call this method, it sends the file without loading it;
+	 * the method is only provided for compatibility with code that expects the data
+	 * as an array.
+	 * @return Content of the region
+	 */
+	public byte[] getData() {
+		try {
+			final FileChannel file = open();
+			try {
+				final ByteBuffer buffer = ByteBuffer.allocate((int) getCount(file));
+				while (buffer.hasRemaining()) {
+					if (file.read(buffer, position + buffer.position()) < 0) {
+						throw new EOFException("The file is shorter than expected");
+					}
+				}
+				return buffer.array();
+			} finally {
+				if (path != null) {
+					file.close();
+				}
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Returns the channel from which the response data is read.
+	 * @return The channel passed to the constructor or a newly opened channel
+	 * @throws IOException If the file cannot be opened
+	 */
+	FileChannel open() throws IOException {
+		return channel != null ? channel : FileChannel.open(path, StandardOpenOption.READ);
+	}
+
+	/**
+	 * Returns the position of the first byte of the region.
+	 * @return Position in the file
+	 */
+	long getPosition() {
+		return position;
+	}
+
+	/**
+	 * Returns the number of bytes in the region.
+	 * @param file Channel returned by {@link #open()}
+	 * @return Number of bytes
+	 * @throws IOException If the size of the file cannot be determined
+	 */
+	long getCount(final FileChannel file) throws IOException {
+		return count >= 0 ? count : Math.max(file.size() - position, 0);
+	}
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2025 Ivan Kniazkov
+ */
+package com.kniazkov.webserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+
+/**
+ * Response returned by the handler, whose data is produced gradually, while it is being sent.
+ * The length of the data does not need to be known in advance: the data is sent
+ * with the chunked transfer coding (for HTTP/1.0 clients, the connection is closed
+ * after the data instead). Only a small part of the data is held in memory at a time:
+ * if the client receives the data slower than it is produced, the writing thread waits.
+ * This response is suitable for large reports, exports and similar data that
+ * is generated on the fly.
+ */
+public final class ResponseStream implements Response {
+	/**
+	 * Producer of the response data.
+	 */
+	@FunctionalInterface
+	public interface Body {
+		/**
+		 * Writes the response data. The method is called once, when the response is being sent.
+		 * Calling {@link OutputStream#flush()} sends the data written so far to the client
+		 * immediately; the stream must not be closed.
+		 * @param stream Stream to which the data is written
+		 * @throws IOException If the data cannot be produced or the client has disconnected
+		 */
+		void write(OutputStream stream) throws IOException;
+	}
+
+	/**
+	 * Content type.
+	 */
+	private final String contentType;
+
+	/**
+	 * Producer of the response data.
+	 */
+	private final Body body;
+
+	/**
+	 * Constructor.
+	 * @param contentType Content type, for example, {@code text/csv} or {@code application/json}
+	 * @param body Producer of the response data
+	 */
+	public ResponseStream(String contentType, Body body) {
+		this.contentType = contentType;
+		this.body = body;
+	}
+
+	public String getContentType() {
+		return contentType;
+	}
+
+	/**
+	 * Produces the whole response data and returns it as an array of bytes.
+	 * The server does not call this method, it is provided for compatibility only.
+	 * @return Response data
+	 */
+	public byte[] getData() {
+		final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		try {
+			body.write(stream);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return stream.toByteArray();
+	}
+
+	/**
+	 * Produces the response data.
+	 * @param stream Stream to which the data is written
+	 * @throws IOException If the data cannot be produced or the client has disconnected
+	 */
+	void write(final OutputStream stream) throws IOException {
+		body.write(stream);
+	}
+}
@@ -0,0 +1,439 @@
+/*
+ * Copyright (c) 2025 Ivan Kniazkov
+ */
+package com.kniazkov.webserver;
+
+import java.util.Arrays;
+
+/**
+ * Handler that passes each request to the handler registered for its path and method.
+ * Path patterns may contain parameters, i.e. segments written as {@code {name}} that match
+ * any non-empty segment, and may end with a wildcard segment {@code *} that matches
+ * the rest of the path. For example:
+ * <pre>
+ *     Router router = new Router()
+ *         .get("/", index)
+ *         .get("/users/{id}", user)
+ *         .post("/users/{id}/posts", newPost)
+ *         .get("/static/*", resources);
+ * </pre>
+ * The values of the parameters are available to the handler in
+ * {@link Request#pathParameters}; the wildcard is stored under the name {@code *}.
+ * Registered patterns are compiled into a radix tree, so finding the handler takes time
+ * proportional to the length of the path rather than to the number of routes.
+ * If several patterns match, a static segment wins over a parameter, and a parameter wins
+ * over a wildcard. If no pattern matches the path and the method, the router returns
+ * {@code null}, so the server looks for a static file as usual.
+ * Routes should be registered before the server is started; the router may then be used
+ * by many threads at once.
+ */
+public final class Router implements Handler {
+    /**
+     * Name under which the part of the path matched by a wildcard is stored.
+     */
+    public static final String WILDCARD = "*";
+
+    /**
+     * Root of the tree.
+     */
+    private final Node root;
+
+    /**
+     * Maximum number of parameters (including the wildcard) in a registered pattern.
+     */
+    private int maxParameters;
+
+    /**
+     * Constructor of a router without routes.
+     */
+    public Router() {
+        this.root = new Node("");
+        this.maxParameters = 0;
+    }
+
+    /**
+     * Registers a handler for GET requests.
+     * @param pattern Path pattern
+     * @param handler Handler
+     * @return This router
+     * @throws IllegalArgumentException If the pattern is not valid or already registered
+     *  for this method
+     */
+    public Router get(final String pattern, final Handler handler) {
+        return add(Method.GET, pattern, handler);
+    }
+
+    /**
+     * Registers a handler for POST requests.
+     * @param pattern Path pattern
+     * @param handler Handler
+     * @return This router
+     * @throws IllegalArgumentException If the pattern is not valid or already registered
+     *  for this method
+     */
+    public Router post(final String pattern, final Handler handler) {
+        return add(Method.POST, pattern, handler);
+    }
+
+    /**
+     * Registers a handler for requests with any method. Handlers registered for a specific
+     * method take precedence over it.
+     * @param pattern Path pattern
+     * @param handler Handler
+     * @return This router
+     * @throws IllegalArgumentException If the pattern is not valid or already registered
+     *  for any method
+     */
+    public Router any(final String pattern, final Handler handler) {
+        return add(null, pattern, handler);
+    }
+
+    /**
+     * Registers a handler.
+     * @param method Request method or {@code null} for any method
+     * @param pattern Path pattern
+     * @param handler Handler
+     * @return This router
+     * @throws IllegalArgumentException If the pattern is not valid or already registered
+     *  for this method
+     */
+    public Router add(final Method method, final String pattern, final Handler handler) {
+        if (handler == null) {
+            throw new IllegalArgumentException("Handler is null");
+        }
+        if (pattern == null || !pattern.startsWith("/")) {
+            throw new IllegalArgumentException("Pattern must start with '/': " + pattern);
+        }
+        final String[] names = new String[countParameters(pattern)];
+        int count = 0;
+        Node node = root;
+        int start = 0;
+        int position = 0;
+        final int length = pattern.length();
+        while (position < length) {
+            final char ch = pattern.charAt(position);
+            if (ch != '{' && ch != '*') {
+                if (ch == '}') {
+                    throw new IllegalArgumentException("Unexpected '}' in pattern: " + pattern);
+                }
+                position++;
+                continue;
+            }
+            if (pattern.charAt(position - 1) != '/') {
+                throw new IllegalArgumentException(
+                    "Parameter or wildcard must be a whole segment: " + pattern);
+            }
+            node = node.insert(pattern.substring(start, position));
+            if (ch == '*') {
+                if (position != length - 1) {
+                    throw new IllegalArgumentException(
+                        "Wildcard must be the last segment: " + pattern);
+                }
+                if (node.wildcard == null) {
+                    node.wildcard = new Node("");
+                }
+                node = node.wildcard;
+                names[count++] = WILDCARD;
+                position = length;
+            } else {
+                final int end = pattern.indexOf('}', position);
+                if (end < 0) {
+                    throw new IllegalArgumentException("Unclosed '{' in pattern: " + pattern);
+                }
+                if (end == position + 1 || end + 1 < length && pattern.charAt(end + 1) != '/') {
+                    throw new IllegalArgumentException("Invalid parameter in pattern: " + pattern);
+                }
+                final String name = pattern.substring(position + 1, end);
+                if (name.indexOf('{') >= 0 || name.indexOf('/') >= 0 || name.indexOf('*') >= 0) {
+                    throw new IllegalArgumentException("Invalid parameter in pattern: " + pattern);
+                }
+                if (node.parameter == null) {
+                    node.parameter = new Node("");
+                }
+                node = node.parameter;
+                names[count++] = name;
+                position = end + 1;
+            }
+            start = position;
+        }
+        node = node.insert(pattern.substring(start));
+        node.setRoute(method, new Route(handler, names, pattern));
+        maxParameters = Math.max(maxParameters, names.length);
+        return this;
+    }
+
+    @Override
+    public Response handle(final Request request) {
+        final String path = request.path;
+        final Method method = request.method;
+        final int[] captures = maxParameters > 0 ? new int[maxParameters * 2] : null;
+        final Route route = root.match(path, 0, method, captures, 0);
+        if (route == null) {
+            return null;
+        }
+        final String[] names = route.names;
+        if (names.length > 0) {
+            final CompactMap<String> parameters = new CompactMap<>();
+            for (int index = 0; index < names.length; index++) {
+                parameters.put(names[index], PercentDecoder.decode(path, captures[index * 2],
+                    captures[index * 2 + 1], false));
+            }
+            request.pathParameters = parameters;
+        }
+        return route.handler.handle(request);
+    }
+
+    /**
+     * Counts the parameters and the wildcard in a pattern.
+     * @param pattern The pattern
+     * @return Number of parameters
+     */
+    private static int countParameters(final String pattern) {
+        int count = 0;
+        for (int index = 0; index < pattern.length(); index++) {
+            final char ch = pattern.charAt(index);
+            if (ch == '{' || ch == '*') {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Handler registered for a pattern.
+     */
+    private static final class Route {
+        /**
+         * The handler.
+         */
+        final Handler handler;
+
+        /**
+         * Names of the parameters, in the order they appear in the pattern.
+         */
+        final String[] names;
+
+        /**
+         * The pattern.
+         */
+        final String pattern;
+
+        /**
+         * Constructor.
+         * @param handler The handler
+         * @param names Names of the parameters
+         * @param pattern The pattern
+         */
+        Route(final Handler handler, final String[] names, final String pattern) {
+            this.handler = handler;
+            this.names = names;
+            this.pattern = pattern;
+        }
+    }
+
+    /**
+     * Node of the tree. A node matches a static part of the path (its prefix); its children
+     * match what follows: static children are found by the first character of their prefix,
+     * the parameter child matches one segment, the wildcard child matches the rest.
+     */
+    private static final class Node {
+        /**
+         * Static part of the path matched by the node.
+         */
+        String prefix;
+
+        /**
+         * First characters of the prefixes of the static children.
+         */
+        char[] indices;
+
+        /**
+         * Static children.
+         */
+        Node[] children;
+
+        /**
+         * Child matching a parameter, or {@code null}.
+         */
+        Node parameter;
+
+        /**
+         * Child matching a wildcard, or {@code null}.
+         */
+        Node wildcard;
+
+        /**
+         * Routes of the path ending at this node, indexed by the ordinal of the method,
+         * or {@code null} if there are none.
+         */
+        Route[] routes;
+
+        /**
+         * Route for any method, or {@code null}.
+         */
+        Route anyRoute;
+
+        /**
+         * Constructor.
+         * @param prefix Static part of the path matched by the node
+         */
+        Node(final String prefix) {
+            this.prefix = prefix;
+            this.indices = new char[0];
+            this.children = new Node[0];
+        }
+
+        /**
+         * Adds a static path following this node, splitting existing nodes if needed.
+         * @param path The path
+         * @return Node at which the path ends
+         */
+        Node insert(String path) {
+            Node node = this;
+            while (!path.isEmpty()) {
+                final int index = node.indexOf(path.charAt(0));
+                if (index < 0) {
+                    final Node child = new Node(path);
+                    node.indices = Arrays.copyOf(node.indices, node.indices.length + 1);
+                    node.children = Arrays.copyOf(node.children, node.children.length + 1);
+                    node.indices[node.indices.length - 1] = path.charAt(0);
+                    node.children[node.children.length - 1] = child;
+                    return child;
+                }
+                Node child = node.children[index];
+                final String prefix = child.prefix;
+                int common = 1;
+                final int max = Math.min(prefix.length(), path.length());
+                while (common < max && prefix.charAt(common) == path.charAt(common)) {
+                    common++;
+                }
+                if (common < prefix.length()) {
+                    final Node middle = new Node(prefix.substring(0, common));
+                    child.prefix = prefix.substring(common);
+                    middle.indices = new char[] { child.prefix.charAt(0) };
+                    middle.children = new Node[] { child };
+                    node.children[index] = middle;
+                    child = middle;
+                }
+                node = child;
+                path = path.substring(common);
+            }
+            return node;
+        }
+
+        /**
+         * Sets the route of the path ending at this node.
+         * @param method Request method or {@code null} for any method
+         * @param route The route
+         * @throws IllegalArgumentException If a route for the method is already set
+         */
+        void setRoute(final Method method, final Route route) {
+            final Route previous;
+            if (method == null) {
+                previous = anyRoute;
+                if (previous == null) {
+                    anyRoute = route;
+                }
+            } else {
+                if (routes == null) {
+                    routes = new Route[Method.values().length];
+                }
+                previous = routes[method.ordinal()];
+                if (previous == null) {
+                    routes[method.ordinal()] = route;
+                }
+            }
+            if (previous != null) {
+                throw new IllegalArgumentException("Pattern '" + route.pattern
+                    + "' conflicts with '" + previous.pattern + "'");
+            }
+        }
+
+        /**
+         * Returns the route of the path ending at this node.
+         * @param method Request method
+         * @return The route or {@code null} if there is none for the method
+         */
+        Route getRoute(final Method method) {
+            if (routes != null) {
+                final Route route = routes[method.ordinal()];
+                if (route != null) {
+                    return route;
+                }
+            }
+            return anyRoute;
+        }
+
+        /**
+         * Finds the static child whose prefix starts with a character.
+         * @param ch The character
+         * @return Index of the child or -1 if there is no such child
+         */
+        int indexOf(final char ch) {
+            final char[] indices = this.indices;
+            for (int index = 0; index < indices.length; index++) {
+                if (indices[index] == ch) {
+                    return index;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Finds the route matching the rest of a path, whose part up to the position
+         * has been matched by this node.
+         * @param path The path
+         * @param position Index of the first character not matched yet
+         * @param method Request method
+         * @param captures Array receiving the bounds of the parameter values
+         * @param count Number of parameters matched so far
+         * @return The route or {@code null} if the path does not match
+         */
+        Route match(final String path, final int position, final Method method,
+                final int[] captures, final int count) {
+            final int length = path.length();
+            Route route;
+            if (position == length) {
+                route = getRoute(method);
+                if (route != null) {
+                    return route;
+                }
+            } else {
+                final int index = indexOf(path.charAt(position));
+                if (index >= 0) {
+                    final Node child = children[index];
+                    if (path.startsWith(child.prefix, position)) {
+                        route = child.match(path, position + child.prefix.length(), method,
+                            captures, count);
+                        if (route != null) {
+                            return route;
+                        }
+                    }
+                }
+                if (parameter != null) {
+                    int end = path.indexOf('/', position);
+                    if (end < 0) {
+                        end = length;
+                    }
+                    if (end > position) {
+                        route = parameter.match(path, end, method, captures, count + 1);
+                        if (route != null) {
+                            captures[count * 2] = position;
+                            captures[count * 2 + 1] = end;
+                            return route;
+                        }
+                    }
+                }
+            }
+            if (wildcard != null) {
+                route = wildcard.getRoute(method);
+                if (route != null) {
+                    captures[count * 2] = position;
+                    captures[count * 2 + 1] = length;
+                    return route;
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,1129 @@
+/*
+ * Copyright (c) 2025 Ivan Kniazkov
+ */
+package com.kniazkov.webserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Non-blocking server engine.
+ * A single thread accepts connections and reads data from all of them using a selector.
+ * As soon as a connection has received a complete request, the request is passed
+ * to the worker pool, where it is parsed and the handler is invoked. The response produced
+ * by the worker is sent back by the selector thread, again without blocking.
+ * Thus, idle keep-alive connections cost only a buffer, not a thread.
+ * Large request bodies are not collected in memory, they are written to temporary files
+ * while being received.
+ */
+final class SelectorEngine implements Engine {
+    /**
+     * Logger.
+     */
+    private static final Logger logger = Logger.getLogger(SelectorEngine.class.getName());
+
+    /**
+     * Maximum size of the request line and headers, in bytes.
+     * Connections that send more data without finishing the headers are closed.
+     */
+    private static final int MAX_HEADER_SIZE = 65536;
+
+    /**
+     * Initial size of the input buffer of a connection.
+     */
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+
+    /**
+     * How long the selector waits for events before checking for idle connections,
+     * in milliseconds.
+     */
+    private static final long SELECT_TIMEOUT = 1000;
+
+    /**
+     * Maximum number of byte buffers sent by one gathering write.
+     */
+    private static final int MAX_GATHERED_BUFFERS = 16;
+
+    /**
+     * Maximum number of pipelined requests processed by one task of the worker pool.
+     */
+    private static final int MAX_BATCH_SIZE = 16;
+
+    /**
+     * The header name used to find the length of the request body (in lower case).
+     */
+    private static final byte[] CONTENT_LENGTH = "content-length:".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Options for starting the server.
+     */
+    private final Options options;
+
+    /**
+     * Processor that invokes the handler and writes responses.
+     */
+    private final RequestProcessor processor;
+
+    /**
+     * Limiter of the server load.
+     */
+    private final LoadLimiter limiter;
+
+    /**
+     * Tasks that worker threads pass to the selector thread (i.e., sending of responses).
+     */
+    private final Queue<Runnable> tasks;
+
+    /**
+     * Open HTTP/2 connections. They are served by threads of their own rather than
+     * by the selector, see {@link Connection#startHttp2()}.
+     */
+    private final Set<Http2Connection> http2Connections;
+
+    /**
+     * Handler of WebSocket connections or {@code null}.
+     */
+    private final WebSocketHandler webSocketHandler;
+
+    /**
+     * Engine serving WebSocket connections, or {@code null} if the server
+     * does not accept them.
+     */
+    private volatile WebSocketEngine webSockets;
+
+    /**
+     * The selector.
+     */
+    private volatile Selector selector;
+
+    /**
+     * Pool of worker threads that invoke the handler.
+     */
+    private ExecutorService pool;
+
+    /**
+     * Flag, as long as it is set, the engine will serve connections.
+     */
+    private volatile boolean work;
+
+    /**
+     * Constructor.
+     * @param options Options for starting the server
+     * @param processor Processor that invokes the handler and writes responses
+     * @param limiter Limiter of the server load
+     * @param webSocketHandler Handler of WebSocket connections or {@code null}
+     */
+    SelectorEngine(final Options options, final RequestProcessor processor,
+            final LoadLimiter limiter, final WebSocketHandler webSocketHandler) {
+        this.options = options;
+        this.processor = processor;
+        this.limiter = limiter;
+        this.tasks = new ConcurrentLinkedQueue<>();
+        this.http2Connections = ConcurrentHashMap.newKeySet();
+        this.webSocketHandler = webSocketHandler;
+        this.webSockets = null;
+        this.selector = null;
+        this.pool = null;
+        this.work = false;
+    }
+
+    /**
+     * Starting point of the engine.
+     */
+    public void run() {
+        try (
+            Selector sel = Selector.open();
+            ServerSocketChannel serverChannel = ServerSocketChannel.open()
+        ) {
+            options.configure(serverChannel.socket());
+            serverChannel.bind(new InetSocketAddress(options.port));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(sel, SelectionKey.OP_ACCEPT);
+            logger.info("HTTP server (non-blocking) is running on port " + options.port);
+            pool = WorkerPool.create(options);
+            processor.getMetrics().setWorkerPool(pool);
+            if (webSocketHandler != null) {
+                webSockets = new WebSocketEngine(options, webSocketHandler, limiter, pool);
+                final Thread thread = new Thread(webSockets, "websocket-engine");
+                thread.setDaemon(true);
+                thread.start();
+            }
+            selector = sel;
+            work = true;
+            while (work) {
+                sel.select(SELECT_TIMEOUT);
+                Runnable task = tasks.poll();
+                while (task != null) {
+                    task.run();
+                    task = tasks.poll();
+                }
+                final Iterator<SelectionKey> iterator = sel.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    final SelectionKey key = iterator.next();
+                    iterator.remove();
+                    if (key.isValid()) {
+                        if (key.isAcceptable()) {
+                            accept(serverChannel);
+                        } else {
+                            handleEvents(key);
+                        }
+                    }
+                }
+                if (options.timeout > 0) {
+                    closeIdleConnections();
+                }
+            }
+            Http2Connection.shutdown(http2Connections);
+            if (webSockets != null) {
+                webSockets.stop();
+            }
+            for (final SelectionKey key : sel.keys()) {
+                if (key.attachment() instanceof Connection) {
+                    ((Connection) key.attachment()).close();
+                }
+            }
+            pool.shutdown();
+            try {
+                if (!pool.awaitTermination(30, TimeUnit.SECONDS)) {
+                    pool.shutdownNow();
+                }
+            } catch (InterruptedException ignored) {
+                pool.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+            Http2Connection.close(http2Connections);
+        } catch (IOException e) {
+            if (logger.isLoggable(Level.SEVERE)) {
+                logger.log(Level.SEVERE, "I/O error while starting server socket", e);
+            } else {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Stops the engine.
+     */
+    public void stop() {
+        work = false;
+        final Selector sel = selector;
+        if (sel != null) {
+            sel.wakeup();
+        }
+    }
+
+    /**
+     * Accepts all pending connections.
+     * @param serverChannel The server socket channel
+     */
+    private void accept(final ServerSocketChannel serverChannel) {
+        try {
+            SocketChannel channel = serverChannel.accept();
+            while (channel != null) {
+                channel.configureBlocking(false);
+                try {
+                    options.configure(channel.socket());
+                } catch (SocketException e) {
+                    logger.log(Level.FINE, "Failed to set socket options", e);
+                }
+                if (!limiter.tryAcquireConnection()) {
+                    reject(channel);
+                    channel = serverChannel.accept();
+                    continue;
+                }
+                final Connection connection = new Connection(channel);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                channel = serverChannel.accept();
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to accept client connection", e);
+        }
+    }
+
+    /**
+     * Refuses a connection because the server is overloaded: sends
+     * {@code 503 Service Unavailable} if the socket accepts it at once, and closes the channel.
+     * @param channel The channel of the connection
+     */
+    private void reject(final SocketChannel channel) {
+        try {
+            channel.write(ByteBuffer.wrap(processor.encodeServiceUnavailable()));
+            channel.shutdownOutput();
+            // closing a socket with unread data resets the connection and may destroy
+            // the response, so the data that has already arrived is dropped first
+            final ByteBuffer scratch = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+            while (channel.read(scratch) > 0) {
+                ((Buffer) scratch).clear();
+            }
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Failed to refuse client connection", e);
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Failed to close client connection cleanly", e);
+        }
+    }
+
+    /**
+     * Handles I/O events of a client connection.
+     * @param key The selection key of the connection
+     */
+    private void handleEvents(final SelectionKey key) {
+        final Connection connection = (Connection) key.attachment();
+        try {
+            if (key.isReadable()) {
+                connection.read();
+            }
+            if (key.isValid() && key.isWritable()) {
+                connection.write();
+            }
+        } catch (IOException ignored) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Closes connections that have not received anything for longer than the timeout
+     * specified in the options, and connections whose clients have not accepted
+     * any data of a response for that long.
+     */
+    private void closeIdleConnections() {
+        final long now = System.currentTimeMillis();
+        for (final SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Connection) {
+                final Connection connection = (Connection) key.attachment();
+                final boolean waiting = !connection.busy || !connection.output.isEmpty();
+                if (waiting && now - connection.lastActivity > options.timeout) {
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * State of a single client connection.
+     * All methods are called from the selector thread only.
+     */
+    private final class Connection {
+        /**
+         * The channel.
+         */
+        private final SocketChannel channel;
+
+        /**
+         * The selection key of the channel.
+         */
+        private SelectionKey key;
+
+        /**
+         * Buffer containing the received, but not yet processed data.
+         */
+        private ByteBuffer input;
+
+        /**
+         * Position in the input buffer from which the search for the end of headers continues.
+         */
+        private int scanned;
+
+        /**
+         * Channel writing the body of the request being received to a temporary file,
+         * or {@code null} if the body is not being written to a file.
+         */
+        private FileChannel spillChannel;
+
+        /**
+         * Path to the temporary file containing the body of the request being received,
+         * or {@code null} if there is no such file.
+         */
+        private Path spillPath;
+
+        /**
+         * Request line and headers of the request whose body is written to a temporary file.
+         */
+        private byte[] spillHeaders;
+
+        /**
+         * Number of bytes of the body that must be written to the temporary file yet.
+         */
+        private long spillRemaining;
+
+        /**
+         * Data to be sent to the client.
+         */
+        private final Queue<BufferedOutput.Chunk> output;
+
+        /**
+         * Array of byte buffers sent by one gathering write.
+         */
+        private final ByteBuffer[] gather;
+
+        /**
+         * Flag indicating that a request is being processed (or its response is being sent).
+         * Requests of one connection are processed strictly one after another.
+         */
+        private boolean busy;
+
+        /**
+         * Flag indicating that the whole response to the current request has been queued,
+         * i.e. the worker has finished producing it.
+         */
+        private boolean responseComplete;
+
+        /**
+         * Flag indicating that the connection must be closed once all the output is sent.
+         */
+        private boolean closeAfterWrite;
+
+        /**
+         * Flag indicating that the connection is closed.
+         */
+        private boolean closed;
+
+        /**
+         * Time of the last activity on the connection, in milliseconds.
+         */
+        private long lastActivity;
+
+        /**
+         * Flag indicating that the client is known not to start the connection
+         * with the HTTP/2 preface.
+         */
+        private boolean http1;
+
+        /**
+         * Upgrade to the WebSocket protocol accepted by the last response, or {@code null};
+         * once the response is sent, the connection is handed over to the
+         * {@link WebSocketEngine}.
+         */
+        private WebSocketEngine.Upgrade upgrade;
+
+        /**
+         * Constructor.
+         * @param channel The channel
+         */
+        private Connection(final SocketChannel channel) {
+            this.channel = channel;
+            this.key = null;
+            this.input = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+            this.scanned = 0;
+            this.spillChannel = null;
+            this.spillPath = null;
+            this.spillHeaders = null;
+            this.spillRemaining = 0;
+            this.output = new ArrayDeque<>();
+            this.gather = new ByteBuffer[MAX_GATHERED_BUFFERS];
+            this.busy = false;
+            this.responseComplete = false;
+            this.closeAfterWrite = false;
+            this.closed = false;
+            this.lastActivity = System.currentTimeMillis();
+            this.http1 = !options.http2;
+            this.upgrade = null;
+        }
+
+        /**
+         * Reads the available data from the channel and dispatches the request
+         * if it is complete.
+         * @throws IOException If the channel cannot be read
+         */
+        private void read() throws IOException {
+            if (!input.hasRemaining()) {
+                grow(input.capacity() * 2);
+            }
+            if (channel.read(input) < 0) {
+                close();
+                return;
+            }
+            lastActivity = System.currentTimeMillis();
+            if (!http1) {
+                final byte[] preface = Http2Connection.PREFACE;
+                final int count = Math.min(input.position(), preface.length);
+                for (int index = 0; index < count && !http1; index++) {
+                    http1 = input.get(index) != preface[index];
+                }
+                if (!http1) {
+                    if (count == preface.length) {
+                        startHttp2();
+                    }
+                    return;
+                }
+            }
+            dispatch();
+        }
+
+        /**
+         * Hands the connection over to an HTTP/2 connection, which is served by a thread
+         * of its own, since its requests are processed simultaneously and its responses are
+         * interleaved. The channel leaves the selector and becomes blocking; the data that
+         * has already been received is read first.
+         */
+        private void startHttp2() {
+            closed = true;
+            key.cancel();
+            final byte[] received = Arrays.copyOf(input.array(), input.position());
+            // the channel can be made blocking only once the selector has dropped the key,
+            // which happens during the next selection
+            tasks.add(() -> {
+                try {
+                    channel.configureBlocking(true);
+                    final InputStream stream = new SequenceInputStream(
+                        new ByteArrayInputStream(received), channel.socket().getInputStream());
+                    new Http2Connection(channel.socket(),
+                        new StreamReader(stream, options.readBufferSize), options, processor,
+                        limiter, pool, http2Connections).start();
+                } catch (IOException e) {
+                    logger.log(Level.FINE, "Failed to start HTTP/2 connection", e);
+                    closed = false;
+                    close();
+                }
+            });
+            selector.wakeup();
+        }
+
+        /**
+         * Hands the connection over to the {@link WebSocketEngine} once the response
+         * accepting the upgrade is sent, together with the data received after the request.
+         * The connection stays counted by the limiter until the engine closes it.
+         */
+        private void startWebSocket() {
+            closed = true;
+            key.cancel();
+            final byte[] received = Arrays.copyOf(input.array(), input.position());
+            webSockets.open(upgrade, channel, received);
+        }
+
+        /**
+         * Extracts the complete requests from the input buffer (if there are any)
+         * and passes them to the worker pool to be parsed and processed.
+         * Requests pipelined by the client are processed by one task, one after another,
+         * and their responses are queued together, so they are sent in as few writes
+         * as possible.
+         */
+        private void dispatch() {
+            if (busy || closed) {
+                return;
+            }
+            final List<ReceivedRequest> batch = new ArrayList<>(1);
+            String error = null;
+            try {
+                while (batch.size() < MAX_BATCH_SIZE) {
+                    final InputStream data = extractRequest();
+                    if (data == null) {
+                        break;
+                    }
+                    batch.add(new ReceivedRequest(data, spillPath));
+                    spillPath = null;
+                }
+            } catch (BadRequestException ignored) {
+                error = "400 Bad Request";
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to store a request body", e);
+                error = "500 Internal Server Error";
+            }
+            if (batch.isEmpty()) {
+                if (error != null) {
+                    sendError(error);
+                }
+                return;
+            }
+            final String trailingError = error;
+            busy = true;
+            responseComplete = false;
+            key.interestOps(0);
+            try {
+                pool.execute(new BatchProcessing(batch, trailingError));
+            } catch (RejectedExecutionException ignored) {
+                for (final ReceivedRequest received : batch) {
+                    received.discard();
+                }
+                limiter.requestRejected();
+                sendServiceUnavailable();
+            }
+        }
+
+        /**
+         * Processing of a batch of requests by worker threads. The requests are processed
+         * in order; while an asynchronous handler is producing a response, the processing
+         * releases its thread and continues in a worker thread once the response is ready.
+         */
+        private final class BatchProcessing implements Runnable {
+            /**
+             * The requests, in the order they were received.
+             */
+            private final List<ReceivedRequest> batch;
+
+            /**
+             * Response code of an error that occurred after the batch was received, or
+             * {@code null}.
+             */
+            private final String trailingError;
+
+            /**
+             * Output collecting the responses.
+             */
+            private final BufferedOutput stream;
+
+            /**
+             * Index of the next request to be processed.
+             */
+            private int index;
+
+            /**
+             * Flag indicating that the connection must be closed after the responses.
+             */
+            private boolean close;
+
+            /**
+             * Request whose response is being produced by the asynchronous handler,
+             * or {@code null}.
+             */
+            private Request pendingRequest;
+
+            /**
+             * Future of the response to {@link #pendingRequest}.
+             */
+            private CompletableFuture<Response> pendingResult;
+
+            /**
+             * Upgrade to the WebSocket protocol accepted by the last request, or {@code null}.
+             */
+            private WebSocketEngine.Upgrade accepted;
+
+            /**
+             * Constructor.
+             * @param batch The requests, in the order they were received
+             * @param trailingError Response code of an error that occurred after the batch
+             *  was received, or {@code null}
+             */
+            BatchProcessing(final List<ReceivedRequest> batch, final String trailingError) {
+                this.batch = batch;
+                this.trailingError = trailingError;
+                this.stream = new BufferedOutput(chunks -> {
+                    tasks.add(() -> append(chunks));
+                    selector.wakeup();
+                });
+                this.index = 0;
+                this.close = false;
+                this.accepted = null;
+            }
+
+            @Override
+            public void run() {
+                boolean suspended = false;
+                try {
+                    if (pendingRequest != null) {
+                        final Request request = pendingRequest;
+                        pendingRequest = null;
+                        close = processor.finish(request, stream, pendingResult);
+                        pendingResult = null;
+                    }
+                    while (!close && index < batch.size()) {
+                        final ReceivedRequest received = batch.get(index++);
+                        Request request = null;
+                        boolean valid = true;
+                        try {
+                            request = parse(received.data, received.spilled);
+                        } catch (IOException ignored) {
+                            valid = false;
+                        }
+                        if (!valid) {
+                            processor.writeResponse(stream, "400 Bad Request");
+                            close = true;
+                        } else if (request == null) {
+                            close = true;
+                        } else if (webSockets != null && WebSocketEngine.isUpgrade(request)) {
+                            accepted = webSockets.accept(request, stream);
+                            close = true;
+                        } else if (processor.isAsync()) {
+                            final CompletableFuture<Response> result = processor.start(request);
+                            if (!result.isDone()) {
+                                pendingRequest = request;
+                                pendingResult = result;
+                                suspended = true;
+                                suspend();
+                                return;
+                            }
+                            close = processor.finish(request, stream, result);
+                        } else {
+                            close = processor.process(request, stream);
+                        }
+                    }
+                    if (!close && trailingError != null) {
+                        processor.writeResponse(stream, trailingError);
+                        close = true;
+                    }
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "I/O error while handling client request", e);
+                    close = true;
+                } finally {
+                    if (!suspended) {
+                        while (index < batch.size()) {
+                            batch.get(index++).discard();
+                        }
+                        final Queue<BufferedOutput.Chunk> response = stream.getChunks();
+                        final boolean closeConnection = close;
+                        final WebSocketEngine.Upgrade switched = accepted;
+                        tasks.add(() -> {
+                            upgrade = switched;
+                            respond(response, closeConnection);
+                        });
+                        selector.wakeup();
+                    }
+                }
+            }
+
+            /**
+             * Releases the thread until the response to the pending request is ready; then
+             * the processing continues. The responses produced so far are sent meanwhile.
+             * @throws IOException If the client has disconnected
+             */
+            private void suspend() throws IOException {
+                try {
+                    stream.drain();
+                } finally {
+                    pendingResult.whenComplete((response, failure) -> {
+                        try {
+                            pool.execute(this);
+                        } catch (RejectedExecutionException ignored) {
+                            run();
+                        }
+                    });
+                }
+            }
+        }
+
+        /**
+         * Cuts the first complete request (request line, headers and body) out of the input buffer.
+         * If the body is larger than {@link Options#uploadMemoryThreshold}, it is moved
+         * to a temporary file instead, as it arrives.
+         * @return Data of the request or {@code null} if the request is not received completely yet
+         * @throws BadRequestException If the request is too large
+         * @throws IOException If the temporary file cannot be written
+         */
+        private InputStream extractRequest() throws IOException {
+            if (spillChannel != null) {
+                return spill();
+            }
+            final byte[] buff = input.array();
+            final int size = input.position();
+            final int headerEnd = findHeaderEnd(buff, size);
+            if (headerEnd < 0) {
+                if (size >= MAX_HEADER_SIZE) {
+                    throw new BadRequestException("Request headers are too large");
+                }
+                return null;
+            }
+            final long length = findContentLength(buff, headerEnd);
+            if (length > options.uploadMemoryThreshold) {
+                spillHeaders = Arrays.copyOf(buff, headerEnd);
+                System.arraycopy(buff, headerEnd, buff, 0, size - headerEnd);
+                ((Buffer) input).position(size - headerEnd);
+                scanned = 0;
+                spillPath = Files.createTempFile("webserver-body-", ".tmp");
+                spillChannel = FileChannel.open(spillPath, StandardOpenOption.WRITE);
+                spillRemaining = length;
+                return spill();
+            }
+            final long total = headerEnd + length;
+            if (total > Integer.MAX_VALUE - 8) {
+                throw new BadRequestException("Request body is too large");
+            }
+            if (size < total) {
+                if (input.capacity() < total && !input.hasRemaining()) {
+                    grow((int) Math.min(total, (long) input.capacity() * 2));
+                }
+                return null;
+            }
+            final byte[] data = Arrays.copyOf(buff, (int) total);
+            System.arraycopy(buff, (int) total, buff, 0, size - (int) total);
+            ((Buffer) input).position(size - (int) total);
+            scanned = 0;
+            return new ByteArrayInputStream(data);
+        }
+
+        /**
+         * Moves the received part of the request body from the input buffer
+         * to the temporary file.
+         * @return Data of the request (headers followed by the content of the file)
+         *  or {@code null} if the body is not received completely yet
+         * @throws IOException If the temporary file cannot be written
+         */
+        private InputStream spill() throws IOException {
+            final byte[] buff = input.array();
+            final int size = input.position();
+            final int count = (int) Math.min(size, spillRemaining);
+            final ByteBuffer chunk = ByteBuffer.wrap(buff, 0, count);
+            while (chunk.hasRemaining()) {
+                spillChannel.write(chunk);
+            }
+            System.arraycopy(buff, count, buff, 0, size - count);
+            ((Buffer) input).position(size - count);
+            spillRemaining -= count;
+            if (spillRemaining > 0) {
+                return null;
+            }
+            spillChannel.close();
+            spillChannel = null;
+            final InputStream headers = new ByteArrayInputStream(spillHeaders);
+            spillHeaders = null;
+            return new SequenceInputStream(headers, Files.newInputStream(spillPath));
+        }
+
+        /**
+         * Parses a request.
+         * @param data Data of the request
+         * @param spilled Path to the temporary file containing the request body
+         *  (which is deleted after parsing) or {@code null}
+         * @return The request or {@code null} if there is no request in the data
+         * @throws IOException If the data is not a valid request or cannot be read
+         */
+        private Request parse(final InputStream data, final Path spilled) throws IOException {
+            try (InputStream stream = data) {
+                return RequestParser.parse(new StreamReader(stream, options.readBufferSize), options,
+                    processor.getMetrics());
+            } finally {
+                if (spilled != null) {
+                    Files.deleteIfExists(spilled);
+                }
+            }
+        }
+
+        /**
+         * Searches for the empty line that terminates the request headers.
+         * @param buff Buffer containing the received data
+         * @param size Number of received bytes
+         * @return Index of the first byte after the empty line or -1 if the headers are incomplete
+         */
+        private int findHeaderEnd(final byte[] buff, final int size) {
+            int index = scanned;
+            while (index < size) {
+                if (buff[index] == '\n') {
+                    if (index + 1 < size && buff[index + 1] == '\n') {
+                        return index + 2;
+                    }
+                    if (index + 2 < size && buff[index + 1] == '\r' && buff[index + 2] == '\n') {
+                        return index + 3;
+                    }
+                    if (index + 2 >= size) {
+                        break;
+                    }
+                }
+                index++;
+            }
+            scanned = index;
+            return -1;
+        }
+
+        /**
+         * Finds the value of the {@code Content-Length} header.
+         * Malformed values are ignored here, they are reported by the request parser.
+         * @param buff Buffer containing the request headers
+         * @param headerEnd Index of the first byte after the headers
+         * @return Length of the request body, or 0 if it is not specified
+         */
+        private long findContentLength(final byte[] buff, final int headerEnd) {
+            int index = 0;
+            while (index < headerEnd) {
+                if (matchesIgnoreCase(buff, index, headerEnd, CONTENT_LENGTH)) {
+                    long value = 0;
+                    int pos = index + CONTENT_LENGTH.length;
+                    while (pos < headerEnd && (buff[pos] == ' ' || buff[pos] == '\t')) {
+                        pos++;
+                    }
+                    while (pos < headerEnd && buff[pos] >= '0' && buff[pos] <= '9'
+                            && value < Long.MAX_VALUE / 10) {
+                        value = value * 10 + (buff[pos] - '0');
+                        pos++;
+                    }
+                    return value;
+                }
+                while (index < headerEnd && buff[index] != '\n') {
+                    index++;
+                }
+                index++;
+            }
+            return 0;
+        }
+
+        /**
+         * Enlarges the input buffer.
+         * @param capacity New capacity
+         */
+        private void grow(final int capacity) {
+            final ByteBuffer buff = ByteBuffer.allocate(capacity);
+            ((Buffer) input).flip();
+            buff.put(input);
+            input = buff;
+        }
+
+        /**
+         * Queues an error response and closes the connection after sending it.
+         * @param code Response code, for example {@code 400 Bad Request}
+         */
+        private void sendError(final String code) {
+            final BufferedOutput stream = new BufferedOutput();
+            try {
+                processor.writeResponse(stream, code);
+            } catch (IOException ignored) {
+                // never happens with a buffered output
+            }
+            busy = true;
+            respond(stream.getChunks(), true);
+        }
+
+        /**
+         * Queues the {@code 503 Service Unavailable} response and closes the connection
+         * after sending it.
+         */
+        private void sendServiceUnavailable() {
+            final BufferedOutput stream = new BufferedOutput();
+            try {
+                stream.write(processor.encodeServiceUnavailable());
+            } catch (IOException ignored) {
+                // never happens with a buffered output
+            }
+            busy = true;
+            respond(stream.getChunks(), true);
+        }
+
+        /**
+         * Queues a part of the response that is still being produced by a worker
+         * and starts sending it.
+         * @param batch Chunks containing the part of the response
+         */
+        private void append(final Queue<BufferedOutput.Chunk> batch) {
+            if (closed) {
+                for (final BufferedOutput.Chunk chunk : batch) {
+                    chunk.discard();
+                }
+                return;
+            }
+            output.addAll(batch);
+            try {
+                write();
+            } catch (IOException ignored) {
+                close();
+            }
+        }
+
+        /**
+         * Queues the (rest of the) response produced by a worker and starts sending it.
+         * @param response Chunks containing the response data
+         * @param closeConnection Flag indicating that the connection must be closed
+         *  after the response has been sent
+         */
+        private void respond(final Queue<BufferedOutput.Chunk> response,
+                final boolean closeConnection) {
+            if (closed) {
+                for (final BufferedOutput.Chunk chunk : response) {
+                    chunk.discard();
+                }
+                return;
+            }
+            output.addAll(response);
+            responseComplete = true;
+            closeAfterWrite = closeConnection;
+            try {
+                write();
+            } catch (IOException ignored) {
+                close();
+            }
+        }
+
+        /**
+         * Sends queued data to the client until the channel accepts no more of it.
+         * When everything is sent, the connection either is closed or starts reading
+         * the next request (unless the response is still being produced).
+         * @throws IOException If the channel cannot be written
+         */
+        private void write() throws IOException {
+            lastActivity = System.currentTimeMillis();
+            while (!output.isEmpty()) {
+                final BufferedOutput.Chunk chunk = output.peek();
+                if (chunk.getBuffer() != null) {
+                    if (!sendBuffers()) {
+                        key.interestOps(SelectionKey.OP_WRITE);
+                        return;
+                    }
+                } else {
+                    if (!chunk.send(channel)) {
+                        key.interestOps(SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    output.poll();
+                }
+            }
+            if (!responseComplete) {
+                key.interestOps(0);
+                return;
+            }
+            if (upgrade != null) {
+                startWebSocket();
+                return;
+            }
+            if (closeAfterWrite) {
+                close();
+                return;
+            }
+            busy = false;
+            key.interestOps(SelectionKey.OP_READ);
+            dispatch();
+        }
+
+        /**
+         * Sends the byte buffers at the head of the output queue with one gathering write.
+         * The chunks that are sent completely are removed from the queue.
+         * @return {@code true} if all the buffers are sent, {@code false} if the channel
+         *  accepts no more data
+         * @throws IOException If the channel cannot be written
+         */
+        private boolean sendBuffers() throws IOException {
+            int count = 0;
+            for (final BufferedOutput.Chunk chunk : output) {
+                final ByteBuffer buffer = chunk.getBuffer();
+                if (buffer == null || count == gather.length) {
+                    break;
+                }
+                gather[count++] = buffer;
+            }
+            channel.write(gather, 0, count);
+            boolean complete = true;
+            for (int index = 0; index < count; index++) {
+                if (gather[index].hasRemaining()) {
+                    complete = false;
+                } else if (complete) {
+                    output.poll();
+                }
+                gather[index] = null;
+            }
+            return complete;
+        }
+
+        /**
+         * Closes the connection.
+         */
+        private void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            limiter.releaseConnection();
+            if (key != null) {
+                key.cancel();
+            }
+            for (final BufferedOutput.Chunk chunk : output) {
+                chunk.discard();
+            }
+            output.clear();
+            try {
+                if (spillChannel != null) {
+                    spillChannel.close();
+                }
+                if (spillPath != null) {
+                    Files.deleteIfExists(spillPath);
+                }
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to delete a temporary file", e);
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.log(Level.FINE, "Failed to close client connection cleanly", e);
+            }
+        }
+    }
+
+    /**
+     * Request cut out of the input buffer of a connection, but not parsed yet.
+     */
+    private static final class ReceivedRequest {
+        /**
+         * Data of the request.
+         */
+        final InputStream data;
+
+        /**
+         * Path to the temporary file containing the request body or {@code null}.
+         */
+        final Path spilled;
+
+        /**
+         * Constructor.
+         * @param data Data of the request
+         * @param spilled Path to the temporary file containing the request body or {@code null}
+         */
+        ReceivedRequest(final InputStream data, final Path spilled) {
+            this.data = data;
+            this.spilled = spilled;
+        }
+
+        /**
+         * Drops the request without processing it, deleting its temporary file.
+         */
+        void discard() {
+            try {
+                data.close();
+                if (spilled != null) {
+                    Files.deleteIfExists(spilled);
+                }
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to delete a temporary file", e);
+            }
+        }
+    }
+
+    /**
+     * Checks whether the data at the specified position starts with the pattern,
+     * ignoring case.
+     * @param buff Buffer
+     * @param index Position in the buffer
+     * @param end Index of the first byte after the data
+     * @param pattern Pattern, in lower case
+     * @return Checking result
+     */
+    private static boolean matchesIgnoreCase(final byte[] buff, final int index, final int end,
+            final byte[] pattern) {
+        if (end - index < pattern.length) {
+            return false;
+        }
+        for (int offset = 0; offset < pattern.length; offset++) {
+            final int ch = buff[index + offset];
+            final int lower = ch >= 'A' && ch <= 'Z' ? ch + ('a' - 'A') : ch;
+            if (lower != pattern[offset]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -3,31 +3,42 @@
  */
 package com.kniazkov.webserver;
 
-import java.io.File;
 import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketException;
 import java.net.SocketTimeoutException;
-import java.net.URLDecoder;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
+import java.nio.channels.ServerSocketChannel;
 import java.security.KeyManagementException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
-import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLServerSocket;
 import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
 
 /**
  * Simple and perfect web server for everyday use.
@@ -39,15 +50,35 @@ public final class Server {
 	private static final Logger logger = Logger.getLogger(Server.class.getName());
 
 	/**
-	 * Listener that's listening a socket.
+	 * Engine that accepts connections and passes requests to the handler.
 	 */
-	private final Listener listener;
+	private final Engine engine;
 
 	/**
-	 * Thread in which the listener is running.
+	 * Thread in which the engine is running.
 	 */
 	private final Thread thread;
 
+	/**
+	 * Cache of static files.
+	 */
+	private final FileCache cache;
+
+	/**
+	 * Limiter of the server load.
+	 */
+	private final LoadLimiter limiter;
+
+	/**
+	 * Metrics of the server.
+	 */
+	private final Metrics metrics;
+
+	/**
+	 * Server that serves the metrics on {@link Options#metricsPort} or {@code null}.
+	 */
+	private final Server metricsServer;
+
 	/**
 	 * Starts the web server.
 	 * @param options Options for starting the server
@@ -55,7 +86,50 @@ public final class Server {
 	 * @return An instance of the running server
 	 */
 	public static Server start(Options options, Handler handler) {
-		Server server = new Server(options, handler);
+		Server server = new Server(options, AsyncHandler.from(handler), null);
+		server.start();
+		return server;
+	}
+
+	/**
+	 * Starts the web server that also accepts WebSocket connections.
+	 * @param options Options for starting the server
+	 * @param handler Handler that handles requests received from clients (i.e., web pages).
+	 * @param webSocketHandler Handler of the connections switched to the WebSocket protocol
+	 * @return An instance of the running server
+	 */
+	public static Server start(Options options, Handler handler,
+			WebSocketHandler webSocketHandler) {
+		Server server = new Server(options, AsyncHandler.from(handler), webSocketHandler);
+		server.start();
+		return server;
+	}
+
+	/**
+	 * Starts the web server with an asynchronous handler.
+	 * @param options Options for starting the server
+	 * @param handler Handler that handles requests received from clients without blocking
+	 *  worker threads while waiting for responses
+	 * @return An instance of the running server
+	 */
+	public static Server startAsync(Options options, AsyncHandler handler) {
+		Server server = new Server(options, handler, null);
+		server.start();
+		return server;
+	}
+
+	/**
+	 * Starts the web server with an asynchronous handler that also accepts
+	 * WebSocket connections.
+	 * @param options Options for starting the server
+	 * @param handler Handler that handles requests received from clients without blocking
+	 *  worker threads while waiting for responses
+	 * @param webSocketHandler Handler of the connections switched to the WebSocket protocol
+	 * @return An instance of the running server
+	 */
+	public static Server startAsync(Options options, AsyncHandler handler,
+			WebSocketHandler webSocketHandler) {
+		Server server = new Server(options, handler, webSocketHandler);
 		server.start();
 		return server;
 	}
@@ -64,17 +138,44 @@ public final class Server {
 	 * Private constructor.
 	 * @param options Options for starting the server
 	 * @param handler Handler that handles requests received from clients
+	 * @param webSocketHandler Handler of WebSocket connections or {@code null}
+	 *  if the server does not accept them
 	 */
-	private Server(Options options, Handler handler) {
-		listener = new Listener(options.clone(), handler);
-		thread = new Thread(listener);
+	private Server(Options options, AsyncHandler handler, WebSocketHandler webSocketHandler) {
+		final Options copy = options.clone();
+		cache = new FileCache(copy.fileCacheSize, copy.maxCachedFileSize);
+		limiter = new LoadLimiter(copy);
+		metrics = new Metrics(copy.metrics, limiter);
+		final RequestProcessor processor = new RequestProcessor(copy, handler, cache, metrics);
+		if (copy.nonBlocking && copy.certificate == null) {
+			engine = new SelectorEngine(copy, processor, limiter, webSocketHandler);
+		} else {
+			if (copy.nonBlocking) {
+				logger.warning("Non-blocking engine does not support HTTPS, "
+					+ "falling back to the thread-per-connection engine");
+			}
+			engine = new Listener(copy, processor, limiter, webSocketHandler);
+		}
+		thread = new Thread(engine);
+		if (copy.metricsPort > 0) {
+			final Options metricsOptions = new Options();
+			metricsOptions.port = copy.metricsPort;
+			metricsOptions.threadCount = 1;
+			metricsOptions.metrics = false;
+			metricsServer = new Server(metricsOptions, AsyncHandler.from(metrics.getHandler()), null);
+		} else {
+			metricsServer = null;
+		}
 	}
 
 	/**
-	 * Starts the thread in which the listener is running.
+	 * Starts the thread in which the engine is running.
 	 */
 	private void start() {
 		thread.start();
+		if (metricsServer != null) {
+			metricsServer.start();
+		}
 	}
 
 	/**
@@ -89,28 +190,97 @@ public final class Server {
 	 * Stops the web server.
 	 */
 	public void stop() {
-		listener.stop();
+		engine.stop();
+		if (metricsServer != null) {
+			metricsServer.stop();
+		}
+	}
+
+	/**
+	 * Returns the statistics of the static file cache.
+	 * @return Cache statistics
+	 */
+	public CacheStatistics getCacheStatistics() {
+		return cache.getStatistics();
+	}
+
+	/**
+	 * Returns the statistics of the server load, including the number of connections
+	 * and requests refused because of {@link Options#maxConnections}
+	 * and {@link Options#maxQueueSize}.
+	 * @return Load statistics
+	 */
+	public LoadStatistics getLoadStatistics() {
+		return limiter.getStatistics();
+	}
+
+	/**
+	 * Returns the metrics of the server: latencies of the processing phases, load,
+	 * numbers of responses by code and traffic. If {@link Options#metrics} is turned off,
+	 * the metrics stay empty.
+	 * @return The metrics
+	 */
+	public Metrics getMetrics() {
+		return metrics;
 	}
 
 	/**
 	 * Listener that's listening a socket.
+	 * Each accepted connection is served by its own executor running in the thread pool.
 	 */
-	private static class Listener implements Runnable {
+	private static class Listener implements Engine {
 		/**
 		 * Options for starting the server.
 		 */
 		private final Options options;
 
 		/**
-		 * Handler that handles requests received from clients (i.e., web pages).
+		 * Processor that invokes the handler and writes responses.
 		 */
-		private final Handler handler;
+		private final RequestProcessor processor;
+
+		/**
+		 * Limiter of the server load.
+		 */
+		private final LoadLimiter limiter;
 
 		/**
 		 * Server socket.
 		 */
 		private ServerSocket serverSocket;
 
+		/**
+		 * Pool of worker threads that serve connections.
+		 */
+		private ExecutorService pool;
+
+		/**
+		 * Pool of threads that perform TLS handshakes, or {@code null} for plain HTTP.
+		 */
+		private ExecutorService handshakePool;
+
+		/**
+		 * Watcher of idle keep-alive connections, or {@code null} if connections
+		 * stay with their worker threads while idle.
+		 */
+		private IdleConnectionWatcher watcher;
+
+		/**
+		 * Open HTTP/2 connections.
+		 */
+		private final Set<Http2Connection> http2Connections;
+
+		/**
+		 * Handler of WebSocket connections or {@code null}.
+		 */
+		private final WebSocketHandler webSocketHandler;
+
+		/**
+		 * Engine serving WebSocket connections, or {@code null} if the server
+		 * does not accept them.
+		 */
+		private WebSocketEngine webSockets;
+
 		/**
 		 * Flag, as long as it is set, the listener will listen the socket.
 		 * As soon as the flag is reset, the server will stop after processing the last request.
@@ -120,11 +290,18 @@ public final class Server {
 		/**
 		 * Constructor.
 		 * @param options Options for starting the server
-		 * @param handler Handler that handles requests received from clients
+		 * @param processor Processor that invokes the handler and writes responses
+		 * @param limiter Limiter of the server load
+		 * @param webSocketHandler Handler of WebSocket connections or {@code null}
 		 */
-		public Listener(final Options options, final Handler handler) {
+		public Listener(final Options options, final RequestProcessor processor,
+				final LoadLimiter limiter, final WebSocketHandler webSocketHandler) {
 			this.options = options;
-			this.handler = handler;
+			this.processor = processor;
+			this.limiter = limiter;
+			this.http2Connections = ConcurrentHashMap.newKeySet();
+			this.webSocketHandler = webSocketHandler;
+			this.webSockets = null;
 			serverSocket = null;
 			this.work = false;
 		}
@@ -138,7 +315,7 @@ public final class Server {
 					char[] password = options.keystorePassword != null ?
 						options.keystorePassword.toCharArray() :
 						new char[0];
-					final KeyStore keyStore = KeyStore.getInstance("JKS");
+					final KeyStore keyStore = KeyStore.getInstance(options.keystoreType);
 					try (FileInputStream fis = new FileInputStream(options.certificate)) {
 						keyStore.load(fis, password);
 					}
@@ -151,29 +328,82 @@ public final class Server {
 					);
 					final SSLContext sslContext = SSLContext.getInstance("TLS");
 					sslContext.init(kmf.getKeyManagers(), null, null);
+					final SSLSessionContext sessions = sslContext.getServerSessionContext();
+					sessions.setSessionCacheSize(options.tlsSessionCacheSize);
+					sessions.setSessionTimeout(options.tlsSessionTimeout);
 					final SSLServerSocketFactory factory = sslContext.getServerSocketFactory();
-					serverSocket = factory.createServerSocket(options.port);
+					serverSocket = factory.createServerSocket();
+					options.configure(serverSocket);
+					if (options.http2) {
+						enableAlpn((SSLServerSocket) serverSocket);
+					}
+					serverSocket.bind(new InetSocketAddress(options.port));
 					logger.info("HTTPS server is running on port " + options.port);
 				} else {
-					serverSocket = new ServerSocket(options.port);
+					final ServerSocketChannel channel = ServerSocketChannel.open();
+					options.configure(channel.socket());
+					channel.bind(new InetSocketAddress(options.port));
+					serverSocket = channel.socket();
 					logger.info("HTTP server is running on port " + options.port);
 				}
 				work = true;
-		        ExecutorService pool = Executors.newFixedThreadPool(options.threadCount);
+		        pool = WorkerPool.create(options);
+		        processor.getMetrics().setWorkerPool(pool);
+		        if (options.certificate != null) {
+		            handshakePool = createHandshakePool();
+		        }
+		        if (webSocketHandler != null) {
+		            webSockets = new WebSocketEngine(options, webSocketHandler, limiter, pool);
+		            final Thread thread = new Thread(webSockets, "websocket-engine");
+		            thread.setDaemon(true);
+		            thread.start();
+		        }
+		        if (options.certificate == null && options.timeout > 0 && !options.virtualThreads) {
+		            watcher = new IdleConnectionWatcher(options.timeout);
+		            final Thread thread = new Thread(watcher, "idle-connection-watcher");
+		            thread.setDaemon(true);
+		            thread.start();
+		        }
 		        while (work)
 		        {
-		            Socket socket = serverSocket.accept();
-		            pool.submit(new Executor(socket, options, handler));
+		            final Socket socket;
+		            try {
+		                socket = serverSocket.accept();
+		            } catch (IOException e) {
+		                if (!work) {
+		                    // the socket is closed by stop(); a socket of a channel reports it
+		                    // by AsynchronousCloseException rather than SocketException
+		                    break;
+		                }
+		                throw e;
+		            }
+		            try {
+		                options.configure(socket);
+		            } catch (SocketException e) {
+		                logger.log(Level.FINE, "Failed to set socket options", e);
+		            }
+		            if (!limiter.tryAcquireConnection()) {
+		                reject(socket);
+		                continue;
+		            }
+		            if (handshakePool != null) {
+		                handshake((SSLSocket) socket);
+		            } else {
+		                execute(new Executor(socket, this));
+		            }
 		        }
-				pool.shutdown();
-				try {
-					if (!pool.awaitTermination(30, TimeUnit.SECONDS)) {
-						pool.shutdownNow();
-					}
-				} catch (InterruptedException ignored) {
-					pool.shutdownNow();
-					Thread.currentThread().interrupt();
+				if (watcher != null) {
+					watcher.stop();
+				}
+				Http2Connection.shutdown(http2Connections);
+				if (webSockets != null) {
+					webSockets.stop();
 				}
+				if (handshakePool != null) {
+					shutdown(handshakePool);
+				}
+				shutdown(pool);
+				Http2Connection.close(http2Connections);
 				serverSocket.close();
 			}
 			catch (KeyStoreException e) {
@@ -220,6 +450,191 @@ public final class Server {
 			}
 		}
 
+		/**
+		 * Lets clients choose HTTP/2 during the TLS handshake (ALPN).
+		 * @param socket The listening socket
+		 */
+		private static void enableAlpn(final SSLServerSocket socket) {
+			try {
+				final SSLParameters parameters = socket.getSSLParameters();
+				parameters.setApplicationProtocols(new String[] { "h2", "http/1.1" });
+				socket.setSSLParameters(parameters);
+			} catch (NoSuchMethodError ignored) {
+				logger.warning("ALPN is not supported by this Java version, HTTP/2 is disabled");
+			}
+		}
+
+		/**
+		 * Creates the pool of threads that perform TLS handshakes; its queue is limited
+		 * by {@link Options#maxQueueSize}.
+		 * @return The pool
+		 */
+		private ExecutorService createHandshakePool() {
+			final BlockingQueue<Runnable> queue = options.maxQueueSize > 0
+				? new ArrayBlockingQueue<>(options.maxQueueSize) : new LinkedBlockingQueue<>();
+			final int threads = Math.max(1, options.handshakeThreads);
+			final AtomicInteger counter = new AtomicInteger();
+			return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, queue,
+				task -> new Thread(task, "tls-handshake-" + counter.incrementAndGet()));
+		}
+
+		/**
+		 * Stops a pool of threads after the tasks already submitted to it are done.
+		 * @param executor The pool
+		 */
+		private static void shutdown(final ExecutorService executor) {
+			executor.shutdown();
+			try {
+				if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+					executor.shutdownNow();
+				}
+			} catch (InterruptedException ignored) {
+				executor.shutdownNow();
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		/**
+		 * Passes a secure connection to a handshake thread, which passes it further
+		 * to a worker thread once the handshake is complete (or, if the client has chosen
+		 * HTTP/2, starts an HTTP/2 connection). If the handshake queue is full,
+		 * the connection is refused.
+		 * @param socket The socket of the connection
+		 */
+		private void handshake(final SSLSocket socket) {
+			try {
+				handshakePool.execute(() -> {
+					if (completeHandshake(socket)) {
+						if (options.http2 && "h2".equals(getApplicationProtocol(socket))) {
+							startHttp2(socket, null);
+						} else {
+							execute(new Executor(socket, this));
+						}
+					} else {
+						limiter.releaseConnection();
+						reject(socket);
+					}
+				});
+			} catch (RejectedExecutionException ignored) {
+				limiter.releaseConnection();
+				limiter.requestRejected();
+				reject(socket);
+			}
+		}
+
+		/**
+		 * Performs the TLS handshake of a connection, within {@link Options#handshakeTimeout},
+		 * and counts it in the metrics. A handshake is counted as resumed if the session
+		 * had been created before the handshake started.
+		 * @param socket The socket of the connection
+		 * @return {@code true} if the handshake has succeeded
+		 */
+		private boolean completeHandshake(final SSLSocket socket) {
+			final Metrics metrics = processor.getMetrics();
+			final long start = metrics.start();
+			final long time = System.currentTimeMillis();
+			try {
+				final int timeout = socket.getSoTimeout();
+				socket.setSoTimeout(options.handshakeTimeout);
+				socket.startHandshake();
+				socket.setSoTimeout(timeout);
+				metrics.handshakeCompleted(start, socket.getSession().getCreationTime() < time);
+				return true;
+			} catch (IOException e) {
+				metrics.handshakeFailed();
+				logger.log(Level.FINE, "TLS handshake failed", e);
+				return false;
+			}
+		}
+
+		/**
+		 * Returns the protocol negotiated with ALPN during the handshake.
+		 * @param socket The socket of the connection
+		 * @return The protocol or {@code null} if none is negotiated
+		 */
+		private static String getApplicationProtocol(final SSLSocket socket) {
+			try {
+				return socket.getApplicationProtocol();
+			} catch (NoSuchMethodError | UnsupportedOperationException ignored) {
+				return null;
+			}
+		}
+
+		/**
+		 * Starts serving a connection over HTTP/2.
+		 * @param socket The socket of the connection
+		 * @param reader Reader of the data already received from the client or {@code null}
+		 *  if nothing is received yet
+		 */
+		private void startHttp2(final Socket socket, final StreamReader reader) {
+			try {
+				new Http2Connection(socket,
+					reader != null ? reader : new StreamReader(socket.getInputStream(),
+						options.readBufferSize),
+					options, processor, limiter, pool, http2Connections).start();
+			} catch (IOException e) {
+				logger.log(Level.FINE, "Failed to start HTTP/2 connection", e);
+				limiter.releaseConnection();
+				reject(socket);
+			}
+		}
+
+		/**
+		 * Passes a connection to a worker thread, or refuses it if the work queue is full.
+		 * @param executor Executor serving the connection
+		 */
+		private void execute(final Executor executor) {
+			try {
+				pool.execute(executor);
+			} catch (RejectedExecutionException ignored) {
+				limiter.releaseConnection();
+				limiter.requestRejected();
+				reject(executor.socket);
+			}
+		}
+
+		/**
+		 * Passes a connection whose asynchronous response is ready back to a worker thread.
+		 * If the work queue is full, the response is sent by the calling thread.
+		 * @param executor Executor serving the connection
+		 */
+		private void resume(final Executor executor) {
+			try {
+				pool.execute(executor);
+			} catch (RejectedExecutionException ignored) {
+				executor.run();
+			}
+		}
+
+		/**
+		 * Refuses a connection because the server is overloaded: sends
+		 * {@code 503 Service Unavailable} (only over plain HTTP, since HTTPS would need
+		 * a handshake first) and closes the socket.
+		 * @param socket The socket of the connection
+		 */
+		private void reject(final Socket socket) {
+			try {
+				if (options.certificate == null) {
+					socket.getOutputStream().write(processor.encodeServiceUnavailable());
+					socket.shutdownOutput();
+					// closing a socket with unread data resets the connection and may destroy
+					// the response, so the data that has already arrived is dropped first
+					final InputStream input = socket.getInputStream();
+					while (input.available() > 0 && input.skip(input.available()) > 0) {
+						// skipping
+					}
+				}
+			} catch (IOException e) {
+				logger.log(Level.FINE, "Failed to refuse client connection", e);
+			} finally {
+				try {
+					socket.close();
+				} catch (IOException e) {
+					logger.log(Level.FINE, "Failed to close client connection cleanly", e);
+				}
+			}
+		}
+
 		/**
 		 * Stops the server.
 		 */
@@ -250,417 +665,272 @@ public final class Server {
 		private final Options options;
 
 		/**
-		 * Handler that handles requests received from a client.
+		 * Processor that invokes the handler and writes responses.
 		 */
-		private final Handler handler;
+		private final RequestProcessor processor;
+
+		/**
+		 * Limiter of the server load, which counts the connection as open.
+		 */
+		private final LoadLimiter limiter;
+
+		/**
+		 * Listener that has accepted the connection.
+		 */
+		private final Listener listener;
+
+		/**
+		 * Output to which responses are written, created when the executor runs first.
+		 */
+		private SocketOutput output;
+
+		/**
+		 * Reader of the received data, created when the executor runs first; it is kept
+		 * while the connection is idle, so that no received data is lost.
+		 */
+		private StreamReader reader;
+
+		/**
+		 * Request whose response is being produced by the asynchronous handler,
+		 * or {@code null}.
+		 */
+		private Request pendingRequest;
+
+		/**
+		 * Future of the response to {@link #pendingRequest}.
+		 */
+		private CompletableFuture<Response> pendingResult;
 
 		/**
 		 * Constructor.
 		 * @param socket Socket
-		 * @param options Options
-		 * @param handler Handler that handles requests received from a client
+		 * @param listener Listener that has accepted the connection
 		 */
-        private Executor(Socket socket, Options options, Handler handler) {
+        private Executor(Socket socket, Listener listener) {
         	this.socket = socket;
-        	this.options = options;
-        	this.handler = handler;
+        	this.options = listener.options;
+        	this.processor = listener.processor;
+        	this.limiter = listener.limiter;
+        	this.listener = listener;
+        	this.output = null;
+        	this.reader = null;
         }
 
 		/**
 		 * Starting point of the executor.
 		 * Here the data received from the client is parsed, the handler is called,
 		 * and then the resulting data is sent to the client.
+		 * If the connection is kept alive and the client has sent nothing more, the connection
+		 * is handed over to the {@link IdleConnectionWatcher} instead of blocking the worker
+		 * thread; the executor runs again once the next request arrives. Likewise,
+		 * while an asynchronous handler is producing a response, the connection releases
+		 * the thread; the executor runs again to send the response.
 		 */
 		public void run() {
+			boolean parked = false;
 			try {
-				final StreamReader reader = new StreamReader(socket.getInputStream());
+				if (reader == null) {
+					final SocketOutput output = new SocketOutput(socket);
+					final InputStream input = new FilterInputStream(socket.getInputStream()) {
+						@Override
+						public int read(final byte[] buff, final int offset, final int length) throws IOException {
+							output.flush();
+							return super.read(buff, offset, length);
+						}
+					};
+					this.output = output;
+					reader = new StreamReader(input, options.readBufferSize);
+					if (options.http2 && options.certificate == null && startsWithPreface()) {
+						parked = true;
+						listener.startHttp2(socket, reader);
+						return;
+					}
+				}
+				boolean served = false;
+				if (pendingRequest != null) {
+					final Request request = pendingRequest;
+					final CompletableFuture<Response> result = pendingResult;
+					pendingRequest = null;
+					pendingResult = null;
+					if (processor.finish(request, output, result)) {
+						output.flush();
+						socket.close();
+					}
+					served = true;
+				}
 				if (options.timeout == 0) {
-					processRequest(reader);
+					if (!served && processRequest(reader, output)) {
+						parked = true;
+						if (pendingResult != null) {
+							suspend();
+						}
+						return;
+					}
 				} else {
+					final IdleConnectionWatcher watcher = listener.watcher;
 					while (!socket.isClosed()) {
+						if (served && watcher != null && !reader.hasBufferedData()) {
+							output.flush();
+							parked = true;
+							watcher.watch(socket.getChannel(), () -> listener.execute(this),
+								this::close);
+							return;
+						}
 						socket.setSoTimeout(options.timeout);
 						try {
-							processRequest(reader);
+							if (processRequest(reader, output)) {
+								parked = true;
+								if (pendingResult != null) {
+									suspend();
+								}
+								return;
+							}
 						} catch (SocketTimeoutException ignored) {
 							socket.close();
 						}
+						served = true;
 					}
 				}
+				if (!socket.isClosed()) {
+					output.flush();
+					socket.close();
+				}
 			} catch (IOException e) {
 				logger.log(Level.WARNING, "I/O error while handling client connection", e);
+			} finally {
+				if (!parked) {
+					close();
+				}
 			}
 		}
 
 		/**
-		 * Processes a single HTTP request received from the client.
-         *
-		 * Reads the request line, headers, and body (if present), constructs a {@link Request}
-		 * object, invokes the handler, and writes the resulting {@link Response} or a static file
-		 * back to the client.
-		 *
-		 * @param reader stream Reader used to read the raw request data
-		 * @throws IOException If an I/O error occurs while reading the request
-		 *  or writing the response
+		 * Checks whether the client starts the connection with the HTTP/2 preface.
+		 * The check reads only as much data as needed to tell it from an HTTP/1.1 request.
+		 * @return {@code true} if the client speaks HTTP/2
+		 * @throws IOException If the data cannot be read
 		 */
-		private void processRequest(final StreamReader reader) throws IOException {
-			final Request request = parseRequest(reader);
-			if (request == null) {
-				return;
+		private boolean startsWithPreface() throws IOException {
+			if (options.timeout > 0) {
+				socket.setSoTimeout(options.timeout);
 			}
-			Response response = null;
 			try {
-				response = handler.handle(request);
-			} catch (Throwable t) {
-				logger.log(Level.WARNING, "Handler threw an exception", t);
-				writeResponse("500 Internal Server Error");
-				if (!socket.isClosed()) {
-					socket.close();
-				}
-				return;
-			}
-			if (response != null) {
-				writeResponse(
-					"200 OK",
-					response.getContentType(),
-					response.getData(),
-					response.getCookies()
-				);
-			} else {
-				readAndSendLocalFile(request);
-			}
-			if (request.closeConnection) {
+				return reader.startsWith(Http2Connection.PREFACE);
+			} catch (SocketTimeoutException ignored) {
 				socket.close();
+				return false;
 			}
 		}
 
 		/**
-		 * Parses an HTTP request received from the client.
-		 *
-		 * This method reads data from the input stream (request line, headers, and optionally
-		 * the body), determines the HTTP method, target address, headers, and fills the
-		 * {@link Request} object.
-		 * For POST requests, it also extracts form parameters or file data
-		 * in case of <code>multipart/form-data</code>.
-		 *
-		 * @param reader the stream reader used to read client data line by line
-		 * @return a {@link Request} object containing the parsed request data
-		 * @throws IOException if an error occurs while reading from the socket
+		 * Releases the thread until the response to the pending request is ready; then
+		 * the executor runs again. The responses produced so far are sent meanwhile.
+		 * @throws IOException If the responses cannot be sent
 		 */
-		private Request parseRequest(final StreamReader reader) throws IOException {
-			final Request request = new Request();
-			int contentLength = 0;
-			String boundary = "";
-
-			String line = reader.readLine();
-			if (line.isEmpty()) {
-				socket.close();
-				return null;
-			}
-			String[] parts = line.split(" ");
-			if (parts.length >= 3) {
-				String methodStr = parts[0].trim();
-				request.address = parts[1].trim();
-				request.httpVersion = parts[2].trim();
-
-				if ("GET".equalsIgnoreCase(methodStr)) {
-					request.method = Method.GET;
-				} else if ("POST".equalsIgnoreCase(methodStr)) {
-					request.method = Method.POST;
-				}
-			}
-			line = reader.readLine();
-			while (line.length() > 0) {
-				int colon = line.indexOf(':');
-				if (colon > 0) {
-					String name = line.substring(0, colon).trim();
-					String value = line.substring(colon + 1).trim();
-
-					if ("Content-Length".equalsIgnoreCase(name)) {
-						try {
-							contentLength = Integer.parseInt(value);
-						} catch (NumberFormatException ignored) {
-							writeResponse("400 Bad Request");
-							return null;
-						}
-					} else if ("Content-Type".equalsIgnoreCase(name) && value.startsWith("multipart/form-data;")) {
-						int index = value.indexOf("boundary=");
-						if (index != -1) {
-							boundary = value.substring(index + 9);
-						}
-					} else if ("Connection".equalsIgnoreCase(name) && "close".equalsIgnoreCase(value)) {
-						request.closeConnection = true;
-					} else if ("Cookie".equalsIgnoreCase(name)) {
-						String[] pairs = value.split(";");
-						for (String pair : pairs) {
-							String[] kv = pair.trim().split("=", 2);
-							if (kv.length == 2) {
-								String cookieName = URLDecoder.decode(kv[0].trim(), "UTF-8");
-								String cookieValue = URLDecoder.decode(kv[1].trim(), "UTF-8");
-								request.cookies.put(cookieName, cookieValue);
-							}
-						}
-					}
-				}
-				line = reader.readLine();
-			}
-
-			int qIndex = request.address.indexOf('?');
-			String query = "";
-			if (qIndex >= 0) {
-				request.path = request.address.substring(0, qIndex);
-				query = request.address.substring(qIndex + 1);
-			} else {
-				request.path = request.address;
-			}
-
-			if (request.method == Method.UNKNOWN) {
-				writeResponse("200 OK", "text/javascript");
-			}
-			else if (request.method == Method.POST) {
-				reader.setLimit(contentLength);
-				reader.setBoundary("--" + boundary);
-			}
-
-			if (request.method == Method.GET || (request.method == Method.POST && boundary.length() == 0)) {
-				String data = "";
-				if (request.method == Method.GET)
-					data = query;
-				else
-					data = reader.readLine();
-				if (data.length() > 0) {
-					for (final String item : data.split("&")) {
-						if (item != null && !item.equals("")) {
-							final String[] pair = item.split("=");
-							if (pair.length == 1 || pair.length == 2) {
-								final String key = URLDecoder.decode(pair[0], "UTF-8");
-								String value = "";
-								if (pair.length == 2) {
-									value = URLDecoder.decode(pair[1], "UTF-8");
-								}
-								request.formData.put(key, value);
-							}
-						}
-					}
-				}
-			}
-			else if (boundary.length() > 0) {
-				String item = reader.readLine();
-				if (!item.equals("--" + boundary)) {
-					writeResponse("400 Bad Request");
-					return null;
-				}
-				do {
-					String key = "";
-					String contentType = "";
-					String fileName = "";
-					do {
-						item = reader.readLine();
-						if (item.startsWith("Content-Disposition: form-data")) {
-							int nameIndex = item.indexOf("name=\"");
-							if (nameIndex >= 0) {
-								key = item.substring(nameIndex + 6);
-								int closingQuoteIndex = key.indexOf("\"");
-								if (closingQuoteIndex < 0) {
-									writeResponse("400 Bad Request");
-									return null;
-								}
-								key = key.substring(0, closingQuoteIndex);
-							}
-							int fileNameIndex = item.indexOf("filename=\"");
-							if (fileNameIndex >= 0) {
-								fileName = item.substring(fileNameIndex + 10);
-								int closingQuoteIndex = fileName.indexOf("\"");
-								if (closingQuoteIndex < 0) {
-									writeResponse("400 Bad Request");
-									return null;
-								}
-								fileName = fileName.substring(0, closingQuoteIndex);
-							}
-						}
-						else if (item.startsWith("Content-Type:")) {
-							contentType = item.substring(14);
-						}
-					} while (item.length() != 0);
-					final byte[] data = reader.readArrayToBoundary();
-					final int first = reader.readByte();
-					final int second = reader.readByte();
-					if (fileName.length() == 0) {
-						request.formData.put(key, new String(data, StandardCharsets.UTF_8));
-					} else {
-						final FileDescriptor file = new FileDescriptor();
-						file.name = URLDecoder.decode(fileName, "UTF-8");
-						file.contentType = contentType;
-						file.data = data;
-						request.files.put(key, file);
-					}
-					if (first != 13 && second != 10) {
-						break;
-					}
-				} while (true);
+		private void suspend() throws IOException {
+			try {
+				output.flush();
+			} finally {
+				pendingResult.whenComplete((response, failure) -> listener.resume(this));
 			}
-
-			return request;
 		}
 
 		/**
-		 * Reads a static file from the local {@code wwwRoot} folder and sends it to the client.
-		 * If the requested path is {@code /}, the default file {@code /index.html} is served.
-		 * If the file does not exist, a {@code 404 Not Found} response is returned.
-		 * If an I/O error occurs, a {@code 500 Internal Server Error} is returned.
-		 *
-		 * @param request The parsed HTTP request containing the target address
-		 * @throws IOException If an error occurs while reading the file or writing the response
+		 * Closes the connection, if it is not closed yet, and stops counting it as open.
 		 */
-		private void readAndSendLocalFile(final Request request) throws IOException {
-			if (request.address.startsWith("/?")) {
-				writeResponse("500 Internal Server Error");
-			} else {
-				String path = request.address;
-				int index = path.indexOf('?');
-				if (index >= 0)
-					path = path.substring(0, index);
-				if (path.equals("/")) {
-					path = "/index.html";
-				} else {
-					path = URLDecoder.decode(path, "UTF-8");
-				}
+		private void close() {
+			limiter.releaseConnection();
+			if (!socket.isClosed()) {
 				try {
-					File file = new File(options.wwwRoot + path);
-					if (file.exists()) {
-						byte[] content = Files.readAllBytes(file.toPath());
-						String extension = "";
-						index = path.lastIndexOf('.');
-						if (index > 0)
-							extension = path.substring(index + 1).toLowerCase();
-						String type = "application/unknown";
-						if (extension.length() > 0) {
-							switch(extension)
-							{
-								case "txt":
-									type = "text/plain";
-									break;
-								case "htm":
-								case "html":
-									type = "text/html";
-									break;
-								case "css":
-									type = "text/css";
-									break;
-								case "js":
-									type = "text/javascript";
-									break;
-								case "jpg":
-								case "jpeg":
-								case "png":
-								case "gif":
-									type = "image/" + extension;
-									break;
-								default:
-									type = "application/" + extension;
-							}
-						}
-						writeResponse("200 OK", type, content);
-					}
-					else {
-						writeResponse("404 Not Found");
-					}
-				}
-				catch (IOException ignored) {
-					writeResponse("500 Internal Server Error");
+					socket.close();
+				} catch (IOException e) {
+					logger.log(Level.FINE, "Failed to close client connection cleanly", e);
 				}
 			}
 		}
 
 		/**
-         * Sends a response to the client without body, without cookies,
-         * and without explicitly specified content type.
-		 * @param code Response code, for example {@code 404 Not Found}
-		 * @throws IOException If there's something wrong with the output stream
-		 */
-        private void writeResponse(String code) throws IOException {
-			writeResponse(code, null, null, null);
-		}
-
-		/**
-		 * Sends a response to the client without body and without cookies.
-		 * @param code Response code, for example {@code 404 Not Found}
-		 * @param type Response type, for example, {@code image/jpeg} or {@code text/html}
-		 * @throws IOException If there's something wrong with the output stream
+		 * Processes a single HTTP request received from the client.
+		 *
+		 * Reads the request line, headers, and body (if present), constructs a {@link Request}
+		 * object, invokes the handler, and writes the resulting {@link Response} or a static file
+		 * back to the client.
+		 * Responses are not sent immediately: if the client has pipelined several requests,
+		 * they are all processed first, and their responses leave together once the reader
+		 * runs out of received data (see {@link SocketOutput}).
+		 *
+		 * If the handler is asynchronous and its response is not ready yet, the request
+		 * becomes pending. A request switching to the WebSocket protocol hands
+		 * the connection over to the {@link WebSocketEngine}.
+		 *
+		 * @param reader stream Reader used to read the raw request data
+		 * @param output Output to which responses are written
+		 * @return {@code true} if the request is pending or the connection is handed over,
+		 *  so the executor must leave the socket alone
+		 * @throws IOException If an I/O error occurs while reading the request
+		 *  or writing the response
 		 */
-        private void writeResponse(String code, String type) throws IOException {
-			writeResponse(code, type, null, null);
+		private boolean processRequest(final StreamReader reader, final SocketOutput output)
+				throws IOException {
+			final Request request;
+			try {
+				request = RequestParser.parse(reader, options, processor.getMetrics());
+			} catch (BadRequestException ignored) {
+				processor.writeResponse(output, "400 Bad Request");
+				output.flush();
+				socket.close();
+				return false;
+			}
+			if (request == null) {
+				output.flush();
+				socket.close();
+				return false;
+			}
+			if (listener.webSockets != null && WebSocketEngine.isUpgrade(request)) {
+				return upgrade(request);
+			}
+			final boolean close;
+			if (processor.isAsync()) {
+				final CompletableFuture<Response> result = processor.start(request);
+				if (!result.isDone()) {
+					pendingRequest = request;
+					pendingResult = result;
+					return true;
+				}
+				close = processor.finish(request, output, result);
+			} else {
+				close = processor.process(request, output);
+			}
+			if (close) {
+				output.flush();
+				socket.close();
+			}
+			return false;
 		}
 
 		/**
-		 * Sends a response to the client. No {@code Set-Cookie} headers are included.
-		 * @param code Response code, for example {@code 404 Not Found}
-		 * @param type Response type, for example, {@code image/jpeg} or {@code text/html}
-		 * @param data Response data, or {@code null} if there is no data
-		 * @throws IOException If there's something wrong with the output stream
+		 * Performs the opening handshake of the WebSocket protocol and, if the request
+		 * is accepted, hands the connection over to the {@link WebSocketEngine} together with
+		 * the data received after the request.
+		 * @param request The request switching to the WebSocket protocol
+		 * @return {@code true} if the connection is handed over
+		 * @throws IOException If the response cannot be written
 		 */
-        private void writeResponse(String code, String type, byte[] data) throws IOException {
-			writeResponse(code, type, data, null);
-		}
-
-		/**
-		 * Sends a response to the client.
-		 * @param code Response code, for example {@code 404 Not Found}
-		 * @param type Response type, for example, {@code image/jpeg} or {@code text/html}
-		 * @param data Response data, or {@code null} if there is no data
-         * @param cookies Map of cookies to set in the response, if empty or {@code null},
-         *  no cookies are sent
-		 * @throws IOException If there's something wrong with the output stream
-		 */
-        private void writeResponse(String code, String type, byte[] data,
-				Map<String, String> cookies) throws IOException {
-			OutputStream stream = socket.getOutputStream();
-			if (code != null) {
-				if (type == null)
-					type = "application/unknown";
-				StringBuilder b = new StringBuilder();
-
-				b.append("HTTP/1.1 ");
-				b.append(code);
-				b.append("\r\n");
-
-				b.append("Access-Control-Allow-Origin: *\r\n");
-
-				b.append("Content-Type: ");
-				b.append(type);
-				b.append("\r\n");
-
-				b.append("Content-Length: ");
-				if (data != null)
-					b.append(data.length);
-				else
-					b.append('0');
-				b.append("\r\n");
-
-				if (cookies != null) {
-					for (Map.Entry<String, String> entry : cookies.entrySet()) {
-						b.append("Set-Cookie: ")
-							.append(entry.getKey())
-							.append("=")
-							.append(entry.getValue())
-							.append("; Path=/\r\n");
-					}
-				}
-
-				if (options.timeout == 0)
-					b.append("Connection: close\r\n");
-				else
-					b.append("Keep-Alive: timeout=")
-						.append(Math.max(options.timeout / 1000, 1))
-						.append(", max=100\r\n");
-
-				b.append("\r\n");
-
-				stream.write(b.toString().getBytes());
+		private boolean upgrade(final Request request) throws IOException {
+			final WebSocketEngine webSockets = listener.webSockets;
+			final WebSocketEngine.Upgrade upgrade = webSockets.accept(request, output);
+			output.flush();
+			if (upgrade == null) {
+				socket.close();
+				return false;
 			}
-			if (data != null) {
-				stream.write(data);
+			final byte[] received = reader.readBuffered();
+			if (socket.getChannel() != null) {
+				webSockets.open(upgrade, socket.getChannel(), received);
+			} else {
+				webSockets.open(upgrade, socket, received);
 			}
-			stream.flush();
-        }
+			return true;
+		}
     }
 }
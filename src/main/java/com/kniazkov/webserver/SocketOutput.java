@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2025 Ivan Kniazkov
+ */
+package com.kniazkov.webserver;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Output that sends data to a blocking socket.
+ * Small pieces of data (headers, short bodies) are collected in an internal array, so that
+ * a response, or several pipelined responses, leave in one write; a large body is sent
+ * together with the collected bytes by a gathering write. The end of a response
+ * does not send the array: the engine calls {@link #flush()} before it waits for the next
+ * request, i.e. once all the requests received so far are answered.
+ * If the socket has a channel, large byte buffers are written to the channel without copying,
+ * and files are transferred to the channel by the kernel ({@code sendfile}).
+ * Otherwise (for example, for SSL sockets), the data is copied through an intermediate array.
+ */
+final class SocketOutput extends ClientOutput {
+    /**
+     * Size of the internal array.
+     */
+    private static final int BUFFER_SIZE = 16384;
+
+    /**
+     * Output stream of the socket.
+     */
+    private final OutputStream stream;
+
+    /**
+     * Channel of the socket or {@code null} if the socket has no channel (for example, SSL socket).
+     */
+    private final SocketChannel channel;
+
+    /**
+     * Internal array collecting the data.
+     */
+    private final byte[] array;
+
+    /**
+     * Number of bytes in the internal array.
+     */
+    private int buffered;
+
+    /**
+     * Constructor.
+     * @param socket The socket
+     * @throws IOException If the output stream of the socket cannot be obtained
+     */
+    SocketOutput(final Socket socket) throws IOException {
+        this.stream = socket.getOutputStream();
+        this.channel = socket.getChannel();
+        this.array = new byte[BUFFER_SIZE];
+        this.buffered = 0;
+    }
+
+    @Override
+    public void write(final int value) throws IOException {
+        countWritten(1);
+        if (buffered == array.length) {
+            flush();
+        }
+        array[buffered++] = (byte) value;
+    }
+
+    @Override
+    public void write(final byte[] data, final int offset, final int length) throws IOException {
+        countWritten(length);
+        if (length > array.length - buffered) {
+            if (channel != null && length >= array.length) {
+                writeGathering(ByteBuffer.wrap(data, offset, length));
+                return;
+            }
+            flush();
+            if (length >= array.length) {
+                stream.write(data, offset, length);
+                return;
+            }
+        }
+        System.arraycopy(data, offset, array, buffered, length);
+        buffered += length;
+    }
+
+    @Override
+    void write(final ByteBuffer buffer) throws IOException {
+        if (channel == null || buffer.remaining() <= array.length - buffered) {
+            super.write(buffer);
+            return;
+        }
+        countWritten(buffer.remaining());
+        writeGathering(buffer.duplicate());
+    }
+
+    @Override
+    void transfer(final FileChannel file, long position, long count) throws IOException {
+        if (channel == null || count <= array.length - buffered) {
+            super.transfer(file, position, count);
+            return;
+        }
+        countWritten(count);
+        flush();
+        while (count > 0) {
+            final long sent = file.transferTo(position, count, channel);
+            if (sent <= 0 && position >= file.size()) {
+                throw new EOFException("The file is shorter than expected");
+            }
+            position += sent;
+            count -= sent;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (buffered > 0) {
+            stream.write(array, 0, buffered);
+            buffered = 0;
+            stream.flush();
+        }
+    }
+
+    /**
+     * Writes the collected bytes followed by a buffer to the channel, in one system call
+     * if the socket accepts all the data at once.
+     * @param source The buffer
+     * @throws IOException If there's something wrong with the channel
+     */
+    private void writeGathering(final ByteBuffer source) throws IOException {
+        if (buffered == 0) {
+            while (source.hasRemaining()) {
+                channel.write(source);
+            }
+            return;
+        }
+        final ByteBuffer[] buffers = { ByteBuffer.wrap(array, 0, buffered), source };
+        buffered = 0;
+        while (source.hasRemaining()) {
+            channel.write(buffers);
+        }
+    }
+
+    @Override
+    void endResponse() {
+        // the data is sent by the engine before it waits for the next request
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2025 Ivan Kniazkov
+ */
+package com.kniazkov.webserver;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Stream that collects data in memory until its size exceeds a threshold,
+ * and then moves it to a temporary file, so that large uploads do not consume the heap.
+ */
+final class SpillOutput extends OutputStream {
+    /**
+     * Initial size of the array collecting the data.
+     */
+    private static final int INITIAL_SIZE = 1024;
+
+    /**
+     * Maximum size of the data kept in memory.
+     */
+    private final long threshold;
+
+    /**
+     * Array collecting the data, or {@code null} if the data is moved to the file.
+     */
+    private byte[] array;
+
+    /**
+     * Path to the temporary file or {@code null} if the data is kept in memory.
+     */
+    private Path path;
+
+    /**
+     * Stream writing the temporary file.
+     */
+    private OutputStream file;
+
+    /**
+     * Total number of bytes written.
+     */
+    private long size;
+
+    /**
+     * Constructor.
+     * @param threshold Maximum size of the data kept in memory, in bytes
+     */
+    SpillOutput(final long threshold) {
+        this.threshold = threshold;
+        this.array = new byte[(int) Math.min(INITIAL_SIZE, Math.max(threshold, 0))];
+        this.path = null;
+        this.file = null;
+        this.size = 0;
+    }
+
+    @Override
+    public void write(final int value) throws IOException {
+        write(new byte[] { (byte) value }, 0, 1);
+    }
+
+    @Override
+    public void write(final byte[] data, final int offset, final int length) throws IOException {
+        if (array != null && size + length > threshold) {
+            path = Files.createTempFile("webserver-upload-", ".tmp");
+            file = new BufferedOutputStream(Files.newOutputStream(path));
+            file.write(array, 0, (int) size);
+            array = null;
+        }
+        if (array != null) {
+            if (size + length > array.length) {
+                array = Arrays.copyOf(array,
+                    (int) Math.min(threshold, Math.max(size + length, array.length * 2L)));
+            }
+            System.arraycopy(data, offset, array, (int) size, length);
+        } else {
+            file.write(data, offset, length);
+        }
+        size += length;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (file != null) {
+            file.close();
+        }
+    }
+
+    /**
+     * Closes the stream and deletes the temporary file, if any.
+     */
+    void discard() {
+        try {
+            close();
+            if (path != null) {
+                Files.deleteIfExists(path);
+            }
+        } catch (IOException ignored) {
+            // the file is deleted on a best-effort basis
+        }
+    }
+
+    /**
+     * Returns the number of bytes written.
+     * @return Size of the data
+     */
+    long getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the data if it is kept in memory.
+     * @return The data or {@code null} if it is moved to the temporary file
+     */
+    byte[] getData() {
+        return array != null ? Arrays.copyOf(array, (int) size) : null;
+    }
+
+    /**
+     * Returns the path to the temporary file.
+     * @return Path or {@code null} if the data is kept in memory
+     */
+    Path getPath() {
+        return path;
+    }
+}
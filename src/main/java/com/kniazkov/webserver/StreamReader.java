@@ -5,17 +5,43 @@ package com.kniazkov.webserver;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 
 /**
  * Helper class for reading data from an incoming stream.
+ * The data is read into an internal buffer in bulk, and delimiters (line ends, boundaries
+ * of multipart data) are searched for directly in the buffer, not byte by byte.
  */
 final class StreamReader {
     /**
-     * The size of the internal buffer into which data from the stream is saved before parsing.
+     * The default size of the internal buffer into which data from the stream is saved
+     * before parsing.
      */
-    private static final int BUFF_SIZE = 1024;
+    static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    /**
+     * Minimum size of the internal buffer.
+     */
+    private static final int MIN_BUFFER_SIZE = 256;
+
+    /**
+     * Eight bytes, each of them containing 0x01.
+     */
+    private static final long ONES = 0x0101010101010101L;
+
+    /**
+     * Eight bytes, each of them containing 0x80.
+     */
+    private static final long HIGH_BITS = 0x8080808080808080L;
+
+    /**
+     * Eight bytes, each of them containing the code of the line feed character.
+     */
+    private static final long LINE_FEEDS = ONES * '\n';
 
     /**
      * The input stream.
@@ -25,7 +51,12 @@ final class StreamReader {
     /**
      * The internal buffer.
      */
-    private final byte[] buff;
+    private byte[] buff;
+
+    /**
+     * View of the internal buffer that reads eight bytes at once.
+     */
+    private ByteBuffer view;
 
     /**
      * An offset from the beginning of the internal buffer that specifies the position
@@ -41,41 +72,90 @@ final class StreamReader {
     /**
      * Specifies how many bytes can be read at all (<0 means there is no limit).
      */
-    private int limit;
+    private long limit;
 
     /**
-     * Specifies the boundary that separates the data.
+     * Delimiter that separates the data: CRLF followed by the boundary.
+     */
+    private byte[] delimiter;
+
+    /**
+     * Horspool's shift table for the delimiter: how far the search window can be moved
+     * depending on the byte aligned with the last byte of the delimiter.
      */
-    private byte[] boundary;
+    private int[] shifts;
 
     /**
-     * Temporary buffer for reading data.
-     * Since reading data is a synchronous process, the buffer is defined only once
-     * so that a new one is not created for each call.
+     * Array in which a line that does not fit in the internal buffer is collected.
      */
-    private byte[] data;
+    private byte[] line;
 
     /**
      * Constructor.
      * @param stream The input stream
      */
     StreamReader(final InputStream stream) {
+        this(stream, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Constructor.
+     * @param stream The input stream
+     * @param bufferSize Size of the internal buffer, in bytes
+     */
+    StreamReader(final InputStream stream, final int bufferSize) {
         this.stream = stream;
-        this.buff = new byte[BUFF_SIZE];
+        this.buff = new byte[Math.max(bufferSize, MIN_BUFFER_SIZE)];
+        this.view = ByteBuffer.wrap(buff).order(ByteOrder.LITTLE_ENDIAN);
         this.offset = 0;
         this.available = 0;
         this.limit = -1; // unlimited
-        this.boundary = null;
-        this.data = null;
+        this.delimiter = null;
+        this.shifts = null;
+        this.line = null;
+    }
+
+    /**
+     * Checks whether the internal buffer contains received data that has not been read yet,
+     * for example, the beginning of a pipelined request.
+     * @return {@code true} if there is such data
+     */
+    boolean hasBufferedData() {
+        return available > 0;
+    }
+
+    /**
+     * Takes the received data that has not been read yet out of the internal buffer,
+     * for example, when the connection switches to another protocol.
+     * @return The data, may be empty
+     */
+    byte[] readBuffered() {
+        final byte[] data = Arrays.copyOfRange(buff, offset, offset + available);
+        offset += available;
+        available = 0;
+        return data;
     }
 
     /**
      * Specifies the limit on how many bytes can be read.
-     * @param value Limit
+     * @param value Limit (<0 means there is no limit)
      */
-    void setLimit(final int value) {
+    void setLimit(final long value) {
         limit = value;
-        data = new byte[limit];
+    }
+
+    /**
+     * Skips the data remaining until the limit, so that the next read starts after it.
+     * @throws IOException If there's something wrong with the stream
+     */
+    void skipToLimit() throws IOException {
+        while (limit > 0) {
+            final int count = readable();
+            if (count == 0 && fill(1) == 0) {
+                return;
+            }
+            consume(readable());
+        }
     }
 
     /**
@@ -83,56 +163,137 @@ final class StreamReader {
      * @param value Boundary
      */
     void setBoundary(final String value) {
-        boundary = value.getBytes(StandardCharsets.US_ASCII);
+        final byte[] boundary = value.getBytes(StandardCharsets.US_ASCII);
+        delimiter = new byte[boundary.length + 2];
+        delimiter[0] = '\r';
+        delimiter[1] = '\n';
+        System.arraycopy(boundary, 0, delimiter, 2, boundary.length);
+        shifts = new int[256];
+        Arrays.fill(shifts, delimiter.length);
+        for (int index = 0; index < delimiter.length - 1; index++) {
+            shifts[delimiter[index] & 0xff] = delimiter.length - 1 - index;
+        }
     }
 
     /**
      * Reads a string from the stream.
      * The string ends if the byte {code \n} is received or if the stream is empty.
+     * @param maxLength Maximum length of the string, in bytes
      * @return String or empty string
+     * @throws BadRequestException If the string is longer than the maximum length
      * @throws IOException If there's something wrong with the stream
      */
-    String readLine() throws IOException {
-        final StringBuilder builder = new StringBuilder();
-        int ch = readByte();
-        while (ch >= 0 && ch != 10) {
-            builder.append((char)ch);
-            ch = readByte();
+    String readLine(final long maxLength) throws IOException {
+        int length = 0;
+        while (true) {
+            int count = readable();
+            if (count == 0) {
+                count = fill(1);
+                if (count == 0) {
+                    return decode(line, 0, length);
+                }
+            }
+            final int end = indexOfLineFeed(offset, offset + count);
+            if (end >= 0 && length == 0 && end - offset <= maxLength) {
+                final String result = decode(buff, offset, end - offset);
+                consume(end + 1 - offset);
+                return result;
+            }
+            final int size = (end >= 0 ? end : offset + count) - offset;
+            if (length + (long) size > maxLength) {
+                throw new BadRequestException("Line is too long");
+            }
+            if (line == null || line.length < length + size) {
+                line = Arrays.copyOf(line == null ? new byte[0] : line,
+                    Math.max(length + size, length * 2 + 64));
+            }
+            System.arraycopy(buff, offset, line, length, size);
+            length += size;
+            if (end >= 0) {
+                consume(size + 1);
+                return decode(line, 0, length);
+            }
+            consume(size);
         }
-        return builder.toString().trim();
     }
 
     /**
-     * Reads an array of bytes from the stream, until the stream ends
-     * or until the boundary bytes are read.
-     * @return Array of bytes or empty array
+     * Reads the request line and the headers, i.e. all the data up to and including
+     * the first empty line.
+     * @param maxSize Maximum size of the data, in bytes
+     * @return Array containing the data or {@code null} if the stream has ended
+     *  before any data was received
+     * @throws BadRequestException If the data is larger than the maximum size
      * @throws IOException If there's something wrong with the stream
      */
-    byte[] readArrayToBoundary() throws IOException {
-        if (boundary == null || data == null) {
-            return new byte[0];
-        }
-        int size = 0;
-        int b = readByte();
-        while (b >= 0) {
-            data[size] = (byte)b;
-            size++;
-            if (size >= boundary.length) {
-                boolean cut = true;
-                for (int index = 0; index < boundary.length; index++) {
-                    if (boundary[index] != data[size - boundary.length + index]) {
-                        cut = false;
-                        break;
-                    }
+    byte[] readHeaders(final int maxSize) throws IOException {
+        int scanned = 0;
+        int lineStart = 0;
+        while (true) {
+            int count = readable();
+            int found = indexOfLineFeed(offset + scanned, offset + count);
+            while (found >= 0) {
+                final int end = found - offset;
+                if (end == lineStart || end == lineStart + 1 && buff[found - 1] == '\r') {
+                    final byte[] result = Arrays.copyOfRange(buff, offset, found + 1);
+                    consume(end + 1);
+                    return result;
                 }
-                if (cut) {
-                    size = size - 2 /* CLRF */ - boundary.length;
-                    break;
+                lineStart = end + 1;
+                found = indexOfLineFeed(found + 1, offset + count);
+            }
+            scanned = count;
+            if (count >= maxSize) {
+                throw new BadRequestException("Request headers are too large");
+            }
+            final int previous = count;
+            count = fill(count + 1);
+            if (count == previous) {
+                if (count == 0) {
+                    return null;
+                }
+                final byte[] result = Arrays.copyOfRange(buff, offset, offset + count);
+                consume(count);
+                return result;
+            }
+        }
+    }
+
+    /**
+     * Reads bytes from the stream and passes them to the output, until the stream ends
+     * or until the boundary bytes (preceded by CRLF) are read.
+     * The boundary and the CRLF are consumed, but not passed to the output.
+     * The delimiter is searched for with the Boyer-Moore-Horspool algorithm directly
+     * in the internal buffer, which is passed to the output as a whole,
+     * except for its tail that can be the beginning of the delimiter.
+     * @param output The output
+     * @throws IOException If there's something wrong with the stream or the output
+     */
+    void readToBoundary(final OutputStream output) throws IOException {
+        if (delimiter == null) {
+            return;
+        }
+        final int length = delimiter.length;
+        while (true) {
+            int count = readable();
+            if (count < length) {
+                count = fill(length);
+                if (count < length) {
+                    output.write(buff, offset, count);
+                    consume(count);
+                    return;
                 }
             }
-            b = readByte();
+            final int found = indexOfDelimiter(offset, offset + count);
+            if (found >= 0) {
+                output.write(buff, offset, found - offset);
+                consume(found + length - offset);
+                return;
+            }
+            final int safe = count - (length - 1);
+            output.write(buff, offset, safe);
+            consume(safe);
         }
-        return Arrays.copyOf(data, size);
     }
 
     /**
@@ -141,20 +302,174 @@ final class StreamReader {
      * @throws IOException If there's something wrong with the stream
      */
     int readByte() throws IOException {
-        if (limit == 0) {
+        if (readable() == 0 && fill(1) == 0) {
             return -1;
         }
-        if (available == 0) {
-            available = stream.read(buff);
-            if (available < 0) {
-                return -1;
+        final int result = buff[offset] & 0xff;
+        consume(1);
+        return result;
+    }
+
+    /**
+     * Reads bytes from the stream, like {@link InputStream#read(byte[], int, int)}:
+     * the buffered bytes first, then at most one read of the stream.
+     * @param data Array into which the bytes are read
+     * @param start Index in the array of the first byte to be read
+     * @param length Maximum number of bytes to be read
+     * @return Number of bytes read or -1 if the stream is empty
+     * @throws IOException If there's something wrong with the stream
+     */
+    int read(final byte[] data, final int start, final int length) throws IOException {
+        if (readable() == 0 && fill(1) == 0) {
+            return -1;
+        }
+        final int count = Math.min(readable(), length);
+        System.arraycopy(buff, offset, data, start, count);
+        consume(count);
+        return count;
+    }
+
+    /**
+     * Checks whether the stream starts with the given bytes, without consuming anything.
+     * Only as many bytes are waited for as it takes to tell, so a stream that starts
+     * with other data is recognized as soon as its first bytes arrive.
+     * @param prefix The bytes
+     * @return {@code true} if the unread data starts with the bytes
+     * @throws IOException If there's something wrong with the stream
+     */
+    boolean startsWith(final byte[] prefix) throws IOException {
+        int checked = 0;
+        while (true) {
+            final int count = Math.min(readable(), prefix.length);
+            for (; checked < count; checked++) {
+                if (buff[offset + checked] != prefix[checked]) {
+                    return false;
+                }
+            }
+            if (checked == prefix.length) {
+                return true;
+            }
+            if (fill(checked + 1) <= checked) {
+                return false;
             }
-            offset = 0;
         }
+    }
+
+    /**
+     * Returns the number of bytes in the internal buffer that can be read without exceeding
+     * the limit.
+     * @return Number of bytes
+     */
+    private int readable() {
+        return limit < 0 ? available : (int) Math.min(available, limit);
+    }
+
+    /**
+     * Marks bytes of the internal buffer as read.
+     * @param count Number of bytes
+     */
+    private void consume(final int count) {
+        offset += count;
+        available -= count;
         if (limit > 0) {
-            limit--;
+            limit -= count;
+        }
+    }
+
+    /**
+     * Reads data from the stream into the internal buffer until it contains at least
+     * the required number of unread bytes, or the stream ends, or the limit is reached.
+     * @param required Required number of bytes
+     * @return Number of bytes that can be read from the internal buffer
+     * @throws IOException If there's something wrong with the stream
+     */
+    private int fill(final int required) throws IOException {
+        if (offset > 0) {
+            System.arraycopy(buff, offset, buff, 0, available);
+            offset = 0;
+        }
+        if (buff.length < required) {
+            buff = Arrays.copyOf(buff, Math.max(required, buff.length * 2));
+            view = ByteBuffer.wrap(buff).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        while (readable() < required && (limit < 0 || available < limit)) {
+            final int count = stream.read(buff, available, buff.length - available);
+            if (count < 0) {
+                break;
+            }
+            available += count;
+        }
+        return readable();
+    }
+
+    /**
+     * Searches the internal buffer for the line feed character, eight bytes at a time.
+     * @param from Index of the first byte to be checked
+     * @param to Index of the byte following the last byte to be checked
+     * @return Index of the line feed character or -1 if there is no one
+     */
+    private int indexOfLineFeed(final int from, final int to) {
+        int index = from;
+        while (index + 8 <= to) {
+            final long word = view.getLong(index) ^ LINE_FEEDS;
+            final long found = (word - ONES) & ~word & HIGH_BITS;
+            if (found != 0) {
+                return index + (Long.numberOfTrailingZeros(found) >>> 3);
+            }
+            index += 8;
+        }
+        while (index < to) {
+            if (buff[index] == '\n') {
+                return index;
+            }
+            index++;
+        }
+        return -1;
+    }
+
+    /**
+     * Searches the internal buffer for the delimiter using the Boyer-Moore-Horspool algorithm.
+     * @param from Index of the first byte to be checked
+     * @param to Index of the byte following the last byte to be checked
+     * @return Index of the first byte of the delimiter or -1 if there is no delimiter
+     */
+    private int indexOfDelimiter(final int from, final int to) {
+        final int last = delimiter.length - 1;
+        int index = from;
+        while (index + last < to) {
+            final byte tail = buff[index + last];
+            if (tail == delimiter[last]) {
+                int pos = last - 1;
+                while (pos >= 0 && buff[index + pos] == delimiter[pos]) {
+                    pos--;
+                }
+                if (pos < 0) {
+                    return index;
+                }
+            }
+            index += shifts[tail & 0xff];
+        }
+        return -1;
+    }
+
+    /**
+     * Converts bytes to a string, removing leading and trailing whitespace.
+     * @param data Array containing the bytes
+     * @param start Index of the first byte
+     * @param length Number of bytes
+     * @return String
+     */
+    private static String decode(final byte[] data, int start, int length) {
+        if (data == null) {
+            return "";
+        }
+        while (length > 0 && (data[start] & 0xff) <= ' ') {
+            start++;
+            length--;
+        }
+        while (length > 0 && (data[start + length - 1] & 0xff) <= ' ') {
+            length--;
         }
-        available--;
-        return (int)((char)buff[offset++]);
+        return new String(data, start, length, StandardCharsets.ISO_8859_1);
     }
 }
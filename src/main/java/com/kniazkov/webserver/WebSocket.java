@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2025 Ivan Kniazkov
+ */
+package com.kniazkov.webserver;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A connection that has switched to the WebSocket protocol (RFC 6455).
+ * Messages can be sent by any thread at any time; they are queued and sent in the order
+ * of the calls without blocking the calling thread.
+ */
+public final class WebSocket {
+    /**
+     * Status code: the purpose of the connection has been fulfilled.
+     */
+    public static final int NORMAL_CLOSURE = 1000;
+
+    /**
+     * Status code: the server is stopping or the browser has left the page.
+     */
+    public static final int GOING_AWAY = 1001;
+
+    /**
+     * Status code: a side has violated the protocol.
+     */
+    public static final int PROTOCOL_ERROR = 1002;
+
+    /**
+     * Status code: the closing frame contained no status code.
+     */
+    public static final int NO_STATUS = 1005;
+
+    /**
+     * Status code: the connection is broken without a closing frame.
+     */
+    public static final int ABNORMAL_CLOSURE = 1006;
+
+    /**
+     * Status code: a text message is not valid UTF-8 or a compressed message is damaged.
+     */
+    public static final int INVALID_DATA = 1007;
+
+    /**
+     * Status code: a message violates the policy of the server.
+     */
+    public static final int POLICY_VIOLATION = 1008;
+
+    /**
+     * Status code: a message is larger than {@link Options#webSocketMaxMessageSize}.
+     */
+    public static final int MESSAGE_TOO_BIG = 1009;
+
+    /**
+     * The request that has switched the connection to the WebSocket protocol;
+     * its path, form data and cookies tell what the client wants.
+     */
+    public final Request request;
+
+    /**
+     * The connection that sends and receives the frames.
+     */
+    private final WebSocketConnection connection;
+
+    /**
+     * Object attached by the user, for example, the session of the client.
+     */
+    private volatile Object attachment;
+
+    /**
+     * Constructor.
+     * @param request The request that has switched the connection
+     * @param connection The connection that sends and receives the frames
+     */
+    WebSocket(final Request request, final WebSocketConnection connection) {
+        this.request = request;
+        this.connection = connection;
+        this.attachment = null;
+    }
+
+    /**
+     * Sends a text message.
+     * @param message The message
+     * @return {@code true} if the message is queued, {@code false} if the connection is
+     *  closing or closed
+     */
+    public boolean send(final String message) {
+        final byte[] data = message.getBytes(StandardCharsets.UTF_8);
+        return connection.send(WebSocketConnection.TEXT, data, data.length);
+    }
+
+    /**
+     * Sends a binary message.
+     * @param message The message
+     * @return {@code true} if the message is queued, {@code false} if the connection is
+     *  closing or closed
+     */
+    public boolean send(final byte[] message) {
+        return connection.send(WebSocketConnection.BINARY, message, message.length);
+    }
+
+    /**
+     * Starts closing the connection with {@link #NORMAL_CLOSURE}.
+     */
+    public void close() {
+        close(NORMAL_CLOSURE, "");
+    }
+
+    /**
+     * Starts closing the connection: sends the closing frame; the connection is closed
+     * when the client confirms it, or after a few seconds if it does not.
+     * @param code Status code, from 1000 to 4999
+     * @param reason Reason of the closure, at most 123 bytes in UTF-8
+     */
+    public void close(final int code, final String reason) {
+        connection.close(code, reason);
+    }
+
+    /**
+     * Checks whether messages can be sent over the connection.
+     * @return {@code true} if the connection is neither closing nor closed
+     */
+    public boolean isOpen() {
+        return connection.isOpen();
+    }
+
+    /**
+     * Returns the object attached by the user.
+     * @return The object or {@code null}
+     */
+    public Object getAttachment() {
+        return attachment;
+    }
+
+    /**
+     * Attaches an object to the connection, for example, the session of the client.
+     * @param value The object
+     */
+    public void setAttachment(final Object value) {
+        attachment = value;
+    }
+}
@@ -0,0 +1,1132 @@
+/*
+ * Copyright (c) 2025 Ivan Kniazkov
+ */
+package com.kniazkov.webserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Frame I/O of a WebSocket connection (RFC 6455), with the per-message compression
+ * (RFC 7692) if the client has offered it.
+ *
+ * The received data is collected in one buffer; each frame is unmasked in place, eight
+ * bytes at a time, and a message that arrives in a single frame is decoded directly
+ * from the buffer. Fragmented messages are collected until their last frame.
+ * Frames sent by the server are queued and written by whichever thread finds the channel
+ * ready, so senders are never blocked.
+ *
+ * Plain connections are non-blocking channels served by the selector
+ * of the {@link WebSocketEngine}, so an idle connection occupies no thread. Secure
+ * connections have no channels; each of them is read by a thread of its own, and its
+ * queued frames are written by another thread, which runs while there is something to write.
+ */
+final class WebSocketConnection implements Runnable {
+    /**
+     * Opcode: continuation of a fragmented message.
+     */
+    static final int CONTINUATION = 0x0;
+
+    /**
+     * Opcode: text message.
+     */
+    static final int TEXT = 0x1;
+
+    /**
+     * Opcode: binary message.
+     */
+    static final int BINARY = 0x2;
+
+    /**
+     * Opcode: closing frame.
+     */
+    static final int CLOSE = 0x8;
+
+    /**
+     * Opcode: ping, which the other side answers with a pong.
+     */
+    static final int PING = 0x9;
+
+    /**
+     * Opcode: pong.
+     */
+    static final int PONG = 0xa;
+
+    /**
+     * Logger.
+     */
+    private static final Logger logger = Logger.getLogger(WebSocketConnection.class.getName());
+
+    /**
+     * Initial size of the input buffer; the buffer grows for larger frames and shrinks back.
+     */
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+
+    /**
+     * Maximum size of the payload of a control frame, in bytes.
+     */
+    private static final int MAX_CONTROL_PAYLOAD = 125;
+
+    /**
+     * Maximum amount of data queued for a client that does not read it, in bytes;
+     * beyond that, the connection is closed.
+     */
+    private static final long MAX_QUEUED_BYTES = 16L << 20;
+
+    /**
+     * Time within which the other side must answer a closing frame, in milliseconds.
+     */
+    private static final long CLOSE_TIMEOUT = 5000;
+
+    /**
+     * Messages shorter than this are not compressed, since they hardly become any shorter.
+     */
+    private static final int MIN_COMPRESSED_SIZE = 64;
+
+    /**
+     * Bytes that end each compressed message, which the sender removes.
+     */
+    private static final byte[] DEFLATE_TAIL = { 0, 0, (byte) 0xff, (byte) 0xff };
+
+    /**
+     * Maximum number of callbacks invoked by one task of the worker pool.
+     */
+    private static final int MAX_EVENTS = 16;
+
+    /**
+     * Empty payload.
+     */
+    private static final byte[] EMPTY = new byte[0];
+
+    /**
+     * The connection as seen by the handler.
+     */
+    final WebSocket socket;
+
+    /**
+     * Engine serving the connection.
+     */
+    private final WebSocketEngine engine;
+
+    /**
+     * Channel of a plain connection, or {@code null}.
+     */
+    private final SocketChannel channel;
+
+    /**
+     * Socket of a secure connection, or {@code null}.
+     */
+    private final Socket streamSocket;
+
+    /**
+     * Input stream of a secure connection, or {@code null}.
+     */
+    private final InputStream inputStream;
+
+    /**
+     * Output stream of a secure connection, or {@code null}.
+     */
+    private final OutputStream outputStream;
+
+    /**
+     * Maximum size of a received message, in bytes.
+     */
+    private final int maxMessageSize;
+
+    /**
+     * Time without received data after which the client is pinged, in milliseconds,
+     * or zero.
+     */
+    private final long pingInterval;
+
+    /**
+     * Compressor of the sent messages, or {@code null} if compression is not used.
+     * Guarded by the connection.
+     */
+    private final Deflater deflater;
+
+    /**
+     * Flag indicating that each sent message is compressed independently of the previous ones.
+     */
+    private final boolean resetDeflater;
+
+    /**
+     * Decompressor of the received messages, or {@code null} if compression is not used.
+     */
+    private final Inflater inflater;
+
+    /**
+     * Decoder of text messages, which rejects invalid UTF-8.
+     */
+    private final CharsetDecoder decoder;
+
+    /**
+     * Selection key of a plain connection; set by the selector thread.
+     */
+    volatile SelectionKey key;
+
+    /**
+     * Buffer containing the received, but not yet processed data.
+     */
+    private ByteBuffer input;
+
+    /**
+     * View of the array of the input buffer used to unmask the data eight bytes at a time.
+     */
+    private ByteBuffer view;
+
+    /**
+     * Flag indicating that no more frames are processed, since the connection is closing.
+     */
+    private boolean inputClosed;
+
+    /**
+     * Fragments of the message being received, or {@code null}.
+     */
+    private byte[] message;
+
+    /**
+     * Number of bytes of the message being received.
+     */
+    private int messageLength;
+
+    /**
+     * Opcode of the message being received, or zero.
+     */
+    private int messageType;
+
+    /**
+     * Flag indicating that the message being received is compressed.
+     */
+    private boolean messageCompressed;
+
+    /**
+     * Time when data was last received, in milliseconds.
+     */
+    private long lastReceived;
+
+    /**
+     * Flag indicating that the client has been pinged and has sent nothing since.
+     */
+    private boolean pingSent;
+
+    /**
+     * Time when the client was pinged, in milliseconds.
+     */
+    private long pingTime;
+
+    /**
+     * Frames waiting to be sent. Guarded by the connection.
+     */
+    private final Queue<ByteBuffer> output;
+
+    /**
+     * Number of bytes waiting to be sent. Guarded by the connection.
+     */
+    private long queued;
+
+    /**
+     * Flag indicating that a thread is writing the queued frames of a secure connection.
+     * Guarded by the connection.
+     */
+    private boolean writing;
+
+    /**
+     * Flag indicating that the thread writing a secure connection is blocked in the socket,
+     * which then has to be reset to be closed. Guarded by the connection.
+     */
+    private boolean writeInProgress;
+
+    /**
+     * Flag indicating that the closing frame has been sent, so nothing more can be sent.
+     * Guarded by the connection.
+     */
+    private boolean closeSent;
+
+    /**
+     * Time when the closing frame was sent, in milliseconds. Guarded by the connection.
+     */
+    private long closeTime;
+
+    /**
+     * Flag indicating that the connection is closed once the queued frames are sent.
+     * Guarded by the connection.
+     */
+    private boolean closeAfterWrite;
+
+    /**
+     * Status code of the closure reported once the queued frames are sent.
+     */
+    private int closeCode;
+
+    /**
+     * Reason of the closure reported once the queued frames are sent.
+     */
+    private String closeReason;
+
+    /**
+     * Flag indicating that the connection is closed. Guarded by the connection.
+     */
+    private boolean closed;
+
+    /**
+     * Callbacks of the handler waiting to be invoked. Guarded by itself.
+     */
+    private final Queue<Runnable> events;
+
+    /**
+     * Flag indicating that a worker thread is invoking the callbacks. Guarded by
+     * {@link #events}.
+     */
+    private boolean running;
+
+    /**
+     * Constructor.
+     * @param engine Engine serving the connection
+     * @param upgrade The accepted upgrade request
+     * @param channel Channel of a plain connection, in non-blocking mode, or {@code null}
+     * @param streamSocket Socket of a secure connection, or {@code null}
+     * @param received Data received after the upgrade request
+     * @throws IOException If the streams of a secure connection cannot be obtained
+     */
+    WebSocketConnection(final WebSocketEngine engine, final WebSocketEngine.Upgrade upgrade,
+            final SocketChannel channel, final Socket streamSocket, final byte[] received)
+            throws IOException {
+        this.socket = new WebSocket(upgrade.request, this);
+        this.engine = engine;
+        this.channel = channel;
+        this.streamSocket = streamSocket;
+        this.inputStream = streamSocket != null ? streamSocket.getInputStream() : null;
+        this.outputStream = streamSocket != null ? streamSocket.getOutputStream() : null;
+        this.maxMessageSize = engine.options.webSocketMaxMessageSize;
+        this.pingInterval = engine.options.webSocketPingInterval;
+        this.deflater = upgrade.compression ? new Deflater(Deflater.DEFAULT_COMPRESSION, true) : null;
+        this.resetDeflater = upgrade.noContextTakeover;
+        this.inflater = upgrade.compression ? new Inflater(true) : null;
+        this.decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPORT)
+            .onUnmappableCharacter(CodingErrorAction.REPORT);
+        this.key = null;
+        this.input = ByteBuffer.allocate(Math.max(INITIAL_BUFFER_SIZE, received.length));
+        this.input.put(received);
+        this.view = ByteBuffer.wrap(input.array());
+        this.inputClosed = false;
+        this.message = null;
+        this.messageLength = 0;
+        this.messageType = 0;
+        this.messageCompressed = false;
+        this.lastReceived = System.currentTimeMillis();
+        this.pingSent = false;
+        this.pingTime = 0;
+        this.output = new ArrayDeque<>();
+        this.queued = 0;
+        this.writing = false;
+        this.writeInProgress = false;
+        this.closeSent = false;
+        this.closeTime = 0;
+        this.closeAfterWrite = false;
+        this.closeCode = WebSocket.ABNORMAL_CLOSURE;
+        this.closeReason = "";
+        this.closed = false;
+        this.events = new ArrayDeque<>();
+        this.running = false;
+        post(() -> engine.handler.onOpen(socket));
+    }
+
+    /**
+     * Processes the data received along with the upgrade request; called by the thread
+     * that reads the connection before anything else.
+     */
+    void start() {
+        receive();
+    }
+
+    /**
+     * Reads the available data from the channel of a plain connection and processes
+     * the complete frames; called by the selector thread.
+     * @throws IOException If the channel cannot be read
+     */
+    void read() throws IOException {
+        if (!input.hasRemaining()) {
+            resize(input.capacity() * 2, input.position());
+        }
+        if (channel.read(input) < 0) {
+            abort(WebSocket.ABNORMAL_CLOSURE, "");
+            return;
+        }
+        lastReceived = System.currentTimeMillis();
+        pingSent = false;
+        receive();
+    }
+
+    /**
+     * Reads a secure connection until it is closed; runs in a thread of its own.
+     * The read timeout of the socket lets the thread ping the client and close
+     * the connection when the client stops answering.
+     */
+    @Override
+    public void run() {
+        try {
+            streamSocket.setSoTimeout((int) WebSocketEngine.CHECK_INTERVAL);
+            start();
+            while (isReadable()) {
+                if (!input.hasRemaining()) {
+                    resize(input.capacity() * 2, input.position());
+                }
+                final int count;
+                try {
+                    count = inputStream.read(input.array(), input.position(), input.remaining());
+                } catch (SocketTimeoutException ignored) {
+                    checkTimeouts(System.currentTimeMillis());
+                    continue;
+                }
+                if (count < 0) {
+                    break;
+                }
+                ((Buffer) input).position(input.position() + count);
+                lastReceived = System.currentTimeMillis();
+                pingSent = false;
+                receive();
+            }
+        } catch (IOException e) {
+            logger.log(Level.FINE, "I/O error while reading WebSocket connection", e);
+        } finally {
+            abort(WebSocket.ABNORMAL_CLOSURE, "");
+            release();
+        }
+    }
+
+    /**
+     * Sends the queued frames of a plain connection until the channel accepts no more;
+     * called by the selector thread when the channel is ready.
+     * @throws IOException If the channel cannot be written
+     */
+    synchronized void write() throws IOException {
+        while (!output.isEmpty()) {
+            final ByteBuffer frame = output.peek();
+            queued -= channel.write(frame);
+            if (frame.hasRemaining()) {
+                return;
+            }
+            output.poll();
+        }
+        final SelectionKey current = key;
+        if (current != null && current.isValid()) {
+            current.interestOps(SelectionKey.OP_READ);
+        }
+        written();
+    }
+
+    /**
+     * Writes the queued frames of a secure connection; runs in a thread of its own, which
+     * is started when a frame is queued and ends once nothing has been queued for a while,
+     * so a client that does not read blocks this thread only, and not the senders.
+     */
+    void drain() {
+        try {
+            while (true) {
+                final ByteBuffer frame;
+                synchronized (this) {
+                    if (output.isEmpty() && !closed) {
+                        wait(WebSocketEngine.CHECK_INTERVAL);
+                    }
+                    frame = closed ? null : output.peek();
+                    if (frame == null) {
+                        writing = false;
+                        return;
+                    }
+                    writeInProgress = true;
+                }
+                outputStream.write(frame.array(), 0, frame.limit());
+                outputStream.flush();
+                synchronized (this) {
+                    writeInProgress = false;
+                    if (!closed) {
+                        output.poll();
+                        queued -= frame.limit();
+                        notifyAll();
+                        written();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            logger.log(Level.FINE, "I/O error while writing WebSocket connection", e);
+            synchronized (this) {
+                writing = false;
+                writeInProgress = false;
+            }
+            abort(WebSocket.ABNORMAL_CLOSURE, "");
+        } catch (InterruptedException ignored) {
+            synchronized (this) {
+                writing = false;
+                writeInProgress = false;
+            }
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Waits until the frames queued for a secure connection are written, or until
+     * the deadline; called when the server is stopping, so that the clients receive
+     * the closing frame before the connections are closed.
+     * @param deadline Time until which to wait, in milliseconds
+     */
+    synchronized void awaitWritten(final long deadline) {
+        long now = System.currentTimeMillis();
+        while (writing && !output.isEmpty() && !closed && now < deadline) {
+            try {
+                wait(deadline - now);
+            } catch (InterruptedException ignored) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            now = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Pings the client if it has sent nothing for a while, and closes the connection
+     * if the client answers neither a ping nor a closing frame in time.
+     * @param now Current time in milliseconds
+     */
+    void checkTimeouts(final long now) {
+        final boolean closing;
+        final long since;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closing = closeSent;
+            since = closeTime;
+        }
+        if (closing) {
+            if (now - since > CLOSE_TIMEOUT) {
+                abort(WebSocket.ABNORMAL_CLOSURE, "");
+            }
+            return;
+        }
+        if (pingInterval > 0 && now - lastReceived > pingInterval) {
+            if (!pingSent) {
+                pingSent = true;
+                pingTime = now;
+                sendFrame(PING, EMPTY, 0, 0);
+            } else if (now - pingTime > pingInterval) {
+                abort(WebSocket.ABNORMAL_CLOSURE, "No response to ping");
+            }
+        }
+    }
+
+    /**
+     * Sends a message.
+     * @param opcode Opcode of the message, {@link #TEXT} or {@link #BINARY}
+     * @param data Array containing the message
+     * @param length Length of the message
+     * @return {@code true} if the message is queued, {@code false} if the connection is
+     *  closing or closed
+     */
+    boolean send(final int opcode, final byte[] data, final int length) {
+        return sendFrame(opcode, data, 0, length);
+    }
+
+    /**
+     * Starts closing the connection by sending the closing frame.
+     * @param code Status code
+     * @param reason Reason of the closure
+     */
+    void close(final int code, final String reason) {
+        if (code < 1000 || code >= 5000) {
+            throw new IllegalArgumentException("Invalid status code: " + code);
+        }
+        final byte[] payload = encodeClose(code, reason);
+        sendFrame(CLOSE, payload, 0, payload.length);
+    }
+
+    /**
+     * Checks whether messages can be sent over the connection.
+     * @return {@code true} if the connection is neither closing nor closed
+     */
+    synchronized boolean isOpen() {
+        return !closeSent && !closed;
+    }
+
+    /**
+     * Closes the connection at once, without the closing handshake, and reports
+     * the closure to the handler, unless the connection is already closed.
+     * @param code Status code reported to the handler
+     * @param reason Reason reported to the handler
+     */
+    void abort(final int code, final String reason) {
+        final boolean blocked;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            closeSent = true;
+            output.clear();
+            queued = 0;
+            blocked = writeInProgress;
+            notifyAll();
+        }
+        try {
+            if (channel != null) {
+                channel.close();
+            } else {
+                if (blocked) {
+                    streamSocket.setSoLinger(true, 0);
+                }
+                streamSocket.close();
+            }
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Failed to close WebSocket connection cleanly", e);
+        }
+        engine.remove(this);
+        if (channel != null) {
+            engine.release(this);
+        }
+        post(() -> engine.handler.onClose(socket, code, reason));
+    }
+
+    /**
+     * Frees the native memory of the compressor and the decompressor once the connection
+     * is closed; called by the thread that reads the connection, so that a message being
+     * decompressed is not cut off.
+     */
+    void release() {
+        if (inflater != null) {
+            inflater.end();
+        }
+        if (deflater != null) {
+            synchronized (this) {
+                deflater.end();
+            }
+        }
+    }
+
+    /**
+     * Checks whether the thread reading a secure connection should continue.
+     * @return {@code true} if the connection is not closed
+     */
+    private synchronized boolean isReadable() {
+        return !closed;
+    }
+
+    /**
+     * Processes the complete frames in the input buffer and keeps the rest.
+     */
+    private void receive() {
+        final byte[] data = input.array();
+        final int size = input.position();
+        int position = 0;
+        int required = 0;
+        while (!inputClosed && size - position >= 2) {
+            final int first = data[position] & 0xff;
+            final int second = data[position + 1] & 0xff;
+            int header = 2;
+            long length = second & 0x7f;
+            if (length == 126) {
+                header = 4;
+                if (size - position < header) {
+                    break;
+                }
+                length = view.getShort(position + 2) & 0xffff;
+            } else if (length == 127) {
+                header = 10;
+                if (size - position < header) {
+                    break;
+                }
+                length = view.getLong(position + 2);
+            }
+            if ((second & 0x80) == 0) {
+                fail(WebSocket.PROTOCOL_ERROR, "Frame is not masked");
+                break;
+            }
+            if (length < 0 || length > maxMessageSize) {
+                fail(WebSocket.MESSAGE_TOO_BIG, "Message is too big");
+                break;
+            }
+            header += 4;
+            final int total = header + (int) length;
+            if (size - position < total) {
+                required = total;
+                break;
+            }
+            unmask(data, position + header, (int) length, position + header - 4);
+            handleFrame(first, data, position + header, (int) length);
+            position += total;
+        }
+        if (inputClosed) {
+            ((Buffer) input).clear();
+            return;
+        }
+        final int remaining = size - position;
+        System.arraycopy(data, position, data, 0, remaining);
+        ((Buffer) input).position(remaining);
+        if (required > input.capacity()) {
+            resize(required, remaining);
+        } else if (input.capacity() > INITIAL_BUFFER_SIZE && remaining <= INITIAL_BUFFER_SIZE
+                && required <= INITIAL_BUFFER_SIZE) {
+            resize(INITIAL_BUFFER_SIZE, remaining);
+        }
+    }
+
+    /**
+     * Replaces the input buffer with one of another size.
+     * @param capacity Size of the new buffer
+     * @param remaining Number of bytes of the old buffer to be kept
+     */
+    private void resize(final int capacity, final int remaining) {
+        final ByteBuffer buffer = ByteBuffer.allocate(capacity);
+        buffer.put(input.array(), 0, remaining);
+        input = buffer;
+        view = ByteBuffer.wrap(buffer.array());
+    }
+
+    /**
+     * Unmasks the payload of a frame in place: XORs it with the masking key, eight bytes
+     * at a time and then byte by byte.
+     * @param data Array containing the payload
+     * @param start Index of the first byte of the payload
+     * @param length Length of the payload
+     * @param maskPosition Index of the masking key
+     */
+    private void unmask(final byte[] data, final int start, final int length,
+            final int maskPosition) {
+        final int mask = view.getInt(maskPosition);
+        final long wide = ((long) mask << 32) | (mask & 0xffffffffL);
+        final int end = start + length;
+        int index = start;
+        for (; index + 8 <= end; index += 8) {
+            view.putLong(index, view.getLong(index) ^ wide);
+        }
+        for (; index < end; index++) {
+            data[index] ^= (byte) (mask >>> (24 - 8 * ((index - start) & 3)));
+        }
+    }
+
+    /**
+     * Handles a received frame.
+     * @param first First byte of the frame header: flags and opcode
+     * @param data Array containing the unmasked payload
+     * @param start Index of the first byte of the payload
+     * @param length Length of the payload
+     */
+    private void handleFrame(final int first, final byte[] data, final int start,
+            final int length) {
+        final boolean last = (first & 0x80) != 0;
+        final boolean compressed = (first & 0x40) != 0;
+        final int opcode = first & 0x0f;
+        if ((first & 0x30) != 0 || compressed
+                && (inflater == null || opcode == CONTINUATION || opcode >= CLOSE)) {
+            fail(WebSocket.PROTOCOL_ERROR, "Invalid reserved bits");
+            return;
+        }
+        if (opcode >= CLOSE) {
+            if (!last || length > MAX_CONTROL_PAYLOAD) {
+                fail(WebSocket.PROTOCOL_ERROR, "Invalid control frame");
+                return;
+            }
+            switch (opcode) {
+                case CLOSE:
+                    receiveClose(data, start, length);
+                    break;
+                case PING:
+                    sendFrame(PONG, data, start, length);
+                    break;
+                case PONG:
+                    break;
+                default:
+                    fail(WebSocket.PROTOCOL_ERROR, "Unknown opcode: " + opcode);
+                    break;
+            }
+            return;
+        }
+        if (opcode == CONTINUATION) {
+            if (messageType == 0) {
+                fail(WebSocket.PROTOCOL_ERROR, "Unexpected continuation frame");
+                return;
+            }
+        } else if (opcode == TEXT || opcode == BINARY) {
+            if (messageType != 0) {
+                fail(WebSocket.PROTOCOL_ERROR, "Expected continuation frame");
+                return;
+            }
+            messageType = opcode;
+            messageCompressed = compressed;
+        } else {
+            fail(WebSocket.PROTOCOL_ERROR, "Unknown opcode: " + opcode);
+            return;
+        }
+        if (last && message == null) {
+            deliver(data, start, length);
+            messageType = 0;
+            return;
+        }
+        if ((long) messageLength + length > maxMessageSize) {
+            fail(WebSocket.MESSAGE_TOO_BIG, "Message is too big");
+            return;
+        }
+        if (message == null) {
+            message = new byte[Math.max(length * 2, 256)];
+        } else if (messageLength + length > message.length) {
+            message = Arrays.copyOf(message, (int) Math.min(
+                Math.max((long) message.length * 2, messageLength + length), maxMessageSize));
+        }
+        System.arraycopy(data, start, message, messageLength, length);
+        messageLength += length;
+        if (last) {
+            deliver(message, 0, messageLength);
+            message = null;
+            messageLength = 0;
+            messageType = 0;
+        }
+    }
+
+    /**
+     * Passes a complete message to the handler, decompressing it if needed.
+     * @param data Array containing the message
+     * @param start Index of the first byte of the message
+     * @param length Length of the message
+     */
+    private void deliver(byte[] data, int start, int length) {
+        if (messageCompressed) {
+            data = inflate(data, start, length);
+            if (data == null) {
+                return;
+            }
+            start = 0;
+            length = data.length;
+        }
+        if (messageType == TEXT) {
+            final String text;
+            try {
+                text = decoder.reset().decode(ByteBuffer.wrap(data, start, length)).toString();
+            } catch (CharacterCodingException ignored) {
+                fail(WebSocket.INVALID_DATA, "Text message is not valid UTF-8");
+                return;
+            }
+            post(() -> engine.handler.onText(socket, text));
+        } else {
+            final byte[] binary = start == 0 && length == data.length && messageCompressed
+                ? data : Arrays.copyOfRange(data, start, start + length);
+            post(() -> engine.handler.onBinary(socket, binary));
+        }
+    }
+
+    /**
+     * Decompresses a message.
+     * @param data Array containing the compressed message
+     * @param start Index of the first byte of the message
+     * @param length Length of the compressed message
+     * @return The message or {@code null} if it is damaged or too big
+     *  (the connection is failed then)
+     */
+    private byte[] inflate(final byte[] data, final int start, final int length) {
+        byte[] result = new byte[(int) Math.min(Math.max(length * 4L, 256), maxMessageSize + 1L)];
+        int count = 0;
+        try {
+            for (int part = 0; part < 2; part++) {
+                if (part == 0) {
+                    inflater.setInput(data, start, length);
+                } else {
+                    inflater.setInput(DEFLATE_TAIL);
+                }
+                while (true) {
+                    if (count == result.length) {
+                        if (count > maxMessageSize) {
+                            fail(WebSocket.MESSAGE_TOO_BIG, "Message is too big");
+                            return null;
+                        }
+                        result = Arrays.copyOf(result,
+                            (int) Math.min(result.length * 2L, maxMessageSize + 1L));
+                    }
+                    final int inflated = inflater.inflate(result, count, result.length - count);
+                    count += inflated;
+                    if (inflated == 0 && count < result.length) {
+                        break;
+                    }
+                }
+            }
+        } catch (DataFormatException ignored) {
+            fail(WebSocket.INVALID_DATA, "Compressed message is damaged");
+            return null;
+        }
+        if (inflater.finished()) {
+            inflater.reset();
+        }
+        return count == result.length ? result : Arrays.copyOf(result, count);
+    }
+
+    /**
+     * Handles a closing frame: answers it, unless the server has started the closure,
+     * and closes the connection.
+     * @param data Array containing the payload
+     * @param start Index of the first byte of the payload
+     * @param length Length of the payload
+     */
+    private void receiveClose(final byte[] data, final int start, final int length) {
+        int code = WebSocket.NO_STATUS;
+        String reason = "";
+        if (length == 1) {
+            fail(WebSocket.PROTOCOL_ERROR, "Invalid closing frame");
+            return;
+        }
+        if (length >= 2) {
+            code = ((data[start] & 0xff) << 8) | (data[start + 1] & 0xff);
+            if (!isValidCode(code)) {
+                fail(WebSocket.PROTOCOL_ERROR, "Invalid status code: " + code);
+                return;
+            }
+            try {
+                reason = decoder.reset().decode(ByteBuffer.wrap(data, start + 2, length - 2))
+                    .toString();
+            } catch (CharacterCodingException ignored) {
+                fail(WebSocket.INVALID_DATA, "Reason is not valid UTF-8");
+                return;
+            }
+        }
+        inputClosed = true;
+        synchronized (this) {
+            if (closeSent) {
+                abort(code, reason);
+                return;
+            }
+            closeAfterWrite = true;
+            closeCode = code;
+            closeReason = reason;
+        }
+        final byte[] payload = code == WebSocket.NO_STATUS ? EMPTY : encodeClose(code, "");
+        sendFrame(CLOSE, payload, 0, payload.length);
+    }
+
+    /**
+     * Fails the connection because the client has violated the protocol or a limit:
+     * sends the closing frame and closes the connection once it is sent.
+     * @param code Status code
+     * @param reason Reason of the closure
+     */
+    private void fail(final int code, final String reason) {
+        logger.log(Level.FINE, "WebSocket connection failed: {0}", reason);
+        inputClosed = true;
+        synchronized (this) {
+            if (closeSent) {
+                abort(code, reason);
+                return;
+            }
+            closeAfterWrite = true;
+            closeCode = code;
+            closeReason = reason;
+        }
+        final byte[] payload = encodeClose(code, reason);
+        sendFrame(CLOSE, payload, 0, payload.length);
+    }
+
+    /**
+     * Checks whether a status code may be received in a closing frame.
+     * @param code The status code
+     * @return {@code true} if the code is valid
+     */
+    private static boolean isValidCode(final int code) {
+        return code >= 1000 && code <= 1003 || code >= 1007 && code <= 1011
+            || code >= 3000 && code <= 4999;
+    }
+
+    /**
+     * Encodes the payload of a closing frame.
+     * @param code Status code
+     * @param reason Reason of the closure; it is cut to fit into the frame
+     * @return The payload
+     */
+    private static byte[] encodeClose(final int code, final String reason) {
+        final byte[] text = reason.getBytes(StandardCharsets.UTF_8);
+        final int length = Math.min(text.length, MAX_CONTROL_PAYLOAD - 2);
+        final byte[] payload = new byte[2 + length];
+        payload[0] = (byte) (code >>> 8);
+        payload[1] = (byte) code;
+        System.arraycopy(text, 0, payload, 2, length);
+        return payload;
+    }
+
+    /**
+     * Encodes a frame, compressing a message if compression is used, and queues it.
+     * @param opcode Opcode of the frame
+     * @param data Array containing the payload
+     * @param start Index of the first byte of the payload
+     * @param length Length of the payload
+     * @return {@code true} if the frame is queued, {@code false} if the connection is
+     *  closing or closed
+     */
+    private synchronized boolean sendFrame(final int opcode, byte[] data, int start,
+            int length) {
+        if (closeSent || closed) {
+            return false;
+        }
+        boolean compressed = false;
+        if (deflater != null && opcode <= BINARY && length >= MIN_COMPRESSED_SIZE) {
+            data = deflate(data, start, length);
+            start = 0;
+            length = data.length;
+            compressed = true;
+        }
+        final int header = length < 126 ? 2 : length < 65536 ? 4 : 10;
+        final ByteBuffer frame = ByteBuffer.allocate(header + length);
+        frame.put((byte) (0x80 | (compressed ? 0x40 : 0) | opcode));
+        if (length < 126) {
+            frame.put((byte) length);
+        } else if (length < 65536) {
+            frame.put((byte) 126);
+            frame.putShort((short) length);
+        } else {
+            frame.put((byte) 127);
+            frame.putLong(length);
+        }
+        frame.put(data, start, length);
+        ((Buffer) frame).flip();
+        if (opcode == CLOSE) {
+            closeSent = true;
+            closeTime = System.currentTimeMillis();
+        }
+        enqueue(frame);
+        return true;
+    }
+
+    /**
+     * Compresses a message; the caller must hold the lock of the connection.
+     * @param data Array containing the message
+     * @param start Index of the first byte of the message
+     * @param length Length of the message
+     * @return The compressed message, without the tail that the receiver restores
+     */
+    private byte[] deflate(final byte[] data, final int start, final int length) {
+        deflater.setInput(data, start, length);
+        byte[] result = new byte[length / 2 + 64];
+        int count = 0;
+        while (true) {
+            count += deflater.deflate(result, count, result.length - count, Deflater.SYNC_FLUSH);
+            if (count < result.length) {
+                break;
+            }
+            result = Arrays.copyOf(result, result.length * 2);
+        }
+        if (resetDeflater) {
+            deflater.reset();
+        }
+        return Arrays.copyOf(result, count - DEFLATE_TAIL.length);
+    }
+
+    /**
+     * Sends a frame or queues it if the data sent before is still waiting; the caller must
+     * hold the lock of the connection. Frames of a secure connection are always queued
+     * and passed to the thread writing them, since a write to the socket may block.
+     * @param frame The frame
+     */
+    private void enqueue(final ByteBuffer frame) {
+        try {
+            if (channel != null && output.isEmpty()) {
+                channel.write(frame);
+                if (!frame.hasRemaining()) {
+                    written();
+                    return;
+                }
+                engine.requestWrite(this);
+            }
+            output.add(frame);
+            queued += frame.remaining();
+            if (queued > MAX_QUEUED_BYTES) {
+                logger.log(Level.FINE, "WebSocket client does not read its messages");
+                abort(WebSocket.POLICY_VIOLATION, "Client does not read messages");
+            } else if (channel == null) {
+                if (writing) {
+                    notifyAll();
+                } else {
+                    writing = true;
+                    engine.startWriter(this);
+                }
+            }
+        } catch (IOException e) {
+            logger.log(Level.FINE, "I/O error while writing WebSocket connection", e);
+            abort(WebSocket.ABNORMAL_CLOSURE, "");
+        }
+    }
+
+    /**
+     * Closes the connection once everything queued has been sent, if it is closing;
+     * the caller must hold the lock of the connection.
+     */
+    private void written() {
+        if (closeAfterWrite && output.isEmpty()) {
+            abort(closeCode, closeReason);
+        }
+    }
+
+    /**
+     * Queues a callback of the handler. The callbacks of the connection are invoked by
+     * worker threads one after another.
+     * @param event The callback
+     */
+    private void post(final Runnable event) {
+        synchronized (events) {
+            events.add(event);
+            if (running) {
+                return;
+            }
+            running = true;
+        }
+        schedule();
+    }
+
+    /**
+     * Passes the invocation of the queued callbacks to the worker pool, or invokes them
+     * in the calling thread if the work queue is full.
+     */
+    private void schedule() {
+        try {
+            engine.pool.execute(this::dispatch);
+        } catch (RejectedExecutionException ignored) {
+            dispatch();
+        }
+    }
+
+    /**
+     * Invokes the queued callbacks; after a number of them, the rest is passed back
+     * to the worker pool, so that a busy connection does not hold a thread for long.
+     */
+    private void dispatch() {
+        for (int count = 0; count < MAX_EVENTS; count++) {
+            final Runnable event;
+            synchronized (events) {
+                event = events.poll();
+                if (event == null) {
+                    running = false;
+                    return;
+                }
+            }
+            try {
+                event.run();
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "WebSocket handler threw an exception", e);
+            }
+        }
+        schedule();
+    }
+}
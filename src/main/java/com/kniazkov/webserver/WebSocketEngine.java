@@ -0,0 +1,506 @@
+/*
+ * Copyright (c) 2025 Ivan Kniazkov
+ */
+package com.kniazkov.webserver;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Engine that serves the connections switched to the WebSocket protocol.
+ * It performs the opening handshake on behalf of an engine serving HTTP, and then takes
+ * the connection over: plain connections are served by a single selector thread, so idle
+ * clients occupy no threads; secure connections get a reading thread each.
+ * Callbacks of the {@link WebSocketHandler} are invoked by the worker pool of the server.
+ */
+final class WebSocketEngine implements Runnable {
+    /**
+     * How often the timeouts of the connections are checked, in milliseconds.
+     */
+    static final long CHECK_INTERVAL = 1000;
+
+    /**
+     * Logger.
+     */
+    private static final Logger logger = Logger.getLogger(WebSocketEngine.class.getName());
+
+    /**
+     * String appended to the key of the client to compute the accepting key (RFC 6455).
+     */
+    private static final String KEY_SUFFIX = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+    /**
+     * Counter used to name the threads reading and writing secure connections.
+     */
+    private static final AtomicInteger threadNumber = new AtomicInteger();
+
+    /**
+     * Options for starting the server.
+     */
+    final Options options;
+
+    /**
+     * Handler of the connections.
+     */
+    final WebSocketHandler handler;
+
+    /**
+     * Worker pool that invokes the callbacks of the handler.
+     */
+    final ExecutorService pool;
+
+    /**
+     * Limiter of the server load; a connection stays counted until it is closed.
+     */
+    private final LoadLimiter limiter;
+
+    /**
+     * The selector.
+     */
+    private final Selector selector;
+
+    /**
+     * Tasks to be run by the selector thread.
+     */
+    private final Queue<Runnable> tasks;
+
+    /**
+     * All open connections.
+     */
+    private final Set<WebSocketConnection> connections;
+
+    /**
+     * Flag, as long as it is set, the engine serves connections.
+     */
+    private volatile boolean work;
+
+    /**
+     * Constructor.
+     * @param options Options for starting the server
+     * @param handler Handler of the connections
+     * @param limiter Limiter of the server load
+     * @param pool Worker pool that invokes the callbacks of the handler
+     * @throws IOException If the selector cannot be opened
+     */
+    WebSocketEngine(final Options options, final WebSocketHandler handler,
+            final LoadLimiter limiter, final ExecutorService pool) throws IOException {
+        this.options = options;
+        this.handler = handler;
+        this.pool = pool;
+        this.limiter = limiter;
+        this.selector = Selector.open();
+        this.tasks = new ConcurrentLinkedQueue<>();
+        this.connections = ConcurrentHashMap.newKeySet();
+        this.work = true;
+    }
+
+    /**
+     * Checks whether a request asks to switch to the WebSocket protocol.
+     * @param request The request
+     * @return {@code true} if it does
+     */
+    static boolean isUpgrade(final Request request) {
+        return request.method == Method.GET
+            && containsToken(request.headers.get(HeaderNames.UPGRADE), "websocket");
+    }
+
+    /**
+     * Performs the server side of the opening handshake: checks the request, asks
+     * the handler, negotiates compression and writes either {@code 101 Switching Protocols}
+     * or an error response, after which the connection must be closed.
+     * @param request The request asking to switch
+     * @param output Output stream of the connection; the caller flushes it
+     * @return The accepted upgrade or {@code null} if the request is refused
+     * @throws IOException If the response cannot be written
+     */
+    Upgrade accept(final Request request, final ClientOutput output) throws IOException {
+        final String key = request.headers.get(HeaderNames.SEC_WEBSOCKET_KEY);
+        if (!"13".equals(trim(request.headers.get(HeaderNames.SEC_WEBSOCKET_VERSION)))) {
+            refuse(output, "426 Upgrade Required", "Sec-WebSocket-Version: 13\r\n");
+            return null;
+        }
+        if (key == null || key.trim().isEmpty()
+                || !containsToken(request.headers.get(HeaderNames.CONNECTION), "upgrade")) {
+            refuse(output, "400 Bad Request", "");
+            return null;
+        }
+        final boolean accepted;
+        try {
+            accepted = handler.accept(request);
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "WebSocket handler threw an exception", e);
+            refuse(output, "500 Internal Server Error", "");
+            return null;
+        }
+        if (!accepted) {
+            refuse(output, "403 Forbidden", "");
+            return null;
+        }
+        boolean compression = false;
+        boolean noContextTakeover = false;
+        final String extensions = request.headers.get(HeaderNames.SEC_WEBSOCKET_EXTENSIONS);
+        if (options.webSocketCompression && extensions != null) {
+            for (final String offer : extensions.split(",")) {
+                final String[] parameters = offer.split(";");
+                if (!parameters[0].trim().equalsIgnoreCase("permessage-deflate")) {
+                    continue;
+                }
+                boolean supported = true;
+                boolean reset = false;
+                for (int index = 1; index < parameters.length; index++) {
+                    final String parameter = parameters[index].trim().toLowerCase(Locale.ROOT);
+                    final int equals = parameter.indexOf('=');
+                    final String name = equals < 0 ? parameter : parameter.substring(0, equals).trim();
+                    if (name.equals("server_no_context_takeover")) {
+                        reset = true;
+                    } else if (!name.equals("client_no_context_takeover")
+                            && !name.equals("client_max_window_bits")) {
+                        // smaller windows of the server are not supported by the deflater
+                        supported = false;
+                    }
+                }
+                if (supported) {
+                    compression = true;
+                    noContextTakeover = reset;
+                    break;
+                }
+            }
+        }
+        final StringBuilder response = new StringBuilder(256)
+            .append("HTTP/1.1 101 Switching Protocols\r\n")
+            .append("Upgrade: websocket\r\n")
+            .append("Connection: Upgrade\r\n")
+            .append("Sec-WebSocket-Accept: ").append(computeAcceptKey(key.trim())).append("\r\n");
+        if (compression) {
+            response.append("Sec-WebSocket-Extensions: permessage-deflate");
+            if (noContextTakeover) {
+                response.append("; server_no_context_takeover");
+            }
+            response.append("\r\n");
+        }
+        response.append("\r\n");
+        output.write(response.toString().getBytes(StandardCharsets.ISO_8859_1));
+        return new Upgrade(request, compression, noContextTakeover);
+    }
+
+    /**
+     * Takes over a plain connection after the opening handshake.
+     * @param upgrade The accepted upgrade
+     * @param channel Channel of the connection; it is switched to non-blocking mode
+     * @param received Data received after the upgrade request
+     */
+    void open(final Upgrade upgrade, final SocketChannel channel, final byte[] received) {
+        final WebSocketConnection connection;
+        try {
+            channel.configureBlocking(false);
+            connection = new WebSocketConnection(this, upgrade, channel, null, received);
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Failed to open WebSocket connection", e);
+            limiter.releaseConnection();
+            close(channel);
+            return;
+        }
+        connections.add(connection);
+        tasks.add(() -> {
+            try {
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                connection.start();
+            } catch (IOException e) {
+                connection.abort(WebSocket.ABNORMAL_CLOSURE, "");
+            }
+        });
+        selector.wakeup();
+        if (!work) {
+            connection.abort(WebSocket.GOING_AWAY, "Server is stopping");
+        }
+    }
+
+    /**
+     * Takes over a secure connection after the opening handshake; it is read
+     * by a thread of its own.
+     * @param upgrade The accepted upgrade
+     * @param socket Socket of the connection
+     * @param received Data received after the upgrade request
+     */
+    void open(final Upgrade upgrade, final Socket socket, final byte[] received) {
+        final WebSocketConnection connection;
+        try {
+            connection = new WebSocketConnection(this, upgrade, null, socket, received);
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Failed to open WebSocket connection", e);
+            limiter.releaseConnection();
+            close(socket);
+            return;
+        }
+        connections.add(connection);
+        final Thread thread = new Thread(connection, "websocket-" + threadNumber.incrementAndGet());
+        thread.setDaemon(true);
+        thread.start();
+        if (!work) {
+            connection.abort(WebSocket.GOING_AWAY, "Server is stopping");
+        }
+    }
+
+    /**
+     * Starting point of the selector thread.
+     */
+    @Override
+    public void run() {
+        long lastCheck = System.currentTimeMillis();
+        try {
+            while (work) {
+                selector.select(CHECK_INTERVAL);
+                Runnable task = tasks.poll();
+                while (task != null) {
+                    task.run();
+                    task = tasks.poll();
+                }
+                final Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    final SelectionKey key = iterator.next();
+                    iterator.remove();
+                    handleEvents(key);
+                }
+                final long now = System.currentTimeMillis();
+                if (now - lastCheck >= CHECK_INTERVAL) {
+                    lastCheck = now;
+                    for (final SelectionKey key : selector.keys()) {
+                        ((WebSocketConnection) key.attachment()).checkTimeouts(now);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "I/O error in WebSocket selector", e);
+        } finally {
+            for (final WebSocketConnection connection : new ArrayList<>(connections)) {
+                connection.abort(WebSocket.GOING_AWAY, "Server is stopping");
+            }
+            for (final SelectionKey key : selector.keys()) {
+                ((WebSocketConnection) key.attachment()).release();
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                logger.log(Level.FINE, "Failed to close WebSocket selector", e);
+            }
+        }
+    }
+
+    /**
+     * Stops the engine: sends the closing frame to all clients and closes the connections.
+     * The callbacks reporting the closure are queued to the worker pool, so the pool should
+     * be shut down after this call.
+     */
+    void stop() {
+        for (final WebSocketConnection connection : new ArrayList<>(connections)) {
+            connection.close(WebSocket.GOING_AWAY, "Server is stopping");
+        }
+        final long deadline = System.currentTimeMillis() + CHECK_INTERVAL;
+        for (final WebSocketConnection connection : new ArrayList<>(connections)) {
+            connection.awaitWritten(deadline);
+        }
+        work = false;
+        selector.wakeup();
+        for (final WebSocketConnection connection : new ArrayList<>(connections)) {
+            connection.abort(WebSocket.GOING_AWAY, "Server is stopping");
+        }
+    }
+
+    /**
+     * Asks the selector thread to send the frames queued for a plain connection
+     * when its channel is ready.
+     * @param connection The connection
+     */
+    void requestWrite(final WebSocketConnection connection) {
+        tasks.add(() -> {
+            final SelectionKey key = connection.key;
+            if (key != null && key.isValid()) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        });
+        selector.wakeup();
+    }
+
+    /**
+     * Starts a thread writing the frames queued for a secure connection.
+     * @param connection The connection
+     */
+    void startWriter(final WebSocketConnection connection) {
+        final Thread thread = new Thread(connection::drain,
+            "websocket-writer-" + threadNumber.incrementAndGet());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Asks the selector thread to free the compression state of a closed plain connection,
+     * since the thread may be decompressing a message of the connection at the moment.
+     * @param connection The connection
+     */
+    void release(final WebSocketConnection connection) {
+        tasks.add(connection::release);
+        selector.wakeup();
+    }
+
+    /**
+     * Forgets a closed connection.
+     * @param connection The connection
+     */
+    void remove(final WebSocketConnection connection) {
+        if (connections.remove(connection)) {
+            limiter.releaseConnection();
+        }
+    }
+
+    /**
+     * Handles I/O events of a plain connection.
+     * @param key The selection key of the connection
+     */
+    private static void handleEvents(final SelectionKey key) {
+        final WebSocketConnection connection = (WebSocketConnection) key.attachment();
+        try {
+            if (key.isValid() && key.isReadable()) {
+                connection.read();
+            }
+            if (key.isValid() && key.isWritable()) {
+                connection.write();
+            }
+        } catch (IOException e) {
+            logger.log(Level.FINE, "I/O error in WebSocket connection", e);
+            connection.abort(WebSocket.ABNORMAL_CLOSURE, "");
+        }
+    }
+
+    /**
+     * Writes an error response to a request that cannot switch to the WebSocket protocol.
+     * @param output Output stream of the connection
+     * @param status Status line, without the protocol version
+     * @param headers Additional headers, each one ending with CRLF
+     * @throws IOException If the response cannot be written
+     */
+    private static void refuse(final ClientOutput output, final String status,
+            final String headers) throws IOException {
+        final String response = "HTTP/1.1 " + status + "\r\n" + headers
+            + "Content-Length: 0\r\nConnection: close\r\n\r\n";
+        output.write(response.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * Computes the value of the {@code Sec-WebSocket-Accept} header.
+     * @param key Key sent by the client
+     * @return Base64 encoded SHA-1 of the key and the fixed suffix
+     */
+    private static String computeAcceptKey(final String key) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            final byte[] hash = digest.digest((key + KEY_SUFFIX).getBytes(StandardCharsets.ISO_8859_1));
+            return Base64.getEncoder().encodeToString(hash);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Checks whether a comma-separated header value contains a token, ignoring case.
+     * @param value The header value, may be {@code null}
+     * @param token The token
+     * @return {@code true} if the value contains the token
+     */
+    private static boolean containsToken(final String value, final String token) {
+        if (value == null) {
+            return false;
+        }
+        for (final String item : value.split(",")) {
+            if (item.trim().equalsIgnoreCase(token)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Trims a string that may be {@code null}.
+     * @param value The string
+     * @return The trimmed string or {@code null}
+     */
+    private static String trim(final String value) {
+        return value == null ? null : value.trim();
+    }
+
+    /**
+     * Closes a socket channel, ignoring errors.
+     * @param channel The channel
+     */
+    private static void close(final SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Failed to close client connection cleanly", e);
+        }
+    }
+
+    /**
+     * Closes a socket, ignoring errors.
+     * @param socket The socket
+     */
+    private static void close(final Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Failed to close client connection cleanly", e);
+        }
+    }
+
+    /**
+     * Upgrade request accepted by the opening handshake.
+     */
+    static final class Upgrade {
+        /**
+         * The request.
+         */
+        final Request request;
+
+        /**
+         * Flag indicating that messages are compressed.
+         */
+        final boolean compression;
+
+        /**
+         * Flag indicating that the server compresses each message independently
+         * of the previous ones.
+         */
+        final boolean noContextTakeover;
+
+        /**
+         * Constructor.
+         * @param request The request
+         * @param compression Flag indicating that messages are compressed
+         * @param noContextTakeover Flag indicating that the server compresses each message
+         *  independently of the previous ones
+         */
+        Upgrade(final Request request, final boolean compression,
+                final boolean noContextTakeover) {
+            this.request = request;
+            this.compression = compression;
+            this.noContextTakeover = noContextTakeover;
+        }
+    }
+}
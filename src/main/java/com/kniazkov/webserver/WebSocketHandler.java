@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2025 Ivan Kniazkov
+ */
+package com.kniazkov.webserver;
+
+/**
+ * Handler of WebSocket connections, to be implemented by the library user alongside
+ * the {@link Handler}. A request with the {@code Upgrade: websocket} header switches
+ * its connection to the WebSocket protocol; from then on, the client and the server
+ * exchange messages in both directions without requests and responses.
+ *
+ * The callbacks of one connection are invoked by worker threads one after another,
+ * in the order of the events, so a connection needs no synchronization of its own;
+ * callbacks of different connections run simultaneously. They should not block for long,
+ * since the worker threads also serve HTTP requests.
+ *
+ * Use {@link Server#start(Options, Handler, WebSocketHandler)} to start a server with
+ * such a handler.
+ */
+public interface WebSocketHandler {
+    /**
+     * Decides whether a request may switch to the WebSocket protocol, for example,
+     * by its path or cookies. Refused requests get {@code 403 Forbidden}.
+     * @param request The request asking to switch
+     * @return {@code true} if the connection is accepted
+     */
+    default boolean accept(Request request) {
+        return true;
+    }
+
+    /**
+     * Called when a connection has switched to the WebSocket protocol.
+     * @param socket The connection
+     */
+    default void onOpen(WebSocket socket) {
+    }
+
+    /**
+     * Called when a text message is received.
+     * @param socket The connection
+     * @param message The message
+     */
+    default void onText(WebSocket socket, String message) {
+    }
+
+    /**
+     * Called when a binary message is received.
+     * @param socket The connection
+     * @param message The message
+     */
+    default void onBinary(WebSocket socket, byte[] message) {
+    }
+
+    /**
+     * Called once when the connection is closed, by either side or because it is broken.
+     * No callbacks of the connection are invoked afterwards.
+     * @param socket The connection
+     * @param code Status code of the closure, for example, {@link WebSocket#NORMAL_CLOSURE},
+     *  or {@link WebSocket#ABNORMAL_CLOSURE} if the connection is broken
+     * @param reason Reason of the closure sent by the closing side, may be empty
+     */
+    default void onClose(WebSocket socket, int code, String reason) {
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2025 Ivan Kniazkov
+ */
+package com.kniazkov.webserver;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Factory of thread pools in which the server engines run their workers.
+ * This is the Java 8 version of the class; the library is shipped as a multi-release JAR
+ * that also contains a version for Java 21+, which supports virtual threads.
+ */
+final class WorkerPool {
+    /**
+     * Logger.
+     */
+    private static final Logger logger = Logger.getLogger(WorkerPool.class.getName());
+
+    /**
+     * Private constructor.
+     */
+    private WorkerPool() {
+    }
+
+    /**
+     * Creates a thread pool for workers.
+     * @param options Options for starting the server
+     * @return A pool of {@link Options#threadCount} platform threads with a bounded queue
+     */
+    static ExecutorService create(final Options options) {
+        if (options.virtualThreads) {
+            logger.warning("Virtual threads require Java 21 or newer, "
+                + "falling back to a fixed pool of " + options.threadCount + " threads");
+        }
+        return createFixedPool(options);
+    }
+
+    /**
+     * Creates a pool of {@link Options#threadCount} platform threads whose queue holds
+     * at most {@link Options#maxQueueSize} tasks; submitting a task to the full queue
+     * throws {@link java.util.concurrent.RejectedExecutionException}.
+     * @param options Options for starting the server
+     * @return The pool
+     */
+    private static ExecutorService createFixedPool(final Options options) {
+        final BlockingQueue<Runnable> queue = options.maxQueueSize > 0
+            ? new ArrayBlockingQueue<>(options.maxQueueSize) : new LinkedBlockingQueue<>();
+        return new ThreadPoolExecutor(options.threadCount, options.threadCount,
+            0L, TimeUnit.MILLISECONDS, queue);
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2025 Ivan Kniazkov
+ */
+package com.kniazkov.webserver.example;
+
+import com.kniazkov.json.JsonObject;
+import com.kniazkov.webserver.Handler;
+import com.kniazkov.webserver.Options;
+import com.kniazkov.webserver.Request;
+import com.kniazkov.webserver.Response;
+import com.kniazkov.webserver.ResponseNothing;
+import com.kniazkov.webserver.Server;
+import com.kniazkov.webserver.WebSocket;
+import com.kniazkov.webserver.WebSocketHandler;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Web server that pushes a counter to all open pages over WebSocket connections,
+ * instead of letting the pages poll it like {@link Counter} does.
+ * The page resets the counter by sending the "reset" message.
+ * How to use:
+ *   1. Run the program;
+ *   2. Open your browser and type "<a href="http://localhost:8000">...</a>" in the address bar.
+ */
+public class LiveCounter {
+    /**
+     * The page that shows the counter.
+     */
+    private static final String PAGE = "<!DOCTYPE html>\n"
+        + "<html><body>\n"
+        + "<h1 id=\"count\">...</h1>\n"
+        + "<button onclick=\"socket.send('reset')\">Reset</button>\n"
+        + "<script>\n"
+        + "const socket = new WebSocket('ws://' + location.host + '/counter');\n"
+        + "socket.onmessage = event => {\n"
+        + "  document.getElementById('count').textContent = JSON.parse(event.data).count;\n"
+        + "};\n"
+        + "</script>\n"
+        + "</body></html>\n";
+
+    /**
+     * Starting point.
+     * @param args Program arguments
+     */
+    public static void main(String[] args) {
+        Options options = new Options();
+        AtomicInteger count = new AtomicInteger();
+        Set<WebSocket> sockets = ConcurrentHashMap.newKeySet();
+
+        Handler handler = new Handler() {
+            @Override
+            public Response handle(Request request) {
+                if (request.address.equals("/")) {
+                    return new Response() {
+                        @Override
+                        public String getContentType() {
+                            return "text/html";
+                        }
+
+                        @Override
+                        public byte[] getData() {
+                            return PAGE.getBytes(StandardCharsets.UTF_8);
+                        }
+                    };
+                }
+                return ResponseNothing.INSTANCE;
+            }
+        };
+
+        WebSocketHandler webSocketHandler = new WebSocketHandler() {
+            @Override
+            public boolean accept(Request request) {
+                return request.address.equals("/counter");
+            }
+
+            @Override
+            public void onOpen(WebSocket socket) {
+                sockets.add(socket);
+            }
+
+            @Override
+            public void onText(WebSocket socket, String message) {
+                if (message.equals("reset")) {
+                    count.set(0);
+                }
+            }
+
+            @Override
+            public void onClose(WebSocket socket, int code, String reason) {
+                sockets.remove(socket);
+            }
+        };
+
+        new Timer(true).scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+                JsonObject json = new JsonObject();
+                json.addNumber("count", count.getAndIncrement());
+                String message = json.toString();
+                for (WebSocket socket : sockets) {
+                    socket.send(message);
+                }
+            }
+        }, 1000, 1000);
+
+        Server.start(options, handler, webSocketHandler);
+    }
+}